@@ -0,0 +1,186 @@
+package org.rgamba.falcon;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * BodyTransfer
+ *
+ * <p>Copies a streamed {@link ResponseBody} from its source to the client
+ * channel without holding more than one chunk in memory. Files are handed
+ * to {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * so the kernel can send them without copying them to user space.
+ *
+ * <p>Bodies of a known length are cut at that length and a source that
+ * ends before it fails the transfer, the client would otherwise wait for
+ * bytes that never come. Bodies of an unknown length are sent with the
+ * chunked transfer coding, followed by the trailers of the response.
+ *
+ * <p>The blocking transport sends the whole body with {@link #writeTo(GatheringByteChannel)}.
+ * The event loop calls {@link #writeSome(GatheringByteChannel)} whenever the
+ * channel is writable and, when {@link #needsFill()}, reads the next chunk
+ * on a worker thread with {@link #fill()}.
+ */
+final class BodyTransfer implements Closeable {
+  static final int CHUNK_SIZE = 64 * 1024;
+  private static final BufferPool CHUNKS = new BufferPool(CHUNK_SIZE, 64);
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final ResponseBody _body;
+  private final long _length;
+  private final boolean _chunked;
+  private final int _maxChunkData;
+  private final Headers _trailers;
+  private ReadableByteChannel _source;
+  /* Set when the source is a file of a known length */
+  private FileChannel _file;
+  private long _fileOffset;
+  /* The chunk read from the source and, once it ends, the last chunk */
+  private final ByteBuffer[] _out = {EMPTY, EMPTY};
+  private ByteBuffer _chunk;
+  private long _read = 0;
+  private long _sent = 0;
+  private boolean _eof = false;
+  private boolean _truncated = false;
+
+  /**
+   * @param body A streamed body
+   * @param chunkSize Max size of the chunks of a body sent with the chunked coding
+   * @param trailers Sent after the last chunk, can be null
+   */
+  BodyTransfer(ResponseBody body, int chunkSize, Headers trailers) {
+    _body = body;
+    _length = body.length();
+    _chunked = _length == ResponseBody.UNKNOWN_LENGTH;
+    _maxChunkData = Math.min(chunkSize, CHUNK_SIZE - ChunkedEncoding.HEADER_ROOM - ChunkedEncoding.TRAILER_ROOM);
+    _trailers = trailers;
+  }
+
+  /**
+   * Send the whole body to a blocking channel.
+   */
+  void writeTo(GatheringByteChannel target) throws IOException {
+    open();
+    if (_file != null) {
+      while (!isFileDone()) {
+        transferFile(target);
+      }
+      return;
+    }
+    while (true) {
+      if (!ResponseSerializer.hasRemaining(_out)) {
+        if (_eof) {
+          return;
+        }
+        fill();
+        continue;
+      }
+      target.write(_out);
+    }
+  }
+
+  /**
+   * Send as much as the channel takes without blocking.
+   *
+   * @return true once the whole body has been sent
+   */
+  boolean writeSome(GatheringByteChannel target) throws IOException {
+    open();
+    if (_file != null) {
+      transferFile(target);
+      return isFileDone();
+    }
+    if (ResponseSerializer.hasRemaining(_out)) {
+      target.write(_out);
+    }
+    return !ResponseSerializer.hasRemaining(_out) && _eof;
+  }
+
+  /**
+   * @return true if the last chunk was sent and the next one must be read
+   *     before the transfer can go on
+   */
+  boolean needsFill() {
+    return _chunk != null && !ResponseSerializer.hasRemaining(_out) && !_eof;
+  }
+
+  /**
+   * Read the next chunk from the source, blocking if needed.
+   */
+  void fill() throws IOException {
+    open();
+    if (_truncated) {
+      throw new EOFException("body ended after " + _read + " of " + _length + " bytes");
+    }
+    int start = _chunked ? ChunkedEncoding.HEADER_ROOM : 0;
+    long max = _chunked ? _maxChunkData : Math.min(_chunk.capacity(), _length - _read);
+    _chunk.clear();
+    _chunk.position(start).limit(start + (int) max);
+    int read = 0;
+    while (_chunk.hasRemaining()) {
+      read = _source.read(_chunk);
+      if (read <= 0) {
+        break;
+      }
+      _read += read;
+    }
+    int data = _chunk.position() - start;
+    if (!_chunked) {
+      _chunk.flip();
+    } else if (data > 0) {
+      ChunkedEncoding.frame(_chunk, data);
+    } else {
+      _chunk.limit(0);
+    }
+    _out[0] = _chunk;
+    /* What was read is still sent, the next fill fails */
+    _truncated = read < 0 && !_chunked && _read < _length;
+    _eof = !_truncated && (read < 0 || _read == _length);
+    if (_eof && _chunked) {
+      _out[1] = ChunkedEncoding.lastChunk(_trailers);
+    }
+  }
+
+  @Override
+  public void close() {
+    CHUNKS.release(_chunk);
+    _chunk = null;
+    if (_source != null) {
+      try {
+        _source.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private void open() throws IOException {
+    if (_source != null) {
+      return;
+    }
+    _source = _body.open();
+    if (_source instanceof FileChannel && !_chunked) {
+      _file = (FileChannel) _source;
+      _fileOffset = _file.position();
+    } else {
+      _chunk = CHUNKS.acquire();
+    }
+  }
+
+  private boolean isFileDone() {
+    return _sent == _length;
+  }
+
+  private void transferFile(GatheringByteChannel target) throws IOException {
+    long sent = _file.transferTo(_fileOffset + _sent, _length - _sent, target);
+    if (sent == 0 && !isFileDone() && _file.size() <= _fileOffset + _sent) {
+      throw new EOFException("file ended after " + _sent + " of " + _length + " bytes");
+    }
+    _sent += sent;
+  }
+}
@@ -0,0 +1,28 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+
+
+/**
+ * BodyWriter
+ *
+ * <p>Produces the body of a response while it is being sent, for output
+ * whose length is not known up front like the rows of a database cursor.
+ * The body is sent with the chunked transfer coding:
+ * <pre>
+ *   return new Response.Builder().setBody(sink -&gt; {
+ *     for (Row row : cursor) {
+ *       sink.write(row.toCsv().getBytes(StandardCharsets.UTF_8));
+ *     }
+ *   }).build();
+ * </pre>
+ *
+ * <p>The writer runs on the worker thread serving the connection after the
+ * head of the response has been sent, so errors can no longer change the
+ * status code. Throwing closes the connection and the client sees an
+ * incomplete body.
+ */
+@FunctionalInterface
+public interface BodyWriter {
+  void write(ResponseSink sink) throws IOException;
+}
@@ -0,0 +1,72 @@
+package org.rgamba.falcon;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * BufferPool
+ *
+ * <p>Lock free pool of direct buffers of a fixed size. Direct buffers are
+ * expensive to allocate but can be handed to a channel without being
+ * copied first, so they are kept around once the write is done.
+ *
+ * <p>Buffers of another size or on the heap are simply dropped on release,
+ * which lets callers release whatever they acquired even if they had to
+ * replace it with a bigger buffer in the meantime. Read only buffers are
+ * dropped too, they are views of memory the pool does not own.
+ */
+final class BufferPool {
+  private final int _bufferSize;
+  private final int _maxPooled;
+  private final ConcurrentLinkedQueue<ByteBuffer> _free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _pooled = new AtomicInteger();
+
+  /**
+   * @param bufferSize Capacity of every buffer
+   * @param maxPooled Max number of idle buffers kept, anything above is left to the GC
+   */
+  BufferPool(int bufferSize, int maxPooled) {
+    _bufferSize = bufferSize;
+    _maxPooled = maxPooled;
+  }
+
+  /**
+   * @return A cleared buffer, allocated if the pool is empty
+   */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = _free.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(_bufferSize);
+    }
+    _pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool. It must not be used after this.
+   */
+  void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() != _bufferSize) {
+      return;
+    }
+    if (_pooled.incrementAndGet() > _maxPooled) {
+      _pooled.decrementAndGet();
+      return;
+    }
+    _free.offer(buffer);
+  }
+
+  int getBufferSize() {
+    return _bufferSize;
+  }
+
+  /**
+   * @return Number of idle buffers
+   */
+  int size() {
+    return _pooled.get();
+  }
+}
@@ -0,0 +1,429 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+
+
+/**
+ * Byte Request Parser
+ *
+ * <p>Allocation light alternative to {@link RequestParser}. The request
+ * head is parsed in place, straight out of the connection's byte window, by
+ * a state machine over ASCII bytes. Tokens are validated inline against the
+ * same table used by {@link HttpUtils#isValidToken(String)}.
+ *
+ * <p>While parsing only the offsets of each element are recorded. Common
+ * header names are interned and header values are decoded into a String only
+ * if they are accessed by the middleware or the handler.
+ *
+ * <p>The parser is not thread safe but it can be reused for every request
+ * of a connection.
+ */
+class ByteRequestParser {
+  static final int NEED_MORE_BYTES = -1;
+  static final int MAX_HEAD_SIZE = 64 * 1024;
+  private static final int MAX_HEADERS = 100;
+
+  /* States of the head parser */
+  private static final int METHOD = 0;
+  private static final int TARGET = 1;
+  private static final int VERSION = 2;
+  private static final int LINE_START = 3;
+  private static final int HEADER_NAME = 4;
+  private static final int HEADER_VALUE_START = 5;
+  private static final int HEADER_VALUE = 6;
+  private static final int HEAD_END = 7;
+
+  private static final Request.Type[] TYPES = Request.Type.values();
+  private static final byte[][] TYPE_NAMES = new byte[TYPES.length][];
+  private static final int MAX_TYPE_LENGTH;
+  private static final byte[][] PROTOCOL_VERSIONS;
+  /* Common header names as sent by clients, lookups will never need to decode them */
+  private static final String[] KNOWN_HEADERS = {
+      "Host", "Content-Length", "Content-Type", "Connection", "User-Agent", "Accept", "Accept-Encoding",
+      "Accept-Language", "Accept-Charset", "Authorization", "Cache-Control", "Cookie", "Expect", "If-Match",
+      "If-None-Match", "If-Modified-Since", "If-Unmodified-Since", "If-Range", "Origin", "Pragma", "Range",
+      "Referer", "Transfer-Encoding", "Upgrade", "Content-Encoding", "Content-Disposition", "X-Forwarded-For",
+      "X-Forwarded-Proto", "X-Requested-With"};
+  private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+  private static final int HOST_HEADER = 0;
+  private static final int CONTENT_LENGTH_HEADER = 1;
+  private static final int TRANSFER_ENCODING_HEADER = 22;
+  private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+
+  static {
+    int longest = 0;
+    for (int i = 0; i < TYPES.length; i++) {
+      TYPE_NAMES[i] = TYPES[i].name().getBytes(StandardCharsets.US_ASCII);
+      longest = Math.max(longest, TYPE_NAMES[i].length);
+    }
+    MAX_TYPE_LENGTH = longest;
+    @SuppressWarnings("unchecked")
+    Set<String> versions = HttpConstants.PROTOCOL_VERSIONS;
+    PROTOCOL_VERSIONS = new byte[versions.size()][];
+    int i = 0;
+    for (String version : versions) {
+      PROTOCOL_VERSIONS[i++] = version.getBytes(StandardCharsets.US_ASCII);
+    }
+    for (i = 0; i < KNOWN_HEADERS.length; i++) {
+      KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  private final SocketAddress _remoteAddress;
+  private final long _maxContentLength;
+
+  /* Result of the last call to parseHead, offsets are relative to the start of the head */
+  private Request.Type _type;
+  private int _targetStart;
+  private int _targetEnd;
+  private int _headerCount;
+  private final int[] _nameStart = new int[MAX_HEADERS];
+  private final int[] _nameEnd = new int[MAX_HEADERS];
+  private final int[] _valueStart = new int[MAX_HEADERS];
+  private final int[] _valueEnd = new int[MAX_HEADERS];
+  private final int[] _knownHeader = new int[MAX_HEADERS];
+  private int _hostHeader;
+  private long _contentLength;
+  private boolean _hasContentLength;
+  private boolean _chunked;
+
+  ByteRequestParser(SocketAddress remoteAddress, long maxContentLength) {
+    _remoteAddress = remoteAddress;
+    _maxContentLength = maxContentLength;
+  }
+
+  /**
+   * Read a full request head from the connection and build the request.
+   * The body is left in the connection to be read by the handler, chunked
+   * bodies are decoded while it reads them.
+   *
+   * @param input The connection input
+   * @return Request object ready to use
+   * @throws BadRequest In case an invalid message was sent
+   */
+  Request buildRequest(ConnectionInputStream input) throws IOException {
+    int headLength;
+    while ((headLength = parseHead(input.buffer(), input.position(), input.limit())) == NEED_MORE_BYTES) {
+      if (!input.fill()) {
+        throw new BadRequest("incomplete request head");
+      }
+    }
+    /* The window is reused for the next request, keep a copy for the lazy values */
+    byte[] head = Arrays.copyOfRange(input.buffer(), input.position(), input.position() + headLength);
+    input.consume(headLength);
+    return buildRequest(head, 0, bodyStream(input));
+  }
+
+  /**
+   * @return The Content-Length of the last parsed head, 0 if it was not sent
+   */
+  long getContentLength() {
+    return _contentLength;
+  }
+
+  /**
+   * @return true if the body of the last parsed head is sent with the chunked transfer coding
+   */
+  boolean isChunked() {
+    return _chunked;
+  }
+
+  /**
+   * Wrap the input the body of the last parsed head is read from, so it
+   * ends where the body does.
+   */
+  InputStream bodyStream(InputStream input) {
+    if (_chunked) {
+      return new ChunkedInputStream(input, _maxContentLength);
+    }
+    return new ContentLengthInputStream(input, _contentLength);
+  }
+
+  /**
+   * Parse the request head found at the beginning of the given window.
+   *
+   * <p>The head is parsed from the start on every call, so the caller can
+   * simply call it again once more bytes are available.
+   *
+   * @param buf The bytes received from the client
+   * @param offset Where the request starts
+   * @param limit Offset after the last received byte
+   * @return The length of the head including the empty line or {@link #NEED_MORE_BYTES}
+   * @throws BadRequest In case an invalid message was sent
+   */
+  int parseHead(byte[] buf, int offset, int limit) {
+    _type = null;
+    _headerCount = 0;
+    _hostHeader = -1;
+    _contentLength = 0;
+    _hasContentLength = false;
+    _chunked = false;
+    int start = offset;
+    /* Allow for buggy clients who send empty lines before the request line */
+    while (start < limit && (buf[start] == '\r' || buf[start] == '\n')) {
+      start++;
+    }
+    int state = METHOD;
+    int mark = start;
+    int nameStart = 0;
+    int nameEnd = 0;
+    for (int p = start; p < limit; p++) {
+      final int b = buf[p] & 0xff;
+      switch (state) {
+        case METHOD:
+          if (b == ' ') {
+            _type = matchType(buf, mark, p);
+            state = TARGET;
+            mark = p + 1;
+          } else if (!HttpUtils.isTokenChar(b)) {
+            throw new BadRequest("invalid request type");
+          }
+          break;
+        case TARGET:
+          if (b == ' ') {
+            if (p == mark) {
+              throw new BadRequest("invalid request line");
+            }
+            _targetStart = mark - offset;
+            _targetEnd = p - offset;
+            state = VERSION;
+            mark = p + 1;
+          } else if (b <= ' ' || b == 127) {
+            throw new BadRequest("invalid request line");
+          }
+          break;
+        case VERSION:
+          if (b == '\n') {
+            validateVersion(buf, mark, trimCr(buf, mark, p));
+            state = LINE_START;
+          }
+          break;
+        case LINE_START:
+          if (b == '\n') {
+            return p + 1 - offset;
+          } else if (b == '\r') {
+            state = HEAD_END;
+          } else if (HttpUtils.isTokenChar(b)) {
+            if (_headerCount == MAX_HEADERS) {
+              throw new BadRequest("too many request headers");
+            }
+            nameStart = p;
+            state = HEADER_NAME;
+          } else {
+            throw new BadRequest("invalid request headers");
+          }
+          break;
+        case HEAD_END:
+          if (b != '\n') {
+            throw new BadRequest("invalid request headers");
+          }
+          return p + 1 - offset;
+        case HEADER_NAME:
+          if (b == ':') {
+            nameEnd = p;
+            state = HEADER_VALUE_START;
+          } else if (!HttpUtils.isTokenChar(b)) {
+            throw new BadRequest("invalid request headers");
+          }
+          break;
+        case HEADER_VALUE_START:
+          if (b == ' ' || b == '\t') {
+            break;
+          }
+          mark = p;
+          state = HEADER_VALUE;
+          /* Parse the first byte of the value again as part of it */
+          p--;
+          break;
+        case HEADER_VALUE:
+          if (b == '\n') {
+            addHeader(buf, offset, nameStart, nameEnd, mark, trimWhitespace(buf, mark, p));
+            state = LINE_START;
+          } else if ((b < ' ' && b != '\t' && b != '\r') || b == 127) {
+            throw new BadRequest("invalid request headers");
+          }
+          break;
+        default:
+          throw new IllegalStateException("unexpected parser state");
+      }
+    }
+    if (limit - offset >= MAX_HEAD_SIZE) {
+      throw new BadRequest("request head is too large");
+    }
+    if (state == METHOD && limit - mark > MAX_TYPE_LENGTH) {
+      throw new BadRequest("invalid request type");
+    }
+    return NEED_MORE_BYTES;
+  }
+
+  /**
+   * Build the request out of the last parsed head.
+   *
+   * @param head Bytes of the head, they must not be modified afterwards
+   * @param headOffset Where the head starts in the array
+   * @param body The request body stream
+   */
+  Request buildRequest(byte[] head, int headOffset, InputStream body) {
+    final String uri = new String(head, headOffset + _targetStart, _targetEnd - _targetStart, StandardCharsets.ISO_8859_1);
+    final RequestTarget target = RequestTarget.parse(uri);
+    Request.Builder reqBuilder = new Request.Builder().setType(_type)
+        .setUri(uri)
+        .setRemoteAddress(_remoteAddress);
+    for (int i = 0; i < _headerCount; i++) {
+      int valueStart = headOffset + _valueStart[i];
+      int valueLength = _valueEnd[i] - _valueStart[i];
+      String name;
+      if (_knownHeader[i] >= 0) {
+        name = KNOWN_HEADERS[_knownHeader[i]];
+      } else {
+        name = new String(head, headOffset + _nameStart[i], _nameEnd[i] - _nameStart[i], StandardCharsets.ISO_8859_1);
+      }
+      reqBuilder.headers.add(new RawHeader(name, head, valueStart, valueLength));
+    }
+    if (reqBuilder.headers.contains("Content-Length")) {
+      reqBuilder.setContentLength(_contentLength);
+    }
+    String host = null;
+    if (_hostHeader >= 0) {
+      host = new String(head, headOffset + _valueStart[_hostHeader], _valueEnd[_hostHeader] - _valueStart[_hostHeader],
+          StandardCharsets.ISO_8859_1);
+    }
+    reqBuilder.setTarget(target, host);
+    reqBuilder.setInputStream(body);
+    return reqBuilder.build();
+  }
+
+  private void addHeader(byte[] buf, int offset, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+    int known = matchKnownHeader(buf, nameStart, nameEnd);
+    int i = _headerCount++;
+    _nameStart[i] = nameStart - offset;
+    _nameEnd[i] = nameEnd - offset;
+    _valueStart[i] = valueStart - offset;
+    _valueEnd[i] = valueEnd - offset;
+    _knownHeader[i] = known;
+    if (known == HOST_HEADER) {
+      _hostHeader = i;
+    } else if (known == CONTENT_LENGTH_HEADER) {
+      long contentLength = parseContentLength(buf, valueStart, valueEnd);
+      if (_hasContentLength && contentLength != _contentLength) {
+        /* Same as with both framings, each side could pick a different one */
+        throw new BadRequest("conflicting content lengths sent");
+      }
+      _contentLength = contentLength;
+      _hasContentLength = true;
+    } else if (known == TRANSFER_ENCODING_HEADER) {
+      /* Other codings can't be decoded, the end of the body could not be found */
+      if (!regionEquals(buf, valueStart, valueEnd, CHUNKED, true)) {
+        throw new BadRequest("unsupported transfer encoding");
+      }
+      _chunked = true;
+    }
+    if (_chunked && _hasContentLength) {
+      /* Could be an attempt to smuggle a request past a proxy reading only one of them */
+      throw new BadRequest("both content length and transfer encoding sent");
+    }
+  }
+
+  private long parseContentLength(byte[] buf, int from, int to) {
+    if (from == to) {
+      throw new BadRequest("invalid content length");
+    }
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        throw new BadRequest("invalid content length");
+      }
+      value = value * 10 + (buf[i] - '0');
+      if (value > _maxContentLength) {
+        throw new PayloadTooLarge("content length is too big");
+      }
+    }
+    return value;
+  }
+
+  private static Request.Type matchType(byte[] buf, int from, int to) {
+    for (int i = 0; i < TYPES.length; i++) {
+      if (regionEquals(buf, from, to, TYPE_NAMES[i], false)) {
+        return TYPES[i];
+      }
+    }
+    throw new BadRequest("invalid request type");
+  }
+
+  private static void validateVersion(byte[] buf, int from, int to) {
+    for (byte[] version : PROTOCOL_VERSIONS) {
+      if (regionEquals(buf, from, to, version, false)) {
+        return;
+      }
+    }
+    throw new BadRequest("unsupported HTTP version");
+  }
+
+  private static int matchKnownHeader(byte[] buf, int from, int to) {
+    for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+      if (regionEquals(buf, from, to, KNOWN_HEADER_BYTES[i], true)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean regionEquals(byte[] buf, int from, int to, byte[] expected, boolean ignoreCase) {
+    if (to - from != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      int a = buf[from + i];
+      int b = expected[i];
+      if (a != b && (!ignoreCase || (a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int trimCr(byte[] buf, int from, int to) {
+    return to > from && buf[to - 1] == '\r' ? to - 1 : to;
+  }
+
+  private static int trimWhitespace(byte[] buf, int from, int to) {
+    while (to > from && (buf[to - 1] == '\r' || buf[to - 1] == ' ' || buf[to - 1] == '\t')) {
+      to--;
+    }
+    return to;
+  }
+
+  /**
+   * Header backed by the raw request head, the value is decoded
+   * the first time it is accessed.
+   */
+  private static final class RawHeader extends Header {
+    private final byte[] _raw;
+    private final int _offset;
+    private final int _length;
+    private String _value;
+
+    RawHeader(String name, byte[] raw, int offset, int length) {
+      super(name, null);
+      _raw = raw;
+      _offset = offset;
+      _length = length;
+    }
+
+    @Override
+    public String getValue() {
+      if (_value == null) {
+        _value = new String(_raw, _offset, _length, StandardCharsets.ISO_8859_1);
+      }
+      return _value;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.rgamba.falcon;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * ChunkedEncoding
+ *
+ * <p>Framing of the chunked transfer coding
+ * (<a href="https://tools.ietf.org/html/rfc7230#section-4.1">RFC 7230</a>).
+ * Chunk data is read or written into a buffer leaving {@link #HEADER_ROOM}
+ * bytes free before it and {@link #TRAILER_ROOM} after it, the size line
+ * and the CRLF are then added around the data in place so every chunk goes
+ * out with a single write and without copying it.
+ */
+final class ChunkedEncoding {
+  /* Up to 8 hex digits and the CRLF */
+  static final int HEADER_ROOM = 10;
+  static final int TRAILER_ROOM = 2;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private ChunkedEncoding() {
+  }
+
+  /**
+   * Frame the data that starts at {@link #HEADER_ROOM}, leaving the buffer
+   * positioned on the whole chunk.
+   *
+   * @param buffer Buffer with enough room around the data
+   * @param length Length of the data, must be positive
+   */
+  static void frame(ByteBuffer buffer, int length) {
+    int end = HEADER_ROOM + length;
+    buffer.limit(end + TRAILER_ROOM);
+    buffer.put(end, (byte) '\r').put(end + 1, (byte) '\n');
+    int start = HEADER_ROOM - 2;
+    buffer.put(start, (byte) '\r').put(start + 1, (byte) '\n');
+    for (int remaining = length; remaining > 0; remaining >>>= 4) {
+      buffer.put(--start, HEX_DIGITS[remaining & 0xf]);
+    }
+    buffer.position(start);
+  }
+
+  /**
+   * @param trailers Sent after the last chunk, can be null
+   * @return The last chunk, trailers and the CRLF that ends the body
+   */
+  static ByteBuffer lastChunk(Headers trailers) {
+    StringBuilder last = new StringBuilder("0").append(HttpConstants.CRLF);
+    if (trailers != null) {
+      for (int i = 0; i < trailers.size(); i++) {
+        last.append(trailers.headerAt(i).toString());
+      }
+    }
+    last.append(HttpConstants.CRLF);
+    return ByteBuffer.wrap(last.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
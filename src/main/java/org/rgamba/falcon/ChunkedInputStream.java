@@ -0,0 +1,316 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.HttpError;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+
+
+/**
+ * ChunkedInputStream
+ *
+ * <p>Request body sent with the chunked transfer coding, decoded while the
+ * handler reads it. Chunk sizes, extensions and trailers are consumed by
+ * the stream, the handler only sees the data. The stream ends after the
+ * last chunk and its trailers, so the handler can never read into the next
+ * request sent over the same persistent connection.
+ *
+ * <p>The length of the body is not known up front, the max request content
+ * length is checked against the size of each chunk before its data is read.
+ * Malformed chunks fail with {@link BadRequest}, bodies that grow too large
+ * with {@link PayloadTooLarge} like those with a Content-Length do, and a
+ * body the client did not finish fails with an {@link EOFException}, which
+ * {@link Request#readAllBytes()} turns into a {@link BadRequest}.
+ * Closing it leaves the connection open.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7230#section-4.1">Chunked transfer coding</a>
+ */
+class ChunkedInputStream extends InputStream {
+  /* Longest chunk size or trailer line accepted */
+  private static final int MAX_LINE_LENGTH = 4096;
+  private static final int MAX_TRAILERS = 100;
+  /* Chunk sizes with more digits would overflow a long */
+  private static final int MAX_SIZE_DIGITS = 15;
+
+  private final InputStream _in;
+  private final long _maxLength;
+  private long _length = 0;
+  private long _chunkRemaining = 0;
+  private boolean _eof = false;
+  private boolean _failed = false;
+
+  /**
+   * @param in The connection input, positioned at the first chunk
+   * @param maxLength Max number of data bytes the body can hold
+   */
+  ChunkedInputStream(InputStream in, long maxLength) {
+    _in = in;
+    _maxLength = maxLength;
+  }
+
+  /**
+   * Find where a chunked body received in full ends, without decoding it.
+   *
+   * @param buf The bytes received from the client
+   * @param from Where the first chunk starts
+   * @param to Offset after the last received byte
+   * @param maxLength Max number of data bytes the body can hold
+   * @return The length of the body including the framing, or
+   *     {@link ByteRequestParser#NEED_MORE_BYTES} if it was not received in full yet
+   * @throws BadRequest If the body is malformed
+   * @throws PayloadTooLarge If the body is too large
+   */
+  static int bodyLength(byte[] buf, int from, int to, long maxLength) {
+    return new Scanner(maxLength).scan(buf, from, to);
+  }
+
+  /**
+   * Finds where a chunked body ends while it arrives. The chunks already
+   * received in full are not scanned again on the next call, so the work
+   * stays linear in the size of the body no matter how many reads it takes.
+   */
+  static final class Scanner {
+    private final long _maxLength;
+    /* Where the first chunk not received in full starts, relative to the body */
+    private int _next = 0;
+    /* Data bytes of the chunks before it */
+    private long _length = 0;
+
+    /**
+     * @param maxLength Max number of data bytes the body can hold
+     */
+    Scanner(long maxLength) {
+      _maxLength = maxLength;
+    }
+
+    /**
+     * @param buf The bytes received from the client, the body must stay at the same offset between calls
+     * @param from Where the first chunk starts
+     * @param to Offset after the last received byte
+     * @return The length of the body including the framing, or
+     *     {@link ByteRequestParser#NEED_MORE_BYTES} if it was not received in full yet
+     * @throws BadRequest If the body is malformed
+     * @throws PayloadTooLarge If the body is too large
+     */
+    int scan(byte[] buf, int from, int to) {
+      ByteArrayInputStream in = new ByteArrayInputStream(buf, from + _next, to - from - _next);
+      long scanned = _length;
+      ChunkedInputStream chunked = new ChunkedInputStream(in, _maxLength - scanned);
+      try {
+        while (!chunked._eof) {
+          chunked.skip(Long.MAX_VALUE);
+          if (chunked._chunkRemaining == 0) {
+            /* At the end of a chunk, including its CRLF */
+            _next = to - from - in.available();
+            _length = scanned + chunked._length;
+          }
+        }
+      } catch (EOFException e) {
+        return ByteRequestParser.NEED_MORE_BYTES;
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return to - from - in.available();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!hasData()) {
+      return -1;
+    }
+    int b = _in.read();
+    if (b == -1) {
+      throw truncated();
+    }
+    consumed(1);
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!hasData()) {
+      return -1;
+    }
+    int read = _in.read(b, off, (int) Math.min(len, _chunkRemaining));
+    if (read < 0) {
+      throw truncated();
+    }
+    consumed(read);
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0 || !hasData()) {
+      return 0;
+    }
+    long skipped = _in.skip(Math.min(n, _chunkRemaining));
+    if (skipped == 0 && _in.read() == -1) {
+      throw truncated();
+    } else if (skipped == 0) {
+      skipped = 1;
+    }
+    consumed(skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(_in.available(), _chunkRemaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Discard whatever the handler did not read.
+   * @return false if the body was malformed, too large or the stream
+   *     ended before the last chunk was received
+   */
+  boolean drain() throws IOException {
+    byte[] buffer = new byte[1024];
+    try {
+      while (read(buffer, 0, buffer.length) != -1) {
+        /* Discarded */
+      }
+    } catch (EOFException | HttpError e) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return false once the last chunk and the trailers have been read
+   */
+  private boolean hasData() throws IOException {
+    if (_failed) {
+      throw new BadRequest("invalid chunked request body");
+    }
+    if (_eof) {
+      return false;
+    }
+    if (_chunkRemaining == 0) {
+      readChunkSize();
+    }
+    return !_eof;
+  }
+
+  private void consumed(long count) throws IOException {
+    _chunkRemaining -= count;
+    if (_chunkRemaining == 0) {
+      /* Data is followed by CRLF */
+      if (readLine() != 0) {
+        throw invalid("invalid chunked request body");
+      }
+    }
+  }
+
+  /**
+   * Read the next chunk size line and, after the last chunk, the trailers.
+   */
+  private void readChunkSize() throws IOException {
+    long size = 0;
+    int digits = 0;
+    int b;
+    while ((b = _in.read()) != -1) {
+      int digit = Character.digit(b, 16);
+      if (digit < 0) {
+        break;
+      }
+      if (++digits > MAX_SIZE_DIGITS) {
+        throw tooLarge();
+      }
+      size = size << 4 | digit;
+    }
+    if (b == -1) {
+      throw truncated();
+    }
+    if (digits == 0 || (b != ';' && b != ' ' && b != '\t' && b != '\r' && b != '\n')) {
+      throw invalid("invalid chunk size");
+    }
+    if (b != '\n') {
+      /* Chunk extensions are ignored */
+      skipLine(b);
+    }
+    if (size > _maxLength - _length) {
+      throw tooLarge();
+    }
+    _length += size;
+    _chunkRemaining = size;
+    if (size == 0) {
+      readTrailers();
+      _eof = true;
+    }
+  }
+
+  private void readTrailers() throws IOException {
+    for (int i = 0; i <= MAX_TRAILERS; i++) {
+      if (readLine() == 0) {
+        return;
+      }
+    }
+    throw invalid("too many request trailers");
+  }
+
+  /**
+   * Consume a line.
+   * @return The length of the line without the line terminator
+   */
+  private int readLine() throws IOException {
+    int b = _in.read();
+    if (b == -1) {
+      throw truncated();
+    }
+    return skipLine(b);
+  }
+
+  /**
+   * Consume the rest of a line which starts with the given byte.
+   * @return The length of the line without the line terminator
+   */
+  private int skipLine(int b) throws IOException {
+    int length = 0;
+    while (b != '\n') {
+      if (b == -1) {
+        throw truncated();
+      }
+      if ((b < ' ' && b != '\t' && b != '\r') || b == 127 || length == MAX_LINE_LENGTH) {
+        throw invalid("invalid chunked request body");
+      }
+      if (b != '\r') {
+        length++;
+      }
+      b = _in.read();
+    }
+    return length;
+  }
+
+  private BadRequest invalid(String message) {
+    _failed = true;
+    return new BadRequest(message);
+  }
+
+  private PayloadTooLarge tooLarge() {
+    _failed = true;
+    return new PayloadTooLarge("content length is too big");
+  }
+
+  private EOFException truncated() {
+    _failed = true;
+    return new EOFException("incomplete chunked request body");
+  }
+}
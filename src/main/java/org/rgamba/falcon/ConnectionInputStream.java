@@ -0,0 +1,113 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+/**
+ * ConnectionInputStream
+ *
+ * <p>Buffered socket input that exposes its byte window so the
+ * {@link ByteRequestParser} can parse request heads in place. The same
+ * window is reused for every request received on the connection, bytes
+ * that were not consumed by a request stay buffered for the next one.
+ */
+class ConnectionInputStream extends InputStream {
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+
+  private final InputStream _in;
+  private byte[] _buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int _position = 0;
+  private int _limit = 0;
+
+  ConnectionInputStream(InputStream in) {
+    _in = in;
+  }
+
+  byte[] buffer() {
+    return _buffer;
+  }
+
+  /**
+   * @return Offset of the first unread byte in {@link #buffer()}
+   */
+  int position() {
+    return _position;
+  }
+
+  /**
+   * @return Offset after the last buffered byte in {@link #buffer()}
+   */
+  int limit() {
+    return _limit;
+  }
+
+  /**
+   * Mark the given number of buffered bytes as read.
+   */
+  void consume(int length) {
+    _position += length;
+  }
+
+  /**
+   * Read more bytes from the underlying stream keeping the unread ones
+   * in the window. The window grows if it is already full.
+   *
+   * @return false if the underlying stream has ended
+   */
+  boolean fill() throws IOException {
+    if (_position > 0) {
+      System.arraycopy(_buffer, _position, _buffer, 0, _limit - _position);
+      _limit -= _position;
+      _position = 0;
+    }
+    if (_limit == _buffer.length) {
+      _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+    }
+    int read = _in.read(_buffer, _limit, _buffer.length - _limit);
+    if (read == -1) {
+      return false;
+    }
+    _limit += read;
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (_position == _limit && !fill()) {
+      return -1;
+    }
+    return _buffer[_position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (_position == _limit) {
+      if (len >= _buffer.length) {
+        /* Large reads skip the window */
+        return _in.read(b, off, len);
+      }
+      if (!fill()) {
+        return -1;
+      }
+    }
+    int read = Math.min(len, _limit - _position);
+    System.arraycopy(_buffer, _position, b, off, read);
+    _position += read;
+    return read;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (_limit - _position) + _in.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    _in.close();
+  }
+}
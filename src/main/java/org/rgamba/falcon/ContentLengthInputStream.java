@@ -0,0 +1,81 @@
+package org.rgamba.falcon;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * ContentLengthInputStream
+ *
+ * <p>Request body stream that ends after Content-Length bytes, so the
+ * handler can never read into the next request sent over the same
+ * persistent connection. Closing it leaves the connection open.
+ */
+class ContentLengthInputStream extends FilterInputStream {
+  private long _remaining;
+
+  ContentLengthInputStream(InputStream in, long contentLength) {
+    super(in);
+    _remaining = contentLength;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (_remaining <= 0) {
+      return -1;
+    }
+    int b = in.read();
+    if (b != -1) {
+      _remaining--;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (_remaining <= 0) {
+      return -1;
+    }
+    int read = in.read(b, off, (int) Math.min(len, _remaining));
+    if (read > 0) {
+      _remaining -= read;
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = in.skip(Math.min(n, _remaining));
+    _remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(in.available(), _remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Discard whatever the handler did not read.
+   * @return false if the stream ended before the whole body was received
+   */
+  boolean drain() throws IOException {
+    byte[] buffer = new byte[1024];
+    while (_remaining > 0) {
+      if (read(buffer, 0, buffer.length) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -47,17 +47,23 @@ public class Header implements Comparable<Header> {
       return false;
     }
     final Header otherHeader = (Header) other;
-    return otherHeader.getName().toUpperCase().equals(_name.toUpperCase()) && otherHeader.getValue().equals(_value);
+    return HttpUtils.equalsIgnoreCaseAscii(otherHeader.getName(), _name) && otherHeader.getValue().equals(getValue());
   }
 
   @Override
   public int hashCode() {
-    return _name.hashCode();
+    /* Consistent with equals, which ignores the case of the name */
+    int hash = 0;
+    for (int i = 0; i < _name.length(); i++) {
+      char c = _name.charAt(i);
+      hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+    }
+    return hash;
   }
 
   @Override
   public String toString() {
-    return String.format("%s: %s", _name, _value) + HttpConstants.CRLF;
+    return _name + ": " + _value + HttpConstants.CRLF;
   }
 
   @Override
@@ -2,9 +2,8 @@ package org.rgamba.falcon;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 
 /**
@@ -13,21 +12,63 @@ import java.util.Map;
  * <p>This class serves as a container for {@link Header}
  * providing several convenience methods to create and represent
  * a group of headers.
+ *
+ * <p>Headers are kept in insertion order in flat arrays. Names are matched
+ * ignoring the case of ASCII letters and looking a header up does not
+ * allocate. A name can have several values, see {@link #add(Header)}.
+ *
+ * <p>Copies share their storage with the original until either one of them
+ * is modified, so copying the headers of a message is cheap.
  */
 public class Headers {
-  Map<String, Header> _headers;
+  /* Constant ids of well known headers, see get(int) */
+  static final int HOST = 0;
+  static final int CONTENT_LENGTH = 1;
+  static final int CONTENT_TYPE = 2;
+  static final int CONNECTION = 3;
+  static final int TRANSFER_ENCODING = 4;
+  static final int DATE = 5;
+  static final int SERVER = 6;
+  static final int SET_COOKIE = 7;
+  static final int COOKIE = 8;
+  static final int ACCEPT_ENCODING = 9;
+  static final int CONTENT_ENCODING = 10;
+  static final int CACHE_CONTROL = 11;
+  static final int ETAG = 12;
+  static final int LAST_MODIFIED = 13;
+  static final int IF_NONE_MATCH = 14;
+  static final int IF_MODIFIED_SINCE = 15;
+  static final int VARY = 16;
+  private static final String[] KNOWN_NAMES = {
+      "Host", "Content-Length", "Content-Type", "Connection", "Transfer-Encoding", "Date", "Server", "Set-Cookie",
+      "Cookie", "Accept-Encoding", "Content-Encoding", "Cache-Control", "ETag", "Last-Modified", "If-None-Match",
+      "If-Modified-Since", "Vary"};
+  private static final byte UNKNOWN = -1;
+  private static final int INITIAL_CAPACITY = 8;
+
+  /* Parallel arrays, only the first _size entries are used */
+  private Header[] _headers;
+  private byte[] _ids;
+  private int _size = 0;
+  /* Whether the arrays may be referenced by another Headers object */
+  private boolean _shared = false;
 
   Headers() {
-    _headers = new HashMap<>();
+    _headers = new Header[INITIAL_CAPACITY];
+    _ids = new byte[INITIAL_CAPACITY];
   }
 
   Headers(Headers headers) {
-    _headers = new HashMap<>();
-    for (Header h : headers.toArray()) {
-      set(h);
-    }
+    _headers = headers._headers;
+    _ids = headers._ids;
+    _size = headers._size;
+    _shared = true;
+    headers._shared = true;
   }
 
+  /**
+   * Set the header replacing any previous values.
+   */
   public void set(String name, String value) {
     set(new Header(name, value));
   }
@@ -36,33 +77,176 @@ public class Headers {
     set(Header.parse(stringHeader));
   }
 
+  /**
+   * Set the header replacing any previous values. The header keeps the
+   * position of the first replaced value.
+   */
   public void set(Header header) {
-    _headers.put(header.getName().toUpperCase(), new Header(header));
+    byte id = knownId(header.getName());
+    int index = indexOf(header.getName(), id, 0);
+    if (index == -1) {
+      append(header, id);
+      return;
+    }
+    ensureExclusive();
+    _headers[index] = header;
+    removeFrom(header.getName(), id, index + 1);
   }
 
+  /**
+   * Add one more value for the header, keeping the existing ones.
+   * For example to send several Set-Cookie headers.
+   */
+  public void add(String name, String value) {
+    add(new Header(name, value));
+  }
+
+  public void add(Header header) {
+    append(header, knownId(header.getName()));
+  }
+
+  /**
+   * Remove all the values of the header.
+   */
   public void remove(String name) {
-    _headers.remove(name);
+    byte id = knownId(name);
+    int index = indexOf(name, id, 0);
+    if (index != -1) {
+      ensureExclusive();
+      removeFrom(name, id, index);
+    }
   }
 
+  /**
+   * @return A new array with all the headers in insertion order
+   */
   public Header[] toArray() {
-    List<Header> result = new ArrayList<>();
-    for (Header h : _headers.values()) {
-      result.add(h);
-    }
-    Header[] res = result.toArray(new Header[result.size()]);
-    Arrays.sort(res);
-    return res;
+    return Arrays.copyOf(_headers, _size);
+  }
+
+  /**
+   * @return Number of headers, counting every value of multi-valued headers
+   */
+  public int size() {
+    return _size;
+  }
+
+  /**
+   * @param index Position in insertion order, less than {@link #size()}
+   */
+  Header headerAt(int index) {
+    return _headers[index];
   }
 
   public boolean contains(String name) {
-    return _headers.containsKey(name.toUpperCase());
+    return indexOf(name, knownId(name), 0) != -1;
   }
 
+  /**
+   * @return The first value of the header or null if there is none
+   */
   public Header get(String name) {
-    if (!contains(name)) {
-      return null;
+    int index = indexOf(name, knownId(name), 0);
+    return index != -1 ? _headers[index] : null;
+  }
+
+  /**
+   * @return All the values of the header in insertion order, empty if there are none
+   */
+  public List<Header> getAll(String name) {
+    byte id = knownId(name);
+    int index = indexOf(name, id, 0);
+    if (index == -1) {
+      return Collections.emptyList();
+    }
+    List<Header> result = new ArrayList<>(1);
+    for (; index != -1; index = indexOf(name, id, index + 1)) {
+      result.add(_headers[index]);
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #get(String)} for a well known header, without comparing names.
+   *
+   * @param id One of the constants declared by this class, like {@link #CONTENT_LENGTH}
+   */
+  Header get(int id) {
+    for (int i = 0; i < _size; i++) {
+      if (_ids[i] == id) {
+        return _headers[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The constant id of the header or -1 if it is not a well known one
+   */
+  static byte knownId(String name) {
+    for (int i = 0; i < KNOWN_NAMES.length; i++) {
+      if (KNOWN_NAMES[i] == name) {
+        return (byte) i;
+      }
+    }
+    for (int i = 0; i < KNOWN_NAMES.length; i++) {
+      if (HttpUtils.equalsIgnoreCaseAscii(KNOWN_NAMES[i], name)) {
+        return (byte) i;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private int indexOf(String name, byte id, int from) {
+    for (int i = from; i < _size; i++) {
+      if (matches(i, name, id)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean matches(int index, String name, byte id) {
+    if (id != UNKNOWN) {
+      /* Well known headers are compared by id only */
+      return _ids[index] == id;
+    }
+    return _ids[index] == UNKNOWN && HttpUtils.equalsIgnoreCaseAscii(_headers[index].getName(), name);
+  }
+
+  private void append(Header header, byte id) {
+    ensureExclusive();
+    if (_size == _headers.length) {
+      _headers = Arrays.copyOf(_headers, _size * 2);
+      _ids = Arrays.copyOf(_ids, _size * 2);
+    }
+    _headers[_size] = header;
+    _ids[_size] = id;
+    _size++;
+  }
+
+  /**
+   * Remove every value of the header starting at the given position.
+   */
+  private void removeFrom(String name, byte id, int from) {
+    int kept = from;
+    for (int i = from; i < _size; i++) {
+      if (!matches(i, name, id)) {
+        _headers[kept] = _headers[i];
+        _ids[kept] = _ids[i];
+        kept++;
+      }
+    }
+    Arrays.fill(_headers, kept, _size, null);
+    _size = kept;
+  }
+
+  private void ensureExclusive() {
+    if (_shared) {
+      int capacity = Math.max(INITIAL_CAPACITY, _size + 1);
+      _headers = Arrays.copyOf(_headers, capacity);
+      _ids = Arrays.copyOf(_ids, capacity);
+      _shared = false;
     }
-    Header header = _headers.get(name.toUpperCase());
-    return new Header(header.getName(), header.getValue()); // Make it immutable
   }
 }
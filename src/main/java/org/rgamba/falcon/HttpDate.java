@@ -0,0 +1,108 @@
+package org.rgamba.falcon;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+
+/**
+ * HttpDate
+ *
+ * <p>Clock for the Date header. The value only changes once per second,
+ * so it is rendered as an IMF-fixdate
+ * (<a href="https://tools.ietf.org/html/rfc7231#section-7.1.1.1">RFC 7231</a>)
+ * the first time it is read in a given second and shared by every
+ * response sent during that second.
+ *
+ * <p>Reads don't lock. Threads crossing a second boundary at the same time
+ * may each render the new value, the last one to finish is kept.
+ */
+final class HttpDate {
+  /* Formatters are immutable and thread safe, unlike SimpleDateFormat */
+  static final DateTimeFormatter IMF_FIXDATE =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+  private static final HttpDate SYSTEM = new HttpDate(System::currentTimeMillis);
+
+  private final LongSupplier _clock;
+  private volatile Rendered _current;
+
+  /**
+   * @param clock Returns the current time in milliseconds
+   */
+  HttpDate(LongSupplier clock) {
+    _clock = clock;
+    _current = new Rendered(Math.floorDiv(clock.getAsLong(), 1000));
+  }
+
+  /**
+   * @return The clock shared by all responses
+   */
+  static HttpDate system() {
+    return SYSTEM;
+  }
+
+  /**
+   * @return The current date, for example "Sun, 06 Nov 1994 08:49:37 GMT"
+   */
+  String get() {
+    return current()._text;
+  }
+
+  /**
+   * @return The ASCII bytes of {@link #get()}, must not be modified
+   */
+  byte[] getBytes() {
+    return current()._bytes;
+  }
+
+  /**
+   * @return The bytes of the value if it is the one currently cached, null otherwise
+   */
+  byte[] getBytes(String value) {
+    Rendered current = _current;
+    return current._text == value ? current._bytes : null;
+  }
+
+  static String format(long millis) {
+    return IMF_FIXDATE.format(Instant.ofEpochMilli(millis));
+  }
+
+  /**
+   * @param value An IMF-fixdate, as sent in headers like If-Modified-Since
+   * @return The date in milliseconds or -1 if it is not valid
+   */
+  static long parse(String value) {
+    try {
+      return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  private Rendered current() {
+    long second = Math.floorDiv(_clock.getAsLong(), 1000);
+    Rendered current = _current;
+    if (current._second != second) {
+      current = new Rendered(second);
+      _current = current;
+    }
+    return current;
+  }
+
+  private static final class Rendered {
+    private final long _second;
+    private final String _text;
+    private final byte[] _bytes;
+
+    Rendered(long second) {
+      _second = second;
+      _text = format(second * 1000);
+      _bytes = _text.getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+}
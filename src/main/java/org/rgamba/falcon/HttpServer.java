@@ -1,23 +1,25 @@
 package org.rgamba.falcon;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.function.Function;
 
 
 public class HttpServer {
-  private static final int MAX_THREADS = 10;
-  private static final long DEFAULT_MAX_REQUEST_CONTENT_LENGTH = 10240; // 10 MB
   private static final int DEFAULT_PORT = 8080;
-  private final ExecutorService _threadPool = Executors.newCachedThreadPool();
   private final int _port;
   private final MiddlewareSet _middlewareSet;
-  private long _maxRequestContentLength = DEFAULT_MAX_REQUEST_CONTENT_LENGTH;
+  private ServerConfig _config = new ServerConfig.Builder().build();
   private Function<Request, Response> _handler;
-  private ServerSocket _socketServer;
+  private RequestDispatcher _dispatcher;
+  private volatile WorkerPool _workerPool;
+  private volatile ServerSocketChannel _socketServer;
+  private volatile NioTransport _nioTransport;
+  private volatile boolean _running;
 
   public HttpServer() {
     this(DEFAULT_PORT, new MiddlewareSet());
@@ -60,7 +62,36 @@ public class HttpServer {
    * @param sizeInBytes The request's content length must be less than this number.
    */
   public void setMaxRequestSize(long sizeInBytes) {
-    _maxRequestContentLength = sizeInBytes;
+    _config = new ServerConfig.Builder(_config).setMaxRequestContentLength(sizeInBytes).build();
+  }
+
+  /**
+   * Replace the server configuration. Must be called before {@link #listen()}.
+   * @param config The new configuration
+   */
+  public void setConfig(ServerConfig config) {
+    _config = config;
+  }
+
+  public ServerConfig getConfig() {
+    return _config;
+  }
+
+  /**
+   * @return The pool running the request handlers or null if the server is not listening yet.
+   */
+  public WorkerPool getWorkerPool() {
+    return _workerPool;
+  }
+
+  /**
+   * @return The port the server is bound to or -1 if it is not listening yet.
+   */
+  public int getLocalPort() {
+    if (_nioTransport != null) {
+      return _nioTransport.getLocalPort();
+    }
+    return _socketServer != null ? _socketServer.socket().getLocalPort() : -1;
   }
 
   /**
@@ -69,29 +100,111 @@ public class HttpServer {
    * Thread and execute this in that thread.
    */
   public void listen() {
+    _running = true;
+    _dispatcher = new RequestDispatcher(_handler, _middlewareSet);
+    _workerPool = new WorkerPool(_config.getWorkerThreads(), _config.getWorkerQueueCapacity(),
+        _config.isVirtualThreads());
+    if (_config.getTransport() == ServerConfig.Transport.NIO) {
+      listenNio();
+      return;
+    }
     openSocketServer();
-    while (true) {
+    while (_running) {
       try {
-        Socket client = _socketServer.accept();
+        SocketChannel client = _socketServer.accept();
+        /* Streamed bodies follow the head in a second write */
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
         createNewThread(client);
       } catch (IOException e) {
+        if (!_running) {
+          break;
+        }
         System.out.println("Thread ex: " + e.getMessage());
       }
     }
   }
 
+  /**
+   * Stop accepting new connections and unblock {@link #listen()}.
+   */
+  public void stop() {
+    _running = false;
+    if (_workerPool != null) {
+      _workerPool.shutdown();
+    }
+    if (_nioTransport != null) {
+      _nioTransport.close();
+    }
+    if (_socketServer != null) {
+      try {
+        _socketServer.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private void listenNio() {
+    NioTransport transport = new NioTransport(_config, _dispatcher, _workerPool);
+    try {
+      transport.bind(_port);
+    } catch (IOException e) {
+      System.out.println("Unable to open socket server");
+      return;
+    }
+    _nioTransport = transport;
+    transport.run();
+  }
+
   private void openSocketServer() {
     try {
-      _socketServer = new ServerSocket(_port);
+      /* Blocking channels, so responses can be sent with gathering writes */
+      ServerSocketChannel socketServer = ServerSocketChannel.open();
+      socketServer.bind(new InetSocketAddress(_port));
+      _socketServer = socketServer;
     } catch (IOException e) {
       System.out.println("Unable to open socket server");
     }
   }
 
-  private void createNewThread(Socket client) throws IOException {
+  private void createNewThread(SocketChannel client) throws IOException {
     System.out.println("Creating new thread for client: " + client);
-    client.setSoTimeout(5000);
-    Runnable httpThread = new HttpThread(client, _handler, _middlewareSet, _maxRequestContentLength);
-    _threadPool.execute(httpThread);
+    client.socket().setSoTimeout(_config.getSocketTimeout());
+    Runnable httpThread = new HttpThread(client, _dispatcher, _config);
+    if (!_workerPool.submit(httpThread)) {
+      rejectConnection(client);
+    }
+  }
+
+  /**
+   * Apply the rejection policy to a connection no worker could take.
+   */
+  private void rejectConnection(SocketChannel client) throws IOException {
+    switch (_config.getRejectionPolicy()) {
+      case CALLER_RUNS:
+        /*
+         * Accepting stalls while the request is served, a single one so a
+         * persistent connection can't hold the acceptor for long
+         */
+        new HttpThread(client, _dispatcher, _config, 1).run();
+        return;
+      case SERVICE_UNAVAILABLE:
+        ByteBuffer[] buffers = ResponseSerializer.serialize(
+            RequestDispatcher.serviceUnavailable(_config.getRetryAfter()));
+        try {
+          ResponseSerializer.writeFully(client, buffers);
+          client.shutdownOutput();
+        } catch (IOException e) {
+        } finally {
+          ResponseSerializer.release(buffers);
+        }
+        break;
+      case DROP:
+      default:
+        break;
+    }
+    try {
+      client.close();
+    } catch (IOException e) {
+    }
   }
 }
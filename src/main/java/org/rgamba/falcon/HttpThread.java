@@ -1,88 +1,223 @@
 package org.rgamba.falcon;
 
 import java.io.*;
-import java.net.Socket;
-import java.util.function.Function;
-
-import org.rgamba.falcon.errors.BadRequest;
-import org.rgamba.falcon.errors.HttpError;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 
+/**
+ * HttpThread
+ *
+ * <p>Serves a single client connection. HTTP/1.1 connections are
+ * persistent, so requests are read and answered in a loop until the
+ * client asks to close, the connection stays idle for too long or
+ * it reaches the max number of requests per connection.
+ *
+ * <p>Pipelined requests that are already buffered are answered back to
+ * back and their responses are sent to the client with a single gathering
+ * write on the channel.
+ */
 public class HttpThread implements Runnable {
-  private final Socket _client;
-  private final OutputStream _output;
-  private final OutputStreamWriter _outputWriter;
-  private final InputStream _input;
-  private final InputStreamReader _inputReader;
-  private final Function<Request, Response> _handler;
-  private final MiddlewareSet _middlewareSet;
-  private final long _maxRequestContentLength;
+  private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+  private final SocketChannel _client;
+  /* Serialized responses waiting to be flushed, see ResponseSerializer */
+  private final List<ByteBuffer> _batch = new ArrayList<>();
+  private long _batchSize = 0;
+  private final ConnectionInputStream _input;
+  private final ByteRequestParser _parser;
+  private final RequestDispatcher _dispatcher;
+  private final ServerConfig _config;
+  private final int _maxRequests;
 
-  HttpThread(Socket client, Function<Request, Response> handler, MiddlewareSet middlewareSet,
-      long maxRequestContentLength) throws IOException {
+  HttpThread(SocketChannel client, RequestDispatcher dispatcher, ServerConfig config) throws IOException {
+    this(client, dispatcher, config, config.getMaxRequestsPerConnection());
+  }
+
+  /**
+   * @param maxRequests Requests to serve before closing the connection, the
+   *     last one is answered with {@code Connection: close}
+   */
+  HttpThread(SocketChannel client, RequestDispatcher dispatcher, ServerConfig config, int maxRequests)
+      throws IOException {
     _client = client;
-    _output = _client.getOutputStream();
-    _input = _client.getInputStream();
-    _outputWriter = new OutputStreamWriter(_output);
-    _inputReader = new InputStreamReader(_input);
-    _handler = handler;
-    _middlewareSet = middlewareSet;
-    _maxRequestContentLength = maxRequestContentLength;
+    /* The socket's stream, unlike the channel, honors the read timeout */
+    _input = new ConnectionInputStream(_client.socket().getInputStream());
+    _parser = new ByteRequestParser(_client.getRemoteAddress(), config.getMaxRequestContentLength());
+    _dispatcher = dispatcher;
+    _config = config;
+    _maxRequests = maxRequests;
   }
 
   @Override
   public void run() {
-    Response response = null;
     try {
-      Request request =
-          new RequestParser(_input, _client.getRemoteSocketAddress(), _maxRequestContentLength).buildRequest();
-      /* Apply request middleware */
-      request = _middlewareSet.processRequest(request);
-      /* Apply request handler */
-      response = _handler.apply(request);
-      /* Apply response middleware */
-      response = _middlewareSet.processResponse(request, response);
-    } catch (BadRequest e) {
-      /* This should only be generated by RequestParser when a client sent a malformed request */
-      response = createErrorResponse("", Response.Status.BAD_REQUEST);
-    } catch (HttpError error) {
-      /* Here we'll catch any exceptions raised by middleware */
-      response = createErrorResponse(error);
-    } catch (Exception ex) {
-      /* Any other unexpected exceptions will be catched here */
-      System.out.println("Client: " + _client);
-      ex.printStackTrace();
-      response = createErrorResponse(ex.getMessage(), Response.Status.INTERNAL_ERROR);
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive && awaitRequest(served)) {
+        served++;
+        keepAlive = serveRequest(served >= _maxRequests);
+        if (!keepAlive || !hasPipelinedRequest() || _batchSize >= MAX_BATCH_SIZE) {
+          keepAlive = flushResponses() && keepAlive;
+        }
+      }
     } finally {
-      sendResponse(response);
       closeClient();
     }
   }
 
+  /**
+   * Block until the first byte of the next request arrives.
+   *
+   * @param served Number of requests already served on this connection
+   * @return false if the client closed the connection or it stayed idle for too long
+   */
+  private boolean awaitRequest(int served) {
+    try {
+      if (served > 0) {
+        _client.socket().setSoTimeout(_config.getKeepAliveTimeout());
+      }
+      if (_input.position() == _input.limit() && !_input.fill()) {
+        return false;
+      }
+      if (served > 0) {
+        _client.socket().setSoTimeout(_config.getSocketTimeout());
+      }
+      return true;
+    } catch (IOException e) {
+      /* Includes the SocketTimeoutException raised by idle connections */
+      return false;
+    }
+  }
+
+  /**
+   * Read, handle and answer a single request.
+   *
+   * @param last Whether this is the last request allowed on this connection
+   * @return true if the connection can be used for another request
+   */
+  private boolean serveRequest(boolean last) {
+    Request request = null;
+    Response response;
+    try {
+      request = _parser.buildRequest(_input);
+      response = _dispatcher.dispatch(request);
+    } catch (Exception ex) {
+      response = RequestDispatcher.errorResponse(ex, _client);
+    }
+    /* If the request could not be parsed we can't tell where the next one starts */
+    boolean keepAlive = !last && request != null && RequestDispatcher.isKeepAlive(request, response);
+    if (!keepAlive) {
+      response = RequestDispatcher.withConnectionClose(response);
+    }
+    try {
+      if (!writeResponse(response)) {
+        return false;
+      }
+      return keepAlive && drainBody(request);
+    } finally {
+      /* Deletes the temporary files of the parts the handler read */
+      if (request != null) {
+        request.close();
+      }
+    }
+  }
+
+  /**
+   * Skip the part of the request body the handler did not read so
+   * the next request can be parsed from the right position.
+   */
+  private boolean drainBody(Request request) {
+    try {
+      InputStream body = request.getInputStream();
+      if (body instanceof ChunkedInputStream) {
+        return ((ChunkedInputStream) body).drain();
+      }
+      return !(body instanceof ContentLengthInputStream) || ((ContentLengthInputStream) body).drain();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   private void closeClient() {
+    releaseBatch();
     try {
       _input.close();
-      _output.close();
       _client.close();
     } catch (IOException e) {
     }
   }
 
-  private Response createErrorResponse(String message, Response.Status status) {
-    return new Response.Builder().setStatusCode(status).setBody(message).build();
+  /**
+   * @return true if the client already sent (part of) another request
+   */
+  private boolean hasPipelinedRequest() {
+    try {
+      return _input.available() > 0;
+    } catch (IOException e) {
+      return false;
+    }
   }
 
-  private Response createErrorResponse(HttpError error) {
-    return new Response.Builder().setStatusCode(error.getStatusCode()).setBody(error.getResponseBody()).build();
+  /**
+   * Append the response to the current batch. Nothing is sent to the
+   * client until {@link #flushResponses()} is called, except for streamed
+   * bodies which are sent right away.
+   */
+  private boolean writeResponse(Response response) {
+    for (ByteBuffer buffer : ResponseSerializer.serialize(response)) {
+      _batch.add(buffer);
+      _batchSize += buffer.remaining();
+    }
+    if (!response.isBodyStreamed()) {
+      return true;
+    }
+    if (!flushResponses()) {
+      return false;
+    }
+    BodyWriter writer = response.body().writer();
+    if (writer != null) {
+      /* Writes straight to the socket, a chunk at a time */
+      ResponseSink sink = new ResponseSink(_client, _config.getResponseChunkSize(), response.trailers());
+      try {
+        writer.write(sink);
+        sink.close();
+        return true;
+      } catch (IOException ex) {
+        return false;
+      } catch (RuntimeException ex) {
+        ex.printStackTrace();
+        return false;
+      }
+    }
+    try (BodyTransfer transfer = new BodyTransfer(response.body(), _config.getResponseChunkSize(),
+        response.trailers())) {
+      transfer.writeTo(_client);
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
   }
 
-  private void sendResponse(Response response) {
+  /**
+   * Send all the batched responses to the client at once.
+   */
+  private boolean flushResponses() {
     try {
-      response.write(_outputWriter);
-      _outputWriter.flush();
-      _outputWriter.close();
+      ResponseSerializer.writeFully(_client, _batch.toArray(new ByteBuffer[_batch.size()]));
+      return true;
     } catch (IOException ex) {
-      ex.printStackTrace();
+      return false;
+    } finally {
+      releaseBatch();
     }
   }
+
+  private void releaseBatch() {
+    ResponseSerializer.release(_batch.toArray(new ByteBuffer[_batch.size()]));
+    _batch.clear();
+    _batchSize = 0;
+  }
 }
@@ -2,13 +2,14 @@ package org.rgamba.falcon;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 public class HttpUtils {
+  private static final DateTimeFormatter ZONED_DATE_FORMAT =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
   private static boolean[] isToken = new boolean[127];
   static {
     isToken[(int)'!'] = true;
@@ -92,35 +93,142 @@ public class HttpUtils {
 
   public static boolean isValidToken(String text) {
     for (int i = 0; i < text.length(); i++) {
-      int c = (int) text.charAt(i);
-      if (c >= isToken.length || !isToken[c]) {
+      if (!isTokenChar(text.charAt(i))) {
         return false;
       }
     }
     return true;
   }
 
+  /**
+   * Same as {@link #isValidToken(String)} but for a single char or
+   * byte, so raw request bytes can be validated without decoding them.
+   */
+  static boolean isTokenChar(int c) {
+    return c >= 0 && c < isToken.length && isToken[c];
+  }
+
+  /**
+   * Compare two strings ignoring the case of ASCII letters only, which is
+   * all header names can contain. Unlike {@link String#equalsIgnoreCase(String)}
+   * there are no locale or unicode rules involved.
+   */
+  static boolean equalsIgnoreCaseAscii(String a, String b) {
+    if (a == b) {
+      return true;
+    }
+    if (a == null || b == null || a.length() != b.length()) {
+      return false;
+    }
+    for (int i = 0; i < a.length(); i++) {
+      char x = a.charAt(i);
+      char y = b.charAt(i);
+      if (x != y && (toLowerAscii(x) != toLowerAscii(y))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static char toLowerAscii(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
   /**
    * Format the given date to a string format allowed and expected
-   * by HTTP, RFC 822. See:
-   * https://tools.ietf.org/html/rfc2616#page-20
+   * by HTTP, RFC 7231. See {@link HttpDate} for the current date.
    *
    * @param date the Date we want to format
    * @return String the formatted string ready to use
    */
   static String formatDate(Date date) {
-    return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US).format(date);
+    return HttpDate.format(date.getTime());
   }
 
   static String formatDate(ZonedDateTime date) {
-    String pattern = "EEE, dd MMM yyyy HH:mm:ss Z";
-    return date.format(DateTimeFormatter.ofPattern(pattern));
+    return date.format(ZONED_DATE_FORMAT);
+  }
+
+  /**
+   * @param millis Milliseconds since the epoch
+   * @return The date as used by headers like Last-Modified, for example
+   *     "Sun, 06 Nov 1994 08:49:37 GMT"
+   */
+  public static String formatHttpDate(long millis) {
+    return HttpDate.format(millis);
+  }
+
+  /**
+   * @param value A date as sent in headers like If-Modified-Since
+   * @return Milliseconds since the epoch or -1 if the date is not valid
+   */
+  public static long parseHttpDate(String value) {
+    return HttpDate.parse(value);
+  }
+
+  /**
+   * Pick the content coding to send from an Accept-Encoding header, honoring
+   * the q-values and the "*" wildcard. Ties go to the coding listed first.
+   *
+   * @param acceptEncoding The value of the header, may be null
+   * @param codings The codings available, in order of preference
+   * @return One of the codings or null if the content must be sent as is
+   */
+  public static String preferredCoding(String acceptEncoding, String... codings) {
+    if (acceptEncoding == null || codings.length == 0) {
+      return null;
+    }
+    double[] qualities = new double[codings.length];
+    Arrays.fill(qualities, -1);
+    double any = 0;
+    for (String accepted : acceptEncoding.split(",")) {
+      int semicolon = accepted.indexOf(';');
+      String name = (semicolon < 0 ? accepted : accepted.substring(0, semicolon)).trim();
+      double quality = semicolon < 0 ? 1 : quality(accepted.substring(semicolon + 1));
+      if (name.equals("*")) {
+        any = quality;
+        continue;
+      }
+      for (int i = 0; i < codings.length; i++) {
+        if (equalsIgnoreCaseAscii(name, codings[i])) {
+          qualities[i] = quality;
+        }
+      }
+    }
+    String preferred = null;
+    double best = 0;
+    for (int i = 0; i < codings.length; i++) {
+      /* Codings that are not listed are accepted by the wildcard */
+      double quality = qualities[i] < 0 ? any : qualities[i];
+      if (quality > best) {
+        preferred = codings[i];
+        best = quality;
+      }
+    }
+    return preferred;
+  }
+
+  private static double quality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      if (param.startsWith("q=") || param.startsWith("Q=")) {
+        try {
+          return Double.parseDouble(param.substring(2).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
   }
 
   public static Map<String, List<String>> uriQueryStringToMap(String uriQueryString) {
     Map<String, List<String>> result = new HashMap<>();
-    String[] params = uriQueryString.split("&");
-    for (String param : params) {
+    for (String param : uriQueryString.split("&")) {
+      /* Empty query strings and stray separators carry no params */
+      if (param.isEmpty()) {
+        continue;
+      }
       String[] parts = param.split("=", 2);
       final String paramName = urlDecode(parts[0]);
       final String paramValue = parts.length > 1 ? urlDecode(parts[1]) : "";
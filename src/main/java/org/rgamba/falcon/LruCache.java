@@ -0,0 +1,123 @@
+package org.rgamba.falcon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+
+/**
+ * LruCache
+ *
+ * <p>Cache bounded by the total weight of its values, usually their size in
+ * bytes, rather than by their number. Once the budget is exceeded the least
+ * recently used values are evicted. Values heavier than the whole budget
+ * are never stored.
+ *
+ * <p>The cache is thread safe, every operation holds its lock for the time
+ * of a hash map access. Callers that need less contention can split their
+ * keys over several caches.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public class LruCache<K, V> {
+  private final long _maxWeight;
+  private final ToLongFunction<? super V> _weigher;
+  /* Iterates from the least to the most recently used */
+  private final LinkedHashMap<K, V> _entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long _weight = 0;
+
+  /**
+   * @param maxWeight The budget for the total weight of the values
+   * @param weigher Returns the weight of a value, it must not change while it is cached
+   * @throws IllegalArgumentException if the budget is negative
+   */
+  public LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+    if (maxWeight < 0) {
+      throw new IllegalArgumentException("the max weight can't be negative");
+    }
+    _maxWeight = maxWeight;
+    _weigher = weigher;
+  }
+
+  /**
+   * @return The value or null if it is not cached, it becomes the most recently used
+   */
+  public synchronized V get(K key) {
+    return _entries.get(key);
+  }
+
+  /**
+   * Cache a value, replacing any previous one for the key, and evict the
+   * least recently used values until the cache is within its budget.
+   *
+   * @return false if the value is heavier than the whole budget and was not cached
+   */
+  public synchronized boolean put(K key, V value) {
+    long weight = _weigher.applyAsLong(value);
+    remove(key);
+    if (weight > _maxWeight) {
+      return false;
+    }
+    _entries.put(key, value);
+    _weight += weight;
+    Iterator<V> eldest = _entries.values().iterator();
+    while (_weight > _maxWeight) {
+      _weight -= _weigher.applyAsLong(eldest.next());
+      eldest.remove();
+    }
+    return true;
+  }
+
+  /**
+   * @return The value that was removed or null if there was none
+   */
+  public synchronized V remove(K key) {
+    V removed = _entries.remove(key);
+    if (removed != null) {
+      _weight -= _weigher.applyAsLong(removed);
+    }
+    return removed;
+  }
+
+  /**
+   * Remove the value of a key only if it is the given one.
+   *
+   * @return true if it was removed
+   */
+  public synchronized boolean remove(K key, V value) {
+    if (_entries.get(key) != value) {
+      return false;
+    }
+    remove(key);
+    return true;
+  }
+
+  public synchronized void clear() {
+    _entries.clear();
+    _weight = 0;
+  }
+
+  public synchronized int size() {
+    return _entries.size();
+  }
+
+  /**
+   * @return The total weight of the cached values
+   */
+  public synchronized long weight() {
+    return _weight;
+  }
+
+  public long getMaxWeight() {
+    return _maxWeight;
+  }
+
+  /**
+   * @return A copy of the cached entries, from the least to the most recently used
+   */
+  public synchronized Map<K, V> toMap() {
+    return new LinkedHashMap<>(_entries);
+  }
+}
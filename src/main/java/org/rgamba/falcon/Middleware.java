@@ -3,7 +3,9 @@ package org.rgamba.falcon;
 /**
  * Middleware
  *
- * <p>All middleware classes must implement this interface
+ * <p>All middleware classes must implement this interface. A single instance
+ * of each middleware handles all requests, possibly from several threads
+ * at the same time.
  */
 public interface Middleware {
   /**
@@ -15,7 +17,21 @@ public interface Middleware {
    * @return The request that should be passed on to the next middleware. Return the original object if no change is needed.
    */
   default Request processRequest(Request request) {
-    return request.copy();
+    return request;
+  }
+
+  /**
+   * Answer a request without running the request handler, like a cache
+   * does. It is called once the request went through every
+   * {@link #processRequest(Request)}, in the order the middleware were
+   * registered, and the first response returned is sent as is: neither the
+   * request handler nor any {@link #processResponse(Request, Response)} runs.
+   *
+   * @param request The request as returned by the last middleware
+   * @return The response to send or null to let the request be handled
+   */
+  default Response intercept(Request request) {
+    return null;
   }
 
   /**
@@ -28,6 +44,6 @@ public interface Middleware {
    * @return The new response object. Return the original object if no change is needed.
    */
   default Response processResponse(Request request, Response response) {
-    return response.copy();
+    return response;
   }
 }
@@ -1,7 +1,8 @@
 package org.rgamba.falcon;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.rgamba.falcon.middleware.AppendSlashMiddleware;
 import org.rgamba.falcon.middleware.LoggerMiddleware;
 
@@ -11,9 +12,20 @@ import org.rgamba.falcon.middleware.LoggerMiddleware;
  *
  * <p>This class provides a series of convenience methods to easily
  * handle multiple middlewares and execute them when needed.
+ *
+ * <p>Each middleware is instantiated once, when it is registered, and the
+ * same instance handles every request, so middleware must be thread safe.
+ * The chain is frozen once the server starts, after that no middleware can
+ * be registered or deregistered.
+ *
+ * <p>Requests and responses are passed along the chain as they are, a
+ * middleware that needs its own copy can enable {@link CopyPolicy#DEFENSIVE}.
  */
 public class MiddlewareSet {
-  private final Set<Class<? extends Middleware>> _middleware = new LinkedHashSet<>();
+  private final Map<Class<? extends Middleware>, Middleware> _middleware = new LinkedHashMap<>();
+  private volatile Middleware[] _chain = new Middleware[0];
+  private volatile boolean _frozen = false;
+  private CopyPolicy _copyPolicy = CopyPolicy.NONE;
 
   public MiddlewareSet() {
     registerCommonMiddleware();
@@ -21,10 +33,19 @@ public class MiddlewareSet {
 
   /**
    * Register a new Middleware class to be executed.
-   * @param clazz The middleware class
+   * @param clazz The middleware class, it must have a public no-arg constructor
+   * @throws IllegalArgumentException if the middleware can't be created
    */
   public void register(Class<? extends Middleware> clazz) {
-    _middleware.add(clazz);
+    register(clazz, newInstance(clazz));
+  }
+
+  /**
+   * Register a middleware instance to be executed.
+   * @param middleware The middleware, it will be shared by all requests
+   */
+  public void register(Middleware middleware) {
+    register(middleware.getClass(), middleware);
   }
 
   /**
@@ -32,8 +53,32 @@ public class MiddlewareSet {
    * This can be usefull if you want to deregister a common middleware like {@link AppendSlashMiddleware}
    * @param clazz
    */
-  public void deregister(Class<? extends Middleware> clazz) {
+  public synchronized void deregister(Class<? extends Middleware> clazz) {
+    checkNotFrozen();
     _middleware.remove(clazz);
+    _chain = _middleware.values().toArray(new Middleware[0]);
+  }
+
+  /**
+   * Choose whether each middleware gets its own copy of the request and response.
+   * @param copyPolicy {@link CopyPolicy#NONE} by default
+   */
+  public synchronized void setCopyPolicy(CopyPolicy copyPolicy) {
+    checkNotFrozen();
+    _copyPolicy = copyPolicy;
+  }
+
+  /**
+   * Prevent any further change to the chain. Called when the server starts.
+   */
+  synchronized void freeze() {
+    _frozen = true;
+  }
+
+  private synchronized void register(Class<? extends Middleware> clazz, Middleware middleware) {
+    checkNotFrozen();
+    _middleware.put(clazz, middleware);
+    _chain = _middleware.values().toArray(new Middleware[0]);
   }
 
   private void registerCommonMiddleware() {
@@ -41,20 +86,52 @@ public class MiddlewareSet {
     register(LoggerMiddleware.class);
   }
 
+  private void checkNotFrozen() {
+    if (_frozen) {
+      throw new IllegalStateException("middleware can't change once the server has started");
+    }
+  }
+
+  private static Middleware newInstance(Class<? extends Middleware> clazz) {
+    try {
+      return clazz.getConstructor().newInstance();
+    } catch (InvocationTargetException e) {
+      throw new IllegalArgumentException("unable to create " + clazz.getName(), e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException(clazz.getName() + " must have a public no-arg constructor", e);
+    }
+  }
+
   /**
    * Execute all processRequest methods of all registered middleware
    * @param request The original Request object
    * @return The request object as returned by the last middleware
    */
   public Request processRequest(Request request) throws Exception {
-    Request currRequest = request.copy();
-    for (Class<? extends Middleware> clazz : _middleware) {
-      Middleware middleware = clazz.newInstance();
-      currRequest = middleware.processRequest(currRequest.copy());
+    boolean copy = _copyPolicy == CopyPolicy.DEFENSIVE;
+    Request currRequest = request;
+    for (Middleware middleware : _chain) {
+      currRequest = middleware.processRequest(copy ? currRequest.copy() : currRequest);
     }
     return currRequest;
   }
 
+  /**
+   * Give every registered middleware the chance to answer the request itself.
+   * @param request The request as returned by the last processRequest middleware
+   * @return The first response returned by a middleware or null if the request must be handled
+   */
+  public Response intercept(Request request) throws Exception {
+    boolean copy = _copyPolicy == CopyPolicy.DEFENSIVE;
+    for (Middleware middleware : _chain) {
+      Response response = middleware.intercept(copy ? request.copy() : request);
+      if (response != null) {
+        return response;
+      }
+    }
+    return null;
+  }
+
   /**
    * Execute all processResponse methods of all registered middleware
    * @param request The original Request object or as returned by the last processRequest Middleware
@@ -62,11 +139,28 @@ public class MiddlewareSet {
    * @return The Response object as returned by the last middleware
    */
   public Response processResponse(Request request, Response response) throws Exception {
-    Response currResp = response.copy();
-    for (Class<? extends Middleware> clazz : _middleware) {
-      Middleware middleware = clazz.newInstance();
-      currResp = middleware.processResponse(request.copy(), currResp.copy());
+    boolean copy = _copyPolicy == CopyPolicy.DEFENSIVE;
+    Response currResp = response;
+    for (Middleware middleware : _chain) {
+      currResp = copy
+          ? middleware.processResponse(request.copy(), currResp.copy())
+          : middleware.processResponse(request, currResp);
     }
-    return currResp.copy();
+    return currResp;
+  }
+
+  /**
+   * How requests and responses are handed to each middleware.
+   */
+  public enum CopyPolicy {
+    /**
+     * Pass along the same objects, which is enough as long as middleware
+     * build new requests and responses instead of changing the ones they get.
+     */
+    NONE,
+    /**
+     * Give every middleware its own copy of the request and the response.
+     */
+    DEFENSIVE
   }
 }
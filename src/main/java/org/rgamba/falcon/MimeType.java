@@ -2,12 +2,36 @@ package org.rgamba.falcon;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 
 public class MimeType {
+  private static final MimeType OCTET_STREAM = new MimeType("application/octet-stream", Collections.emptyMap());
+  /* Media types of the files commonly served next to an application, text is assumed to be UTF-8 */
+  private static final Map<String, MimeType> EXTENSIONS = new HashMap<>();
+
+  static {
+    String[][] types = {
+        {"html", "text/html; charset=utf-8"}, {"htm", "text/html; charset=utf-8"},
+        {"css", "text/css; charset=utf-8"}, {"js", "application/javascript; charset=utf-8"},
+        {"mjs", "application/javascript; charset=utf-8"}, {"json", "application/json; charset=utf-8"},
+        {"map", "application/json; charset=utf-8"}, {"txt", "text/plain; charset=utf-8"},
+        {"csv", "text/csv; charset=utf-8"}, {"xml", "application/xml; charset=utf-8"},
+        {"svg", "image/svg+xml; charset=utf-8"}, {"png", "image/png"}, {"jpg", "image/jpeg"},
+        {"jpeg", "image/jpeg"}, {"gif", "image/gif"}, {"webp", "image/webp"}, {"ico", "image/x-icon"},
+        {"woff", "font/woff"}, {"woff2", "font/woff2"}, {"ttf", "font/ttf"}, {"otf", "font/otf"},
+        {"wasm", "application/wasm"}, {"pdf", "application/pdf"}, {"zip", "application/zip"},
+        {"gz", "application/gzip"}, {"mp4", "video/mp4"}, {"webm", "video/webm"}, {"mp3", "audio/mpeg"},
+        {"ogg", "audio/ogg"}, {"wav", "audio/wav"}};
+    for (String[] type : types) {
+      EXTENSIONS.put(type[0], fromString(type[1]));
+    }
+  }
+
   private final String _mediaType;
   private final Map<String, String> _params;
+  private String _value;
 
   MimeType(String mediaType, Map<String, String> params) {
     _mediaType = mediaType;
@@ -42,6 +66,21 @@ public class MimeType {
     return new MimeType(mediaType, params);
   }
 
+  /**
+   * Guess the media type of a file from its extension.
+   *
+   * @param fileName The name of the file, case insensitive
+   * @return The media type or application/octet-stream if the extension is not known
+   */
+  public static MimeType forFileName(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    if (dot < 0 || dot < fileName.lastIndexOf('/')) {
+      return OCTET_STREAM;
+    }
+    MimeType type = EXTENSIONS.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    return type != null ? type : OCTET_STREAM;
+  }
+
   private static Map<String, String> parseParams(String str) {
     if (!str.endsWith(";")) {
       str = str + ";";
@@ -138,6 +177,27 @@ public class MimeType {
     return _params.get(paramName);
   }
 
+  /**
+   * @return The value for a Content-Type header
+   */
+  @Override
+  public String toString() {
+    if (_value != null) {
+      return _value;
+    }
+    StringBuilder value = new StringBuilder(_mediaType);
+    for (Map.Entry<String, String> param : _params.entrySet()) {
+      value.append("; ").append(param.getKey()).append('=');
+      if (!param.getValue().isEmpty() && HttpUtils.isValidToken(param.getValue())) {
+        value.append(param.getValue());
+      } else {
+        value.append('"').append(param.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+    }
+    _value = value.toString();
+    return _value;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (other == this) {
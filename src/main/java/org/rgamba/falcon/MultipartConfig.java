@@ -0,0 +1,144 @@
+package org.rgamba.falcon;
+
+import java.nio.file.Path;
+
+
+/**
+ * MultipartConfig
+ *
+ * <p>Limits and storage of the parts of multipart/form-data request
+ * bodies. Parts up to the memory threshold are kept in memory, bigger ones
+ * are written to temporary files. A part or a whole body over its limit
+ * ends the request with a 413. New objects must be created using the
+ * {@link Builder}.
+ *
+ * <p>The request body itself is still limited by
+ * {@link ServerConfig#getMaxRequestContentLength()}, which has to be raised
+ * as well to accept large uploads.
+ */
+public final class MultipartConfig {
+  private static final int DEFAULT_MEMORY_THRESHOLD = 16 * 1024;
+  private static final long DEFAULT_MAX_PART_SIZE = 256L << 20;
+  private static final long DEFAULT_MAX_TOTAL_SIZE = 1L << 30;
+  private static final int DEFAULT_MAX_PARTS = 1000;
+
+  static final MultipartConfig DEFAULT = new Builder().build();
+
+  private final int _memoryThreshold;
+  private final long _maxPartSize;
+  private final long _maxTotalSize;
+  private final int _maxParts;
+  private final Path _tempDirectory;
+
+  private MultipartConfig(Builder builder) {
+    _memoryThreshold = builder.memoryThreshold;
+    _maxPartSize = builder.maxPartSize;
+    _maxTotalSize = builder.maxTotalSize;
+    _maxParts = builder.maxParts;
+    _tempDirectory = builder.tempDirectory;
+  }
+
+  /**
+   * @return Parts up to this many bytes are kept in memory, bigger ones are
+   *     written to a temporary file
+   */
+  public int getMemoryThreshold() {
+    return _memoryThreshold;
+  }
+
+  public long getMaxPartSize() {
+    return _maxPartSize;
+  }
+
+  /**
+   * @return Max number of bytes of the whole multipart body, boundaries
+   *     and part headers included
+   */
+  public long getMaxTotalSize() {
+    return _maxTotalSize;
+  }
+
+  public int getMaxParts() {
+    return _maxParts;
+  }
+
+  /**
+   * @return Where the temporary files are created, null for the default
+   *     temporary directory
+   */
+  public Path getTempDirectory() {
+    return _tempDirectory;
+  }
+
+  public static class Builder {
+    private int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    private long maxPartSize = DEFAULT_MAX_PART_SIZE;
+    private long maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+    private int maxParts = DEFAULT_MAX_PARTS;
+    private Path tempDirectory;
+
+    public Builder() {
+    }
+
+    public Builder(MultipartConfig config) {
+      memoryThreshold = config.getMemoryThreshold();
+      maxPartSize = config.getMaxPartSize();
+      maxTotalSize = config.getMaxTotalSize();
+      maxParts = config.getMaxParts();
+      tempDirectory = config.getTempDirectory();
+    }
+
+    /**
+     * @param sizeInBytes Parts up to this size are kept in memory, 16 KB by default
+     */
+    public Builder setMemoryThreshold(int sizeInBytes) {
+      if (sizeInBytes < 0) {
+        throw new IllegalArgumentException("the memory threshold can't be negative");
+      }
+      this.memoryThreshold = sizeInBytes;
+      return this;
+    }
+
+    /**
+     * @param sizeInBytes Max size of the body of a single part, 256 MB by default
+     */
+    public Builder setMaxPartSize(long sizeInBytes) {
+      if (sizeInBytes < 0) {
+        throw new IllegalArgumentException("the max part size can't be negative");
+      }
+      this.maxPartSize = sizeInBytes;
+      return this;
+    }
+
+    /**
+     * @param sizeInBytes Max size of the whole multipart body, 1 GB by default
+     */
+    public Builder setMaxTotalSize(long sizeInBytes) {
+      if (sizeInBytes < 0) {
+        throw new IllegalArgumentException("the max total size can't be negative");
+      }
+      this.maxTotalSize = sizeInBytes;
+      return this;
+    }
+
+    /**
+     * @param maxParts Max number of parts in a body, 1000 by default
+     */
+    public Builder setMaxParts(int maxParts) {
+      if (maxParts < 1) {
+        throw new IllegalArgumentException("at least one part is required");
+      }
+      this.maxParts = maxParts;
+      return this;
+    }
+
+    public Builder setTempDirectory(Path directory) {
+      this.tempDirectory = directory;
+      return this;
+    }
+
+    public MultipartConfig build() {
+      return new MultipartConfig(this);
+    }
+  }
+}
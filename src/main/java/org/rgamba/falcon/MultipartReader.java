@@ -0,0 +1,300 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+
+
+/**
+ * MultipartReader
+ *
+ * <p>Reads the parts of a multipart/form-data body one at a time, as they
+ * are iterated. The body of each part is read straight from the request,
+ * only a small window is buffered to find the boundaries, so uploads can be
+ * processed or forwarded while they arrive. Moving on to the next part
+ * skips whatever was not read of the current one.
+ *
+ * <p>The limits of the {@link MultipartConfig} are checked while reading,
+ * a malformed body raises a {@link BadRequest}.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7578">RFC 7578</a>
+ */
+public class MultipartReader implements Iterator<Part> {
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_HEAD_SIZE = 8192;
+
+  private final InputStream _in;
+  private final MultipartConfig _config;
+  /* CRLF "--" boundary, the body is read as if it started with a CRLF so the first one is found too */
+  private final byte[] _delimiter;
+  private final byte[] _buffer;
+  private int _pos = 0;
+  private int _limit;
+  /* Where the delimiter was found, and where the search stopped without finding it, kept until moved by fill */
+  private int _delimiterAt = -1;
+  private int _scanned = 0;
+  private long _total = 0;
+  private int _parts = 0;
+  private PartInputStream _current;
+  private Part _next;
+  private boolean _done = false;
+
+  MultipartReader(InputStream in, String boundary, MultipartConfig config) {
+    if (boundary.isEmpty() || boundary.length() > 70) {
+      throw new BadRequest("invalid multipart boundary");
+    }
+    _in = in;
+    _config = config;
+    _delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    _buffer = new byte[BUFFER_SIZE];
+    _buffer[0] = '\r';
+    _buffer[1] = '\n';
+    _limit = 2;
+    /* The preamble is read like a part without a limit */
+    _current = new PartInputStream(Long.MAX_VALUE);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (_next == null && !_done) {
+      try {
+        _next = readPart();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return _next != null;
+  }
+
+  /**
+   * @return The next part, its input stream reads from the request body
+   *     until the next part is asked for
+   */
+  @Override
+  public Part next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Part part = _next;
+    _next = null;
+    return part;
+  }
+
+  private Part readPart() throws IOException {
+    _current.skipRest();
+    if (!require(2)) {
+      throw new BadRequest("malformed multipart body");
+    }
+    if (_buffer[_pos] == '-' && _buffer[_pos + 1] == '-') {
+      /* The close delimiter, anything after it is ignored */
+      _done = true;
+      return null;
+    }
+    /* Transport padding may follow the delimiter */
+    while (require(1) && (_buffer[_pos] == ' ' || _buffer[_pos] == '\t')) {
+      _pos++;
+    }
+    if (!require(2) || _buffer[_pos] != '\r' || _buffer[_pos + 1] != '\n') {
+      throw new BadRequest("malformed multipart body");
+    }
+    _pos += 2;
+    if (++_parts > _config.getMaxParts()) {
+      throw new PayloadTooLarge("too many multipart parts");
+    }
+    Headers headers = readHeaders();
+    _current = new PartInputStream(_config.getMaxPartSize());
+    return new Part(headers, _current);
+  }
+
+  private Headers readHeaders() throws IOException {
+    Headers headers = new Headers();
+    int headSize = 0;
+    while (true) {
+      int end = indexOfCrlf();
+      if (end < 0) {
+        if (_limit - _pos >= _buffer.length || !fill()) {
+          throw new BadRequest("malformed multipart part headers");
+        }
+        continue;
+      }
+      headSize += end + 2 - _pos;
+      if (headSize > MAX_HEAD_SIZE) {
+        throw new BadRequest("multipart part headers too large");
+      }
+      String line = new String(_buffer, _pos, end - _pos, StandardCharsets.UTF_8);
+      _pos = end + 2;
+      if (line.isEmpty()) {
+        return headers;
+      }
+      try {
+        headers.add(Header.parse(line));
+      } catch (InvalidParameterException e) {
+        throw new BadRequest("malformed multipart part header");
+      }
+    }
+  }
+
+  private int indexOfCrlf() {
+    for (int i = _pos; i < _limit - 1; i++) {
+      if (_buffer[i] == '\r' && _buffer[i + 1] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Look for the delimiter in the bytes not consumed yet, resuming the
+   * search where the last one stopped so small reads don't rescan them.
+   */
+  private int indexOfDelimiter() {
+    if (_delimiterAt >= _pos) {
+      return _delimiterAt;
+    }
+    byte first = _delimiter[0];
+    next:
+    for (int i = Math.max(_pos, _scanned); i <= _limit - _delimiter.length; i++) {
+      if (_buffer[i] != first) {
+        continue;
+      }
+      for (int j = 1; j < _delimiter.length; j++) {
+        if (_buffer[i + j] != _delimiter[j]) {
+          continue next;
+        }
+      }
+      _delimiterAt = i;
+      _scanned = i;
+      return i;
+    }
+    /* The last bytes could be the start of a delimiter, they are searched again once more arrive */
+    _scanned = Math.max(_pos, _limit - _delimiter.length + 1);
+    return -1;
+  }
+
+  /**
+   * @return false if the body ended before having that many bytes buffered
+   */
+  private boolean require(int bytes) throws IOException {
+    while (_limit - _pos < bytes) {
+      if (!fill()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read more of the body after the bytes not consumed yet.
+   *
+   * @return false if the body ended
+   */
+  private boolean fill() throws IOException {
+    if (_pos > 0) {
+      System.arraycopy(_buffer, _pos, _buffer, 0, _limit - _pos);
+      _limit -= _pos;
+      _delimiterAt -= _pos;
+      _scanned = Math.max(0, _scanned - _pos);
+      _pos = 0;
+    }
+    int read = _in.read(_buffer, _limit, _buffer.length - _limit);
+    if (read == -1) {
+      return false;
+    }
+    _total += read;
+    if (_total > _config.getMaxTotalSize()) {
+      throw new PayloadTooLarge("multipart body too large");
+    }
+    _limit += read;
+    return true;
+  }
+
+  /**
+   * The body of the current part, up to the next delimiter.
+   */
+  private final class PartInputStream extends InputStream {
+    private final long _maxSize;
+    private long _size = 0;
+    private final byte[] _single = new byte[1];
+    private boolean _ended = false;
+
+    PartInputStream(long maxSize) {
+      _maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return advance(_single, 0, 1) == -1 ? -1 : _single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      return advance(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      int skipped = advance(null, 0, (int) Math.min(n, Integer.MAX_VALUE));
+      return Math.max(skipped, 0);
+    }
+
+    @Override
+    public int available() {
+      if (_ended || _current != this) {
+        return 0;
+      }
+      int end = indexOfDelimiter();
+      return Math.max(0, end >= 0 ? end - _pos : _limit - _pos - _delimiter.length + 1);
+    }
+
+    void skipRest() throws IOException {
+      while (advance(null, 0, Integer.MAX_VALUE) != -1) {
+        /* Skipped */
+      }
+    }
+
+    /**
+     * Consume up to len bytes of the part, copying them to b unless it is null.
+     */
+    private int advance(byte[] b, int off, int len) throws IOException {
+      /* A part can't be read once the reader moved on */
+      if (_ended || _current != this) {
+        return -1;
+      }
+      while (true) {
+        int end = indexOfDelimiter();
+        if (end == _pos) {
+          _pos += _delimiter.length;
+          _ended = true;
+          return -1;
+        }
+        /* Without a delimiter the last bytes could be the start of one */
+        int readable = end >= 0 ? end - _pos : _limit - _pos - _delimiter.length + 1;
+        if (readable > 0) {
+          int n = Math.min(len, readable);
+          if (b != null) {
+            System.arraycopy(_buffer, _pos, b, off, n);
+          }
+          _pos += n;
+          _size += n;
+          if (_size > _maxSize) {
+            throw new PayloadTooLarge("multipart part too large");
+          }
+          return n;
+        }
+        if (!fill()) {
+          throw new BadRequest("malformed multipart body");
+        }
+      }
+    }
+  }
+}
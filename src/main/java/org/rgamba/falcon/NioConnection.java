@@ -0,0 +1,614 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+
+
+/**
+ * NioConnection
+ *
+ * <p>State of a single client connection served by a {@link NioEventLoop}.
+ * Bytes are accumulated without blocking until a complete request (head and
+ * body) is available. The head is parsed in place by the event loop, the
+ * request is then handled on a worker thread and the serialized response is
+ * written back by the event loop.
+ *
+ * <p>Connections are persistent, once the response has been written the
+ * next request is read from the same channel. Pipelined requests that
+ * arrive together are handled as one batch and answered with a single
+ * gathering write. Streamed bodies follow their head, each chunk is read
+ * from the source on a worker thread and written by the event loop. Files
+ * are transferred to the channel directly.
+ *
+ * <p>All methods except {@link #process(List, int, Response)} run on the event loop thread.
+ */
+class NioConnection {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private final NioEventLoop _eventLoop;
+  private final SocketChannel _channel;
+  private final SelectionKey _key;
+  private final SocketAddress _remoteAddress;
+  private final ByteRequestParser _parser;
+  private ByteBuffer _readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  /* What is left to write of the current batch, in order */
+  private final ArrayDeque<Segment> _segments = new ArrayDeque<>();
+  /* Requests of the current batch, closed once their responses are sent */
+  private List<Request> _batch = Collections.emptyList();
+  private int _consumed = 0;
+  private int _served = 0;
+  private boolean _processing = false;
+  private boolean _keepAlive = false;
+  /* Whether the worker is done adding segments for the current batch */
+  private boolean _batchComplete = false;
+  private long _lastActivity = System.currentTimeMillis();
+  /* Progress on the request at the start of the read buffer, kept while the rest of it arrives */
+  private int _pendingHead = ByteRequestParser.NEED_MORE_BYTES;
+  private int _headScan = 0;
+  private ChunkedInputStream.Scanner _pendingBody;
+
+  NioConnection(NioEventLoop eventLoop, SocketChannel channel, SelectionKey key) throws IOException {
+    _eventLoop = eventLoop;
+    _channel = channel;
+    _key = key;
+    _remoteAddress = channel.getRemoteAddress();
+    _parser = new ByteRequestParser(_remoteAddress, getConfig().getMaxRequestContentLength());
+  }
+
+  void onReadable() {
+    int read;
+    try {
+      if (!_readBuffer.hasRemaining()) {
+        growReadBuffer();
+      }
+      read = _channel.read(_readBuffer);
+    } catch (IOException e) {
+      close();
+      return;
+    }
+    if (read < 0) {
+      close();
+      return;
+    }
+    _lastActivity = System.currentTimeMillis();
+    if (!_processing) {
+      dispatchRequests();
+    }
+  }
+
+  void onWritable() {
+    /* Only a connection that makes no progress is timed out, see isIdle */
+    _lastActivity = System.currentTimeMillis();
+    try {
+      while (!_segments.isEmpty()) {
+        Segment segment = _segments.peek();
+        if (!segment.writeTo(_channel)) {
+          if (segment.needsFill()) {
+            _key.interestOps(0);
+            fillOnWorker(segment);
+          } else if (segment.isWaitingForWriter()) {
+            /* The worker running the writer wakes us up */
+            _key.interestOps(0);
+          } else {
+            _key.interestOps(SelectionKey.OP_WRITE);
+          }
+          return;
+        }
+        _segments.poll().release();
+      }
+    } catch (IOException e) {
+      close();
+      return;
+    }
+    if (!_batchComplete) {
+      /* The worker is still producing responses */
+      _key.interestOps(0);
+      return;
+    }
+    _batchComplete = false;
+    closeRequests();
+    if (!_keepAlive) {
+      close();
+      return;
+    }
+    _processing = false;
+    discardAnsweredRequests();
+    _key.interestOps(SelectionKey.OP_READ);
+    dispatchRequests();
+  }
+
+  /**
+   * Handle a batch of pipelined requests, in order. Runs on a worker thread.
+   *
+   * <p>The head and body buffers of all the responses are sent to the
+   * client with a single gathering write. Responses produced by a
+   * {@link BodyWriter} are written by this thread while the event loop
+   * sends each chunk.
+   *
+   * @param batch The parsed requests
+   * @param served Number of requests served on this connection before this batch
+   * @param parseError Response for a malformed request that followed the batch, if any
+   */
+  void process(List<Request> batch, int served, Response parseError) {
+    NioTransport transport = _eventLoop.getTransport();
+    List<Segment> segments = new ArrayList<>(1);
+    List<ByteBuffer> buffers = new ArrayList<>(batch.size() * 2 + 2);
+    boolean keepAlive = true;
+    for (int i = 0; i < batch.size() && keepAlive; i++) {
+      boolean last = served + i + 1 >= getConfig().getMaxRequestsPerConnection();
+      Request request = batch.get(i);
+      Response response = transport.getDispatcher().dispatch(request);
+      keepAlive = !last && RequestDispatcher.isKeepAlive(request, response);
+      if (!keepAlive) {
+        response = RequestDispatcher.withConnectionClose(response);
+      }
+      Collections.addAll(buffers, ResponseSerializer.serialize(response));
+      BodyWriter writer = response.isBodyStreamed() ? response.body().writer() : null;
+      if (writer != null && _eventLoop.inEventLoop()) {
+        /* Ran by the rejection policy, the event loop can't wait for itself */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!runWriter(writer, Channels.newChannel(out), response.trailers())) {
+          close();
+          return;
+        }
+        buffers.add(ByteBuffer.wrap(out.toByteArray()));
+      } else if (writer != null) {
+        LoopChannel channel = new LoopChannel();
+        segments.add(new Segment(buffers, channel));
+        buffers.clear();
+        final List<Segment> ready = new ArrayList<>(segments);
+        segments.clear();
+        _eventLoop.execute(() -> enqueue(ready));
+        if (!runWriter(writer, channel, response.trailers())) {
+          _eventLoop.execute(this::close);
+          return;
+        }
+      } else if (response.isBodyStreamed()) {
+        /* The body goes out after the heads and bodies serialized so far */
+        segments.add(new Segment(buffers, new BodyTransfer(response.body(), getConfig().getResponseChunkSize(),
+            response.trailers())));
+        buffers.clear();
+      }
+    }
+    if (keepAlive && parseError != null) {
+      /* We can't tell where the next request starts */
+      keepAlive = false;
+      Collections.addAll(buffers, ResponseSerializer.serialize(RequestDispatcher.withConnectionClose(parseError)));
+    }
+    if (!buffers.isEmpty()) {
+      segments.add(new Segment(buffers));
+    }
+    final boolean reuse = keepAlive;
+    _eventLoop.execute(() -> write(segments, reuse));
+  }
+
+  /**
+   * @return true if the connection has not done anything for longer than allowed
+   */
+  boolean isIdle(long now) {
+    if (_processing) {
+      /* A handler may take its time, but a client that does not read its responses holds them in memory */
+      boolean stalled = (_key.interestOps() & SelectionKey.OP_WRITE) != 0;
+      return stalled && now - _lastActivity > getConfig().getSocketTimeout();
+    }
+    /* Waiting for the next request on a persistent connection */
+    boolean betweenRequests = _served > 0 && _readBuffer.position() == 0;
+    long timeout = betweenRequests ? getConfig().getKeepAliveTimeout() : getConfig().getSocketTimeout();
+    return now - _lastActivity > timeout;
+  }
+
+  void close() {
+    while (!_segments.isEmpty()) {
+      _segments.poll().release();
+    }
+    closeRequests();
+    _key.cancel();
+    NioEventLoop.closeQuietly(_channel);
+  }
+
+  /**
+   * Parse every complete request already in the read buffer and hand them
+   * off to a worker.
+   */
+  private void dispatchRequests() {
+    byte[] buf = _readBuffer.array();
+    int end = _readBuffer.position();
+    List<Request> batch = new ArrayList<>();
+    Response parseError = null;
+    int offset = 0;
+    while (_served + batch.size() < getConfig().getMaxRequestsPerConnection()) {
+      try {
+        int headLength = offset == 0 ? parsePendingHead(buf, end) : _parser.parseHead(buf, offset, end);
+        if (headLength == ByteRequestParser.NEED_MORE_BYTES) {
+          break;
+        }
+        int bodyLength;
+        if (!_parser.isChunked()) {
+          bodyLength = (int) _parser.getContentLength();
+        } else if (offset == 0) {
+          if (_pendingBody == null) {
+            _pendingBody = new ChunkedInputStream.Scanner(getConfig().getMaxRequestContentLength());
+          }
+          bodyLength = _pendingBody.scan(buf, headLength, end);
+        } else {
+          bodyLength = ChunkedInputStream.bodyLength(buf, offset + headLength, end,
+              getConfig().getMaxRequestContentLength());
+        }
+        if (bodyLength == ByteRequestParser.NEED_MORE_BYTES || end - offset < headLength + bodyLength) {
+          if (offset == 0 && end == maxReadBufferSize()) {
+            /* The chunk framing does not fit either */
+            throw new PayloadTooLarge("request is too large");
+          }
+          break;
+        }
+        int requestLength = headLength + bodyLength;
+        /* Copy the request out of the buffer, it is reused for the next ones */
+        byte[] raw = Arrays.copyOfRange(buf, offset, offset + requestLength);
+        ByteArrayInputStream body = new ByteArrayInputStream(raw, headLength, bodyLength);
+        batch.add(_parser.buildRequest(raw, 0, _parser.bodyStream(body)));
+        if (offset == 0) {
+          clearPending();
+        }
+        offset += requestLength;
+      } catch (Exception ex) {
+        parseError = RequestDispatcher.errorResponse(ex, _remoteAddress);
+        break;
+      }
+    }
+    if (batch.isEmpty() && parseError == null) {
+      return;
+    }
+    final int served = _served;
+    final Response error = parseError;
+    _served += batch.size();
+    _consumed = offset;
+    _batch = batch;
+    _processing = true;
+    /* Stop reading while the requests are being handled */
+    _key.interestOps(0);
+    if (!_eventLoop.getTransport().getWorkers().submit(() -> process(batch, served, error))) {
+      reject(batch, served, error);
+    }
+  }
+
+  /**
+   * Parse the head of the request at the start of the read buffer. It is
+   * parsed once, when the blank line that ends it arrives, and kept until
+   * its body arrives too, so the parser must not be used for anything else
+   * meanwhile.
+   */
+  private int parsePendingHead(byte[] buf, int end) {
+    if (_pendingHead == ByteRequestParser.NEED_MORE_BYTES
+        && (hasHeadEnd(buf, end) || end >= ByteRequestParser.MAX_HEAD_SIZE)) {
+      _pendingHead = _parser.parseHead(buf, 0, end);
+    }
+    return _pendingHead;
+  }
+
+  /**
+   * Look for an empty line in the bytes received since the last call.
+   */
+  private boolean hasHeadEnd(byte[] buf, int end) {
+    for (int i = Math.max(_headScan, 1); i < end; i++) {
+      if (buf[i] == '\n' && (buf[i - 1] == '\n' || (i > 1 && buf[i - 1] == '\r' && buf[i - 2] == '\n'))) {
+        _headScan = i + 1;
+        return true;
+      }
+    }
+    _headScan = end;
+    return false;
+  }
+
+  private void clearPending() {
+    _pendingHead = ByteRequestParser.NEED_MORE_BYTES;
+    _headScan = 0;
+    _pendingBody = null;
+  }
+
+  /**
+   * Delete the temporary files of the parts the handlers read.
+   */
+  private void closeRequests() {
+    for (Request request : _batch) {
+      request.close();
+    }
+    _batch = Collections.emptyList();
+  }
+
+  /**
+   * Apply the rejection policy to a batch no worker could take.
+   */
+  private void reject(List<Request> batch, int served, Response parseError) {
+    switch (getConfig().getRejectionPolicy()) {
+      case CALLER_RUNS:
+        /* Stalls every connection on this event loop until it is done */
+        process(batch, served, parseError);
+        break;
+      case SERVICE_UNAVAILABLE:
+        Response unavailable = RequestDispatcher.serviceUnavailable(getConfig().getRetryAfter());
+        write(Collections.singletonList(
+            new Segment(Arrays.asList(ResponseSerializer.serialize(unavailable)))), false);
+        break;
+      case DROP:
+      default:
+        close();
+        break;
+    }
+  }
+
+  /**
+   * Queue the last segments of the batch.
+   */
+  private void write(List<Segment> segments, boolean keepAlive) {
+    _batchComplete = true;
+    _keepAlive = keepAlive;
+    enqueue(segments);
+  }
+
+  private void enqueue(List<Segment> segments) {
+    if (!_key.isValid()) {
+      for (Segment segment : segments) {
+        segment.release();
+      }
+      return;
+    }
+    _segments.addAll(segments);
+    onWritable();
+  }
+
+  /**
+   * Run a {@link BodyWriter} on the current thread.
+   *
+   * @return false if the body could not be sent in full
+   */
+  private boolean runWriter(BodyWriter writer, WritableByteChannel channel, Headers trailers) {
+    ResponseSink sink = new ResponseSink(channel, getConfig().getResponseChunkSize(), trailers);
+    try {
+      writer.write(sink);
+      sink.close();
+      if (channel instanceof LoopChannel) {
+        ((LoopChannel) channel).finish();
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Read the next chunk of a streamed body on a worker, the source may block.
+   */
+  private void fillOnWorker(Segment segment) {
+    boolean submitted = _eventLoop.getTransport().getWorkers().submit(() -> {
+      try {
+        segment.fill();
+      } catch (IOException e) {
+        _eventLoop.execute(this::close);
+        return;
+      }
+      _eventLoop.execute(() -> {
+        if (_key.isValid()) {
+          onWritable();
+        }
+      });
+    });
+    if (!submitted) {
+      close();
+    }
+  }
+
+  /**
+   * Remove the bytes of the requests that were just answered, keeping
+   * anything the client already sent after them.
+   */
+  private void discardAnsweredRequests() {
+    _readBuffer.flip();
+    _readBuffer.position(_consumed);
+    _readBuffer.compact();
+    _consumed = 0;
+  }
+
+  private void growReadBuffer() {
+    ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(maxReadBufferSize(), _readBuffer.capacity() * 2L));
+    _readBuffer.flip();
+    bigger.put(_readBuffer);
+    _readBuffer = bigger;
+  }
+
+  /**
+   * The parser rejects heads and bodies larger than this, chunked bodies
+   * can also use the room of a head for their framing.
+   */
+  private long maxReadBufferSize() {
+    return Math.min(Integer.MAX_VALUE - 8,
+        2L * ByteRequestParser.MAX_HEAD_SIZE + getConfig().getMaxRequestContentLength());
+  }
+
+  private ServerConfig getConfig() {
+    return _eventLoop.getTransport().getConfig();
+  }
+
+  /**
+   * Serialized responses sent with a single gathering write, optionally
+   * followed by a streamed body or the output of a {@link BodyWriter}.
+   */
+  private static final class Segment {
+    private final ByteBuffer[] _buffers;
+    private final BodyTransfer _body;
+    private final LoopChannel _writer;
+
+    Segment(List<ByteBuffer> buffers) {
+      this(buffers, (BodyTransfer) null);
+    }
+
+    Segment(List<ByteBuffer> buffers, BodyTransfer body) {
+      _buffers = buffers.toArray(new ByteBuffer[buffers.size()]);
+      _body = body;
+      _writer = null;
+    }
+
+    Segment(List<ByteBuffer> buffers, LoopChannel writer) {
+      _buffers = buffers.toArray(new ByteBuffer[buffers.size()]);
+      _body = null;
+      _writer = writer;
+    }
+
+    /**
+     * @return true once everything has been written
+     */
+    boolean writeTo(SocketChannel channel) throws IOException {
+      if (ResponseSerializer.hasRemaining(_buffers)) {
+        channel.write(_buffers);
+        if (ResponseSerializer.hasRemaining(_buffers)) {
+          return false;
+        }
+      }
+      if (_writer != null) {
+        return _writer.writeSome(channel);
+      }
+      return _body == null || _body.writeSome(channel);
+    }
+
+    boolean needsFill() {
+      return _body != null && _body.needsFill();
+    }
+
+    boolean isWaitingForWriter() {
+      return _writer != null && _writer.isWaiting();
+    }
+
+    void fill() throws IOException {
+      _body.fill();
+    }
+
+    void release() {
+      ResponseSerializer.release(_buffers);
+      if (_body != null) {
+        _body.close();
+      }
+      if (_writer != null) {
+        _writer.close();
+      }
+    }
+  }
+
+  /**
+   * Hands the chunks written by a {@link BodyWriter} on a worker thread
+   * over to the event loop. Each write blocks the worker until the event
+   * loop has sent the bytes, so a single chunk is held in memory no matter
+   * how slow the client reads.
+   */
+  private final class LoopChannel implements WritableByteChannel {
+    /* Guarded by this */
+    private ByteBuffer _pending;
+    private boolean _finished = false;
+    private boolean _open = true;
+
+    /**
+     * Called by the worker, blocks until the bytes are sent.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int length = src.remaining();
+      synchronized (this) {
+        if (!_open) {
+          throw new ClosedChannelException();
+        }
+        _pending = src;
+      }
+      wakeUpEventLoop();
+      long timeout = getConfig().getSocketTimeout();
+      long deadline = System.currentTimeMillis() + timeout;
+      synchronized (this) {
+        while (_pending != null && _open) {
+          long left = deadline - System.currentTimeMillis();
+          if (left <= 0) {
+            _open = false;
+            throw new SocketTimeoutException("client did not read the response in " + timeout + "ms");
+          }
+          try {
+            wait(left);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        if (_pending != null) {
+          throw new ClosedChannelException();
+        }
+      }
+      return length;
+    }
+
+    /**
+     * Called by the worker once the writer is done.
+     */
+    void finish() {
+      synchronized (this) {
+        _finished = true;
+      }
+      wakeUpEventLoop();
+    }
+
+    /**
+     * Called by the event loop.
+     *
+     * @return true once the writer is done and everything has been sent
+     */
+    synchronized boolean writeSome(SocketChannel channel) throws IOException {
+      if (_pending != null) {
+        channel.write(_pending);
+        if (_pending.hasRemaining()) {
+          return false;
+        }
+        _pending = null;
+        notifyAll();
+      }
+      return _finished;
+    }
+
+    synchronized boolean isWaiting() {
+      return _pending == null && !_finished;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+      return _open;
+    }
+
+    @Override
+    public synchronized void close() {
+      _open = false;
+      notifyAll();
+    }
+
+    private void wakeUpEventLoop() {
+      _eventLoop.execute(() -> {
+        if (_key.isValid()) {
+          onWritable();
+        }
+      });
+    }
+  }
+}
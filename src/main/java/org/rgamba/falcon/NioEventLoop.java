@@ -0,0 +1,136 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * NioEventLoop
+ *
+ * <p>A single selector thread serving many connections. Every operation
+ * on a channel or on its {@link SelectionKey} happens on this thread; other
+ * threads must go through {@link #execute(Runnable)}.
+ */
+class NioEventLoop implements Runnable {
+  private static final long IDLE_CHECK_INTERVAL = 1000;
+
+  private final NioTransport _transport;
+  private final Selector _selector;
+  private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean _running = true;
+  private volatile Thread _thread;
+  private long _lastIdleCheck = System.currentTimeMillis();
+
+  NioEventLoop(NioTransport transport) throws IOException {
+    _transport = transport;
+    _selector = Selector.open();
+  }
+
+  /**
+   * Start serving a newly accepted connection. Can be called from any thread.
+   */
+  void register(SocketChannel channel) {
+    execute(() -> {
+      try {
+        SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+        key.attach(new NioConnection(this, channel, key));
+      } catch (IOException e) {
+        closeQuietly(channel);
+      }
+    });
+  }
+
+  /**
+   * Run the task on the event loop thread.
+   */
+  void execute(Runnable task) {
+    _tasks.add(task);
+    _selector.wakeup();
+  }
+
+  void close() {
+    _running = false;
+    _selector.wakeup();
+  }
+
+  /**
+   * @return true if called from the event loop thread itself
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == _thread;
+  }
+
+  NioTransport getTransport() {
+    return _transport;
+  }
+
+  @Override
+  public void run() {
+    _thread = Thread.currentThread();
+    while (_running) {
+      try {
+        _selector.select(IDLE_CHECK_INTERVAL);
+        runTasks();
+        processSelectedKeys();
+        closeIdleConnections();
+      } catch (IOException e) {
+        System.out.println("Event loop ex: " + e.getMessage());
+      }
+    }
+    for (SelectionKey key : _selector.keys()) {
+      closeQuietly(key.channel());
+    }
+    closeQuietly(_selector);
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = _tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private void closeIdleConnections() {
+    long now = System.currentTimeMillis();
+    if (now - _lastIdleCheck < IDLE_CHECK_INTERVAL) {
+      return;
+    }
+    _lastIdleCheck = now;
+    for (SelectionKey key : _selector.keys()) {
+      NioConnection connection = (NioConnection) key.attachment();
+      if (key.isValid() && connection != null && connection.isIdle(now)) {
+        connection.close();
+      }
+    }
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+    while (keys.hasNext()) {
+      SelectionKey key = keys.next();
+      keys.remove();
+      NioConnection connection = (NioConnection) key.attachment();
+      if (!key.isValid() || connection == null) {
+        continue;
+      }
+      if (key.isReadable()) {
+        connection.onReadable();
+      }
+      if (key.isValid() && key.isWritable()) {
+        connection.onWritable();
+      }
+    }
+  }
+
+  static void closeQuietly(AutoCloseable closeable) {
+    try {
+      closeable.close();
+    } catch (Exception e) {
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * NioTransport
+ *
+ * <p>Selector based transport. Connections are accepted on the calling
+ * thread and then distributed round robin among a small and fixed set of
+ * {@link NioEventLoop}s which perform all the socket reads and writes
+ * without blocking. Once a full request has been received it is handed off
+ * to the {@link WorkerPool} so slow handlers never stall an event loop.
+ */
+class NioTransport {
+  private final ServerConfig _config;
+  private final RequestDispatcher _dispatcher;
+  private final WorkerPool _workers;
+  private final NioEventLoop[] _eventLoops;
+  private ServerSocketChannel _serverChannel;
+  private volatile boolean _running;
+  private int _nextLoop = 0;
+
+  NioTransport(ServerConfig config, RequestDispatcher dispatcher, WorkerPool workers) {
+    _config = config;
+    _dispatcher = dispatcher;
+    _workers = workers;
+    _eventLoops = new NioEventLoop[config.getEventLoopThreads()];
+  }
+
+  /**
+   * Open the server channel and start the event loop threads.
+   * @param port The port to listen to, 0 for an ephemeral port
+   */
+  void bind(int port) throws IOException {
+    _serverChannel = ServerSocketChannel.open();
+    _serverChannel.bind(new InetSocketAddress(port));
+    for (int i = 0; i < _eventLoops.length; i++) {
+      _eventLoops[i] = new NioEventLoop(this);
+      Thread thread = new Thread(_eventLoops[i], "falcon-event-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    _running = true;
+  }
+
+  int getLocalPort() {
+    return _serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Accept new connections until {@link #close()} is called.
+   * This will block the calling thread.
+   */
+  void run() {
+    while (_running) {
+      try {
+        SocketChannel client = _serverChannel.accept();
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        nextEventLoop().register(client);
+      } catch (ClosedChannelException e) {
+        break;
+      } catch (IOException e) {
+        System.out.println("Accept ex: " + e.getMessage());
+      }
+    }
+  }
+
+  void close() {
+    _running = false;
+    try {
+      _serverChannel.close();
+    } catch (IOException e) {
+    }
+    for (NioEventLoop eventLoop : _eventLoops) {
+      if (eventLoop != null) {
+        eventLoop.close();
+      }
+    }
+  }
+
+  ServerConfig getConfig() {
+    return _config;
+  }
+
+  RequestDispatcher getDispatcher() {
+    return _dispatcher;
+  }
+
+  WorkerPool getWorkers() {
+    return _workers;
+  }
+
+  private NioEventLoop nextEventLoop() {
+    NioEventLoop eventLoop = _eventLoops[_nextLoop];
+    _nextLoop = (_nextLoop + 1) % _eventLoops.length;
+    return eventLoop;
+  }
+}
@@ -0,0 +1,235 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Part
+ *
+ * <p>A part of a multipart/form-data request body, either a form field or
+ * an uploaded file. Parts from a {@link MultipartReader} are read from the
+ * request as they are consumed, those from {@link Request#getParts()} are
+ * stored in memory or, when large, in a temporary file that is deleted
+ * when the request is closed.
+ */
+public class Part {
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  private final Headers _headers;
+  private final String _name;
+  private final String _fileName;
+  private final InputStream _stream;
+  private final byte[] _bytes;
+  private final Path _file;
+  private final long _size;
+
+  /**
+   * A part read from the request as it is consumed.
+   */
+  Part(Headers headers, InputStream stream) {
+    this(headers, stream, null, null, -1);
+  }
+
+  private Part(Headers headers, InputStream stream, byte[] bytes, Path file, long size) {
+    _headers = headers;
+    Header disposition = headers.get("Content-Disposition");
+    MimeType params = disposition != null ? MimeType.fromString(disposition.getValue()) : null;
+    _name = params != null && params.containsParam("name") ? params.getParam("name") : null;
+    _fileName = params != null && params.containsParam("filename") ? params.getParam("filename") : null;
+    _stream = stream;
+    _bytes = bytes;
+    _file = file;
+    _size = size;
+  }
+
+  /**
+   * Read the rest of the part and keep it in memory, or in a temporary file
+   * if it is bigger than the memory threshold.
+   *
+   * @return The stored part
+   */
+  Part store(MultipartConfig config) throws IOException {
+    ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    int read;
+    while ((read = _stream.read(buffer)) != -1) {
+      memory.write(buffer, 0, read);
+      if (memory.size() > config.getMemoryThreshold()) {
+        return spill(config, memory, buffer);
+      }
+    }
+    byte[] bytes = memory.toByteArray();
+    return new Part(_headers, null, bytes, null, bytes.length);
+  }
+
+  private Part spill(MultipartConfig config, ByteArrayOutputStream memory, byte[] buffer) throws IOException {
+    Path file = config.getTempDirectory() != null
+        ? Files.createTempFile(config.getTempDirectory(), "falcon-", ".part")
+        : Files.createTempFile("falcon-", ".part");
+    long size = memory.size();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      writeFully(channel, ByteBuffer.wrap(memory.toByteArray()));
+      int read;
+      while ((read = _stream.read(buffer)) != -1) {
+        writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+        size += read;
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    return new Part(_headers, null, null, file, size);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  public Headers getHeaders() {
+    return _headers;
+  }
+
+  public Header getHeader(String name) {
+    return _headers.get(name);
+  }
+
+  /**
+   * @return The name of the form field, null if the part has none
+   */
+  public String getName() {
+    return _name;
+  }
+
+  /**
+   * @return The name of the uploaded file as sent by the client, null if
+   *     the part is not a file. Never use it as a path as is.
+   */
+  public String getFileName() {
+    return _fileName;
+  }
+
+  public boolean isFile() {
+    return _fileName != null;
+  }
+
+  /**
+   * @return The Content-Type of the part, text/plain if it has none
+   */
+  public MimeType getContentType() {
+    Header contentType = _headers.get("Content-Type");
+    try {
+      return MimeType.fromString(contentType != null ? contentType.getValue() : "text/plain");
+    } catch (IllegalArgumentException e) {
+      return MimeType.fromString("text/plain");
+    }
+  }
+
+  /**
+   * @return The size of the body or -1 if the part is read from the request
+   */
+  public long getSize() {
+    return _size;
+  }
+
+  public boolean isInMemory() {
+    return _bytes != null;
+  }
+
+  /**
+   * @return The temporary file holding the body or null if it is not in one
+   */
+  public Path getPath() {
+    return _file;
+  }
+
+  /**
+   * Open the body of the part. The body of a part read from the request
+   * can only be read once, and only until the next part is asked for.
+   */
+  public InputStream getInputStream() throws IOException {
+    if (_bytes != null) {
+      return new ByteArrayInputStream(_bytes);
+    }
+    if (_file != null) {
+      return Channels.newInputStream(FileChannel.open(_file, StandardOpenOption.READ));
+    }
+    return _stream;
+  }
+
+  /**
+   * @return The body decoded with the charset of the Content-Type, UTF-8 by default
+   */
+  public String getString() throws IOException {
+    String charset = getContentType().getParam("charset");
+    Charset decoder = StandardCharsets.UTF_8;
+    try {
+      if (!charset.isEmpty() && Charset.isSupported(charset)) {
+        decoder = Charset.forName(charset);
+      }
+    } catch (IllegalArgumentException e) {
+      /* An illegal charset name sent by the client */
+    }
+    if (_bytes != null) {
+      return new String(_bytes, decoder);
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream in = getInputStream()) {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+    }
+    return new String(body.toByteArray(), decoder);
+  }
+
+  /**
+   * Save the body to a file, replacing it if it exists. A temporary file is
+   * moved rather than copied when possible.
+   */
+  public void moveTo(Path target) throws IOException {
+    if (_file != null) {
+      Files.move(_file, target, StandardCopyOption.REPLACE_EXISTING);
+      return;
+    }
+    if (_bytes != null) {
+      Files.write(target, _bytes);
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      int read;
+      while ((read = _stream.read(buffer)) != -1) {
+        writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+      }
+    }
+  }
+
+  /**
+   * Delete the temporary file of the part, if any.
+   */
+  public void delete() {
+    if (_file != null) {
+      try {
+        Files.deleteIfExists(_file);
+      } catch (IOException e) {
+        /* Left to the OS */
+      }
+    }
+  }
+}
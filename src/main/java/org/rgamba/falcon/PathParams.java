@@ -0,0 +1,53 @@
+package org.rgamba.falcon;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * PathParams
+ *
+ * <p>Values captured from the request path by the {@link Router}. Names are
+ * shared by every request that matched the same route, so a lookup only
+ * allocates the array of values. Requests on static routes share
+ * {@link #EMPTY}.
+ */
+final class PathParams {
+  static final PathParams EMPTY = new PathParams(new String[0], new String[0]);
+
+  private final String[] _names;
+  private final String[] _values;
+
+  PathParams(String[] names, String[] values) {
+    _names = names;
+    _values = values;
+  }
+
+  /**
+   * @return The captured value or null if the route has no such param
+   */
+  String get(String name) {
+    for (int i = 0; i < _names.length; i++) {
+      if (_names[i].equals(name)) {
+        return _values[i];
+      }
+    }
+    return null;
+  }
+
+  boolean isEmpty() {
+    return _names.length == 0;
+  }
+
+  Map<String, String> toMap() {
+    if (isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < _names.length; i++) {
+      result.put(_names[i], _values[i]);
+    }
+    return result;
+  }
+}
@@ -1,16 +1,23 @@
 package org.rgamba.falcon;
 
-import org.apache.commons.fileupload.MultipartStream;
 import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,39 +30,51 @@ import java.util.Map;
  * by the client, parsed and passed along to to the appropriate
  * listener so it can generate a valid Response.
  *
+ * <p>Requests are immutable. Copies, and requests built from another
+ * request, share the headers, the query params and the body with it,
+ * so they are cheap to create.
+ *
  * @see <a  href="https://tools.ietf.org/html/rfc2616#page-35">HTTP RFC request</a>
  */
 public class Request implements HttpMessage {
   private final Type _type;
   private final Headers _headers;
   private final SocketAddress _remoteAddress;
-  private final InputStream _inputStream;
-  private final InputStreamReader _bodyReader;
+  private final Body _body;
   private final String _uri;
-  private final URI _url;
+  /* Built from the target on first use unless set explicitly */
+  private volatile URI _url;
+  private final RequestTarget _target;
+  private final String _targetHost;
   private final String _path;
   private final String _host;
   private final Long _contentLength;
-  private final Map<String, List<String>> _queryParams;
-  private Map<String, List<String>> _formData;
+  private final QueryParams _queryParams;
+  private final PathParams _pathParams;
+  private volatile Map<String, String> _cookies;
 
   private final static long MAX_BODY_SIZE = (10 << 20); // 10 MB
+  /* Some VMs reserve a few words in arrays */
+  private final static int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+  private final static int READ_BUFFER_SIZE = 8192;
 
   /**
    * New objects must be created using the {@link Builder}
    */
   private Request(Builder builder) {
     _type = builder.type;
-    _headers = builder.headers;
+    _headers = new Headers(builder.headers);
     _remoteAddress = builder.remoteAddress;
-    _inputStream = builder.inputStream;
-    _bodyReader = _inputStream != null ? new InputStreamReader(_inputStream) : null;
+    _body = builder.body;
     _uri = builder.uri;
-    _queryParams = builder.queryParams;
+    _queryParams = builder.buildQueryParams();
     _path = builder.path;
     _host = builder.host;
     _url = builder.url;
+    _target = builder.target;
+    _targetHost = builder.targetHost;
     _contentLength = builder.contentLength;
+    _pathParams = builder.pathParams;
   }
 
   /**
@@ -63,16 +82,19 @@ public class Request implements HttpMessage {
    */
   public Request(Request request) {
     _type = request.getType();
-    _headers = request.getHeaders();
+    _headers = request._headers;
     _remoteAddress = request.getRemoteAddress();
-    _inputStream = request.getInputStream();
-    _bodyReader = _inputStream != null ? new InputStreamReader(_inputStream) : null;
+    _body = request._body;
     _uri = request.getUri();
-    _queryParams = request.getQueryParams();
+    _queryParams = request._queryParams;
     _path = request.getPath();
     _host = request.getHost();
-    _url = request.getUrl();
+    _url = request._url;
+    _target = request._target;
+    _targetHost = request._targetHost;
     _contentLength = request.getContentLength();
+    _pathParams = request._pathParams;
+    _cookies = request._cookies;
   }
 
   @Override
@@ -84,20 +106,48 @@ public class Request implements HttpMessage {
     return _type;
   }
 
+  /**
+   * @return The request headers, changes to them do not affect the request
+   */
   public Headers getHeaders() {
     return new Headers(_headers);
   }
 
+  /**
+   * @param name The header name, case insensitive
+   * @return The header or null if the request does not have it
+   */
+  public Header getHeader(String name) {
+    return _headers.get(name);
+  }
+
   public SocketAddress getRemoteAddress() {
     return _remoteAddress;
   }
 
   public InputStreamReader getBodyReader() {
-    return _bodyReader;
+    return _body != null ? _body.getReader() : null;
   }
 
   public InputStream getInputStream() {
-    return _inputStream;
+    return _body != null ? _body.getInputStream() : null;
+  }
+
+  /**
+   * @return The body as a channel, reading from it consumes the same bytes as
+   *     {@link #getInputStream()}. Closing it leaves the connection open
+   */
+  public ReadableByteChannel getBodyChannel() {
+    return _body != null ? _body.getChannel() : null;
+  }
+
+  /**
+   * @return true if the body is sent with the chunked transfer coding, its
+   *     length is only known once it has been read
+   */
+  public boolean isChunked() {
+    Header transferEncoding = _headers.get("Transfer-Encoding");
+    return transferEncoding != null && transferEncoding.getValue().trim().equalsIgnoreCase("chunked");
   }
 
   public String getUri() {
@@ -112,8 +162,18 @@ public class Request implements HttpMessage {
     return _host;
   }
 
+  /**
+   * @return The effective request URL, built the first time it is asked
+   *     for. Origin form targets are resolved against the Host header.
+   * @throws BadRequest if the target and the Host header don't make a valid URL
+   */
   public URI getUrl() {
-    return _url;
+    URI url = _url;
+    if (url == null && _target != null) {
+      url = _target.toUri(_targetHost);
+      _url = url;
+    }
+    return url;
   }
 
   public Long getContentLength() {
@@ -131,13 +191,16 @@ public class Request implements HttpMessage {
    * <p>Do not use this method if expect a very large request body as it can consume
    * considerable amount of resources given it will try and fit all the body on a
    * String. You can first inspect {@link Request#getContentLength()} to see if the
-   * request body is too large.
+   * request body is too large. Chunked bodies are read until their last chunk.
+   *
+   * <p>The body is decoded with the platform charset and a truncated body is not
+   * reported, see {@link #readBodyAsString()} for an exact alternative.
    *
    * @return string representation of the request body
    */
   public String readAllBody() {
     if (_contentLength == null) {
-      return "";
+      return isChunked() && _body != null ? readChunkedBody() : "";
     }
     StringBuffer body = new StringBuffer();
     long step = 1024;
@@ -151,7 +214,7 @@ public class Request implements HttpMessage {
       }
       char[] buffer = new char[(int) ceil];
       try {
-        _bodyReader.read(buffer, 0, (int) ceil);
+        getBodyReader().read(buffer, 0, (int) ceil);
         body.append(buffer);
       } catch (IOException ex) {
         break;
@@ -161,45 +224,224 @@ public class Request implements HttpMessage {
     return body.toString();
   }
 
+  private String readChunkedBody() {
+    StringBuilder body = new StringBuilder();
+    char[] buffer = new char[1024];
+    try {
+      int read;
+      while (body.length() <= MAX_BODY_SIZE && (read = getBodyReader().read(buffer)) != -1) {
+        body.append(buffer, 0, read);
+      }
+    } catch (IOException ex) {
+      /* Whatever was received */
+    }
+    return body.toString();
+  }
+
   /**
-   * Get a copy of all the query params for the current request
+   * Read the whole body into a single array sized from its Content-Length.
+   * Chunked bodies are read until their last chunk. Like the other ways of
+   * reading the body, it can only be read once.
    *
-   * @return a list of all query parameters or an empty list if no parameters are found
+   * @return The body bytes, empty if the request has no body
+   * @throws BadRequest if the body ends before Content-Length bytes or, when
+   *     chunked, before its last chunk
+   * @throws PayloadTooLarge if the body does not fit an array
    */
-  public Map<String, List<String>> getQueryParams() {
-    Map<String, List<String>> result = new HashMap<>();
-    if (_queryParams.size() <= 0) {
-      return result;
+  public byte[] readAllBytes() {
+    InputStream in = getInputStream();
+    if (in == null || (_contentLength == null && !isChunked())) {
+      return new byte[0];
     }
-    for (Map.Entry<String, List<String>> entry : _queryParams.entrySet()) {
-      String[] values = entry.getValue().toArray(new String[entry.getValue().size()]);
-      result.put(entry.getKey(), new ArrayList<>(Arrays.asList(values)));
+    try {
+      if (_contentLength == null) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+      }
+      if (_contentLength > MAX_ARRAY_SIZE) {
+        throw new PayloadTooLarge("request body too large to be read at once");
+      }
+      byte[] body = new byte[(int) (long) _contentLength];
+      int offset = 0;
+      while (offset < body.length) {
+        int read = in.read(body, offset, body.length - offset);
+        if (read == -1) {
+          throw truncated(offset);
+        }
+        offset += read;
+      }
+      return body;
+    } catch (EOFException e) {
+      /* A chunked body the client did not finish, like a short Content-Length one */
+      throw new BadRequest(e.getMessage());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    return result;
   }
 
   /**
-   * Get a copy of a single query param
+   * Read the whole body into the remaining space of a buffer, for handlers
+   * that keep a buffer per thread or read into direct memory.
+   *
+   * @return The number of bytes read, the buffer position is advanced by as much
+   * @throws BadRequest if the body ends before Content-Length bytes or, when
+   *     chunked, before its last chunk
+   * @throws PayloadTooLarge if the body does not fit the remaining space,
+   *     checked before reading anything when the Content-Length is known
+   */
+  public int readBody(ByteBuffer buffer) {
+    ReadableByteChannel channel = getBodyChannel();
+    if (channel == null || (_contentLength == null && !isChunked())) {
+      return 0;
+    }
+    if (_contentLength != null && _contentLength > buffer.remaining()) {
+      throw new PayloadTooLarge("request body larger than the buffer");
+    }
+    int start = buffer.position();
+    try {
+      if (_contentLength != null) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(start + (int) (long) _contentLength);
+        while (body.hasRemaining()) {
+          if (channel.read(body) == -1) {
+            throw truncated(body.position() - start);
+          }
+        }
+        buffer.position(body.position());
+        return body.position() - start;
+      }
+      while (channel.read(buffer) != -1) {
+        if (!buffer.hasRemaining() && channel.read(ByteBuffer.allocate(1)) != -1) {
+          throw new PayloadTooLarge("request body larger than the buffer");
+        }
+      }
+      return buffer.position() - start;
+    } catch (EOFException e) {
+      throw new BadRequest(e.getMessage());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Read the whole body, see {@link #readAllBytes()}, and decode it with the
+   * charset of the Content-Type, UTF-8 if it does not name one.
+   *
+   * @throws BadRequest if the body is truncated or the charset is not supported
+   */
+  public String readBodyAsString() {
+    return new String(readAllBytes(), getBodyCharset());
+  }
+
+  private Charset getBodyCharset() {
+    MimeType contentType = getContentType();
+    String charset = contentType != null ? contentType.getParam("charset") : "";
+    if (charset.isEmpty()) {
+      return StandardCharsets.UTF_8;
+    }
+    try {
+      return Charset.forName(charset);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequest("unsupported charset: " + charset);
+    }
+  }
+
+  private BadRequest truncated(long read) {
+    return new BadRequest("request body truncated after " + read + " of " + _contentLength + " bytes");
+  }
+
+  /**
+   * Get all the query params for the current request
+   *
+   * @return an unmodifiable map of all query parameters, empty if no parameters are found
+   */
+  public Map<String, List<String>> getQueryParams() {
+    return _queryParams.get();
+  }
+
+  /**
+   * Get the values of a single query param
    *
    * @param key The name of the parameter
-   * @return A list of string values or an empty list if no key was found
+   * @return An unmodifiable list of string values or an empty list if no key was found
    */
   public List<String> getQueryParam(String key) {
-    if (!_queryParams.containsKey(key)) {
-      return new ArrayList<>();
+    List<String> values = _queryParams.get().get(key);
+    return values != null ? values : Collections.<String>emptyList();
+  }
+
+  /**
+   * Get the value of a cookie sent by the client. The Cookie headers are
+   * parsed the first time a cookie is asked for.
+   *
+   * @param name The name of the cookie, case sensitive
+   * @return The value or null if the client did not send the cookie
+   */
+  public String getCookie(String name) {
+    return getCookies().get(name);
+  }
+
+  /**
+   * @return An unmodifiable map of the cookies sent by the client, by name.
+   *     When a name is sent twice the first value is kept, it is the one
+   *     with the most specific path.
+   */
+  public Map<String, String> getCookies() {
+    Map<String, String> cookies = _cookies;
+    if (cookies == null) {
+      cookies = new HashMap<>();
+      for (Header header : _headers.getAll("Cookie")) {
+        for (String pair : header.getValue().split(";")) {
+          pair = pair.trim();
+          int equals = pair.indexOf('=');
+          if (equals <= 0) {
+            continue;
+          }
+          String value = pair.substring(equals + 1).trim();
+          if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+          }
+          cookies.putIfAbsent(pair.substring(0, equals).trim(), value);
+        }
+      }
+      cookies = Collections.unmodifiableMap(cookies);
+      _cookies = cookies;
     }
-    List<String> element = _queryParams.get(key);
-    return new ArrayList<>(Arrays.asList(element.toArray(new String[element.size()])));
+    return cookies;
   }
 
   /**
-   * Close the InputStream and the input stream reader.
+   * Get a value captured from the path by the {@link Router}. For example
+   * the route "/users/{id}" captures "42" as "id" for the path "/users/42".
+   *
+   * @param name The name of the param in the route
+   * @return The captured value or null if the route has no such param
+   */
+  public String getPathParam(String name) {
+    return _pathParams.get(name);
+  }
+
+  /**
+   * Get a copy of all the values captured from the path by the {@link Router}
+   *
+   * @return The params in the same order they appear on the route, empty for static routes
+   */
+  public Map<String, String> getPathParams() {
+    return _pathParams.toMap();
+  }
+
+  /**
+   * Close the InputStream and the input stream reader, and delete the
+   * temporary files of the parts stored by {@link #getParts()}.
    */
   public void close() {
-    try {
-      _bodyReader.close();
-      _inputStream.close();
-    } catch (IOException e) {
+    if (_body != null) {
+      _body.close();
     }
   }
 
@@ -209,7 +451,8 @@ public class Request implements HttpMessage {
    */
   public MimeType getContentType() {
     try {
-      return MimeType.fromString(_headers.get("Content-Type").getValue());
+      Header contentType = _headers.get("Content-Type");
+      return contentType != null ? MimeType.fromString(contentType.getValue()) : null;
     } catch (IllegalArgumentException e) {
       return null;
     }
@@ -222,96 +465,131 @@ public class Request implements HttpMessage {
    *
    * <p>Note that calling this method will read all the content body
    * on the first time, therefore you will not read the body directly again.
+   * The decoded form is shared with the copies of the request.
    *
    * @param key The parameter name to get
    * @return String list of the parameter values.
    */
   public List<String> getFormData(String key) {
-    if (_formData == null) {
-      MimeType contentType = this.getContentType();
-      switch (contentType.getMediaType()) {
-        case "multipart/form-data":
-          if (contentType.getParam("boundary") == "") {
-            throw new BadRequest("expected multipart boundary");
-          }
-          parseMultipartFormData(contentType.getParam("boundary"));
-          break;
-        case "application/x-www-form-urlencoded":
-          parseUrlEncodedBody();
-          break;
-        default:
-          throw new IllegalArgumentException("unexpected content-type, unable to parse");
+    Map<String, List<String>> formData;
+    if (_body == null) {
+      formData = parseFormData();
+    } else {
+      synchronized (_body) {
+        if (_body.formData == null) {
+          _body.formData = parseFormData();
+        }
+        formData = _body.formData;
       }
     }
-
-    if (!_formData.containsKey(key)) {
+    if (!formData.containsKey(key)) {
       return new ArrayList<>();
     }
-    return _formData.get(key);
+    return formData.get(key);
   }
 
-  private void parseUrlEncodedBody() {
-    String body = readAllBody();
-    _formData = HttpUtils.uriQueryStringToMap(body);
+  private Map<String, List<String>> parseFormData() {
+    MimeType contentType = this.getContentType();
+    switch (contentType != null ? contentType.getMediaType() : "") {
+      case "multipart/form-data":
+        return parseMultipartFormData();
+      case "application/x-www-form-urlencoded":
+        return HttpUtils.uriQueryStringToMap(readBodyAsString());
+      default:
+        throw new IllegalArgumentException("unexpected content-type, unable to parse");
+    }
   }
 
-  private void parseMultipartFormData(String boundary) {
-    try {
-      MultipartStream multipartStream = new MultipartStream(_inputStream, boundary.getBytes(), 1024, null);
-      boolean nextPart = multipartStream.skipPreamble();
-
-      while (nextPart) {
-        String headerString = multipartStream.readHeaders();
-        // process headers
-        Headers headers = processMultipartHeaders(headerString);
-        MimeType contentDisposition = getContentDispositionMime(headers.get("Content-Disposition"));
-
-        if (encapsulationIsFile(contentDisposition)) {
-          // Skip file requests
-          // TODO: add support for file uploads
-          multipartStream.discardBodyData();
-        } else {
-          ByteArrayOutputStream body = new ByteArrayOutputStream();
-          multipartStream.readBodyData(body);
-          putFormData(contentDisposition.getParam("name"), body.toString());
-        }
-        nextPart = multipartStream.readBoundary();
-      }
-    } catch (MultipartStream.MalformedStreamException e) {
-      throw new BadRequest("malformed multipart stream");
-    } catch (IOException e) {
-      throw new InternalError("unexpected IO error: " + e.getMessage());
+  /**
+   * Read the parts of a multipart/form-data body one at a time, straight
+   * from the request, see {@link MultipartReader}.
+   *
+   * @throws BadRequest if the body is not multipart/form-data
+   */
+  public MultipartReader getMultipartReader() {
+    return getMultipartReader(MultipartConfig.DEFAULT);
+  }
+
+  public MultipartReader getMultipartReader(MultipartConfig config) {
+    MimeType contentType = getContentType();
+    if (_body == null || contentType == null || !contentType.getMediaType().equals("multipart/form-data")) {
+      throw new BadRequest("expected a multipart/form-data body");
     }
+    return new MultipartReader(getInputStream(), contentType.getParam("boundary"), config);
   }
 
-  private boolean encapsulationIsFile(MimeType contentDisposition) {
-    return contentDisposition != null && contentDisposition.containsParam("filename");
+  /**
+   * The first time this method is called it reads all the parts of a
+   * multipart/form-data body. Parts up to the memory threshold of the
+   * config are kept in memory, bigger ones in temporary files deleted by
+   * {@link #close()}. Later calls return the same parts.
+   *
+   * @return An unmodifiable list of the parts in the order they were sent
+   * @throws BadRequest if the body is not multipart/form-data or is malformed
+   */
+  public List<Part> getParts() {
+    return getParts(MultipartConfig.DEFAULT);
   }
 
-  private MimeType getContentDispositionMime(Header header) {
-    if (header == null) {
-      return null;
+  public List<Part> getParts(MultipartConfig config) {
+    if (_body == null) {
+      throw new BadRequest("expected a multipart/form-data body");
+    }
+    synchronized (_body) {
+      if (_body.parts == null) {
+        _body.parts = readParts(config);
+      }
+      return _body.parts;
     }
-    return MimeType.fromString(header.getValue());
   }
 
-  private Headers processMultipartHeaders(String strHeaders) {
-    String[] h = strHeaders.split(HttpConstants.CRLF);
-    Headers result = new Headers();
-    for (String header : h) {
-      result.set(header);
+  private List<Part> readParts(MultipartConfig config) {
+    List<Part> parts = new ArrayList<>();
+    try {
+      MultipartReader reader = getMultipartReader(config);
+      while (reader.hasNext()) {
+        parts.add(reader.next().store(config));
+      }
+    } catch (IOException e) {
+      deleteAll(parts);
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      deleteAll(parts);
+      throw e;
     }
-    return result;
+    return Collections.unmodifiableList(parts);
   }
 
-  private void putFormData(String key, String value) {
-    if (_formData == null) {
-      _formData = new HashMap<>();
+  /**
+   * @return The first part named so or null if there is none, see {@link #getParts()}
+   */
+  public Part getPart(String name) {
+    for (Part part : getParts()) {
+      if (name.equals(part.getName())) {
+        return part;
+      }
     }
-    if (!_formData.containsKey(key)) {
-      _formData.put(key, new ArrayList<>());
+    return null;
+  }
+
+  private static void deleteAll(List<Part> parts) {
+    for (Part part : parts) {
+      part.delete();
+    }
+  }
+
+  private Map<String, List<String>> parseMultipartFormData() {
+    Map<String, List<String>> formData = new HashMap<>();
+    try {
+      for (Part part : getParts()) {
+        if (!part.isFile() && part.getName() != null) {
+          formData.computeIfAbsent(part.getName(), name -> new ArrayList<>()).add(part.getString());
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    _formData.get(key).add(value);
+    return formData;
   }
 
   /**
@@ -323,13 +601,18 @@ public class Request implements HttpMessage {
     private Type type;
     Headers headers = new Headers();
     private SocketAddress remoteAddress;
-    private InputStream inputStream;
+    private Body body;
     private String uri;
     private String path;
     private String host;
     private URI url;
-    private Map<String, List<String>> queryParams = new HashMap<>();
-    private Long contentLength;
+    private RequestTarget target;
+    private String targetHost;
+    private QueryParams queryParams = QueryParams.EMPTY;
+    /* Query params being changed, copied from queryParams on the first change */
+    private Map<String, List<String>> changedQueryParams;
+    Long contentLength;
+    PathParams pathParams = PathParams.EMPTY;
 
     public Builder() {
     }
@@ -338,12 +621,16 @@ public class Request implements HttpMessage {
       type = request.getType();
       headers = request.getHeaders();
       remoteAddress = request.getRemoteAddress();
+      body = request._body;
       uri = request.getUri();
-      queryParams = request.getQueryParams();
+      queryParams = request._queryParams;
       path = request.getPath();
       host = request.getHost();
-      url = request.getUrl();
+      url = request._url;
+      target = request._target;
+      targetHost = request._targetHost;
       contentLength = request.getContentLength();
+      pathParams = request._pathParams;
     }
 
     public Builder setType(Type type) {
@@ -377,7 +664,7 @@ public class Request implements HttpMessage {
     }
 
     public Builder setInputStream(InputStream input) {
-      this.inputStream = input;
+      this.body = input != null ? new Body(input) : null;
       return this;
     }
 
@@ -393,6 +680,20 @@ public class Request implements HttpMessage {
 
     public Builder setUrl(URI url) {
       this.url = url;
+      this.target = null;
+      return this;
+    }
+
+    /**
+     * Take the path and the query string from a parsed request target. The
+     * URL is only built from it, and the Host header, if it is asked for.
+     */
+    Builder setTarget(RequestTarget target, String host) {
+      this.path = target.getPath();
+      setQueryString(target.getQuery());
+      this.url = null;
+      this.target = target;
+      this.targetHost = host;
       return this;
     }
 
@@ -406,30 +707,149 @@ public class Request implements HttpMessage {
       return this;
     }
 
+    /**
+     * Set the raw query string, without the "?". It is only decoded if the
+     * query params are read, replacing any params set before.
+     */
+    Builder setQueryString(String queryString) {
+      this.queryParams = new QueryParams(queryString);
+      this.changedQueryParams = null;
+      return this;
+    }
+
     public Builder setQueryParam(String key, String value) {
-      if (!queryParams.containsKey(key)) {
-        List<String> list = new ArrayList<>();
-        list.add(value);
-        queryParams.put(key, list);
-      } else {
-        queryParams.get(key).add(value);
+      Map<String, List<String>> queryParams = changeQueryParams();
+      List<String> values = queryParams.get(key);
+      if (values == null) {
+        values = new ArrayList<>();
+        queryParams.put(key, values);
       }
+      values.add(value);
       return this;
     }
 
     public Builder setQueryParams(Map<String, List<String>> queryParams) {
+      Map<String, List<String>> changed = changeQueryParams();
       for (Map.Entry<String, List<String>> entry : queryParams.entrySet()) {
-        String[] values = entry.getValue().toArray(new String[entry.getValue().size()]);
-        this.queryParams.put(entry.getKey(), new ArrayList<>(Arrays.asList(values)));
+        changed.put(entry.getKey(), new ArrayList<>(entry.getValue()));
       }
       return this;
     }
 
+    private Map<String, List<String>> changeQueryParams() {
+      if (changedQueryParams == null) {
+        changedQueryParams = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : queryParams.get().entrySet()) {
+          changedQueryParams.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+      }
+      return changedQueryParams;
+    }
+
+    /**
+     * @return The query params frozen, further changes to the builder start from a copy
+     */
+    private QueryParams buildQueryParams() {
+      if (changedQueryParams != null) {
+        queryParams = new QueryParams(changedQueryParams);
+        changedQueryParams = null;
+      }
+      return queryParams;
+    }
+
     public Request build() {
       return new Request(this);
     }
   }
 
+  /**
+   * The query params of a request, decoded from the raw query string the
+   * first time they are read and shared by the copies of the request.
+   */
+  private static final class QueryParams {
+    static final QueryParams EMPTY = new QueryParams(Collections.<String, List<String>>emptyMap());
+
+    private final String _queryString;
+    private volatile Map<String, List<String>> _params;
+
+    QueryParams(String queryString) {
+      _queryString = queryString;
+    }
+
+    QueryParams(Map<String, List<String>> params) {
+      _queryString = null;
+      _params = freeze(params);
+    }
+
+    Map<String, List<String>> get() {
+      Map<String, List<String>> params = _params;
+      if (params == null) {
+        /* Decoding twice on a race gives the same result */
+        params = freeze(HttpUtils.uriQueryStringToMap(_queryString));
+        _params = params;
+      }
+      return params;
+    }
+
+    private static Map<String, List<String>> freeze(Map<String, List<String>> params) {
+      Map<String, List<String>> frozen = new HashMap<>();
+      for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+        frozen.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+      }
+      return Collections.unmodifiableMap(frozen);
+    }
+  }
+
+  /**
+   * The body stream along with its reader, shared by all the copies of a
+   * request so they never read ahead of each other. What is decoded from
+   * the body is kept here too, guarded by the body lock.
+   */
+  private static final class Body {
+    private final InputStream _inputStream;
+    private InputStreamReader _reader;
+    private ReadableByteChannel _channel;
+    Map<String, List<String>> formData;
+    List<Part> parts;
+
+    Body(InputStream inputStream) {
+      _inputStream = inputStream;
+    }
+
+    InputStream getInputStream() {
+      return _inputStream;
+    }
+
+    synchronized ReadableByteChannel getChannel() {
+      if (_channel == null) {
+        _channel = Channels.newChannel(_inputStream);
+      }
+      return _channel;
+    }
+
+    synchronized InputStreamReader getReader() {
+      if (_reader == null) {
+        _reader = new InputStreamReader(_inputStream);
+      }
+      return _reader;
+    }
+
+    synchronized void close() {
+      try {
+        if (_reader != null) {
+          _reader.close();
+        }
+        _inputStream.close();
+      } catch (IOException e) {
+      }
+      if (parts != null) {
+        for (Part part : parts) {
+          part.delete();
+        }
+      }
+    }
+  }
+
   /**
    * Valid HTTP Message Types
    */
@@ -0,0 +1,175 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.HttpError;
+
+
+/**
+ * RequestDispatcher
+ *
+ * <p>Runs a parsed request through the middleware and the request
+ * handler. This is shared by all the transports so a request is handled
+ * exactly the same way no matter how it got to the server.
+ */
+class RequestDispatcher {
+  private final Function<Request, Response> _handler;
+  private final MiddlewareSet _middlewareSet;
+
+  RequestDispatcher(Function<Request, Response> handler, MiddlewareSet middlewareSet) {
+    _handler = handler;
+    _middlewareSet = middlewareSet;
+    _middlewareSet.freeze();
+  }
+
+  /**
+   * Apply the request middleware, the request handler and the response
+   * middleware, unless a middleware intercepts the request. Any exception
+   * is turned into an error response.
+   *
+   * <p>The body of the response is dropped if the request or the status
+   * don't allow one, see {@link #withoutForbiddenBody(Request, Response)}.
+   *
+   * @param request The request as returned by the parser
+   * @return The response to send
+   */
+  Response dispatch(Request request) {
+    Response response;
+    try {
+      response = handle(request);
+    } catch (Exception ex) {
+      response = errorResponse(ex, request.getRemoteAddress());
+    }
+    return withoutForbiddenBody(request, response);
+  }
+
+  private Response handle(Request request) throws Exception {
+    /* Apply request middleware */
+    request = _middlewareSet.processRequest(request);
+    /* Responses from middleware, like cached ones, are sent as they are */
+    Response intercepted = _middlewareSet.intercept(request);
+    if (intercepted != null) {
+      return intercepted;
+    }
+    /* Apply request handler */
+    Response response = _handler.apply(request);
+    /* Apply response middleware */
+    return _middlewareSet.processResponse(request, response);
+  }
+
+  /**
+   * Responses to HEAD requests and those with a 1xx, 204 or 304 status
+   * never have a body, RFC 7230 section 3.3.3. The client would otherwise
+   * read it as the start of the next response on a persistent connection.
+   *
+   * <p>HEAD responses keep the Content-Length or Transfer-Encoding the body
+   * would have been sent with, 1xx and 204 responses must not have them.
+   */
+  static Response withoutForbiddenBody(Request request, Response response) {
+    int status = response.getStatusCode();
+    boolean noContent = status < 200 || status == Response.Status.NO_CONTENT.getCode();
+    boolean forbidden = noContent || status == Response.Status.NOT_MODIFIED.getCode()
+        || request.getType() == Request.Type.HEAD;
+    if (!forbidden) {
+      return response;
+    }
+    if (response.body() == null && (!noContent
+        || (response.getHeader("Content-Length") == null && response.getHeader("Transfer-Encoding") == null))) {
+      return response;
+    }
+    closeSource(response.body());
+    Response.Builder builder = new Response.Builder(response).setBody((String) null);
+    if (noContent) {
+      builder.removeHeader("Content-Length").removeHeader("Transfer-Encoding").removeHeader("Trailer");
+    }
+    return builder.build();
+  }
+
+  /**
+   * Streams handed to the response are closed once it is sent, same for
+   * one that is never sent.
+   */
+  private static void closeSource(ResponseBody body) {
+    if (body == null || body.isInMemory() || body.writer() != null) {
+      return;
+    }
+    try {
+      body.open().close();
+    } catch (IOException e) {
+      /* Nothing to send anyway */
+    }
+  }
+
+  /**
+   * Convert any exception raised while parsing or dispatching a request
+   * into the response that should be sent back to the client.
+   */
+  static Response errorResponse(Exception ex, Object client) {
+    if (ex instanceof BadRequest) {
+      /* This should only be generated by RequestParser when a client sent a malformed request */
+      return errorResponse("", Response.Status.BAD_REQUEST);
+    }
+    if (ex instanceof HttpError) {
+      /* Here we'll catch any exceptions raised by middleware */
+      HttpError error = (HttpError) ex;
+      return new Response.Builder().setStatusCode(error.getStatusCode()).setBody(error.getResponseBody()).build();
+    }
+    /* Any other unexpected exceptions will be catched here */
+    System.out.println("Client: " + client);
+    ex.printStackTrace();
+    return errorResponse(ex.getMessage(), Response.Status.INTERNAL_ERROR);
+  }
+
+  /**
+   * HTTP/1.1 connections are persistent unless either side sends
+   * {@code Connection: close}.
+   *
+   * @return true if the connection can be reused after sending the response
+   */
+  static boolean isKeepAlive(Request request, Response response) {
+    return !hasCloseToken(request.getHeader("Connection"))
+        && !hasCloseToken(response.getHeader("Connection"));
+  }
+
+  /**
+   * Let the client know the connection will be closed after this response.
+   */
+  static Response withConnectionClose(Response response) {
+    if (hasCloseToken(response.getHeader("Connection"))) {
+      return response;
+    }
+    return new Response.Builder(response).setHeader("Connection", "close").build();
+  }
+
+  /**
+   * Response sent when the server is too busy to handle the request.
+   *
+   * @param retryAfter Seconds the client should wait before trying again
+   */
+  static Response serviceUnavailable(int retryAfter) {
+    return new Response.Builder()
+        .setStatusCode(Response.Status.SERVICE_UNAVAILABLE)
+        .setHeader("Retry-After", String.valueOf(retryAfter))
+        .setHeader("Connection", "close")
+        .setBody("")
+        .build();
+  }
+
+  private static boolean hasCloseToken(Header connection) {
+    if (connection == null) {
+      return false;
+    }
+    for (String token : connection.getValue().split(",")) {
+      if (token.trim().equalsIgnoreCase("close")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static Response errorResponse(String message, Response.Status status) {
+    return new Response.Builder().setStatusCode(status).setBody(message).build();
+  }
+}
@@ -4,8 +4,7 @@ import org.rgamba.falcon.errors.BadRequest;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.*;
+import java.net.SocketAddress;
 
 
 /**
@@ -18,7 +17,6 @@ public class RequestParser {
   private static final int MAX_HEADERS = 100;
 
   private final InputStream _inputStream;
-  private final InputStreamReader _inputReader;
   private final SocketAddress _remoteAddress;
   private final long _maxContentLength;
 
@@ -29,7 +27,6 @@ public class RequestParser {
    */
   RequestParser(InputStream inputStream, SocketAddress remoteAddress, long maxContentLength) {
     _inputStream = inputStream;
-    _inputReader = new InputStreamReader(_inputStream);
     _remoteAddress = remoteAddress;
     _maxContentLength = maxContentLength;
   }
@@ -50,20 +47,10 @@ public class RequestParser {
     String[] requestLine = getRequestLine();
     final String messageType = requestLine[0];
     final String uri = requestLine[1];
+    final RequestTarget target = RequestTarget.parse(uri);
     Request.Builder reqBuilder = new Request.Builder().setType(getMessageType(messageType))
         .setUri(uri)
-        .setPath(extractPathFromUri(uri))
-        .setQueryParams(HttpUtils.uriQueryStringToMap(getUriQueryString(uri)))
         .setRemoteAddress(_remoteAddress);
-    /*
-     * URL Part
-     */
-    URI url = null;
-    try {
-      url = URI.create(uri);
-    } catch (IllegalArgumentException e) {
-      throw new BadRequest("invalid URL format");
-    }
     /*
      * Header lines in the format:
      * Key: Value
@@ -78,57 +65,45 @@ public class RequestParser {
       if (!HttpUtils.isValidToken(newHeader.getName())) {
         throw new BadRequest("invalid request headers");
       }
-      reqBuilder.setHeader(newHeader);
+      reqBuilder.headers.add(newHeader);
       headerCount++;
     }
     if (reqBuilder.headers.contains("Content-Length")) {
-      long contentLength = Long.parseLong(reqBuilder.headers.get("Content-Length").getValue());
+      String value = reqBuilder.headers.get("Content-Length").getValue();
+      for (Header other : reqBuilder.headers.getAll("Content-Length")) {
+        if (!other.getValue().trim().equals(value.trim())) {
+          throw new BadRequest("conflicting content lengths sent");
+        }
+      }
+      long contentLength = Long.parseLong(value.trim());
       if (contentLength > _maxContentLength) {
         throw new BadRequest("content length is too big");
       }
       reqBuilder.setContentLength(contentLength);
     }
+    Header host = reqBuilder.headers.get("Host");
+    reqBuilder.setTarget(target, host != null ? host.getValue() : null);
     /*
-     * RFC 2616: Must treat:
-     *    GET /index.html HTTP/1.1
-     *    Host: www.google.com
-     * and
-     *    GET http://www.google.com/index.html HTTP/1.1
-     *    Host: ignore
-     * the same. In the second case, any Host line is ignored.
+     * The body ends after Content-Length bytes or the last chunk, anything
+     * after that belongs to the next request on the same connection.
      */
-    if (url.getAuthority() == null && reqBuilder.headers.contains("Host")) {
-      String newUri = reqBuilder.headers.get("Host").getValue();
-      if (newUri.endsWith("/")) {
-        newUri = newUri.substring(0, newUri.length() - 1);
+    Header transferEncoding = reqBuilder.headers.get("Transfer-Encoding");
+    if (transferEncoding != null) {
+      if (!transferEncoding.getValue().trim().equalsIgnoreCase("chunked")) {
+        throw new BadRequest("unsupported transfer encoding");
       }
-      newUri = newUri + uri;
-      try {
-        url = URI.create(newUri);
-      } catch (IllegalArgumentException e) {
-        throw new BadRequest("Invalid URL format");
+      if (reqBuilder.contentLength != null) {
+        throw new BadRequest("both content length and transfer encoding sent");
       }
+      reqBuilder.setInputStream(new ChunkedInputStream(_inputStream, _maxContentLength));
+    } else {
+      long contentLength = reqBuilder.contentLength != null ? reqBuilder.contentLength : 0;
+      reqBuilder.setInputStream(new ContentLengthInputStream(_inputStream, contentLength));
     }
 
-    reqBuilder.setUrl(url);
-    reqBuilder.setInputStream(_inputStream);
-
     return reqBuilder.build();
   }
 
-  private String extractPathFromUri(String uri) throws Exception {
-    if (uri.equals("*") || uri.startsWith("/")) {
-      return uri.split("\\?")[0];
-    }
-    try {
-      URL url = new URL(uri);
-      return url.getPath();
-    } catch (MalformedURLException ex) {
-      // TODO: How should we response in this case?
-      throw new BadRequest("invalid request URI");
-    }
-  }
-
   private String[] getRequestLine() throws IOException {
     String reqLine = getNextLine();
     if (reqLine == null) {
@@ -168,7 +143,11 @@ public class RequestParser {
     StringBuilder header = new StringBuilder();
     int prevChar = 0;
     int curChar;
-    while ((curChar = _inputReader.read()) != -1) { // TODO: timeouts here!
+    /*
+     * Read byte by byte straight from the stream, a Reader would buffer
+     * ahead and consume the beginning of the request body.
+     */
+    while ((curChar = _inputStream.read()) != -1) { // TODO: timeouts here!
       if (curChar == HttpConstants.LF_CHAR && prevChar == HttpConstants.CR_CHAR) {
         return header.toString();
       }
@@ -182,12 +161,4 @@ public class RequestParser {
   private Request.Type getMessageType(String messageType) {
     return Request.Type.valueOf(messageType);
   }
-
-  private String getUriQueryString(String uri) {
-    String[] parts = uri.split("\\?", 2);
-    if (parts.length <= 1) {
-      return "";
-    }
-    return parts[1].split("#", 2)[0];
-  }
 }
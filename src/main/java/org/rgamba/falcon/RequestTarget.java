@@ -0,0 +1,235 @@
+package org.rgamba.falcon;
+
+import java.net.URI;
+
+import org.rgamba.falcon.errors.BadRequest;
+
+
+/**
+ * Request Target
+ *
+ * <p>The target of a request line split in a single pass, without
+ * {@link URI} or regular expressions. It accepts the origin form
+ * "/path?query", the absolute form "http://host:port/path?query" and the
+ * asterisk form "*". The path, the query and the authority are kept as
+ * offsets into the target and only turned into strings when asked for.
+ *
+ * <p>Percent-encodings in the path are normalized as per RFC 3986 section
+ * 6.2.2: their hex digits are upper cased and unreserved characters are
+ * decoded, so "/%7euser/a%2fb" has the path "/~user/a%2Fb". Other
+ * characters are left encoded. A fragment, which clients should not send,
+ * is ignored.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7230#section-5.3">RFC 7230 request target</a>
+ */
+final class RequestTarget {
+  /* Characters allowed as is in a path segment besides letters, digits and '%', RFC 3986 pchar */
+  private static final boolean[] PATH_CHARS = chars("-._~!$&'()*+,;=:@/");
+  private static final boolean[] AUTHORITY_CHARS = chars("-._~!$&'()*+,;=:@[]");
+  private static final String HEX = "0123456789ABCDEF";
+
+  private final String _target;
+  private final int _authorityStart;
+  private final int _authorityEnd;
+  private final int _pathStart;
+  private final int _pathEnd;
+  /* -1 when the target has no "?" */
+  private final int _queryStart;
+  private final int _queryEnd;
+  /* Whether the path has percent-encodings to normalize */
+  private final boolean _normalize;
+
+  private RequestTarget(String target, int authorityStart, int authorityEnd, int pathStart, int pathEnd,
+      int queryStart, int queryEnd, boolean normalize) {
+    _target = target;
+    _authorityStart = authorityStart;
+    _authorityEnd = authorityEnd;
+    _pathStart = pathStart;
+    _pathEnd = pathEnd;
+    _queryStart = queryStart;
+    _queryEnd = queryEnd;
+    _normalize = normalize;
+  }
+
+  /**
+   * @param target The request target exactly as sent in the request line
+   * @throws BadRequest if the target is not valid
+   */
+  static RequestTarget parse(String target) {
+    int length = target.length();
+    if (length == 0) {
+      throw new BadRequest("empty request target");
+    }
+    if (length == 1 && target.charAt(0) == '*') {
+      return new RequestTarget(target, -1, -1, 0, 1, -1, -1, false);
+    }
+    int authorityStart = -1;
+    int authorityEnd = -1;
+    int p = 0;
+    if (target.charAt(0) != '/') {
+      /* Absolute form, only for http and https */
+      int colon = target.indexOf("://");
+      if (!isHttpScheme(target, colon)) {
+        throw new BadRequest("invalid request target");
+      }
+      p = authorityStart = colon + 3;
+      while (p < length) {
+        char c = target.charAt(p);
+        if (c == '/' || c == '?' || c == '#') {
+          break;
+        }
+        if (!isAllowed(AUTHORITY_CHARS, c) && !(c == '%' && isPercentEncoding(target, p))) {
+          throw new BadRequest("invalid request target authority");
+        }
+        p++;
+      }
+      authorityEnd = p;
+      if (authorityEnd == authorityStart) {
+        throw new BadRequest("empty request target authority");
+      }
+    }
+    int pathStart = p;
+    boolean normalize = false;
+    while (p < length) {
+      char c = target.charAt(p);
+      if (c == '?' || c == '#') {
+        break;
+      }
+      if (c == '%') {
+        if (!isPercentEncoding(target, p)) {
+          throw new BadRequest("invalid percent-encoding in request target");
+        }
+        normalize = true;
+        p += 3;
+        continue;
+      }
+      if (!isAllowed(PATH_CHARS, c)) {
+        throw new BadRequest("invalid character in request target path");
+      }
+      p++;
+    }
+    int pathEnd = p;
+    int queryStart = -1;
+    int queryEnd = -1;
+    if (p < length && target.charAt(p) == '?') {
+      queryStart = ++p;
+      /* Query strings are often sent with characters that should be encoded, only controls and spaces are refused */
+      while (p < length && target.charAt(p) != '#') {
+        char c = target.charAt(p);
+        if (c <= ' ' || c >= 127) {
+          throw new BadRequest("invalid character in request target query");
+        }
+        p++;
+      }
+      queryEnd = p;
+    }
+    return new RequestTarget(target, authorityStart, authorityEnd, pathStart, pathEnd, queryStart, queryEnd,
+        normalize);
+  }
+
+  /**
+   * @return The path with its percent-encodings normalized, "/" for an
+   *     absolute form without a path
+   */
+  String getPath() {
+    if (_pathStart == _pathEnd) {
+      return "/";
+    }
+    if (!_normalize) {
+      return _target.substring(_pathStart, _pathEnd);
+    }
+    StringBuilder path = new StringBuilder(_pathEnd - _pathStart);
+    for (int p = _pathStart; p < _pathEnd; p++) {
+      char c = _target.charAt(p);
+      if (c != '%') {
+        path.append(c);
+        continue;
+      }
+      char decoded = (char) (hexValue(_target.charAt(p + 1)) << 4 | hexValue(_target.charAt(p + 2)));
+      if (isUnreserved(decoded)) {
+        path.append(decoded);
+      } else {
+        path.append('%').append(HEX.charAt(decoded >> 4)).append(HEX.charAt(decoded & 0xf));
+      }
+      p += 2;
+    }
+    return path.toString();
+  }
+
+  /**
+   * @return The raw query string without the "?", empty if there is none
+   */
+  String getQuery() {
+    return _queryStart >= 0 ? _target.substring(_queryStart, _queryEnd) : "";
+  }
+
+  /**
+   * @return The host and port of an absolute form target, null otherwise
+   */
+  String getAuthority() {
+    return _authorityStart >= 0 ? _target.substring(_authorityStart, _authorityEnd) : null;
+  }
+
+  boolean isAsterisk() {
+    return _authorityStart < 0 && _pathEnd == 1 && _target.charAt(0) == '*';
+  }
+
+  /**
+   * Build the effective request URI, RFC 7230 section 5.5. Origin form
+   * targets are resolved against the Host header.
+   *
+   * @param host The value of the Host header, if any
+   * @throws BadRequest if the target or the host can't make a URI
+   */
+  URI toUri(String host) {
+    int end = _queryStart >= 0 ? _queryEnd : _pathEnd;
+    String uri = _target.substring(0, end);
+    if (_authorityStart < 0 && !isAsterisk() && host != null && !host.isEmpty()) {
+      uri = "http://" + host + uri;
+    }
+    try {
+      return URI.create(uri);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequest("invalid URL format");
+    }
+  }
+
+  private static boolean isHttpScheme(String target, int colon) {
+    return (colon == 4 && target.regionMatches(true, 0, "http", 0, 4))
+        || (colon == 5 && target.regionMatches(true, 0, "https", 0, 5));
+  }
+
+  private static boolean isPercentEncoding(String target, int p) {
+    return p + 2 < target.length() && hexValue(target.charAt(p + 1)) >= 0 && hexValue(target.charAt(p + 2)) >= 0;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+
+  private static boolean isAllowed(boolean[] table, char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c < 128 && table[c]);
+  }
+
+  private static boolean isUnreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '-' || c == '.' || c == '_' || c == '~';
+  }
+
+  private static boolean[] chars(String chars) {
+    boolean[] table = new boolean[128];
+    for (int i = 0; i < chars.length(); i++) {
+      table[chars.charAt(i)] = true;
+    }
+    return table;
+  }
+}
@@ -1,7 +1,17 @@
 package org.rgamba.falcon;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 
 
@@ -10,11 +20,22 @@ import java.util.*;
  *
  * <p>HTTP Response object that will be sent out by the
  * handler and will write directly to the socket output stream writer.
+ *
+ * <p>Responses are immutable, copies share the headers with the original.
+ *
+ * <p>The body can be text, bytes or streamed from an {@link InputStream}, a
+ * channel, a file or a {@link BodyWriter} when the response is sent.
+ * Streamed bodies can only be sent once and are never loaded in memory as
+ * a whole. Those of an unknown length are sent with the chunked transfer
+ * coding, followed by the trailers of the response.
  */
 public class Response implements HttpMessage {
   private final Headers _headers;
   private final int _status_code;
-  private final String _body;
+  private final ResponseBody _body;
+  private final Headers _trailers;
+  /* Set on responses serialized once to be sent many times */
+  private final ResponseSerializer.Serialized _serialized;
 
   private static final Map<Integer, String> statusNames;
 
@@ -22,27 +43,44 @@ public class Response implements HttpMessage {
     statusNames = new HashMap<>();
     statusNames.put(100, "CONTINUE");
     statusNames.put(200, "OK");
+    statusNames.put(206, "PARTIAL CONTENT");
+    statusNames.put(304, "NOT MODIFIED");
     statusNames.put(400, "BAD REQUEST");
     statusNames.put(404, "NOT FOUND");
+    statusNames.put(413, "PAYLOAD TOO LARGE");
+    statusNames.put(416, "RANGE NOT SATISFIABLE");
+    statusNames.put(503, "SERVICE UNAVAILABLE");
   }
 
-  private Response(Builder builder) {
+  private Response(Builder builder, Headers headers) {
     _headers = new Headers();
-    setDefaultHeaders();
-    for (Header h : builder.headers.toArray()) {
-      _headers.set(h);
+    setDefaultHeaders(headers);
+    for (Header h : headers.toArray()) {
+      _headers.add(h);
     }
     _status_code = builder.status_code;
     _body = builder.body;
+    _trailers = new Headers(builder.trailers);
+    _serialized = null;
   }
 
   /**
    * Constructor copy
    */
   public Response(Response resp) {
-    _headers = resp.getHeaders();
+    _headers = resp._headers;
     _status_code = resp.getStatusCode();
-    _body = resp.getBody();
+    _body = resp._body;
+    _trailers = resp._trailers;
+    _serialized = resp._serialized;
+  }
+
+  private Response(Response resp, ResponseSerializer.Serialized serialized) {
+    _headers = resp._headers;
+    _status_code = resp._status_code;
+    _body = resp._body;
+    _trailers = resp._trailers;
+    _serialized = serialized;
   }
 
   @Override
@@ -50,10 +88,19 @@ public class Response implements HttpMessage {
     return new Response(this);
   }
 
-  private void setDefaultHeaders() {
-    _headers.set("Server", HttpConstants.DEFAULT_HEADER_SERVER_NAME);
-    _headers.set("Date", HttpUtils.formatDate(new Date()));
-    _headers.set("Content-Type", HttpConstants.DEFAULT_HEADER_CONTENT_TYPE);
+  /**
+   * Add the default headers the builder does not set itself.
+   */
+  private void setDefaultHeaders(Headers headers) {
+    if (!headers.contains("Server")) {
+      _headers.add("Server", HttpConstants.DEFAULT_HEADER_SERVER_NAME);
+    }
+    if (!headers.contains("Date")) {
+      _headers.add("Date", HttpDate.system().get());
+    }
+    if (!headers.contains("Content-Type")) {
+      _headers.add("Content-Type", HttpConstants.DEFAULT_HEADER_CONTENT_TYPE);
+    }
   }
 
   /**
@@ -64,10 +111,16 @@ public class Response implements HttpMessage {
    * *(<header> + CRLF )
    * CRLF
    * <body>
+   *
+   * <p>The server does not use this, it writes the same bytes with a {@link ResponseSerializer}.
+   * The body goes through the writer as UTF-8 text, so binary bodies may not
+   * survive the conversion.
+   *
+   * @throws IllegalStateException if the body is sent with the chunked coding
    */
   public void write(OutputStreamWriter writer) throws IOException {
     // Status line
-    writer.write(getStatusLine());
+    writer.write(statusLine(_status_code));
     writer.write(HttpConstants.CRLF);
     // Headers
     for (Header header : _headers.toArray()) {
@@ -75,17 +128,140 @@ public class Response implements HttpMessage {
     }
     writer.write(HttpConstants.CRLF);
     // Body
-    if (_body != null) {
-      writer.write(_body);
+    if (_body == null) {
+      return;
+    }
+    if (_body.isInMemory()) {
+      writer.write(_body.toText());
+      return;
+    }
+    if (_body.length() == ResponseBody.UNKNOWN_LENGTH) {
+      throw new IllegalStateException("chunked bodies can only be sent by the server");
+    }
+    /* Sources can go on past the length of the body, like a file sent from an offset */
+    try (ReadableByteChannel source = _body.open();
+        Reader reader = new InputStreamReader(
+            new ContentLengthInputStream(Channels.newInputStream(source), _body.length()), StandardCharsets.UTF_8)) {
+      char[] buffer = new char[4096];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        writer.write(buffer, 0, read);
+      }
     }
   }
 
-  private String getStatusLine() {
-    return String.format("HTTP/%s %d %s", HttpConstants.DEFAULT_HTTP_VERSION, _status_code,
-            statusNames.getOrDefault(_status_code, ""));
+  /**
+   * Serialize the response once, off heap, so it can be sent any number
+   * of times without being serialized again, like cached responses are.
+   * It is always sent with the current Date and an Age header counting the
+   * seconds since it was serialized. A {@link Builder} created from it gives
+   * back a regular response.
+   *
+   * @throws IllegalStateException if the body is streamed
+   */
+  public Response serialized() {
+    if (_serialized != null) {
+      return this;
+    }
+    return new Response(this, ResponseSerializer.serializeOnce(this));
+  }
+
+  /**
+   * @return The bytes of a response serialized once or null
+   */
+  ResponseSerializer.Serialized serializedForm() {
+    return _serialized;
   }
 
+  /**
+   * @return The status line for the code, without the CRLF
+   */
+  static String statusLine(int code) {
+    return "HTTP/" + HttpConstants.DEFAULT_HTTP_VERSION + " " + code + " " + statusNames.getOrDefault(code, "");
+  }
+
+  /**
+   * @return The body as text or null if there is no body or it is streamed
+   */
   public String getBody() {
+    return _body != null ? _body.toText() : null;
+  }
+
+  /**
+   * @return A copy of the body bytes or null if there is no body or it is streamed
+   */
+  public byte[] getBodyBytes() {
+    if (_body == null || !_body.isInMemory()) {
+      return null;
+    }
+    ByteBuffer bytes = _body.toBuffer();
+    byte[] copy = new byte[bytes.remaining()];
+    bytes.get(copy);
+    return copy;
+  }
+
+  /**
+   * @return A read only view of the body bytes, without copying them, or
+   *     null if there is no body or it is streamed
+   */
+  public ByteBuffer getBodyBuffer() {
+    return _body != null && _body.isInMemory() ? _body.toBuffer().asReadOnlyBuffer() : null;
+  }
+
+  /**
+   * Open the source of a streamed body, for middleware that need to
+   * transform it. The source can only be read once, the response can't be
+   * sent afterwards.
+   *
+   * @return The body, up to its length if known, or null if there is no
+   *     body or it is in memory or produced by a {@link BodyWriter}
+   */
+  public InputStream openBodyStream() throws IOException {
+    if (_body == null || _body.isInMemory() || _body.writer() != null) {
+      return null;
+    }
+    InputStream source = Channels.newInputStream(_body.open());
+    if (_body.length() == ResponseBody.UNKNOWN_LENGTH) {
+      return source;
+    }
+    /* Closing the limited stream alone would leave the source open */
+    return new FilterInputStream(new ContentLengthInputStream(source, _body.length())) {
+      @Override
+      public void close() throws IOException {
+        source.close();
+      }
+    };
+  }
+
+  /**
+   * @return The writer producing the body or null if the body is not produced by one
+   */
+  public BodyWriter getBodyWriter() {
+    return _body != null ? _body.writer() : null;
+  }
+
+  /**
+   * @return true if the body is read from its source when the response is sent
+   */
+  public boolean isBodyStreamed() {
+    return _body != null && !_body.isInMemory();
+  }
+
+  /**
+   * @return The trailers sent after a chunked body, changes to them do not affect the response
+   */
+  public Headers getTrailers() {
+    return new Headers(_trailers);
+  }
+
+  Headers trailers() {
+    return _trailers;
+  }
+
+  /**
+   * @return The body itself or null if there is none
+   */
+  ResponseBody body() {
     return _body;
   }
 
@@ -93,17 +269,36 @@ public class Response implements HttpMessage {
     return _status_code;
   }
 
+  /**
+   * @return The response headers, changes to them do not affect the response
+   */
   public Headers getHeaders() {
     return new Headers(_headers);
   }
 
+  /**
+   * @param name The header name, case insensitive
+   * @return The header or null if the response does not have it
+   */
+  public Header getHeader(String name) {
+    return _headers.get(name);
+  }
+
+  /**
+   * @return The headers themselves, they must not be modified
+   */
+  Headers headers() {
+    return _headers;
+  }
+
   /**
    * Response builder.
    */
   public static class Builder {
     private Headers headers = new Headers();
     private int status_code = 200;
-    private String body;
+    private ResponseBody body;
+    private Headers trailers = new Headers();
     private List<Cookie> cookies = new ArrayList<>();
 
     public Builder() {
@@ -113,7 +308,8 @@ public class Response implements HttpMessage {
     public Builder(Response resp) {
       headers = resp.getHeaders();
       status_code = resp.getStatusCode();
-      body = resp.getBody();
+      body = resp._body;
+      trailers = resp.getTrailers();
     }
 
     public Builder setHeader(String name, String value) {
@@ -121,6 +317,11 @@ public class Response implements HttpMessage {
       return this;
     }
 
+    public Builder removeHeader(String name) {
+      headers.remove(name);
+      return this;
+    }
+
     public Builder setStatusCode(int code) {
       status_code = code;
       return this;
@@ -132,27 +333,125 @@ public class Response implements HttpMessage {
     }
 
     public Builder setBody(String body) {
-      this.body = body;
+      this.body = body != null ? ResponseBody.of(body) : null;
+      return this;
+    }
+
+    /**
+     * @param body Not copied, it must not be modified afterwards
+     */
+    public Builder setBody(byte[] body) {
+      this.body = body != null ? ResponseBody.of(body) : null;
+      return this;
+    }
+
+    /**
+     * @param body The remaining bytes of the buffer, which are not copied
+     */
+    public Builder setBody(ByteBuffer body) {
+      this.body = body != null ? ResponseBody.of(body) : null;
+      return this;
+    }
+
+    /**
+     * Stream the body from an input stream until it ends, using the
+     * chunked transfer coding.
+     */
+    public Builder setBody(InputStream body) {
+      return setBody(body, ResponseBody.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * @param body Streamed when the response is sent and closed afterwards
+     * @param length Exact number of bytes to send, or -1 if unknown
+     */
+    public Builder setBody(InputStream body, long length) {
+      checkLength(length);
+      this.body = ResponseBody.of(body, length);
+      return this;
+    }
+
+    /**
+     * @param body Streamed when the response is sent and closed afterwards
+     * @param length Exact number of bytes to send, or -1 if unknown
+     */
+    public Builder setBody(ReadableByteChannel body, long length) {
+      checkLength(length);
+      this.body = ResponseBody.of(body, length);
       return this;
     }
 
+    /**
+     * Produce the body while the response is sent, see {@link BodyWriter}.
+     */
+    public Builder setBody(BodyWriter writer) {
+      this.body = writer != null ? ResponseBody.of(writer) : null;
+      return this;
+    }
+
+    /**
+     * Set a trailer, sent after the body when its length is unknown and
+     * ignored otherwise. A {@link BodyWriter} can also set them once the
+     * body is written with {@link ResponseSink#setTrailer(String, String)}.
+     */
+    public Builder setTrailer(String name, String value) {
+      trailers.set(name, value);
+      return this;
+    }
+
+    /**
+     * Send the contents of a file, read when the response is sent.
+     * @throws UncheckedIOException if the size of the file can't be read
+     */
+    public Builder setBody(Path file) {
+      try {
+        this.body = ResponseBody.of(file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return this;
+    }
+
+    private String trailerNames() {
+      StringBuilder names = new StringBuilder();
+      for (Header trailer : trailers.toArray()) {
+        names.append(names.length() > 0 ? ", " : "").append(trailer.getName());
+      }
+      return names.toString();
+    }
+
+    private static void checkLength(long length) {
+      if (length < ResponseBody.UNKNOWN_LENGTH) {
+        throw new IllegalArgumentException("invalid body length: " + length);
+      }
+    }
+
     public Builder setCookie(Cookie cookie) {
       this.cookies.add(cookie);
       return this;
     }
 
     public Response build() {
-      setContentLength();
-      cookies.forEach((cookie) -> {
-        headers.set("Set-Cookie", cookie.toString());
-      });
-      return new Response(this);
-    }
-
-    private void setContentLength() {
-      if (body != null) {
-        headers.set("Content-Length", String.valueOf(body.length()));
+      /* The builder can still be used after this */
+      Headers result = new Headers(headers);
+      if (body == null || body.length() != ResponseBody.UNKNOWN_LENGTH) {
+        /* A body replaced on a copy of a streamed response is no longer chunked */
+        result.remove("Transfer-Encoding");
+        result.remove("Trailer");
+      }
+      if (body != null && body.length() != ResponseBody.UNKNOWN_LENGTH) {
+        result.set("Content-Length", String.valueOf(body.length()));
+      } else if (body != null) {
+        result.remove("Content-Length");
+        result.set("Transfer-Encoding", "chunked");
+        if (trailers.size() > 0) {
+          result.set("Trailer", trailerNames());
+        }
+      }
+      for (Cookie cookie : cookies) {
+        result.add("Set-Cookie", cookie.toString());
       }
+      return new Response(this, result);
     }
   }
 
@@ -162,6 +461,7 @@ public class Response implements HttpMessage {
     CREATED(201),
     ACCEPTED(202),
     NO_CONTENT(204),
+    PARTIAL_CONTENT(206),
     MOVED_PERMANENTLY(301),
     FOUND(302),
     NOT_MODIFIED(304),
@@ -170,7 +470,10 @@ public class Response implements HttpMessage {
     FORBIDDEN(403),
     NOT_FOUND(404),
     METHOD_NOT_ALLOWED(405),
-    INTERNAL_ERROR(500);
+    PAYLOAD_TOO_LARGE(413),
+    RANGE_NOT_SATISFIABLE(416),
+    INTERNAL_ERROR(500),
+    SERVICE_UNAVAILABLE(503);
 
     private final int code;
 
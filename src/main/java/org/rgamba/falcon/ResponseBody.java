@@ -0,0 +1,195 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * ResponseBody
+ *
+ * <p>The payload of a {@link Response}. Bodies are either held in memory
+ * as bytes, which can be written any number of times, streamed from
+ * their source or produced by a {@link BodyWriter} when the response is
+ * sent, which can only happen once.
+ *
+ * <p>Lengths are always in bytes. Text is encoded to UTF-8 once, when the
+ * body is created.
+ */
+abstract class ResponseBody {
+  /** The length of a streamed body that ends when its source does */
+  static final long UNKNOWN_LENGTH = -1;
+
+  private ResponseBody() {
+  }
+
+  static ResponseBody of(String text) {
+    return new InMemory(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), text);
+  }
+
+  /**
+   * @param bytes Not copied, they must not be modified afterwards
+   */
+  static ResponseBody of(byte[] bytes) {
+    return new InMemory(ByteBuffer.wrap(bytes), null);
+  }
+
+  /**
+   * @param buffer The remaining bytes are the body, they are not copied
+   */
+  static ResponseBody of(ByteBuffer buffer) {
+    return new InMemory(buffer.slice(), null);
+  }
+
+  static ResponseBody of(InputStream stream, long length) {
+    return new Streamed(length, () -> Channels.newChannel(stream));
+  }
+
+  static ResponseBody of(ReadableByteChannel channel, long length) {
+    return new Streamed(length, () -> channel);
+  }
+
+  /**
+   * @throws IOException if the size of the file can't be read
+   */
+  static ResponseBody of(Path file) throws IOException {
+    return new Streamed(Files.size(file), () -> FileChannel.open(file, StandardOpenOption.READ));
+  }
+
+  static ResponseBody of(BodyWriter writer) {
+    return new Written(writer);
+  }
+
+  /**
+   * @return The length in bytes or {@link #UNKNOWN_LENGTH}
+   */
+  abstract long length();
+
+  boolean isInMemory() {
+    return false;
+  }
+
+  /**
+   * @return A new view of the bytes of an in memory body, null for streamed ones
+   */
+  ByteBuffer toBuffer() {
+    return null;
+  }
+
+  /**
+   * @return The body decoded as UTF-8, null for streamed ones
+   */
+  String toText() {
+    return null;
+  }
+
+  /**
+   * @return The writer producing the body or null if it has a source
+   */
+  BodyWriter writer() {
+    return null;
+  }
+
+  /**
+   * Open the source of a streamed body, the caller must close it.
+   */
+  ReadableByteChannel open() throws IOException {
+    throw new IllegalStateException("the body is in memory");
+  }
+
+  private static final class InMemory extends ResponseBody {
+    private final ByteBuffer _bytes;
+    private volatile String _text;
+
+    InMemory(ByteBuffer bytes, String text) {
+      _bytes = bytes;
+      _text = text;
+    }
+
+    @Override
+    long length() {
+      return _bytes.remaining();
+    }
+
+    @Override
+    boolean isInMemory() {
+      return true;
+    }
+
+    @Override
+    ByteBuffer toBuffer() {
+      return _bytes.duplicate();
+    }
+
+    @Override
+    String toText() {
+      String text = _text;
+      if (text == null) {
+        ByteBuffer bytes = toBuffer();
+        if (bytes.hasArray()) {
+          text = new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(),
+              StandardCharsets.UTF_8);
+        } else {
+          text = StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+        _text = text;
+      }
+      return text;
+    }
+  }
+
+  @FunctionalInterface
+  private interface Source {
+    ReadableByteChannel open() throws IOException;
+  }
+
+  private static final class Streamed extends ResponseBody {
+    private final long _length;
+    private final Source _source;
+
+    Streamed(long length, Source source) {
+      _length = length;
+      _source = source;
+    }
+
+    @Override
+    long length() {
+      return _length;
+    }
+
+    @Override
+    ReadableByteChannel open() throws IOException {
+      return _source.open();
+    }
+  }
+
+  private static final class Written extends ResponseBody {
+    private final BodyWriter _writer;
+
+    Written(BodyWriter writer) {
+      _writer = writer;
+    }
+
+    @Override
+    long length() {
+      return UNKNOWN_LENGTH;
+    }
+
+    @Override
+    BodyWriter writer() {
+      return _writer;
+    }
+
+    @Override
+    ReadableByteChannel open() {
+      throw new IllegalStateException("the body is produced by a writer");
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * ResponseSerializer
+ *
+ * <p>Turns a {@link Response} into the bytes sent to the client without
+ * going through a char writer. The status line is copied from a table
+ * encoded once per status code and the headers are written byte by byte
+ * into a pooled direct buffer.
+ *
+ * <p>The result is a pair of buffers, head and body, meant to be sent
+ * with a single gathering write:
+ * <pre>
+ *   ByteBuffer[] buffers = ResponseSerializer.serialize(response);
+ *   ResponseSerializer.writeFully(channel, buffers);
+ *   ResponseSerializer.release(buffers);
+ * </pre>
+ *
+ * <p>The bytes are the same {@link Response#write(java.io.OutputStreamWriter)} produces
+ * for text bodies. Streamed bodies are not part of the result, they are sent
+ * after the head by a {@link BodyTransfer}.
+ *
+ * <p>Responses sent many times, like cached ones, can be serialized once
+ * with {@link Response#serialized()}. Only their Date and Age lines are
+ * written when they are sent.
+ */
+final class ResponseSerializer {
+  static final int HEAD_BUFFER_SIZE = 4096;
+  private static final int MAX_POOLED_BUFFERS = 1024;
+  private static final BufferPool HEAD_BUFFERS = new BufferPool(HEAD_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+  private static final int MIN_STATUS_CODE = 100;
+  private static final int MAX_STATUS_CODE = 599;
+  /* Status line including the CRLF, indexed by code - MIN_STATUS_CODE */
+  private static final byte[][] STATUS_LINES = new byte[MAX_STATUS_CODE - MIN_STATUS_CODE + 1][];
+  private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0);
+  private static final byte[] DATE_PREFIX = "Date: ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] AGE_PREFIX = "Age: ".getBytes(StandardCharsets.US_ASCII);
+
+  static {
+    for (int code = MIN_STATUS_CODE; code <= MAX_STATUS_CODE; code++) {
+      STATUS_LINES[code - MIN_STATUS_CODE] = encodeStatusLine(code);
+    }
+  }
+
+  private ResponseSerializer() {
+  }
+
+  /**
+   * @return The head and body buffers, ready to be written
+   */
+  static ByteBuffer[] serialize(Response response) {
+    Serialized serialized = response.serializedForm();
+    if (serialized != null) {
+      return new ByteBuffer[]{serialized.head.duplicate(), serializeDate(serialized), serialized.body.duplicate()};
+    }
+    return new ByteBuffer[]{serializeHead(response), serializeBody(response)};
+  }
+
+  /**
+   * Write the status line, the headers and the blank line that ends them.
+   *
+   * @return A flipped buffer, usually taken from the pool
+   */
+  static ByteBuffer serializeHead(Response response) {
+    ByteBuffer buffer = serializeHeaders(response, false);
+    buffer = ensureRemaining(buffer, 2);
+    buffer.put((byte) '\r').put((byte) '\n');
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Serialize the head, but for the Date and Age lines and the blank line
+   * that ends it, and the body into a single read only buffer.
+   *
+   * @throws IllegalStateException if the body is streamed
+   */
+  static Serialized serializeOnce(Response response) {
+    if (response.isBodyStreamed()) {
+      throw new IllegalStateException("streamed bodies can't be serialized");
+    }
+    ByteBuffer head = serializeHeaders(response, true);
+    head.flip();
+    ByteBuffer body = serializeBody(response);
+    ByteBuffer bytes = ByteBuffer.allocateDirect(head.remaining() + body.remaining());
+    int headLength = head.remaining();
+    bytes.put(head).put(body).flip();
+    HEAD_BUFFERS.release(head);
+    bytes = bytes.asReadOnlyBuffer();
+    ByteBuffer headPart = bytes.duplicate();
+    headPart.limit(headLength);
+    ByteBuffer bodyPart = bytes.duplicate();
+    bodyPart.position(headLength);
+    return new Serialized(headPart.slice(), bodyPart.slice(), System.currentTimeMillis());
+  }
+
+  /**
+   * @param once Leave out the Date and Age headers, written each time the response is sent
+   * @return A buffer to be flipped, usually taken from the pool
+   */
+  private static ByteBuffer serializeHeaders(Response response, boolean once) {
+    ByteBuffer buffer = HEAD_BUFFERS.acquire();
+    buffer = put(buffer, statusLine(response.getStatusCode()));
+    Headers headers = response.headers();
+    for (int i = 0; i < headers.size(); i++) {
+      Header header = headers.headerAt(i);
+      if (once && isSentEachTime(header.getName())) {
+        continue;
+      }
+      buffer = put(buffer, header.getName());
+      buffer = ensureRemaining(buffer, 2);
+      buffer.put((byte) ':').put((byte) ' ');
+      /* The default Date header is already encoded by the clock */
+      byte[] date = HttpDate.system().getBytes(header.getValue());
+      buffer = date != null ? put(buffer, date) : put(buffer, header.getValue());
+      buffer = ensureRemaining(buffer, 2);
+      buffer.put((byte) '\r').put((byte) '\n');
+    }
+    return buffer;
+  }
+
+  private static boolean isSentEachTime(String name) {
+    return Headers.knownId(name) == Headers.DATE || HttpUtils.equalsIgnoreCaseAscii(name, "Age");
+  }
+
+  /**
+   * @return The Date and Age lines of a response serialized once, and the blank line after them
+   */
+  private static ByteBuffer serializeDate(Serialized serialized) {
+    byte[] date = HttpDate.system().getBytes();
+    byte[] age = String.valueOf(Math.max(0, (System.currentTimeMillis() - serialized.millis) / 1000))
+        .getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer buffer = ByteBuffer.allocate(DATE_PREFIX.length + date.length + AGE_PREFIX.length + age.length + 6);
+    buffer.put(DATE_PREFIX).put(date).put((byte) '\r').put((byte) '\n');
+    buffer.put(AGE_PREFIX).put(age).put((byte) '\r').put((byte) '\n');
+    buffer.put((byte) '\r').put((byte) '\n');
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * @return The bytes of an in memory body, empty if there is no body or it
+   *     is streamed, see {@link BodyTransfer}
+   */
+  static ByteBuffer serializeBody(Response response) {
+    ResponseBody body = response.body();
+    if (body == null || !body.isInMemory()) {
+      return EMPTY_BODY.duplicate();
+    }
+    ByteBuffer bytes = body.toBuffer();
+    /* A direct body the size of a head buffer must never end up in the pool */
+    return bytes.isDirect() ? bytes.asReadOnlyBuffer() : bytes;
+  }
+
+  /**
+   * Write the buffers to a blocking channel.
+   */
+  static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+    while (hasRemaining(buffers)) {
+      channel.write(buffers);
+    }
+  }
+
+  static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (int i = buffers.length - 1; i >= 0; i--) {
+      if (buffers[i].hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static long remaining(ByteBuffer[] buffers) {
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    return remaining;
+  }
+
+  /**
+   * Give the pooled buffers back once they have been written.
+   */
+  static void release(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      HEAD_BUFFERS.release(buffer);
+    }
+  }
+
+  static byte[] statusLine(int code) {
+    if (code < MIN_STATUS_CODE || code > MAX_STATUS_CODE) {
+      return encodeStatusLine(code);
+    }
+    return STATUS_LINES[code - MIN_STATUS_CODE];
+  }
+
+  private static byte[] encodeStatusLine(int code) {
+    return (Response.statusLine(code) + HttpConstants.CRLF).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static ByteBuffer put(ByteBuffer buffer, byte[] bytes) {
+    buffer = ensureRemaining(buffer, bytes.length);
+    buffer.put(bytes);
+    return buffer;
+  }
+
+  /**
+   * Header names and values are almost always ASCII, which is copied char
+   * by char. Anything else is encoded as UTF-8 like the default writer does.
+   */
+  private static ByteBuffer put(ByteBuffer buffer, String text) {
+    int length = text.length();
+    buffer = ensureRemaining(buffer, length);
+    int start = buffer.position();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        buffer.position(start);
+        return put(buffer, text.getBytes(StandardCharsets.UTF_8));
+      }
+      buffer.put((byte) c);
+    }
+    return buffer;
+  }
+
+  /**
+   * @return The same buffer or a bigger copy of it if it does not have enough room
+   */
+  private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+    if (buffer.remaining() >= needed) {
+      return buffer;
+    }
+    int capacity = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+    ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+    buffer.flip();
+    bigger.put(buffer);
+    HEAD_BUFFERS.release(buffer);
+    return bigger;
+  }
+
+  /**
+   * A response serialized once, see {@link #serializeOnce(Response)}.
+   */
+  static final class Serialized {
+    /* Read only views of the same direct buffer */
+    final ByteBuffer head;
+    final ByteBuffer body;
+    /* When it was serialized, in milliseconds */
+    final long millis;
+
+    Serialized(ByteBuffer head, ByteBuffer body, long millis) {
+      this.head = head;
+      this.body = body;
+      this.millis = millis;
+    }
+  }
+}
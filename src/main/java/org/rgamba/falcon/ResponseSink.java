@@ -0,0 +1,170 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * ResponseSink
+ *
+ * <p>Stream a {@link BodyWriter} writes the body of a response to. Bytes
+ * are sent to the client in chunks of the size set by
+ * {@link ServerConfig.Builder#setResponseChunkSize(int)} as soon as a chunk
+ * is full, {@link #flush()} sends whatever is buffered right away.
+ *
+ * <p>Trailers are sent after the last chunk, so they can carry values only
+ * known once the whole body has been written, like a checksum.
+ *
+ * <p>Middleware transforming the output of a writer, like compressing it,
+ * hand the writer a sink that goes {@link #through(OutputStream)} their
+ * own stream instead.
+ */
+public final class ResponseSink extends OutputStream {
+  private final WritableByteChannel _target;
+  /* Room for the chunk framing around the data */
+  private final ByteBuffer _chunk;
+  private final int _chunkSize;
+  private final Headers _trailers;
+  /* Set on sinks writing through a filter of another sink */
+  private final OutputStream _filter;
+  private final ResponseSink _parent;
+  private int _count = 0;
+  private boolean _closed = false;
+
+  /**
+   * @param target Blocking channel the chunks are written to
+   * @param chunkSize Max number of data bytes in a chunk
+   * @param trailers Trailers set by the response, copied
+   */
+  ResponseSink(WritableByteChannel target, int chunkSize, Headers trailers) {
+    _target = target;
+    _chunkSize = chunkSize;
+    _chunk = ByteBuffer.allocate(ChunkedEncoding.HEADER_ROOM + chunkSize + ChunkedEncoding.TRAILER_ROOM);
+    _trailers = trailers != null ? new Headers(trailers) : new Headers();
+    _filter = null;
+    _parent = null;
+  }
+
+  private ResponseSink(OutputStream filter, ResponseSink parent) {
+    _target = null;
+    _chunkSize = 0;
+    _chunk = null;
+    _trailers = null;
+    _filter = filter;
+    _parent = parent;
+  }
+
+  /**
+   * Create a sink that writes through a filter of this one, like a
+   * compressing stream, so a {@link BodyWriter} can be run unchanged.
+   * Trailers are set on this sink and closing the new sink closes the
+   * filter, which must then close this sink.
+   *
+   * @param filter A stream that ends up writing to this sink
+   */
+  public ResponseSink through(OutputStream filter) {
+    return new ResponseSink(filter, this);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (_filter != null) {
+      _filter.write(b);
+      return;
+    }
+    _chunk.array()[ChunkedEncoding.HEADER_ROOM + _count++] = (byte) b;
+    if (_count == _chunkSize) {
+      sendChunk();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (_filter != null) {
+      _filter.write(b, off, len);
+      return;
+    }
+    while (len > 0) {
+      int copied = Math.min(len, _chunkSize - _count);
+      System.arraycopy(b, off, _chunk.array(), ChunkedEncoding.HEADER_ROOM + _count, copied);
+      _count += copied;
+      off += copied;
+      len -= copied;
+      if (_count == _chunkSize) {
+        sendChunk();
+      }
+    }
+  }
+
+  /**
+   * Send the buffered bytes as a chunk without waiting for it to be full.
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    if (_filter != null) {
+      _filter.flush();
+      return;
+    }
+    sendChunk();
+  }
+
+  /**
+   * Add a trailer, sent when the sink is closed.
+   */
+  public void setTrailer(String name, String value) {
+    if (_closed) {
+      throw new IllegalStateException("the body has already been sent");
+    }
+    if (_parent != null) {
+      _parent.setTrailer(name, value);
+      return;
+    }
+    _trailers.set(name, value);
+  }
+
+  /**
+   * Send the last chunk and the trailers. The server closes the sink when
+   * the writer returns if it did not do it itself.
+   */
+  @Override
+  public void close() throws IOException {
+    if (_closed) {
+      return;
+    }
+    if (_filter != null) {
+      _closed = true;
+      _filter.close();
+      return;
+    }
+    sendChunk();
+    _closed = true;
+    writeFully(ChunkedEncoding.lastChunk(_trailers));
+  }
+
+  private void sendChunk() throws IOException {
+    if (_count == 0) {
+      return;
+    }
+    _chunk.clear();
+    ChunkedEncoding.frame(_chunk, _count);
+    _count = 0;
+    writeFully(_chunk);
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      _target.write(buffer);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (_closed) {
+      throw new IOException("the body has already been sent");
+    }
+  }
+}
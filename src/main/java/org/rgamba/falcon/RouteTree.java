@@ -0,0 +1,348 @@
+package org.rgamba.falcon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * RouteTree
+ *
+ * <p>Radix tree of route patterns used by the {@link Router}. Lookups walk
+ * the request path once, so their cost depends on the length of the path
+ * and not on the number of routes.
+ *
+ * <p>Patterns are made of:
+ * <ul>
+ *   <li>Static text, shared with other routes by prefix: {@code /users/new}</li>
+ *   <li>Params capturing a whole segment: {@code /users/{id}}</li>
+ *   <li>Params constrained by a regex: {@code /users/{id:[0-9]+}}</li>
+ *   <li>A trailing catch-all capturing the rest of the path, including
+ *   slashes: {@code /static/*} or {@code /static/*file}</li>
+ * </ul>
+ *
+ * <p>When more than one route matches, static text wins over params,
+ * constrained params win over unconstrained ones and catch-alls are tried
+ * last. A trailing slash is optional for every route but the index.
+ *
+ * @param <T> The type of the value attached to each route
+ */
+class RouteTree<T> {
+  private static final String ANONYMOUS_WILDCARD = "*";
+
+  private final Node<T> _root = new Node<>("");
+  private int _maxParams = 0;
+
+  /**
+   * Add a route, replacing any previous value for the same pattern.
+   *
+   * @param pattern The route pattern, must start with a slash
+   * @param value The value returned by {@link #lookup(String)}
+   * @throws IllegalArgumentException if the pattern is not valid
+   */
+  void insert(String pattern, T value) {
+    if (pattern == null || !pattern.startsWith("/")) {
+      throw new IllegalArgumentException("route must start with a slash: " + pattern);
+    }
+    int end = stripTrailingSlash(pattern, pattern.length());
+    List<String> names = new ArrayList<>();
+    Node<T> node = _root;
+    int i = 0;
+    while (i < end) {
+      char c = pattern.charAt(i);
+      if (c == '{') {
+        int close = closingBrace(pattern, i, end);
+        requireWholeSegment(pattern, i, close + 1, end);
+        int colon = pattern.indexOf(':', i);
+        String name = pattern.substring(i + 1, colon != -1 && colon < close ? colon : close);
+        String constraint = colon != -1 && colon < close ? pattern.substring(colon + 1, close) : null;
+        if (name.isEmpty()) {
+          throw new IllegalArgumentException("missing param name: " + pattern);
+        }
+        node = node.param(name, compile(pattern, constraint));
+        names.add(name);
+        i = close + 1;
+      } else if (c == '*') {
+        if (pattern.indexOf('/', i) != -1 && pattern.indexOf('/', i) < end) {
+          throw new IllegalArgumentException("wildcard must be the last segment: " + pattern);
+        }
+        requireWholeSegment(pattern, i, end, end);
+        String name = i + 1 < end ? pattern.substring(i + 1, end) : ANONYMOUS_WILDCARD;
+        node = node.wildcard(name, pattern);
+        names.add(name);
+        i = end;
+      } else {
+        int next = nextSpecial(pattern, i, end);
+        node = node.insertStatic(pattern.substring(i, next));
+        i = next;
+      }
+    }
+    for (int a = 0; a < names.size(); a++) {
+      for (int b = a + 1; b < names.size(); b++) {
+        if (names.get(a).equals(names.get(b))) {
+          throw new IllegalArgumentException("duplicated param " + names.get(a) + ": " + pattern);
+        }
+      }
+    }
+    node.setRoute(value, names.toArray(new String[names.size()]));
+    _maxParams = Math.max(_maxParams, names.size());
+  }
+
+  /**
+   * @param path The request path, without query string
+   * @return The matching route or null if no route matches
+   */
+  Match<T> lookup(String path) {
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    int[] captures = _maxParams > 0 ? new int[_maxParams * 2] : null;
+    int end = path.length();
+    Node<T> leaf = search(_root, path, 0, end, 0, captures);
+    int stripped = stripTrailingSlash(path, end);
+    if (leaf == null && stripped != end) {
+      end = stripped;
+      leaf = search(_root, path, 0, end, 0, captures);
+    }
+    if (leaf == null) {
+      return null;
+    }
+    if (leaf._paramNames.length == 0) {
+      return leaf._match;
+    }
+    String[] values = new String[leaf._paramNames.length];
+    for (int p = 0; p < values.length; p++) {
+      values[p] = path.substring(captures[p * 2], captures[p * 2 + 1]);
+    }
+    return new Match<>(leaf._value, new PathParams(leaf._paramNames, values));
+  }
+
+  private Node<T> search(Node<T> node, String path, int i, int end, int depth, int[] captures) {
+    if (i == end && node._match != null) {
+      return node;
+    }
+    if (i < end) {
+      Node<T> child = node.staticChild(path.charAt(i));
+      if (child != null && child._label.length() <= end - i
+          && path.regionMatches(i, child._label, 0, child._label.length())) {
+        Node<T> leaf = search(child, path, i + child._label.length(), end, depth, captures);
+        if (leaf != null) {
+          return leaf;
+        }
+      }
+      if (!node._params.isEmpty()) {
+        int segmentEnd = path.indexOf('/', i);
+        if (segmentEnd == -1 || segmentEnd > end) {
+          segmentEnd = end;
+        }
+        if (segmentEnd > i) {
+          for (Node<T> param : node._params) {
+            if (param._constraint != null && !param._constraint.matcher(path).region(i, segmentEnd).matches()) {
+              continue;
+            }
+            captures[depth * 2] = i;
+            captures[depth * 2 + 1] = segmentEnd;
+            Node<T> leaf = search(param, path, segmentEnd, end, depth + 1, captures);
+            if (leaf != null) {
+              return leaf;
+            }
+          }
+        }
+      }
+    }
+    if (node._wildcard != null) {
+      captures[depth * 2] = i;
+      captures[depth * 2 + 1] = end;
+      return node._wildcard;
+    }
+    return null;
+  }
+
+  private static int stripTrailingSlash(String path, int end) {
+    return end > 1 && path.charAt(end - 1) == '/' ? end - 1 : end;
+  }
+
+  private static int nextSpecial(String pattern, int from, int end) {
+    for (int i = from; i < end; i++) {
+      char c = pattern.charAt(i);
+      if (c == '{' || c == '*') {
+        return i;
+      }
+      if (c == '}') {
+        throw new IllegalArgumentException("unexpected '}': " + pattern);
+      }
+    }
+    return end;
+  }
+
+  private static int closingBrace(String pattern, int open, int end) {
+    int depth = 0;
+    for (int i = open; i < end; i++) {
+      char c = pattern.charAt(i);
+      if (c == '{') {
+        depth++;
+      } else if (c == '}' && --depth == 0) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("unclosed '{': " + pattern);
+  }
+
+  private static void requireWholeSegment(String pattern, int start, int stop, int end) {
+    if (pattern.charAt(start - 1) != '/' || (stop < end && pattern.charAt(stop) != '/')) {
+      throw new IllegalArgumentException("params must take a whole path segment: " + pattern);
+    }
+  }
+
+  private static Pattern compile(String pattern, String constraint) {
+    if (constraint == null) {
+      return null;
+    }
+    try {
+      return Pattern.compile(constraint);
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException("invalid constraint in " + pattern + ": " + e.getDescription());
+    }
+  }
+
+  /**
+   * The value of a matching route along with the values captured from the path.
+   */
+  static final class Match<T> {
+    private final T _value;
+    private final PathParams _params;
+
+    Match(T value, PathParams params) {
+      _value = value;
+      _params = params;
+    }
+
+    T getValue() {
+      return _value;
+    }
+
+    PathParams getParams() {
+      return _params;
+    }
+  }
+
+  private static final class Node<T> {
+    private String _label;
+    private char[] _indices = new char[0];
+    private List<Node<T>> _children = new ArrayList<>();
+    private final List<Node<T>> _params = new ArrayList<>(0);
+    private Node<T> _wildcard;
+    /* Param and wildcard nodes only */
+    private String _name;
+    private Pattern _constraint;
+    /* Route ending at this node */
+    private T _value;
+    private String[] _paramNames;
+    private Match<T> _match;
+
+    Node(String label) {
+      _label = label;
+    }
+
+    Node<T> staticChild(char c) {
+      for (int i = 0; i < _indices.length; i++) {
+        if (_indices[i] == c) {
+          return _children.get(i);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Insert the static text below this node splitting the children
+     * that share a prefix with it.
+     *
+     * @return The node the text ends at
+     */
+    Node<T> insertStatic(String text) {
+      Node<T> node = this;
+      int i = 0;
+      while (i < text.length()) {
+        Node<T> child = node.staticChild(text.charAt(i));
+        if (child == null) {
+          return node.addChild(new Node<>(text.substring(i)));
+        }
+        int common = 0;
+        int max = Math.min(child._label.length(), text.length() - i);
+        while (common < max && child._label.charAt(common) == text.charAt(i + common)) {
+          common++;
+        }
+        if (common < child._label.length()) {
+          child = node.split(child, common);
+        }
+        node = child;
+        i += common;
+      }
+      return node;
+    }
+
+    Node<T> param(String name, Pattern constraint) {
+      String regex = constraint != null ? constraint.pattern() : null;
+      for (Node<T> param : _params) {
+        String existing = param._constraint != null ? param._constraint.pattern() : null;
+        if (param._name.equals(name) && (regex == null ? existing == null : regex.equals(existing))) {
+          return param;
+        }
+      }
+      Node<T> param = new Node<>("");
+      param._name = name;
+      param._constraint = constraint;
+      /* Constrained params are tried first */
+      int position = _params.size();
+      if (constraint != null) {
+        position = 0;
+        while (position < _params.size() && _params.get(position)._constraint != null) {
+          position++;
+        }
+      }
+      _params.add(position, param);
+      return param;
+    }
+
+    Node<T> wildcard(String name, String pattern) {
+      if (_wildcard == null) {
+        _wildcard = new Node<>("");
+        _wildcard._name = name;
+      } else if (!_wildcard._name.equals(name)) {
+        throw new IllegalArgumentException("conflicting wildcard name in " + pattern);
+      }
+      return _wildcard;
+    }
+
+    void setRoute(T value, String[] paramNames) {
+      _value = value;
+      _paramNames = paramNames;
+      _match = new Match<>(value, PathParams.EMPTY);
+    }
+
+    private Node<T> addChild(Node<T> child) {
+      _indices = Arrays.copyOf(_indices, _indices.length + 1);
+      _indices[_indices.length - 1] = child._label.charAt(0);
+      _children.add(child);
+      return child;
+    }
+
+    /**
+     * Replace the child by a new node holding the first part of its label.
+     */
+    private Node<T> split(Node<T> child, int at) {
+      Node<T> parent = new Node<>(child._label.substring(0, at));
+      child._label = child._label.substring(at);
+      parent._indices = new char[]{child._label.charAt(0)};
+      parent._children.add(child);
+      for (int i = 0; i < _indices.length; i++) {
+        if (_children.get(i) == child) {
+          _children.set(i, parent);
+        }
+      }
+      return parent;
+    }
+  }
+}
@@ -1,8 +1,12 @@
 package org.rgamba.falcon;
 
-import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.function.Supplier;
 import org.rgamba.falcon.errors.MethodNotImplemented;
 import org.rgamba.falcon.errors.HttpError;
 import org.rgamba.falcon.errors.ServerError;
@@ -17,42 +21,110 @@ import org.rgamba.falcon.errors.ServerError;
  * corresponding RequestHandler ({@code Class<? extends RequestHandler>})
  * That way, the router will know how to route each call.
  *
+ * <p>Paths can capture segments as params which are then available through
+ * {@link Request#getPathParam(String)}, see {@link RouteTree} for the full
+ * pattern syntax:
+ * <pre>
+ *   router.setHandler("/users/{id:[0-9]+}", UserHandler.class);
+ *   router.setHandler("/static/*file", StaticHandler.class);
+ * </pre>
+ *
+ * <p>Everything that can be worked out ahead of time is resolved when the
+ * handler is set: which request types the handler implements and how to
+ * create it. By default a new handler is created for every request, stateless
+ * handlers can be registered as a single instance instead.
+ *
  * <p>It will also take care of gracefully handle exceptions and covert
  * them to response objects with the appropriate status code errors.
  */
 public class Router {
-  private Map<String, Class<? extends RequestHandler>> _routes = new HashMap<>();
+  private final RouteTree<Route> _routes = new RouteTree<>();
 
   /**
-   * Map a URI or path to a given {@link RequestHandler} class
-   * @param path The string path to map. For example "/home/" or "/login/". Index is "/"
+   * Map a URI or path to a given {@link RequestHandler} class.
+   * A new instance of the class will handle each request.
+   * @param path The string path to map. For example "/home/", "/login/" or "/users/{id}". Index is "/"
    * @param handler The {@link RequestHandler} class that will handle this request
+   * @throws IllegalArgumentException if the path is not a valid route pattern or
+   *     the class can't be created with a public no-arg constructor
    */
   public void setHandler(String path, Class<? extends RequestHandler> handler) {
-    _routes.put(path, handler);
+    if (Modifier.isAbstract(handler.getModifiers())) {
+      throw new IllegalArgumentException(handler.getName() + " can't be abstract");
+    }
+    _routes.insert(path, new Route(handler, bindConstructor(handler)));
+  }
+
+  /**
+   * Map a URI or path to a single {@link RequestHandler} instance that will
+   * handle all the requests, so it must be thread safe.
+   * @param path The string path to map
+   * @param handler The handler instance
+   */
+  public void setHandler(String path, RequestHandler handler) {
+    _routes.insert(path, new Route(handler.getClass(), () -> handler));
+  }
+
+  /**
+   * Map a URI or path to a factory of {@link RequestHandler}s called for each request.
+   * @param path The string path to map
+   * @param handler The class of the handlers created by the factory
+   * @param factory Creates the handler for each request
+   */
+  public <T extends RequestHandler> void setHandler(String path, Class<T> handler, Supplier<? extends T> factory) {
+    _routes.insert(path, new Route(handler, factory));
   }
 
   Response handle(Request request) {
-    Class<? extends RequestHandler> handler = findHandler(request.getUri());
-    if (handler == null) {
+    RouteTree.Match<Route> match = _routes.lookup(request.getPath() != null ? request.getPath() : request.getUri());
+    if (match == null) {
       return createResponseError(Response.Status.NOT_FOUND, "Not found");
     }
-    Method methodToInvoke = getMethodToInvoke(handler, request.getType());
-    if (methodToInvoke == null) {
+    Route route = match.getValue();
+    HandlerMethod method = route.getMethod(request.getType());
+    if (method == null) {
       return createResponseError(Response.Status.METHOD_NOT_ALLOWED, "Not found");
     }
+    if (!match.getParams().isEmpty()) {
+      Request.Builder builder = new Request.Builder(request);
+      builder.pathParams = match.getParams();
+      request = builder.build();
+    }
     try {
-      RequestHandler handlerInstance = handler.newInstance();
-      return invokeMethod(methodToInvoke, handlerInstance, request);
+      RequestHandler handlerInstance = route.newHandler();
+      return invokeMethod(method, handlerInstance, request);
     } catch (Exception e) {
       return createResponseError(Response.Status.INTERNAL_ERROR, e.toString());
     }
   }
 
-  private Response invokeMethod(Method methodToInvoke, RequestHandler handlerInstance, Request request)
-      throws ReflectiveOperationException {
+  /**
+   * Bind the public no-arg constructor of the handler class to a
+   * {@link Supplier} with {@link LambdaMetafactory}, so each request creates
+   * its handler with a plain call instead of {@code Constructor.newInstance}.
+   */
+  private static Supplier<? extends RequestHandler> bindConstructor(Class<? extends RequestHandler> handler) {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    MethodHandle constructor;
+    try {
+      constructor = lookup.unreflectConstructor(handler.getConstructor());
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException(handler.getName() + " must have a public no-arg constructor");
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException(handler.getName() + " must be public");
+    }
+    try {
+      CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+          MethodType.methodType(Object.class), constructor, constructor.type());
+      return (Supplier<? extends RequestHandler>) site.getTarget().invoke();
+    } catch (Throwable e) {
+      throw new IllegalStateException("unable to bind the constructor of " + handler.getName(), e);
+    }
+  }
+
+  private Response invokeMethod(HandlerMethod method, RequestHandler handlerInstance, Request request) {
     try {
-      return (Response) methodToInvoke.invoke(handlerInstance, request);
+      return method.invoke(handlerInstance, request);
     } catch (MethodNotImplemented e) {
       return createResponseError(Response.Status.METHOD_NOT_ALLOWED, e.toString());
     } catch (ServerError e) {
@@ -66,22 +138,68 @@ public class Router {
     return new Response.Builder().setStatusCode(status.getCode()).setBody(errorMessage).build();
   }
 
-  private Method getMethodToInvoke(Class<? extends RequestHandler> handler, Request.Type type) {
-    Class[] argTypes = new Class[]{Request.class};
-    try {
-      return handler.getDeclaredMethod(type.toString().toLowerCase(), argTypes);
-    } catch (NoSuchMethodException e) {
-      return null;
-    }
+  /**
+   * A {@link RequestHandler} method bound to a request type.
+   */
+  @FunctionalInterface
+  private interface HandlerMethod {
+    Response invoke(RequestHandler handler, Request request) throws HttpError;
   }
 
-  private Class<? extends RequestHandler> findHandler(String path) {
-    // TODO: add regex match feature.
-    for (Map.Entry<String, Class<? extends RequestHandler>> handler : _routes.entrySet()) {
-      if (handler.getKey().equals(path)) {
-        return handler.getValue();
+  /**
+   * Dispatch table of a single route.
+   */
+  private static final class Route {
+    private static final Request.Type[] TYPES = Request.Type.values();
+
+    private final Supplier<? extends RequestHandler> _factory;
+    /* Indexed by request type ordinal, null if the handler does not implement it */
+    private final HandlerMethod[] _methods = new HandlerMethod[TYPES.length];
+
+    Route(Class<? extends RequestHandler> handler, Supplier<? extends RequestHandler> factory) {
+      _factory = factory;
+      for (Request.Type type : TYPES) {
+        if (implementsType(handler, type)) {
+          _methods[type.ordinal()] = methodFor(type);
+        }
+      }
+    }
+
+    HandlerMethod getMethod(Request.Type type) {
+      return type != null ? _methods[type.ordinal()] : null;
+    }
+
+    RequestHandler newHandler() {
+      return _factory.get();
+    }
+
+    /**
+     * @return true if the handler overrides the default method for the type
+     */
+    private static boolean implementsType(Class<? extends RequestHandler> handler, Request.Type type) {
+      try {
+        return handler.getMethod(type.toString().toLowerCase(), Request.class).getDeclaringClass()
+            != RequestHandler.class;
+      } catch (NoSuchMethodException e) {
+        return false;
+      }
+    }
+
+    private static HandlerMethod methodFor(Request.Type type) {
+      switch (type) {
+        case GET:
+          return RequestHandler::get;
+        case POST:
+          return RequestHandler::post;
+        case PUT:
+          return RequestHandler::put;
+        case DELETE:
+          return RequestHandler::delete;
+        case HEAD:
+          return RequestHandler::head;
+        default:
+          return null;
       }
     }
-    return null;
   }
 }
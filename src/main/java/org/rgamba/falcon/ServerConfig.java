@@ -0,0 +1,284 @@
+package org.rgamba.falcon;
+
+/**
+ * ServerConfig
+ *
+ * <p>Immutable set of tuning options used by {@link HttpServer} and
+ * the transports it runs on. New objects must be created using the {@link Builder}.
+ */
+public final class ServerConfig {
+  private static final long DEFAULT_MAX_REQUEST_CONTENT_LENGTH = 10240; // 10 MB
+  private static final int DEFAULT_SOCKET_TIMEOUT = 5000;
+  private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+  private static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+  private static final int DEFAULT_WORKER_THREADS = 64;
+  private static final int DEFAULT_WORKER_QUEUE_CAPACITY = 256;
+  private static final int DEFAULT_RETRY_AFTER = 1;
+  private static final int DEFAULT_RESPONSE_CHUNK_SIZE = 16 * 1024;
+
+  private final long _maxRequestContentLength;
+  private final int _socketTimeout;
+  private final int _keepAliveTimeout;
+  private final int _maxRequestsPerConnection;
+  private final Transport _transport;
+  private final int _eventLoopThreads;
+  private final int _workerThreads;
+  private final int _workerQueueCapacity;
+  private final RejectionPolicy _rejectionPolicy;
+  private final int _retryAfter;
+  private final boolean _virtualThreads;
+  private final int _responseChunkSize;
+
+  private ServerConfig(Builder builder) {
+    _maxRequestContentLength = builder.maxRequestContentLength;
+    _socketTimeout = builder.socketTimeout;
+    _keepAliveTimeout = builder.keepAliveTimeout;
+    _maxRequestsPerConnection = builder.maxRequestsPerConnection;
+    _transport = builder.transport;
+    _eventLoopThreads = builder.eventLoopThreads;
+    _workerThreads = builder.workerThreads;
+    _workerQueueCapacity = builder.workerQueueCapacity;
+    _rejectionPolicy = builder.rejectionPolicy;
+    _retryAfter = builder.retryAfter;
+    _virtualThreads = builder.virtualThreads;
+    _responseChunkSize = builder.responseChunkSize;
+  }
+
+  public long getMaxRequestContentLength() {
+    return _maxRequestContentLength;
+  }
+
+  /**
+   * @return Read timeout in milliseconds for blocking sockets.
+   */
+  public int getSocketTimeout() {
+    return _socketTimeout;
+  }
+
+  /**
+   * @return Time in milliseconds an idle persistent connection is kept open
+   *     waiting for the next request.
+   */
+  public int getKeepAliveTimeout() {
+    return _keepAliveTimeout;
+  }
+
+  /**
+   * @return Number of requests served on a single connection before it is
+   *     closed. 1 disables persistent connections.
+   */
+  public int getMaxRequestsPerConnection() {
+    return _maxRequestsPerConnection;
+  }
+
+  public Transport getTransport() {
+    return _transport;
+  }
+
+  /**
+   * @return Number of selector threads used by the {@link Transport#NIO} transport.
+   */
+  public int getEventLoopThreads() {
+    return _eventLoopThreads;
+  }
+
+  /**
+   * @return Max number of threads running request handlers. With the
+   *     {@link Transport#BLOCKING} transport this is also the max number of
+   *     connections served at the same time.
+   */
+  public int getWorkerThreads() {
+    return _workerThreads;
+  }
+
+  /**
+   * @return Number of tasks that can wait for a free worker before new
+   *     ones are rejected. 0 means no queueing at all.
+   */
+  public int getWorkerQueueCapacity() {
+    return _workerQueueCapacity;
+  }
+
+  public RejectionPolicy getRejectionPolicy() {
+    return _rejectionPolicy;
+  }
+
+  /**
+   * @return Seconds sent in the Retry-After header of the responses
+   *     generated by {@link RejectionPolicy#SERVICE_UNAVAILABLE}.
+   */
+  public int getRetryAfter() {
+    return _retryAfter;
+  }
+
+  /**
+   * @return true if the workers run on virtual threads. Blocking connections
+   *     are then cheap enough to raise {@link #getWorkerThreads()} to tens of
+   *     thousands. Requires Java 21 or newer.
+   */
+  public boolean isVirtualThreads() {
+    return _virtualThreads;
+  }
+
+  /**
+   * @return Max number of bytes in each chunk of the responses sent with
+   *     the chunked transfer coding. Smaller chunks reach the client sooner,
+   *     bigger ones take fewer writes.
+   */
+  public int getResponseChunkSize() {
+    return _responseChunkSize;
+  }
+
+  public static class Builder {
+    private long maxRequestContentLength = DEFAULT_MAX_REQUEST_CONTENT_LENGTH;
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+    private Transport transport = Transport.BLOCKING;
+    private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int workerQueueCapacity = DEFAULT_WORKER_QUEUE_CAPACITY;
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.SERVICE_UNAVAILABLE;
+    private int retryAfter = DEFAULT_RETRY_AFTER;
+    private boolean virtualThreads = false;
+    private int responseChunkSize = DEFAULT_RESPONSE_CHUNK_SIZE;
+
+    public Builder() {
+    }
+
+    public Builder(ServerConfig config) {
+      maxRequestContentLength = config.getMaxRequestContentLength();
+      socketTimeout = config.getSocketTimeout();
+      keepAliveTimeout = config.getKeepAliveTimeout();
+      maxRequestsPerConnection = config.getMaxRequestsPerConnection();
+      transport = config.getTransport();
+      eventLoopThreads = config.getEventLoopThreads();
+      workerThreads = config.getWorkerThreads();
+      workerQueueCapacity = config.getWorkerQueueCapacity();
+      rejectionPolicy = config.getRejectionPolicy();
+      retryAfter = config.getRetryAfter();
+      virtualThreads = config.isVirtualThreads();
+      responseChunkSize = config.getResponseChunkSize();
+    }
+
+    public Builder setMaxRequestContentLength(long sizeInBytes) {
+      this.maxRequestContentLength = sizeInBytes;
+      return this;
+    }
+
+    public Builder setSocketTimeout(int millis) {
+      this.socketTimeout = millis;
+      return this;
+    }
+
+    public Builder setKeepAliveTimeout(int millis) {
+      this.keepAliveTimeout = millis;
+      return this;
+    }
+
+    public Builder setMaxRequestsPerConnection(int maxRequests) {
+      if (maxRequests < 1) {
+        throw new IllegalArgumentException("at least one request per connection is required");
+      }
+      this.maxRequestsPerConnection = maxRequests;
+      return this;
+    }
+
+    public Builder setTransport(Transport transport) {
+      this.transport = transport;
+      return this;
+    }
+
+    public Builder setEventLoopThreads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("at least one event loop thread is required");
+      }
+      this.eventLoopThreads = threads;
+      return this;
+    }
+
+    public Builder setWorkerThreads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("at least one worker thread is required");
+      }
+      this.workerThreads = threads;
+      return this;
+    }
+
+    public Builder setWorkerQueueCapacity(int capacity) {
+      if (capacity < 0) {
+        throw new IllegalArgumentException("queue capacity can't be negative");
+      }
+      this.workerQueueCapacity = capacity;
+      return this;
+    }
+
+    public Builder setRejectionPolicy(RejectionPolicy policy) {
+      this.rejectionPolicy = policy;
+      return this;
+    }
+
+    public Builder setRetryAfter(int seconds) {
+      this.retryAfter = seconds;
+      return this;
+    }
+
+    public Builder setVirtualThreads(boolean enabled) {
+      if (enabled && !VirtualThreads.isSupported()) {
+        throw new UnsupportedOperationException("virtual threads require Java 21 or newer");
+      }
+      this.virtualThreads = enabled;
+      return this;
+    }
+
+    public Builder setResponseChunkSize(int bytes) {
+      if (bytes < 1) {
+        throw new IllegalArgumentException("chunks must hold at least one byte");
+      }
+      this.responseChunkSize = bytes;
+      return this;
+    }
+
+    public ServerConfig build() {
+      return new ServerConfig(this);
+    }
+  }
+
+  /**
+   * How the server accepts connections and performs socket I/O.
+   */
+  public enum Transport {
+    /**
+     * One blocking {@link java.net.Socket} per {@link HttpThread}, each one
+     * running on its own worker thread.
+     */
+    BLOCKING,
+    /**
+     * Non-blocking channels multiplexed over a small set of selector
+     * threads. Only handler execution is handed off to the worker threads.
+     */
+    NIO
+  }
+
+  /**
+   * What to do when every worker is busy and the queue is full.
+   */
+  public enum RejectionPolicy {
+    /**
+     * Answer right away with {@code 503 Service Unavailable} and a
+     * {@code Retry-After} header, then close the connection.
+     */
+    SERVICE_UNAVAILABLE,
+    /**
+     * Run the task on the thread that tried to submit it. This slows down
+     * accepting (or reading) new requests until the pool catches up. The
+     * blocking transport only serves one request of the connection this
+     * way, answered with {@code Connection: close}.
+     */
+    CALLER_RUNS,
+    /**
+     * Close the connection without sending anything.
+     */
+    DROP
+  }
+}
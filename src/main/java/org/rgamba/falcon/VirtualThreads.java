@@ -0,0 +1,31 @@
+package org.rgamba.falcon;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * VirtualThreads
+ *
+ * <p>Access to virtual threads, which are only available on Java 21 or newer.
+ * This is the implementation used on older runtimes, the jar ships a
+ * Java 21 version of this class under {@code META-INF/versions/21}.
+ */
+final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return true if the running JVM can create virtual threads
+   */
+  static boolean isSupported() {
+    return false;
+  }
+
+  /**
+   * @param prefix Name prefix of the created threads, followed by a counter
+   * @return A factory of virtual threads
+   */
+  static ThreadFactory newThreadFactory(String prefix) {
+    throw new UnsupportedOperationException("virtual threads require Java 21 or newer");
+  }
+}
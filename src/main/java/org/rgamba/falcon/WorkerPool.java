@@ -0,0 +1,128 @@
+package org.rgamba.falcon;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * WorkerPool
+ *
+ * <p>Bounded pool of threads that run the request handlers. The pool never
+ * grows past {@link ServerConfig#getWorkerThreads()} threads and never queues
+ * more than {@link ServerConfig#getWorkerQueueCapacity()} tasks, anything
+ * beyond that is rejected and the transport applies the configured
+ * {@link ServerConfig.RejectionPolicy}.
+ *
+ * <p>Workers are platform threads unless {@link ServerConfig#isVirtualThreads()}
+ * is set, in which case every worker is a virtual thread and the pool can
+ * be made large enough to hold tens of thousands of blocking connections.
+ *
+ * <p>The counters exposed here are meant to be sampled in order to size
+ * the pool from real traffic.
+ */
+public class WorkerPool {
+  private static final long IDLE_THREAD_TIMEOUT = 60;
+  private static final String THREAD_NAME_PREFIX = "falcon-worker-";
+
+  private final ThreadPoolExecutor _executor;
+  private final int _queueCapacity;
+  private final AtomicLong _rejected = new AtomicLong();
+
+  WorkerPool(int threads, int queueCapacity) {
+    this(threads, queueCapacity, false);
+  }
+
+  WorkerPool(int threads, int queueCapacity, boolean virtualThreads) {
+    BlockingQueue<Runnable> queue =
+        queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+    ThreadFactory threadFactory =
+        virtualThreads ? VirtualThreads.newThreadFactory(THREAD_NAME_PREFIX) : new WorkerThreadFactory();
+    _executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS, queue,
+        threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    _executor.allowCoreThreadTimeOut(true);
+    _queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Hand the task off to a worker thread.
+   *
+   * @return false if all the workers are busy and the queue is full
+   */
+  boolean submit(Runnable task) {
+    try {
+      _executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      _rejected.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Stop accepting new tasks, the ones already submitted still run.
+   */
+  void shutdown() {
+    _executor.shutdown();
+  }
+
+  /**
+   * @return Number of tasks waiting for a free worker.
+   */
+  public int getQueueDepth() {
+    return _executor.getQueue().size();
+  }
+
+  public int getQueueCapacity() {
+    return _queueCapacity;
+  }
+
+  /**
+   * @return Approximate number of workers currently running a task.
+   */
+  public int getActiveCount() {
+    return _executor.getActiveCount();
+  }
+
+  /**
+   * @return Number of worker threads currently alive, busy or idle.
+   */
+  public int getPoolSize() {
+    return _executor.getPoolSize();
+  }
+
+  public int getMaxPoolSize() {
+    return _executor.getMaximumPoolSize();
+  }
+
+  /**
+   * @return Number of tasks that were turned away since the pool was created.
+   */
+  public long getRejectedCount() {
+    return _rejected.get();
+  }
+
+  /**
+   * @return Approximate number of tasks that finished running.
+   */
+  public long getCompletedCount() {
+    return _executor.getCompletedTaskCount();
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger _count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(task, THREAD_NAME_PREFIX + _count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,7 @@
+package org.rgamba.falcon.errors;
+
+public class PayloadTooLarge extends HttpError {
+  public PayloadTooLarge(String s) {
+    super(s, 413, "");
+  }
+}
@@ -16,7 +16,7 @@ public class SimpleServer {
       for (Map.Entry<String, List<String>> entry : req.getQueryParams().entrySet()) {
         res.append("<b>" + entry.getKey() + "</b>: " + entry.getValue().toString() + "<br>");
       }
-      res.append("<p>Body:<br>" + req.readAllBody() + "</p>");
+      res.append("<p>Body:<br>" + req.readBodyAsString() + "</p>");
       return new Response.Builder().setBody(res.toString()).setHeader("Content-Type", "text/html").build();
     });
     server.listen();
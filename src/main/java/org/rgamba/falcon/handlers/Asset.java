@@ -0,0 +1,194 @@
+package org.rgamba.falcon.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.MimeType;
+
+
+/**
+ * Asset
+ *
+ * <p>A file served by the {@link StaticFileHandler} along with everything
+ * its responses need that can be worked out ahead of time. Assets held by
+ * an {@link AssetCache} also carry the contents of the file, off heap, and
+ * its compressed variants when they are smaller.
+ *
+ * <p>Assets are immutable except for the time they were last checked
+ * against the file. Their buffers are never modified, responses send views
+ * of them.
+ */
+final class Asset {
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+  /* Below this compressing is not worth the Vary header */
+  private static final int MIN_COMPRESS_SIZE = 256;
+
+  final Path file;
+  final long length;
+  final long lastModified;
+  final String contentType;
+  final String lastModifiedText;
+  private final String _etag;
+  private final ByteBuffer _contents;
+  private final ByteBuffer _gzip;
+  private final ByteBuffer _deflate;
+  private final String _gzipEtag;
+  private final String _deflateEtag;
+  /* When the file was last found unchanged, in milliseconds */
+  volatile long checkedAt;
+
+  /**
+   * Describe a file whose contents are read when the response is sent.
+   */
+  Asset(Path file, BasicFileAttributes attributes) {
+    this(file, attributes, null, null, null);
+  }
+
+  private Asset(Path file, BasicFileAttributes attributes, ByteBuffer contents, ByteBuffer gzip, ByteBuffer deflate) {
+    this.file = file;
+    length = attributes.size();
+    lastModified = attributes.lastModifiedTime().toMillis();
+    contentType = MimeType.forFileName(file.getFileName().toString()).toString();
+    lastModifiedText = HttpUtils.formatHttpDate(lastModified);
+    String tag = Long.toHexString(lastModified) + '-' + Long.toHexString(length);
+    _etag = '"' + tag + '"';
+    _contents = contents;
+    _gzip = gzip;
+    _deflate = deflate;
+    _gzipEtag = gzip != null ? '"' + tag + '-' + GZIP + '"' : null;
+    _deflateEtag = deflate != null ? '"' + tag + '-' + DEFLATE + '"' : null;
+  }
+
+  /**
+   * Read a file in memory.
+   *
+   * @param memoryMapped Map the file instead of copying it to a direct buffer
+   * @param compress Also keep the gzip and deflate variants of text files
+   */
+  static Asset load(Path file, BasicFileAttributes attributes, boolean memoryMapped, boolean compress)
+      throws IOException {
+    ByteBuffer contents;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (memoryMapped) {
+        contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+      } else {
+        contents = ByteBuffer.allocateDirect((int) attributes.size());
+        while (contents.hasRemaining() && channel.read(contents) >= 0) {
+          /* Until the buffer is full */
+        }
+        if (contents.hasRemaining()) {
+          throw new IOException(file + " changed while it was read");
+        }
+        contents.flip();
+      }
+    }
+    contents = contents.asReadOnlyBuffer();
+    ByteBuffer gzip = null;
+    ByteBuffer deflate = null;
+    if (compress && contents.remaining() >= MIN_COMPRESS_SIZE && isCompressible(file)) {
+      byte[] bytes = new byte[contents.remaining()];
+      contents.duplicate().get(bytes);
+      gzip = smallerThan(bytes, compress(bytes, true));
+      deflate = smallerThan(bytes, compress(bytes, false));
+    }
+    return new Asset(file, attributes, contents, gzip, deflate);
+  }
+
+  /**
+   * @return true if the file still has the size and modification time of the asset
+   */
+  boolean isCurrent(BasicFileAttributes attributes) {
+    return attributes.size() == length && attributes.lastModifiedTime().toMillis() == lastModified;
+  }
+
+  boolean isInMemory() {
+    return _contents != null;
+  }
+
+  boolean hasVariants() {
+    return _gzip != null || _deflate != null;
+  }
+
+  /**
+   * @param coding {@link #GZIP}, {@link #DEFLATE} or null for the file as is
+   * @return A view of the contents in the coding, null if they are not in memory
+   */
+  ByteBuffer contents(String coding) {
+    ByteBuffer contents = coding == null ? _contents : coding.equals(GZIP) ? _gzip : _deflate;
+    return contents != null ? contents.duplicate() : null;
+  }
+
+  /**
+   * @return The strong ETag of the contents in the coding, each variant has its own
+   */
+  String etag(String coding) {
+    return coding == null ? _etag : coding.equals(GZIP) ? _gzipEtag : _deflateEtag;
+  }
+
+  /**
+   * @return Whether a variant exists for the coding
+   */
+  boolean hasVariant(String coding) {
+    return coding.equals(GZIP) ? _gzip != null : _deflate != null;
+  }
+
+  /**
+   * @return The bytes held in memory for the asset
+   */
+  long weight() {
+    return capacity(_contents) + capacity(_gzip) + capacity(_deflate);
+  }
+
+  private static long capacity(ByteBuffer buffer) {
+    return buffer != null ? buffer.capacity() : 0;
+  }
+
+  private static boolean isCompressible(Path file) {
+    String type = MimeType.forFileName(file.getFileName().toString()).getMediaType();
+    return type.startsWith("text/") || type.endsWith("javascript") || type.endsWith("json")
+        || type.endsWith("xml") || type.equals("image/svg+xml") || type.equals("application/wasm");
+  }
+
+  private static byte[] compress(byte[] bytes, boolean gzip) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+    if (gzip) {
+      try (GZIPOutputStream compressed = new GZIPOutputStream(out) {
+        {
+          def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+      }) {
+        compressed.write(bytes);
+      }
+    } else {
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      try (DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater)) {
+        compressed.write(bytes);
+      } finally {
+        deflater.end();
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return The compressed bytes off heap, null if they are not smaller
+   */
+  private static ByteBuffer smallerThan(byte[] original, byte[] compressed) {
+    if (compressed.length >= original.length) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(compressed.length);
+    buffer.put(compressed).flip();
+    return buffer.asReadOnlyBuffer();
+  }
+}
@@ -0,0 +1,201 @@
+package org.rgamba.falcon.handlers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import org.rgamba.falcon.LruCache;
+
+
+/**
+ * Asset Cache
+ *
+ * <p>Keeps hot static files in memory for a {@link StaticFileHandler}, so
+ * serving them takes neither a system call to open the file nor one to read
+ * its attributes. Files are loaded off heap the first time they are asked
+ * for, or up front with {@link #preload(Path)}, along with their gzip and
+ * deflate variants and ETags. Files larger than
+ * {@link Builder#setMaxFileSize(long)} are still sent from disk.
+ *
+ * <p>The cache holds at most {@link Builder#setMaxBytes(long)} bytes, the
+ * least recently used files are evicted first. A cached file is checked
+ * against the disk at most once every {@link Builder#setCheckInterval(long)}
+ * milliseconds and reloaded if its size or modification time changed, so
+ * deploys are picked up without a restart.
+ *
+ * <pre>
+ *   AssetCache cache = new AssetCache.Builder().setMaxBytes(64 &lt;&lt; 20).build();
+ *   cache.preload(Paths.get("public"));
+ *   router.setHandler("/static/*file",
+ *       new StaticFileHandler.Builder(Paths.get("public")).setAssetCache(cache).build());
+ * </pre>
+ */
+public class AssetCache {
+  private final LruCache<Path, Asset> _assets;
+  private final long _maxFileSize;
+  private final long _checkInterval;
+  private final boolean _memoryMapped;
+  private final boolean _compress;
+  private final LongSupplier _clock;
+
+  private AssetCache(Builder builder) {
+    _assets = new LruCache<>(builder.maxBytes, Asset::weight);
+    _maxFileSize = builder.maxFileSize;
+    _checkInterval = builder.checkInterval;
+    _memoryMapped = builder.memoryMapped;
+    _compress = builder.compress;
+    _clock = builder.clock;
+  }
+
+  /**
+   * Load the files of a directory, and of its subdirectories, until the
+   * cache is full.
+   */
+  public void preload(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      Iterator<Path> iterator = files.iterator();
+      while (iterator.hasNext() && _assets.weight() < _assets.getMaxWeight()) {
+        get(iterator.next().toAbsolutePath().normalize());
+      }
+    }
+  }
+
+  /**
+   * @return The number of files held in memory
+   */
+  public int size() {
+    return _assets.size();
+  }
+
+  /**
+   * @return The bytes held in memory, including the compressed variants
+   */
+  public long getBytes() {
+    return _assets.weight();
+  }
+
+  public void clear() {
+    _assets.clear();
+  }
+
+  /**
+   * @param file An absolute and normalized path
+   * @return The asset, held in memory if it fits, or null if the file is not a regular file
+   */
+  Asset get(Path file) {
+    Asset asset = _assets.get(file);
+    long now = _clock.getAsLong();
+    if (asset != null && now - asset.checkedAt < _checkInterval) {
+      return asset;
+    }
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (IOException e) {
+      attributes = null;
+    }
+    if (attributes == null || !attributes.isRegularFile()) {
+      if (asset != null) {
+        _assets.remove(file, asset);
+      }
+      return null;
+    }
+    if (asset != null && asset.isCurrent(attributes)) {
+      asset.checkedAt = now;
+      return asset;
+    }
+    if (asset != null) {
+      _assets.remove(file, asset);
+    }
+    if (attributes.size() > _maxFileSize || attributes.size() > _assets.getMaxWeight()) {
+      return new Asset(file, attributes);
+    }
+    try {
+      asset = Asset.load(file, attributes, _memoryMapped, _compress);
+    } catch (IOException e) {
+      /* Changed or gone while it was read, sent from disk this time */
+      return new Asset(file, attributes);
+    }
+    asset.checkedAt = now;
+    _assets.put(file, asset);
+    return asset;
+  }
+
+  /**
+   * AssetCache builder
+   */
+  public static class Builder {
+    private long maxBytes = 32 << 20;
+    private long maxFileSize = 1 << 20;
+    private long checkInterval = 1000;
+    private boolean memoryMapped = false;
+    private boolean compress = true;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * @param maxBytes Budget for the contents of all the cached files and their variants
+     */
+    public Builder setMaxBytes(long maxBytes) {
+      if (maxBytes < 0) {
+        throw new IllegalArgumentException("the cache size can't be negative");
+      }
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * @param maxFileSize Larger files are never cached, they are sent from disk
+     */
+    public Builder setMaxFileSize(long maxFileSize) {
+      if (maxFileSize < 0 || maxFileSize > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("invalid max file size: " + maxFileSize);
+      }
+      this.maxFileSize = maxFileSize;
+      return this;
+    }
+
+    /**
+     * @param millis How long a cached file is served before checking it
+     *     did not change on disk, 0 checks it on every request
+     */
+    public Builder setCheckInterval(long millis) {
+      if (millis < 0) {
+        throw new IllegalArgumentException("the check interval can't be negative");
+      }
+      this.checkInterval = millis;
+      return this;
+    }
+
+    /**
+     * Map the files in memory instead of copying them to direct buffers.
+     * Files must then be replaced, never modified in place: reading a
+     * mapped file that was truncated crashes the reading thread.
+     */
+    public Builder setMemoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+      return this;
+    }
+
+    /**
+     * @param compress Keep gzip and deflate variants of text files for
+     *     clients that accept them
+     */
+    public Builder setCompress(boolean compress) {
+      this.compress = compress;
+      return this;
+    }
+
+    Builder setClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public AssetCache build() {
+      return new AssetCache(this);
+    }
+  }
+}
@@ -0,0 +1,563 @@
+package org.rgamba.falcon.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.rgamba.falcon.Header;
+import org.rgamba.falcon.HttpConstants;
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.MimeType;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.RequestHandler;
+import org.rgamba.falcon.Response;
+
+
+/**
+ * Static File Handler
+ *
+ * <p>Serves the files of a directory. Bodies are sent straight from the
+ * file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * sendfile on Linux, so their bytes never go through the heap. The content
+ * type is guessed from the file extension with {@link MimeType#forFileName(String)}.
+ *
+ * <p>Every file gets an ETag and a Last-Modified header built from its size
+ * and modification time, conditional requests with If-None-Match or
+ * If-Modified-Since are answered with 304 when the file did not change.
+ * GET requests can ask for one or more byte ranges, several ranges are sent
+ * as a multipart/byteranges body.
+ *
+ * <p>With an {@link AssetCache} hot files are sent from memory, compressed
+ * when the client accepts it.
+ *
+ * <p>The file is taken from a path param captured by the {@link org.rgamba.falcon.Router},
+ * the handler is thread safe so a single instance serves every request:
+ * <pre>
+ *   router.setHandler("/static/*file", new StaticFileHandler.Builder(Paths.get("public")).build());
+ * </pre>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7233">Range requests</a>
+ */
+public class StaticFileHandler implements RequestHandler {
+  private final Path _root;
+  private final String _pathParam;
+  private final String _indexFile;
+  private final boolean _weakETags;
+  private final int _maxRanges;
+  private final AssetCache _assetCache;
+
+  private StaticFileHandler(Builder builder) {
+    _root = builder.root;
+    _pathParam = builder.pathParam;
+    _indexFile = builder.indexFile;
+    _weakETags = builder.weakETags;
+    _maxRanges = builder.maxRanges;
+    _assetCache = builder.assetCache;
+  }
+
+  @Override
+  public Response get(Request request) {
+    return serve(request, true);
+  }
+
+  @Override
+  public Response head(Request request) {
+    return serve(request, false);
+  }
+
+  private Response serve(Request request, boolean sendBody) {
+    Path file = resolve(request);
+    Asset asset = file != null ? find(file) : null;
+    if (asset == null) {
+      return notFound();
+    }
+    Header range = sendBody ? request.getHeader("Range") : null;
+    /* Ranges are always of the file as is */
+    String coding = asset.hasVariants() && range == null ? acceptedCoding(request, asset) : null;
+    String etag = _weakETags ? "W/" + asset.etag(coding) : asset.etag(coding);
+    Response.Builder builder = new Response.Builder()
+        .setHeader("Content-Type", asset.contentType)
+        .setHeader("ETag", etag)
+        .setHeader("Last-Modified", asset.lastModifiedText)
+        .setHeader("Accept-Ranges", "bytes");
+    if (asset.hasVariants()) {
+      builder.setHeader("Vary", "Accept-Encoding");
+    }
+    if (isNotModified(request, etag, asset.lastModified)) {
+      return builder.setStatusCode(Response.Status.NOT_MODIFIED.getCode()).build();
+    }
+    if (coding != null) {
+      builder.setHeader("Content-Encoding", coding);
+    }
+    long length = asset.length;
+    List<long[]> ranges = range != null ? requestedRanges(request, range, etag, asset.lastModified, length) : null;
+    if (ranges != null && ranges.isEmpty()) {
+      return builder.setStatusCode(Response.Status.RANGE_NOT_SATISFIABLE.getCode())
+          .setHeader("Content-Range", "bytes */" + length)
+          .build();
+    }
+    ByteBuffer contents = asset.contents(coding);
+    if (!sendBody) {
+      long contentLength = contents != null ? contents.remaining() : length;
+      return builder.setHeader("Content-Length", String.valueOf(contentLength)).build();
+    }
+    if (ranges == null && contents != null) {
+      return builder.setBody(contents).build();
+    }
+    FileChannel channel = null;
+    if (contents == null) {
+      channel = open(asset.file);
+      if (channel == null) {
+        return notFound();
+      }
+    }
+    try {
+      if (ranges == null) {
+        return builder.setBody(channel, length).build();
+      }
+      builder.setStatusCode(Response.Status.PARTIAL_CONTENT.getCode());
+      if (ranges.size() == 1) {
+        long[] first = ranges.get(0);
+        builder.setHeader("Content-Range", contentRange(first, length));
+        if (contents != null) {
+          contents.position((int) first[0]).limit((int) first[1] + 1);
+          return builder.setBody(contents).build();
+        }
+        channel.position(first[0]);
+        return builder.setBody(channel, first[1] - first[0] + 1).build();
+      }
+      return multipartRanges(builder, new RangesChannel(channel, contents), ranges, asset.contentType, length);
+    } catch (IOException e) {
+      close(channel);
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return The file, or the index file of a directory, or null if there is none
+   */
+  private Asset find(Path file) {
+    if (_assetCache != null) {
+      Asset cached = _assetCache.get(file);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    BasicFileAttributes attributes = readAttributes(file);
+    if (attributes != null && attributes.isDirectory() && _indexFile != null) {
+      file = file.resolve(_indexFile);
+      if (_assetCache != null) {
+        return _assetCache.get(file);
+      }
+      attributes = readAttributes(file);
+    }
+    return attributes != null && attributes.isRegularFile() ? new Asset(file, attributes) : null;
+  }
+
+  /**
+   * @return The variant to send, null for the file as is
+   */
+  private static String acceptedCoding(Request request, Asset asset) {
+    Header acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return null;
+    }
+    String value = acceptEncoding.getValue();
+    if (!asset.hasVariant(Asset.DEFLATE)) {
+      return HttpUtils.preferredCoding(value, Asset.GZIP);
+    }
+    if (!asset.hasVariant(Asset.GZIP)) {
+      return HttpUtils.preferredCoding(value, Asset.DEFLATE);
+    }
+    return HttpUtils.preferredCoding(value, Asset.GZIP, Asset.DEFLATE);
+  }
+
+  /**
+   * @return The file the request is for or null if it is not in the root directory
+   */
+  private Path resolve(Request request) {
+    String path = request.getPathParam(_pathParam);
+    path = decodePath(path != null ? path : request.getPath());
+    if (path == null || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+      return null;
+    }
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while (end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    Path file = _root.resolve(path.substring(start, end)).normalize();
+    return file.startsWith(_root) ? file : null;
+  }
+
+  /**
+   * If-None-Match uses the weak comparison, If-Modified-Since is only
+   * looked at when If-None-Match is not sent.
+   */
+  private static boolean isNotModified(Request request, String etag, long lastModified) {
+    Header ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      String opaque = opaqueTag(etag);
+      for (String tag : ifNoneMatch.getValue().split(",")) {
+        tag = tag.trim();
+        if (tag.equals("*") || opaqueTag(tag).equals(opaque)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    Header ifModifiedSince = request.getHeader("If-Modified-Since");
+    if (ifModifiedSince == null) {
+      return false;
+    }
+    long since = HttpUtils.parseHttpDate(ifModifiedSince.getValue());
+    /* Dates in headers only have a precision of seconds */
+    return since >= 0 && lastModified / 1000 <= since / 1000;
+  }
+
+  /**
+   * @return The ranges asked for, empty if none can be satisfied or null
+   *     if the whole file must be sent
+   */
+  private List<long[]> requestedRanges(Request request, Header range, String etag, long lastModified, long length) {
+    Header ifRange = request.getHeader("If-Range");
+    if (ifRange != null && !matchesIfRange(ifRange.getValue().trim(), etag, lastModified)) {
+      return null;
+    }
+    return parseRanges(range.getValue(), length, _maxRanges);
+  }
+
+  /**
+   * If-Range uses the strong comparison, weak tags never match.
+   */
+  private static boolean matchesIfRange(String value, String etag, long lastModified) {
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      return !etag.startsWith("W/") && value.equals(etag);
+    }
+    long date = HttpUtils.parseHttpDate(value);
+    return date >= 0 && date / 1000 == lastModified / 1000;
+  }
+
+  /**
+   * Parse the value of a Range header.
+   *
+   * @param value For example "bytes=0-499, -500"
+   * @param length The length of the file
+   * @param maxRanges More ranges than this are ignored
+   * @return Inclusive first and last offsets of the satisfiable ranges, in
+   *     the order they were asked for, or null if the header must be ignored
+   */
+  static List<long[]> parseRanges(String value, long length, int maxRanges) {
+    value = value.trim();
+    if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    String[] specs = value.substring(6).split(",");
+    if (specs.length > maxRanges) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<>(specs.length);
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+          return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if (first.isEmpty()) {
+          /* The last N bytes */
+          long suffix = parseOffset(last);
+          if (suffix > 0 && length > 0) {
+            ranges.add(new long[]{Math.max(0, length - suffix), length - 1});
+          }
+          continue;
+        }
+        long start = parseOffset(first);
+        long end = last.isEmpty() ? Long.MAX_VALUE : parseOffset(last);
+        if (end < start) {
+          return null;
+        }
+        if (start < length) {
+          ranges.add(new long[]{start, Math.min(end, length - 1)});
+        }
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return ranges;
+  }
+
+  private static long parseOffset(String text) {
+    if (text.isEmpty() || text.charAt(0) == '+' || text.charAt(0) == '-') {
+      throw new NumberFormatException(text);
+    }
+    return Long.parseLong(text);
+  }
+
+  private static String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  private static Response multipartRanges(Response.Builder builder, RangesChannel body, List<long[]> ranges,
+      String contentType, long length) {
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    ByteBuffer[] delimiters = new ByteBuffer[ranges.size() + 1];
+    long bodyLength = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      long[] range = ranges.get(i);
+      String delimiter = (i > 0 ? HttpConstants.CRLF : "") + "--" + boundary + HttpConstants.CRLF
+          + "Content-Type: " + contentType + HttpConstants.CRLF
+          + "Content-Range: " + contentRange(range, length) + HttpConstants.CRLF + HttpConstants.CRLF;
+      delimiters[i] = ByteBuffer.wrap(delimiter.getBytes(StandardCharsets.ISO_8859_1));
+      bodyLength += delimiters[i].remaining() + range[1] - range[0] + 1;
+    }
+    String close = HttpConstants.CRLF + "--" + boundary + "--" + HttpConstants.CRLF;
+    delimiters[ranges.size()] = ByteBuffer.wrap(close.getBytes(StandardCharsets.ISO_8859_1));
+    bodyLength += delimiters[ranges.size()].remaining();
+    return builder.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary)
+        .setBody(body.setParts(delimiters, ranges), bodyLength)
+        .build();
+  }
+
+  private static BasicFileAttributes readAttributes(Path file) {
+    try {
+      return Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return The open file or null if it is gone or can't be read
+   */
+  private static FileChannel open(Path file) {
+    try {
+      return FileChannel.open(file, StandardOpenOption.READ);
+    } catch (NoSuchFileException | AccessDeniedException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void close(FileChannel channel) {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+    }
+  }
+
+  private static Response notFound() {
+    return new Response.Builder().setStatusCode(Response.Status.NOT_FOUND.getCode()).setBody("Not found").build();
+  }
+
+  private static String opaqueTag(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  /**
+   * @return The path with percent-encoded octets decoded as UTF-8, null if it is malformed
+   */
+  private static String decodePath(String path) {
+    if (path.indexOf('%') < 0) {
+      return path;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c != '%') {
+        byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+        bytes.write(encoded, 0, encoded.length);
+        continue;
+      }
+      int high = i + 2 < path.length() ? Character.digit(path.charAt(i + 1), 16) : -1;
+      int low = high >= 0 ? Character.digit(path.charAt(i + 2), 16) : -1;
+      if (low < 0) {
+        return null;
+      }
+      bytes.write(high << 4 | low);
+      i += 2;
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Body of a response with several ranges, each one is preceded by its
+   * multipart delimiter and read from the file, or from the cached
+   * contents, when the response is sent.
+   */
+  private static final class RangesChannel implements ReadableByteChannel {
+    private final FileChannel _file;
+    private final ByteBuffer _contents;
+    private ByteBuffer[] _delimiters;
+    private List<long[]> _ranges;
+    /* Even segments are delimiters, odd ones ranges */
+    private int _segment = 0;
+    private long _position = -1;
+    private boolean _open = true;
+
+    RangesChannel(FileChannel file, ByteBuffer contents) {
+      _file = file;
+      _contents = contents;
+    }
+
+    RangesChannel setParts(ByteBuffer[] delimiters, List<long[]> ranges) {
+      _delimiters = delimiters;
+      _ranges = ranges;
+      return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      int read = 0;
+      while (dst.hasRemaining() && _segment < _delimiters.length + _ranges.size()) {
+        if (_segment % 2 == 0) {
+          ByteBuffer delimiter = _delimiters[_segment / 2];
+          int count = Math.min(delimiter.remaining(), dst.remaining());
+          ByteBuffer part = delimiter.duplicate();
+          part.limit(part.position() + count);
+          dst.put(part);
+          delimiter.position(delimiter.position() + count);
+          read += count;
+          if (!delimiter.hasRemaining()) {
+            _segment++;
+          }
+          continue;
+        }
+        long[] range = _ranges.get(_segment / 2);
+        if (_position < 0) {
+          _position = range[0];
+        }
+        int count = (int) Math.min(dst.remaining(), range[1] + 1 - _position);
+        if (_contents != null) {
+          ByteBuffer part = _contents.duplicate();
+          part.position((int) _position).limit((int) _position + count);
+          dst.put(part);
+        } else {
+          int limit = dst.limit();
+          dst.limit(dst.position() + count);
+          count = _file.read(dst, _position);
+          dst.limit(limit);
+          if (count < 0) {
+            /* The file was truncated, the transfer fails once this is sent */
+            return read > 0 ? read : -1;
+          }
+        }
+        _position += count;
+        read += count;
+        if (_position > range[1]) {
+          _segment++;
+          _position = -1;
+        }
+      }
+      return read == 0 && _segment == _delimiters.length + _ranges.size() ? -1 : read;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return _open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      _open = false;
+      if (_file != null) {
+        _file.close();
+      }
+    }
+  }
+
+  /**
+   * StaticFileHandler builder
+   */
+  public static class Builder {
+    private final Path root;
+    private String pathParam = "file";
+    private String indexFile = "index.html";
+    private boolean weakETags = false;
+    private int maxRanges = 16;
+    private AssetCache assetCache;
+
+    /**
+     * @param root The directory to serve, nothing outside of it is ever sent
+     */
+    public Builder(Path root) {
+      this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * @param name The path param holding the path of the file, relative to
+     *     the root. The whole request path is used if the route does not capture it
+     */
+    public Builder setPathParam(String name) {
+      this.pathParam = name;
+      return this;
+    }
+
+    /**
+     * @param fileName Served for requests to a directory, null to answer them with 404
+     */
+    public Builder setIndexFile(String fileName) {
+      this.indexFile = fileName;
+      return this;
+    }
+
+    /**
+     * Send weak ETags, for files that can be served with different bytes
+     * but the same meaning.
+     */
+    public Builder setWeakETags(boolean weakETags) {
+      this.weakETags = weakETags;
+      return this;
+    }
+
+    /**
+     * @param maxRanges Requests for more ranges than this get the whole file
+     */
+    public Builder setMaxRanges(int maxRanges) {
+      if (maxRanges < 1) {
+        throw new IllegalArgumentException("at least one range must be allowed");
+      }
+      this.maxRanges = maxRanges;
+      return this;
+    }
+
+    /**
+     * @param assetCache Keeps hot files in memory, it can be shared by several handlers
+     */
+    public Builder setAssetCache(AssetCache assetCache) {
+      this.assetCache = assetCache;
+      return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the root is not a directory
+     */
+    public StaticFileHandler build() {
+      if (!Files.isDirectory(root)) {
+        throw new IllegalArgumentException(root + " is not a directory");
+      }
+      return new StaticFileHandler(this);
+    }
+  }
+}
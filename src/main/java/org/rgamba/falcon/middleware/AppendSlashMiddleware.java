@@ -13,7 +13,7 @@ import org.rgamba.falcon.Request;
 public class AppendSlashMiddleware implements Middleware {
   @Override
   public Request processRequest(Request request) {
-    if (request.getPath().endsWith("/")) {
+    if (request.getPath() == null || request.getPath().endsWith("/")) {
       return request;
     }
     return new Request.Builder(request)
@@ -0,0 +1,130 @@
+package org.rgamba.falcon.middleware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * CompressingOutputStream
+ *
+ * <p>Compresses what is written to it with a deflater taken from a
+ * {@link DeflaterPool}, which gets it back once the stream is closed.
+ * The output is framed as gzip (RFC 1952) when the deflater produces raw
+ * data, otherwise the deflater already frames it as zlib, which is what
+ * HTTP calls deflate.
+ *
+ * <p>{@link #flush()} sends everything written so far, so clients can
+ * decompress a streamed body as it arrives.
+ */
+final class CompressingOutputStream extends OutputStream {
+  private static final int BUFFER_SIZE = 8192;
+  /* Magic number, deflate method, no flags, no mtime, no extra flags, unknown OS */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private final OutputStream _out;
+  private final DeflaterPool _pool;
+  private final Deflater _deflater;
+  private final CRC32 _crc;
+  private final byte[] _buffer = new byte[BUFFER_SIZE];
+  private boolean _closed = false;
+
+  /**
+   * @param out Where the compressed bytes go, closed along with this stream
+   * @param pool The pool to take the deflater from
+   * @param gzip Frame the output as gzip, the pool must hold raw deflaters
+   */
+  CompressingOutputStream(OutputStream out, DeflaterPool pool, boolean gzip) throws IOException {
+    _out = out;
+    _pool = pool;
+    _deflater = pool.acquire();
+    _crc = gzip ? new CRC32() : null;
+    if (gzip) {
+      out.write(GZIP_HEADER);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (len == 0) {
+      return;
+    }
+    if (_crc != null) {
+      _crc.update(b, off, len);
+    }
+    _deflater.setInput(b, off, len);
+    while (!_deflater.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+  }
+
+  /**
+   * Compress everything written so far and flush it downstream.
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    /* A full buffer means there may be more output pending */
+    while (deflate(Deflater.SYNC_FLUSH) == _buffer.length) {
+      /* Until the deflater is drained */
+    }
+    _out.flush();
+  }
+
+  /**
+   * Finish the compressed data and close the target. The deflater goes
+   * back to the pool even if writing fails.
+   */
+  @Override
+  public void close() throws IOException {
+    if (_closed) {
+      return;
+    }
+    _closed = true;
+    try {
+      _deflater.finish();
+      while (!_deflater.finished()) {
+        deflate(Deflater.NO_FLUSH);
+      }
+      if (_crc != null) {
+        writeIntLE(_crc.getValue());
+        writeIntLE(_deflater.getBytesRead());
+      }
+    } finally {
+      _pool.release(_deflater);
+      _out.close();
+    }
+  }
+
+  private int deflate(int flush) throws IOException {
+    int length = _deflater.deflate(_buffer, 0, _buffer.length, flush);
+    if (length > 0) {
+      _out.write(_buffer, 0, length);
+    }
+    return length;
+  }
+
+  /**
+   * Write the low 32 bits of the value, least significant byte first.
+   */
+  private void writeIntLE(long value) throws IOException {
+    _buffer[0] = (byte) value;
+    _buffer[1] = (byte) (value >> 8);
+    _buffer[2] = (byte) (value >> 16);
+    _buffer[3] = (byte) (value >> 24);
+    _out.write(_buffer, 0, 4);
+  }
+
+  private void ensureOpen() throws IOException {
+    if (_closed) {
+      throw new IOException("the stream is closed");
+    }
+  }
+}
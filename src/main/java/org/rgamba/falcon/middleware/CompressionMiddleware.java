@@ -0,0 +1,246 @@
+package org.rgamba.falcon.middleware;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.rgamba.falcon.BodyWriter;
+import org.rgamba.falcon.Header;
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.Middleware;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+
+
+/**
+ * Compression Middleware
+ *
+ * <p>Compresses response bodies with gzip or deflate, whichever the client
+ * prefers according to the q-values of its Accept-Encoding header. Bodies
+ * smaller than {@link Builder#setMinSize(int)}, media types that are
+ * already compressed like images and responses that already have a
+ * Content-Encoding are sent as they are.
+ *
+ * <p>Bodies held in memory are compressed right away and keep a
+ * Content-Length. Streamed bodies and those produced by a
+ * {@link BodyWriter} are compressed while they are sent, with the chunked
+ * transfer coding, and never held in memory as a whole.
+ *
+ * <p>Deflaters are pooled by the middleware, not allocated per response.
+ * It should be registered after the middleware that change the body, so
+ * it compresses the final one:
+ * <pre>
+ *   middleware.register(new CompressionMiddleware.Builder().setMinSize(512).build());
+ * </pre>
+ */
+public class CompressionMiddleware implements Middleware {
+  private static final String GZIP = "gzip";
+  private static final String DEFLATE = "deflate";
+  private static final int MAX_POOLED_DEFLATERS = 64;
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  private final int _minSize;
+  private final Set<String> _skippedTypes;
+  private final DeflaterPool _gzipDeflaters;
+  private final DeflaterPool _deflateDeflaters;
+
+  /**
+   * Create the middleware with the default settings, see {@link Builder}.
+   */
+  public CompressionMiddleware() {
+    this(new Builder());
+  }
+
+  private CompressionMiddleware(Builder builder) {
+    _minSize = builder.minSize;
+    _skippedTypes = new LinkedHashSet<>(builder.skippedTypes);
+    /* gzip frames raw deflate data itself */
+    _gzipDeflaters = new DeflaterPool(builder.level, true, MAX_POOLED_DEFLATERS);
+    _deflateDeflaters = new DeflaterPool(builder.level, false, MAX_POOLED_DEFLATERS);
+  }
+
+  @Override
+  public Response processResponse(Request request, Response response) {
+    if (!isCompressible(response)) {
+      return response;
+    }
+    BodyWriter writer = response.getBodyWriter();
+    byte[] bytes = writer == null && !response.isBodyStreamed() ? response.getBodyBytes() : null;
+    if (writer == null && !response.isBodyStreamed() && (bytes == null || bytes.length < _minSize)) {
+      return response;
+    }
+    Header length = response.getHeader("Content-Length");
+    if (response.isBodyStreamed() && length != null && Long.parseLong(length.getValue()) < _minSize) {
+      return response;
+    }
+    /* From here on the body sent depends on the Accept-Encoding */
+    Header acceptEncoding = request.getHeader("Accept-Encoding");
+    String coding = HttpUtils.preferredCoding(acceptEncoding != null ? acceptEncoding.getValue() : null,
+        GZIP, DEFLATE);
+    Response.Builder builder = new Response.Builder(response)
+        .setHeader("Vary", vary(response.getHeader("Vary")));
+    if (coding == null) {
+      return builder.build();
+    }
+    if (bytes != null) {
+      byte[] compressed = compress(bytes, coding);
+      if (compressed.length >= bytes.length) {
+        return builder.build();
+      }
+      builder.setBody(compressed);
+    } else if (writer != null) {
+      builder.setBody(sink -> {
+        try (OutputStream out = compressor(sink, coding)) {
+          writer.write(sink.through(out));
+        }
+      });
+    } else {
+      builder.setBody(sink -> {
+        try (InputStream in = response.openBodyStream(); OutputStream out = compressor(sink, coding)) {
+          byte[] buffer = new byte[COPY_BUFFER_SIZE];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        }
+      });
+    }
+    Header etag = response.getHeader("ETag");
+    if (etag != null) {
+      builder.setHeader("ETag", variantETag(etag.getValue(), coding));
+    }
+    /* Ranges would be of the body as is */
+    return builder.setHeader("Content-Encoding", coding).removeHeader("Accept-Ranges").build();
+  }
+
+  private boolean isCompressible(Response response) {
+    int status = response.getStatusCode();
+    if (status < 200 || status == 204 || status == 206 || status == 304) {
+      return false;
+    }
+    if (response.getHeader("Content-Encoding") != null) {
+      return false;
+    }
+    Header cacheControl = response.getHeader("Cache-Control");
+    if (cacheControl != null && cacheControl.getValue().toLowerCase(Locale.ROOT).contains("no-transform")) {
+      return false;
+    }
+    Header contentType = response.getHeader("Content-Type");
+    return contentType == null || !isSkipped(contentType.getValue());
+  }
+
+  private boolean isSkipped(String contentType) {
+    int semicolon = contentType.indexOf(';');
+    String mediaType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+        .trim().toLowerCase(Locale.ROOT);
+    if (_skippedTypes.contains(mediaType)) {
+      return true;
+    }
+    int slash = mediaType.indexOf('/');
+    return slash > 0 && _skippedTypes.contains(mediaType.substring(0, slash) + "/*");
+  }
+
+  private byte[] compress(byte[] bytes, String coding) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+    try (OutputStream compressed = compressor(out, coding)) {
+      compressed.write(bytes);
+    } catch (IOException e) {
+      /* Never thrown writing to memory */
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private OutputStream compressor(OutputStream out, String coding) throws IOException {
+    boolean gzip = coding.equals(GZIP);
+    return new CompressingOutputStream(out, gzip ? _gzipDeflaters : _deflateDeflaters, gzip);
+  }
+
+  /**
+   * @return The Vary header listing Accept-Encoding along with whatever it already listed
+   */
+  private static String vary(Header vary) {
+    if (vary == null) {
+      return "Accept-Encoding";
+    }
+    for (String name : vary.getValue().split(",")) {
+      name = name.trim();
+      if (name.equals("*") || name.equalsIgnoreCase("Accept-Encoding")) {
+        return vary.getValue();
+      }
+    }
+    return vary.getValue() + ", Accept-Encoding";
+  }
+
+  /**
+   * A strong ETag must change with the coding, a weak one is left as is
+   * since both bodies are equivalent.
+   */
+  private static String variantETag(String etag, String coding) {
+    if (etag.startsWith("W/") || etag.length() < 2 || !etag.endsWith("\"")) {
+      return etag;
+    }
+    return etag.substring(0, etag.length() - 1) + '-' + coding + '"';
+  }
+
+  /**
+   * CompressionMiddleware builder
+   */
+  public static class Builder {
+    private int minSize = 1024;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private Set<String> skippedTypes = new LinkedHashSet<>();
+
+    public Builder() {
+      for (String type : new String[]{"image/png", "image/jpeg", "image/gif", "image/webp", "image/avif",
+          "audio/*", "video/*", "font/woff", "font/woff2", "application/gzip", "application/x-gzip",
+          "application/zip", "application/x-bzip2", "application/x-7z-compressed", "application/x-rar-compressed",
+          "application/zstd", "application/pdf"}) {
+        skippedTypes.add(type);
+      }
+    }
+
+    /**
+     * @param minSize Smaller bodies are sent as they are, 1024 bytes by default
+     */
+    public Builder setMinSize(int minSize) {
+      if (minSize < 0) {
+        throw new IllegalArgumentException("the min size can't be negative");
+      }
+      this.minSize = minSize;
+      return this;
+    }
+
+    /**
+     * @param level From 1, the fastest, to 9, the smallest output, or -1 for the zlib default
+     */
+    public Builder setLevel(int level) {
+      if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+        throw new IllegalArgumentException("invalid compression level: " + level);
+      }
+      this.level = level;
+      return this;
+    }
+
+    /**
+     * Never compress a media type, on top of the already compressed ones
+     * skipped by default.
+     *
+     * @param mediaType Like "application/octet-stream", or "image/*" for a whole type
+     */
+    public Builder addSkippedType(String mediaType) {
+      skippedTypes.add(mediaType.trim().toLowerCase(Locale.ROOT));
+      return this;
+    }
+
+    public CompressionMiddleware build() {
+      return new CompressionMiddleware(this);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.rgamba.falcon.middleware;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.rgamba.falcon.Header;
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.Middleware;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+
+
+/**
+ * Conditional GET Middleware
+ *
+ * <p>Answers GET and HEAD requests with a bodiless 304 when the client
+ * already has the response. Responses without an ETag get one from a fast
+ * non-cryptographic hash of their body, so even dynamic responses that did
+ * not change between two polls are not sent again. If-None-Match is
+ * checked against the ETag, or else If-Modified-Since against the
+ * Last-Modified header set by the handler.
+ *
+ * <p>The body still has to be built to be hashed. Handlers that can tell
+ * the version of a resource up front, like a row's update counter, can
+ * skip building it with {@link #notModified(Request, String)}:
+ * <pre>
+ *   String etag = ConditionalGetMiddleware.etag("v" + user.getVersion());
+ *   Response notModified = ConditionalGetMiddleware.notModified(request, etag);
+ *   if (notModified != null) {
+ *     return notModified;
+ *   }
+ *   return new Response.Builder().setHeader("ETag", etag).setBody(user.toJson()).build();
+ * </pre>
+ *
+ * <p>It should be registered after {@link CompressionMiddleware}, so the
+ * ETag is the one of the body actually sent, and before
+ * {@link ResponseCacheMiddleware}, so the cache stores that ETag and can
+ * answer conditional requests for its hits.
+ */
+public class ConditionalGetMiddleware implements Middleware {
+  /* Headers a 304 carries over from the response it stands for, RFC 7232 section 4.1 */
+  private static final String[] NOT_MODIFIED_HEADERS = {
+      "Cache-Control", "Content-Location", "Date", "ETag", "Expires", "Vary", "Last-Modified"};
+
+  @Override
+  public Response processResponse(Request request, Response response) {
+    Request.Type type = request.getType();
+    if ((type != Request.Type.GET && type != Request.Type.HEAD) || response.getStatusCode() != 200) {
+      return response;
+    }
+    ByteBuffer body = response.getBodyBuffer();
+    if (response.getHeader("ETag") == null && body != null) {
+      response = new Response.Builder(response).setHeader("ETag", hashETag(body)).build();
+    }
+    return evaluate(request, response);
+  }
+
+  /**
+   * Check the conditional headers of a GET or HEAD request against a 200
+   * response, without adding an ETag to it. {@link ResponseCacheMiddleware}
+   * uses it for its hits, which never reach the response middleware.
+   *
+   * @return A 304 standing for the response if the client already has it,
+   *     the response itself otherwise
+   */
+  static Response evaluate(Request request, Response response) {
+    Request.Type type = request.getType();
+    if ((type != Request.Type.GET && type != Request.Type.HEAD) || response.getStatusCode() != 200) {
+      return response;
+    }
+    Header etag = response.getHeader("ETag");
+    Header ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return etag != null && matches(ifNoneMatch.getValue(), etag.getValue()) ? notModified(response) : response;
+    }
+    Header ifModifiedSince = request.getHeader("If-Modified-Since");
+    Header lastModified = response.getHeader("Last-Modified");
+    if (ifModifiedSince != null && lastModified != null) {
+      long since = HttpUtils.parseHttpDate(ifModifiedSince.getValue());
+      long modified = HttpUtils.parseHttpDate(lastModified.getValue());
+      if (since >= 0 && modified >= 0 && modified <= since) {
+        return notModified(response);
+      }
+    }
+    return response;
+  }
+
+  /**
+   * @param version A token that changes whenever the resource does, made of
+   *     printable ASCII characters other than the double quote
+   * @return The strong ETag for the version
+   * @throws IllegalArgumentException if the version is not a valid ETag value
+   */
+  public static String etag(String version) {
+    for (int i = 0; i < version.length(); i++) {
+      char c = version.charAt(i);
+      if (c <= ' ' || c == '"' || c >= 0x7f) {
+        throw new IllegalArgumentException("invalid ETag version: " + version);
+      }
+    }
+    return '"' + version + '"';
+  }
+
+  /**
+   * Check a request against the ETag of the current version of a
+   * resource, before building the response.
+   *
+   * @param etag The ETag of the resource, see {@link #etag(String)}
+   * @return A 304 response if the client has that version, null otherwise
+   */
+  public static Response notModified(Request request, String etag) {
+    Header ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch == null || !matches(ifNoneMatch.getValue(), etag)) {
+      return null;
+    }
+    return new Response.Builder().setStatusCode(Response.Status.NOT_MODIFIED).setHeader("ETag", etag).build();
+  }
+
+  /**
+   * Weak comparison of an If-None-Match header with an ETag.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    String opaque = opaqueTag(etag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || opaqueTag(candidate).equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaqueTag(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  private static Response notModified(Response response) {
+    Response.Builder builder = new Response.Builder().setStatusCode(Response.Status.NOT_MODIFIED);
+    for (String name : NOT_MODIFIED_HEADERS) {
+      Header header = response.getHeader(name);
+      if (header != null) {
+        builder.setHeader(name, header.getValue());
+      }
+    }
+    return builder.build();
+  }
+
+  private static String hashETag(ByteBuffer body) {
+    String hash = Long.toHexString(hash(body));
+    return "\"" + "0000000000000000".substring(hash.length()) + hash + "\"";
+  }
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  /**
+   * 64 bit hash of the remaining bytes, the single lane variant of
+   * xxHash64. It reads 8 bytes at a time and is not meant to resist
+   * attacks, only to tell two bodies apart.
+   */
+  static long hash(ByteBuffer bytes) {
+    ByteBuffer buffer = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    long hash = PRIME5 + buffer.remaining();
+    while (buffer.remaining() >= 8) {
+      long k = Long.rotateLeft(buffer.getLong() * PRIME2, 31) * PRIME1;
+      hash = Long.rotateLeft(hash ^ k, 27) * PRIME1 + PRIME4;
+    }
+    if (buffer.remaining() >= 4) {
+      hash = Long.rotateLeft(hash ^ ((buffer.getInt() & 0xffffffffL) * PRIME1), 23) * PRIME2 + PRIME3;
+    }
+    while (buffer.hasRemaining()) {
+      hash = Long.rotateLeft(hash ^ ((buffer.get() & 0xff) * PRIME5), 11) * PRIME1;
+    }
+    hash ^= hash >>> 33;
+    hash *= PRIME2;
+    hash ^= hash >>> 29;
+    hash *= PRIME3;
+    hash ^= hash >>> 32;
+    return hash;
+  }
+}
@@ -0,0 +1,62 @@
+package org.rgamba.falcon.middleware;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+
+/**
+ * DeflaterPool
+ *
+ * <p>Lock free pool of deflaters with the same settings. A deflater holds a
+ * few hundred KB of native memory which is only freed by {@link Deflater#end()},
+ * so allocating one per response costs far more than the reset done on
+ * release.
+ */
+final class DeflaterPool {
+  private final int _level;
+  private final boolean _nowrap;
+  private final int _maxPooled;
+  private final ConcurrentLinkedQueue<Deflater> _free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _pooled = new AtomicInteger();
+
+  /**
+   * @param level The compression level of the deflaters
+   * @param nowrap Produce raw deflate data, without the zlib header and checksum
+   * @param maxPooled Max number of idle deflaters kept, anything above is ended
+   */
+  DeflaterPool(int level, boolean nowrap, int maxPooled) {
+    _level = level;
+    _nowrap = nowrap;
+    _maxPooled = maxPooled;
+  }
+
+  /**
+   * @return A deflater ready for new input, allocated if the pool is empty
+   */
+  Deflater acquire() {
+    Deflater deflater = _free.poll();
+    if (deflater == null) {
+      return new Deflater(_level, _nowrap);
+    }
+    _pooled.decrementAndGet();
+    return deflater;
+  }
+
+  /**
+   * Return a deflater to the pool. It must not be used after this.
+   */
+  void release(Deflater deflater) {
+    deflater.reset();
+    if (_pooled.incrementAndGet() > _maxPooled) {
+      _pooled.decrementAndGet();
+      deflater.end();
+      return;
+    }
+    _free.offer(deflater);
+  }
+
+  int size() {
+    return _pooled.get();
+  }
+}
@@ -21,7 +21,9 @@ public class LoggerMiddleware implements Middleware {
 
   @Override
   public Request processRequest(Request request) {
-    LOGGER.info(request.getType() + " - " + request.getPath() + " IP: " + request.getRemoteAddress().toString());
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info(request.getType() + " - " + request.getPath() + " IP: " + request.getRemoteAddress());
+    }
     return request;
   }
 }
@@ -0,0 +1,374 @@
+package org.rgamba.falcon.middleware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.rgamba.falcon.Header;
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.LruCache;
+import org.rgamba.falcon.Middleware;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+
+
+/**
+ * Response Cache Middleware
+ *
+ * <p>Keeps the responses to GET and HEAD requests in memory for as long as
+ * their Cache-Control allows, s-maxage or else max-age, and sends them
+ * again without running the request handler. Responses are stored
+ * serialized, so a hit costs a lookup and a single write.
+ *
+ * <p>Responses are cached per method, host and request target, and per
+ * value of the request headers listed in their Vary header. Those marked
+ * private, no-store or no-cache, with a Set-Cookie, a streamed body or a
+ * Vary of "*" are never stored. Requests with an Authorization header or a
+ * no-store Cache-Control skip the cache, no-cache ones get a fresh response.
+ *
+ * <p>The cache holds at most {@link Builder#setMaxBytes(long)} bytes, split
+ * over a few independent LRU caches to keep contention low. A response
+ * larger than one of them is not cached.
+ *
+ * <p>Conditional requests are answered with a 304 when the stored response
+ * has a matching ETag or Last-Modified, see {@link ConditionalGetMiddleware}.
+ *
+ * <p>It should be registered after any middleware that changes responses,
+ * like {@link CompressionMiddleware} and {@link ConditionalGetMiddleware},
+ * since hits are sent as they were stored. The ETags hashed by the latter
+ * are then stored with the responses:
+ * <pre>
+ *   middleware.register(CompressionMiddleware.class);
+ *   middleware.register(ConditionalGetMiddleware.class);
+ *   middleware.register(new ResponseCacheMiddleware.Builder().setMaxBytes(64 &lt;&lt; 20).build());
+ * </pre>
+ */
+public class ResponseCacheMiddleware implements Middleware {
+  private static final int STRIPES = 16;
+  /* Rough cost of an entry besides its bytes */
+  private static final int ENTRY_OVERHEAD = 128;
+  private static final int[] CACHEABLE_STATUS = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+  private final LruCache<String, Variants>[] _stripes;
+  private final LongSupplier _clock;
+
+  /**
+   * Create the middleware with the default settings, see {@link Builder}.
+   */
+  public ResponseCacheMiddleware() {
+    this(new Builder());
+  }
+
+  @SuppressWarnings("unchecked")
+  private ResponseCacheMiddleware(Builder builder) {
+    _stripes = (LruCache<String, Variants>[]) new LruCache<?, ?>[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      _stripes[i] = new LruCache<>(builder.maxBytes / STRIPES, Variants::weight);
+    }
+    _clock = builder.clock;
+  }
+
+  @Override
+  public Response intercept(Request request) {
+    if (!isCacheable(request) || hasDirective(request.getHeader("Cache-Control"), "no-cache")) {
+      return null;
+    }
+    String key = key(request);
+    LruCache<String, Variants> stripe = stripe(key);
+    Variants variants = stripe.get(key);
+    if (variants == null) {
+      return null;
+    }
+    Entry entry = variants.get(variantKey(request, variants.vary));
+    if (entry == null) {
+      return null;
+    }
+    long now = _clock.getAsLong();
+    /* Stale entries are replaced by the fresh response */
+    if (now >= entry.expiresAt) {
+      return null;
+    }
+    /* Hits are not seen by the response middleware, so conditional requests are answered here */
+    Response response = ConditionalGetMiddleware.evaluate(request, entry.response);
+    if (response == entry.response) {
+      return response;
+    }
+    /* Dated like a full hit, which is sent with the current Date and its Age */
+    return new Response.Builder(response).setHeader("Date", HttpUtils.formatHttpDate(now))
+        .setHeader("Age", String.valueOf(Math.max(0, (now - entry.storedAt) / 1000))).build();
+  }
+
+  @Override
+  public Response processResponse(Request request, Response response) {
+    if (!isCacheable(request) || !isCacheable(response)) {
+      return response;
+    }
+    long maxAge = maxAge(response.getHeader("Cache-Control"));
+    if (maxAge <= 0) {
+      return response;
+    }
+    String[] vary = vary(response.getHeader("Vary"));
+    if (vary == null) {
+      return response;
+    }
+    Response serialized = response.serialized();
+    long now = _clock.getAsLong();
+    Entry entry = new Entry(serialized, now, now + maxAge * 1000);
+    String key = key(request);
+    LruCache<String, Variants> stripe = stripe(key);
+    Variants variants = stripe.get(key);
+    /* The Vary of a resource can change, older variants are then dropped */
+    if (variants == null || !Arrays.equals(variants.vary, vary)) {
+      variants = new Variants(vary);
+    }
+    stripe.put(key, variants.with(variantKey(request, vary), entry));
+    return serialized;
+  }
+
+  /**
+   * @return The number of responses held in memory
+   */
+  public int size() {
+    int size = 0;
+    for (LruCache<String, Variants> stripe : _stripes) {
+      for (Variants variants : stripe.toMap().values()) {
+        size += variants.entries.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return The bytes held in memory, roughly
+   */
+  public long getBytes() {
+    long bytes = 0;
+    for (LruCache<String, Variants> stripe : _stripes) {
+      bytes += stripe.weight();
+    }
+    return bytes;
+  }
+
+  public void clear() {
+    for (LruCache<String, Variants> stripe : _stripes) {
+      stripe.clear();
+    }
+  }
+
+  private LruCache<String, Variants> stripe(String key) {
+    int hash = key.hashCode();
+    return _stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  private static boolean isCacheable(Request request) {
+    Request.Type type = request.getType();
+    if (type != Request.Type.GET && type != Request.Type.HEAD) {
+      return false;
+    }
+    return request.getHeader("Authorization") == null && !hasDirective(request.getHeader("Cache-Control"), "no-store");
+  }
+
+  private static boolean isCacheable(Response response) {
+    if (Arrays.binarySearch(CACHEABLE_STATUS, response.getStatusCode()) < 0) {
+      return false;
+    }
+    if (response.isBodyStreamed() || response.getHeader("Set-Cookie") != null) {
+      return false;
+    }
+    Header cacheControl = response.getHeader("Cache-Control");
+    return !hasDirective(cacheControl, "private") && !hasDirective(cacheControl, "no-store")
+        && !hasDirective(cacheControl, "no-cache");
+  }
+
+  /**
+   * @return The seconds the response can be cached for, s-maxage taking
+   *     precedence over max-age, or 0 if it does not say
+   */
+  private static long maxAge(Header cacheControl) {
+    long sharedMaxAge = directiveValue(cacheControl, "s-maxage");
+    long maxAge = sharedMaxAge >= 0 ? sharedMaxAge : directiveValue(cacheControl, "max-age");
+    return Math.max(0, Math.min(maxAge, Integer.MAX_VALUE));
+  }
+
+  private static boolean hasDirective(Header cacheControl, String name) {
+    if (cacheControl == null) {
+      return false;
+    }
+    for (String directive : cacheControl.getValue().split(",")) {
+      int equals = directive.indexOf('=');
+      String directiveName = (equals < 0 ? directive : directive.substring(0, equals)).trim();
+      if (directiveName.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The value of a numeric directive or -1 if it is missing or invalid
+   */
+  private static long directiveValue(Header cacheControl, String name) {
+    if (cacheControl == null) {
+      return -1;
+    }
+    for (String directive : cacheControl.getValue().split(",")) {
+      int equals = directive.indexOf('=');
+      if (equals < 0 || !directive.substring(0, equals).trim().equalsIgnoreCase(name)) {
+        continue;
+      }
+      String value = directive.substring(equals + 1).trim();
+      if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+        value = value.substring(1, value.length() - 1);
+      }
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return The request headers the response varies on, lower cased and
+   *     sorted, or null if it varies on anything
+   */
+  private static String[] vary(Header vary) {
+    if (vary == null) {
+      return new String[0];
+    }
+    List<String> names = new ArrayList<>();
+    for (String name : vary.getValue().split(",")) {
+      name = name.trim().toLowerCase(Locale.ROOT);
+      if (name.equals("*")) {
+        return null;
+      }
+      if (!name.isEmpty() && !names.contains(name)) {
+        names.add(name);
+      }
+    }
+    String[] sorted = names.toArray(new String[0]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static String key(Request request) {
+    String host = request.getHost();
+    if (host == null && request.getHeader("Host") != null) {
+      host = request.getHeader("Host").getValue();
+    }
+    return request.getType() + " " + (host != null ? host.toLowerCase(Locale.ROOT) : "") + " " + request.getUri();
+  }
+
+  /**
+   * @return The values of the request headers the response varies on, in the order of the names
+   */
+  private static String variantKey(Request request, String[] vary) {
+    if (vary.length == 0) {
+      return "";
+    }
+    StringBuilder key = new StringBuilder();
+    for (String name : vary) {
+      List<Header> headers = request.getHeaders().getAll(name);
+      for (int i = 0; i < headers.size(); i++) {
+        key.append(i > 0 ? "," : "").append(headers.get(i).getValue().trim());
+      }
+      /* Header values can't contain a line feed */
+      key.append('\n');
+    }
+    return key.toString();
+  }
+
+  /**
+   * A stored response.
+   */
+  private static final class Entry {
+    final Response response;
+    final long storedAt;
+    final long expiresAt;
+    final long weight;
+
+    Entry(Response response, long storedAt, long expiresAt) {
+      this.response = response;
+      this.storedAt = storedAt;
+      this.expiresAt = expiresAt;
+      Header length = response.getHeader("Content-Length");
+      long weight = ENTRY_OVERHEAD + (length != null ? Long.parseLong(length.getValue()) : 0);
+      for (Header header : response.getHeaders().toArray()) {
+        weight += header.getName().length() + header.getValue().length() + 4;
+      }
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * The responses stored for a resource, one per combination of values of
+   * the headers it varies on. Immutable, so its weight never changes while
+   * it is cached.
+   */
+  private static final class Variants {
+    final String[] vary;
+    final Map<String, Entry> entries;
+    private final long _weight;
+
+    Variants(String[] vary) {
+      this(vary, new HashMap<>());
+    }
+
+    private Variants(String[] vary, Map<String, Entry> entries) {
+      this.vary = vary;
+      this.entries = entries;
+      long weight = ENTRY_OVERHEAD;
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        weight += entry.getKey().length() + entry.getValue().weight;
+      }
+      _weight = weight;
+    }
+
+    Entry get(String variantKey) {
+      return entries.get(variantKey);
+    }
+
+    Variants with(String variantKey, Entry entry) {
+      Map<String, Entry> entries = new HashMap<>(this.entries);
+      entries.put(variantKey, entry);
+      return new Variants(vary, entries);
+    }
+
+    long weight() {
+      return _weight;
+    }
+  }
+
+  /**
+   * ResponseCacheMiddleware builder
+   */
+  public static class Builder {
+    private long maxBytes = 32 << 20;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * @param maxBytes Budget for all the cached responses, 32 MB by default
+     */
+    public Builder setMaxBytes(long maxBytes) {
+      if (maxBytes < 0) {
+        throw new IllegalArgumentException("the cache size can't be negative");
+      }
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    Builder setClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public ResponseCacheMiddleware build() {
+      return new ResponseCacheMiddleware(this);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package org.rgamba.falcon;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * VirtualThreads
+ *
+ * <p>Access to virtual threads, this version is picked from the
+ * multi-release jar when running on Java 21 or newer.
+ */
+final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return true if the running JVM can create virtual threads
+   */
+  static boolean isSupported() {
+    return true;
+  }
+
+  /**
+   * @param prefix Name prefix of the created threads, followed by a counter
+   * @return A factory of virtual threads
+   */
+  static ThreadFactory newThreadFactory(String prefix) {
+    return Thread.ofVirtual().name(prefix, 0).factory();
+  }
+}
@@ -0,0 +1,138 @@
+package org.rgamba.falcon;
+
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.testng.Assert.*;
+
+
+public class ByteRequestParserTest {
+  private static final String CRLF = HttpConstants.CRLF;
+
+  @DataProvider
+  private Object[][] validRequests() {
+    //@formatter:off
+    return new Object[][]{
+        {"POST /login HTTP/1.1" + CRLF
+            + "Host: mysite.com" + CRLF
+            + "User-Agent: curl/7.49.1" + CRLF
+            + "Accept: */*" + CRLF
+            + "Content-Length: 27" + CRLF
+            + "Content-Type: application/x-www-form-urlencoded" + CRLF
+            + CRLF
+            + "name=Ricardo&lastname=Gamba"},
+        {"GET /search?query=hello+world&page=2#stuff HTTP/1.1" + CRLF
+            + "host: mysite.com" + CRLF
+            + "X-Custom-Header:   spaced value  " + CRLF
+            + "X-Empty:" + CRLF
+            + CRLF},
+        {"GET http://mysite.com:80/search?query=hello+world HTTP/1.1" + CRLF
+            + "User-Agent: curl/7.49.1" + CRLF
+            + CRLF},
+        {"DELETE /items/1 HTTP/1.1" + CRLF + CRLF},
+        {"GET / HTTP/1.1" + CRLF
+            + "Accept: text/html" + CRLF
+            + "Cookie: a=1" + CRLF
+            + "Accept: */*" + CRLF
+            + "Cookie: b=2" + CRLF
+            + CRLF},
+    };
+    //@formatter:on
+  }
+
+  @Test(dataProvider = "validRequests")
+  public void testEquivalentToRequestParser(String raw) throws Exception {
+    Request expected = new RequestParser(new ByteArrayInputStream(raw.getBytes()), null, 1024).buildRequest();
+    Request actual = parse(raw);
+
+    assertEquals(actual.getType(), expected.getType());
+    assertEquals(actual.getUri(), expected.getUri());
+    assertEquals(actual.getPath(), expected.getPath());
+    assertEquals(actual.getUrl(), expected.getUrl());
+    assertEquals(actual.getQueryParams(), expected.getQueryParams());
+    assertEquals(actual.getContentLength(), expected.getContentLength());
+    assertEquals(actual.getHeaders().toArray(), expected.getHeaders().toArray());
+    assertEquals(actual.readAllBody(), expected.readAllBody());
+  }
+
+  @Test
+  public void testIncompleteHead() {
+    String raw = "GET /home HTTP/1.1" + CRLF + "Host: mysite.com" + CRLF + CRLF;
+    ByteRequestParser parser = new ByteRequestParser(null, 1024);
+    byte[] bytes = raw.getBytes();
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals(parser.parseHead(bytes, 0, i), ByteRequestParser.NEED_MORE_BYTES);
+    }
+    assertEquals(parser.parseHead(bytes, 0, bytes.length), bytes.length);
+  }
+
+  @Test
+  public void testPipelinedHeads() {
+    String first = "GET /one HTTP/1.1" + CRLF + CRLF;
+    String second = "GET /two HTTP/1.1" + CRLF + "Host: mysite.com" + CRLF + CRLF;
+    byte[] bytes = (first + second).getBytes();
+    ByteRequestParser parser = new ByteRequestParser(null, 1024);
+    assertEquals(parser.parseHead(bytes, 0, bytes.length), first.length());
+    assertEquals(parser.parseHead(bytes, first.length(), bytes.length), second.length());
+    Request request = parser.buildRequest(bytes, first.length(), new ByteArrayInputStream(new byte[0]));
+    assertEquals(request.getPath(), "/two");
+    assertEquals(request.getHeaders().get("host").getValue(), "mysite.com");
+  }
+
+  @Test
+  public void testRepeatedHeaders() throws Exception {
+    Request request = parse("GET / HTTP/1.1" + CRLF + "Cookie: a=1" + CRLF + "Accept: text/html" + CRLF
+        + "Cookie: b=2; c=3" + CRLF + CRLF);
+    assertEquals(request.getHeaders().getAll("Cookie").size(), 2);
+    assertEquals(request.getCookie("a"), "1");
+    assertEquals(request.getCookie("c"), "3");
+  }
+
+  @Test
+  public void testRepeatedContentLength() throws Exception {
+    Request request = parse("POST / HTTP/1.1" + CRLF + "Content-Length: 5" + CRLF + "Content-Length: 5" + CRLF + CRLF
+        + "hello");
+    assertEquals(request.getContentLength(), Long.valueOf(5));
+    assertEquals(request.readAllBody(), "hello");
+  }
+
+  @DataProvider
+  private Object[][] invalidRequests() {
+    //@formatter:off
+    return new Object[][]{
+        {"INVALID / HTTP/1.1" + CRLF + CRLF},
+        {"POST / INVALID" + CRLF + CRLF},
+        {"POST HTTP/1.1" + CRLF + CRLF},
+        {"GET  HTTP/1.1" + CRLF + CRLF},
+        {"GET invalid:asd!/search?query=hello+world HTTP/1.1" + CRLF + CRLF},
+        {"GET / HTTP/1.1" + CRLF + "Invalid Header: value" + CRLF + CRLF},
+        {"GET / HTTP/1.1" + CRLF + "No-Colon" + CRLF + CRLF},
+        {"GET / HTTP/1.1" + CRLF + "Content-Length: 12a" + CRLF + CRLF},
+        {"GET / HTTP/1.1" + CRLF + "Bad-Value: a\u0001b" + CRLF + CRLF},
+        {"POST / HTTP/1.1" + CRLF + "Transfer-Encoding: gzip, chunked" + CRLF + CRLF},
+        {"POST / HTTP/1.1" + CRLF + "Content-Length: 5" + CRLF + "Transfer-Encoding: chunked" + CRLF + CRLF},
+        {"POST / HTTP/1.1" + CRLF + "Transfer-Encoding: chunked" + CRLF + "Content-Length: 5" + CRLF + CRLF},
+        {"POST / HTTP/1.1" + CRLF + "Content-Length: 5" + CRLF + "Content-Length: 6" + CRLF + CRLF},
+    };
+    //@formatter:on
+  }
+
+  @Test(dataProvider = "invalidRequests", expectedExceptions = BadRequest.class)
+  public void testInvalidRequest(String raw) throws Exception {
+    parse(raw);
+  }
+
+  @Test(expectedExceptions = PayloadTooLarge.class)
+  public void testContentLengthTooLarge() throws Exception {
+    parse("POST / HTTP/1.1" + CRLF + "Content-Length: 2048" + CRLF + CRLF);
+  }
+
+  private Request parse(String raw) throws Exception {
+    ConnectionInputStream input = new ConnectionInputStream(new ByteArrayInputStream(raw.getBytes()));
+    return new ByteRequestParser(null, 1024).buildRequest(input);
+  }
+}
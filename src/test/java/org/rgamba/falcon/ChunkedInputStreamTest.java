@@ -0,0 +1,207 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class ChunkedInputStreamTest {
+  private static final String CRLF = HttpConstants.CRLF;
+  private static final String BODY = "4" + CRLF + "Wiki" + CRLF + "5;name=value" + CRLF + "pedia" + CRLF
+      + "E" + CRLF + " in" + CRLF + CRLF + "chunks." + CRLF + "0" + CRLF + "X-Checksum: abc" + CRLF + CRLF;
+
+  @Test
+  public void testDecode() throws Exception {
+    ByteArrayInputStream in = new ByteArrayInputStream((BODY + "GET / HTTP/1.1").getBytes(StandardCharsets.US_ASCII));
+    ChunkedInputStream chunked = new ChunkedInputStream(in, 1024);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = chunked.read()) != -1) {
+      out.write(b);
+    }
+    assertEquals(out.toString("US-ASCII"), "Wikipedia in" + CRLF + CRLF + "chunks.");
+    /* The next request is left in the connection */
+    assertEquals(in.available(), "GET / HTTP/1.1".length());
+    assertEquals(chunked.read(new byte[10], 0, 10), -1);
+    assertTrue(chunked.drain());
+  }
+
+  @Test
+  public void testBodyLength() {
+    byte[] bytes = ("HEAD" + BODY + "GET / HTTP/1.1").getBytes(StandardCharsets.US_ASCII);
+    assertEquals(ChunkedInputStream.bodyLength(bytes, 4, bytes.length, 1024), BODY.length());
+    for (int i = 4; i < 4 + BODY.length(); i++) {
+      assertEquals(ChunkedInputStream.bodyLength(bytes, 4, i, 1024), ByteRequestParser.NEED_MORE_BYTES);
+    }
+  }
+
+  @Test
+  public void testScannerResumes() {
+    byte[] bytes = ("HEAD" + BODY + "GET / HTTP/1.1").getBytes(StandardCharsets.US_ASCII);
+    ChunkedInputStream.Scanner scanner = new ChunkedInputStream.Scanner(1024);
+    for (int i = 4; i < 4 + BODY.length(); i++) {
+      assertEquals(scanner.scan(bytes, 4, i), ByteRequestParser.NEED_MORE_BYTES);
+    }
+    assertEquals(scanner.scan(bytes, 4, bytes.length), BODY.length());
+  }
+
+  @Test(expectedExceptions = PayloadTooLarge.class)
+  public void testScannerLimitSpansCalls() {
+    byte[] bytes = ("8" + CRLF + "12345678" + CRLF + "3" + CRLF + "123" + CRLF + "0" + CRLF + CRLF)
+        .getBytes(StandardCharsets.US_ASCII);
+    ChunkedInputStream.Scanner scanner = new ChunkedInputStream.Scanner(10);
+    assertEquals(scanner.scan(bytes, 0, 15), ByteRequestParser.NEED_MORE_BYTES);
+    scanner.scan(bytes, 0, bytes.length);
+  }
+
+  @DataProvider
+  private Object[][] invalidBodies() {
+    //@formatter:off
+    return new Object[][]{
+        {"x" + CRLF + "data" + CRLF + "0" + CRLF + CRLF},
+        {"4" + CRLF + "datadata" + CRLF + "0" + CRLF + CRLF},
+        {"-4" + CRLF + "data" + CRLF + "0" + CRLF + CRLF},
+        {"4" + CRLF + "data" + CRLF + "0" + CRLF + "Bad: a\u0001b" + CRLF + CRLF},
+    };
+    //@formatter:on
+  }
+
+  @DataProvider
+  private Object[][] tooLargeBodies() {
+    //@formatter:off
+    return new Object[][]{
+        {"fffffffffffffffff" + CRLF},
+        {"b" + CRLF + "12345678901" + CRLF + "0" + CRLF + CRLF},
+        /* Each chunk fits but the body is too large */
+        {"8" + CRLF + "12345678" + CRLF + "3" + CRLF + "123" + CRLF + "0" + CRLF + CRLF},
+    };
+    //@formatter:on
+  }
+
+  @Test(dataProvider = "invalidBodies", expectedExceptions = BadRequest.class)
+  public void testInvalidBody(String body) throws Exception {
+    InputStream in = new ChunkedInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), 10);
+    while (in.read(new byte[4], 0, 4) != -1) {
+      /* Discarded */
+    }
+  }
+
+  @Test(dataProvider = "invalidBodies", expectedExceptions = BadRequest.class)
+  public void testInvalidBodyLength(String body) {
+    byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+    ChunkedInputStream.bodyLength(bytes, 0, bytes.length, 10);
+  }
+
+  @Test(dataProvider = "tooLargeBodies", expectedExceptions = PayloadTooLarge.class)
+  public void testBodyTooLargeWhileRead(String body) throws Exception {
+    InputStream in = new ChunkedInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), 10);
+    while (in.read(new byte[4], 0, 4) != -1) {
+      /* Discarded */
+    }
+  }
+
+  @Test(dataProvider = "tooLargeBodies", expectedExceptions = PayloadTooLarge.class)
+  public void testBodyTooLargeLength(String body) {
+    byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+    ChunkedInputStream.bodyLength(bytes, 0, bytes.length, 10);
+  }
+
+  @Test(expectedExceptions = EOFException.class)
+  public void testIncompleteBody() throws Exception {
+    byte[] bytes = ("5" + CRLF + "abc").getBytes(StandardCharsets.US_ASCII);
+    InputStream in = new ChunkedInputStream(new ByteArrayInputStream(bytes), 10);
+    while (in.read(new byte[4], 0, 4) != -1) {
+      /* Discarded */
+    }
+  }
+
+  @Test
+  public void testDrainIncompleteBody() throws Exception {
+    byte[] bytes = ("5" + CRLF + "abc").getBytes(StandardCharsets.US_ASCII);
+    assertFalse(new ChunkedInputStream(new ByteArrayInputStream(bytes), 10).drain());
+  }
+
+  @DataProvider
+  public Object[][] transports() {
+    return new Object[][]{{ServerConfig.Transport.BLOCKING}, {ServerConfig.Transport.NIO}};
+  }
+
+  @Test(dataProvider = "transports")
+  public void testChunkedUpload(ServerConfig.Transport transport) throws Exception {
+    HttpServer server = startServer(transport, req -> {
+      if (req.getPath().equals("/channel/")) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        try {
+          while (req.getBodyChannel().read(buffer) != -1) {
+            /* Read until the last chunk */
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        return new Response.Builder().setBody(new String(buffer.array(), 0, buffer.position(),
+            StandardCharsets.US_ASCII)).build();
+      }
+      return new Response.Builder().setBody(req.isChunked() + ":" + req.readAllBody()).build();
+    });
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      String head = "POST /channel HTTP/1.1" + CRLF + "Transfer-Encoding: chunked" + CRLF + CRLF;
+      /* The body arrives in several reads */
+      client.send(head + BODY.substring(0, 20));
+      Thread.sleep(50);
+      client.send(BODY.substring(20) + "POST /text HTTP/1.1" + CRLF + "Transfer-Encoding: Chunked" + CRLF + CRLF
+          + BODY + "GET /text HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "Wikipedia in" + CRLF + CRLF + "chunks."));
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "true:Wikipedia in" + CRLF + CRLF + "chunks."));
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "false:"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testUnreadBodyIsSkipped(ServerConfig.Transport transport) throws Exception {
+    HttpServer server = startServer(transport, req -> new Response.Builder().setBody(req.getPath()).build());
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("POST /first HTTP/1.1" + CRLF + "Transfer-Encoding: chunked" + CRLF + CRLF + BODY
+          + "GET /second HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "/first/"));
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "/second/"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testBodyTooLarge(ServerConfig.Transport transport) throws Exception {
+    Function<Request, Response> handler = req -> new Response.Builder().setBody(req.readAllBody()).build();
+    HttpServer server = startServer(transport, handler);
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      body.append("10").append(CRLF).append("0123456789abcdef").append(CRLF);
+    }
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("POST / HTTP/1.1" + CRLF + "Transfer-Encoding: chunked" + CRLF + CRLF + body + "0" + CRLF + CRLF);
+      /* Same as a body with a Content-Length over the limit */
+      assertTrue(client.readResponse().startsWith("HTTP/1.1 413 PAYLOAD TOO LARGE" + CRLF));
+    } finally {
+      server.stop();
+    }
+  }
+
+  private HttpServer startServer(ServerConfig.Transport transport,
+      Function<Request, Response> handler) throws Exception {
+    HttpServer server = new HttpServer(0, new MiddlewareSet(), handler);
+    server.setConfig(new ServerConfig.Builder().setTransport(transport).setMaxRequestContentLength(256).build());
+    return HttpTestClient.startServer(server);
+  }
+}
@@ -22,7 +22,7 @@ public class HeadersTest {
     Headers headers = new Headers();
     headers.set("Server", "test");
     headers.remove("Server");
-    assertFalse(headers._headers.containsKey("Server"));
+    assertFalse(headers.contains("Server"));
   }
 
   @Test
@@ -49,15 +49,76 @@ public class HeadersTest {
     headers.set("Date", "2018-01-01");
     headers.set("Content-Type", "test");
     Header[] headerArray = headers.toArray();
-    assertEquals(headerArray.length, headers._headers.size());
+    assertEquals(headerArray.length, headers.size());
     Header[] expected = new Header[]{
-        new Header("Content-Type", "test"),
+        new Header("Server", "test"),
         new Header("Date", "2018-01-01"),
-        new Header("Server", "test")
+        new Header("Content-Type", "test")
     };
     for (int i = 0; i < headerArray.length; i++) {
       if (headerArray[i].getName() != expected[i].getName())
         fail("Expected " + expected[i].getName() + " and got: " + headerArray[i].getName());
     }
   }
+
+  @Test
+  public void testCaseInsensitive() {
+    Headers headers = new Headers();
+    headers.set("Content-Type", "text/html");
+    assertEquals(headers.get("content-type").getValue(), "text/html");
+    headers.remove("CONTENT-TYPE");
+    assertFalse(headers.contains("Content-Type"));
+  }
+
+  @Test
+  public void testCopyOnWrite() {
+    Headers original = new Headers();
+    original.set("Server", "test");
+    Headers copy = new Headers(original);
+    assertSame(copy.get("Server"), original.get("Server"));
+
+    copy.set("Date", "2018-01-01");
+    original.remove("Server");
+    assertFalse(original.contains("Date"));
+    assertTrue(copy.contains("Server"));
+    assertEquals(copy.size(), 2);
+    assertEquals(original.size(), 0);
+  }
+
+  @Test
+  public void testMultipleValues() {
+    Headers headers = new Headers();
+    headers.add("Set-Cookie", "a=1");
+    headers.set("X-Custom", "custom");
+    headers.add("set-cookie", "b=2");
+    assertEquals(headers.get("Set-Cookie").getValue(), "a=1");
+    assertEquals(headers.getAll("SET-COOKIE").size(), 2);
+    assertEquals(headers.getAll("Set-Cookie").get(1).getValue(), "b=2");
+
+    headers.set("Set-Cookie", "c=3");
+    Header[] expected = new Header[]{new Header("Set-Cookie", "c=3"), new Header("X-Custom", "custom")};
+    assertEquals(headers.toArray(), expected);
+    headers.remove("Set-Cookie");
+    assertTrue(headers.getAll("Set-Cookie").isEmpty());
+  }
+
+  @Test
+  public void testKnownHeaderIds() {
+    Headers headers = new Headers();
+    headers.set("content-length", "12");
+    headers.set("X-Content-Length", "1");
+    assertEquals(headers.get(Headers.CONTENT_LENGTH).getValue(), "12");
+    assertEquals(headers.get("Content-Length").getValue(), "12");
+    assertNull(headers.get(Headers.HOST));
+  }
+
+  @Test
+  public void testGrow() {
+    Headers headers = new Headers();
+    for (int i = 0; i < 20; i++) {
+      headers.set("X-Header-" + i, String.valueOf(i));
+    }
+    assertEquals(headers.size(), 20);
+    assertEquals(headers.get("x-header-19").getValue(), "19");
+  }
 }
@@ -0,0 +1,36 @@
+package org.rgamba.falcon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class HttpDateTest {
+  @Test
+  public void testImfFixdate() {
+    assertEquals(HttpDate.format(784111777000L), "Sun, 06 Nov 1994 08:49:37 GMT");
+    assertEquals(HttpDate.format(0), "Thu, 01 Jan 1970 00:00:00 GMT");
+  }
+
+  @Test
+  public void testRenderedOncePerSecond() {
+    AtomicLong now = new AtomicLong(784111777000L);
+    HttpDate date = new HttpDate(now::get);
+    String first = date.get();
+    now.addAndGet(999);
+    assertSame(date.get(), first);
+    assertSame(date.getBytes(first), date.getBytes());
+    now.addAndGet(1);
+    assertEquals(date.get(), "Sun, 06 Nov 1994 08:49:38 GMT");
+    assertEquals(new String(date.getBytes(), StandardCharsets.US_ASCII), "Sun, 06 Nov 1994 08:49:38 GMT");
+    assertNull(date.getBytes(first));
+  }
+
+  @Test
+  public void testDefaultDateHeader() {
+    Response response = new Response.Builder().build();
+    assertTrue(response.getHeader("Date").getValue().matches("\\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"));
+  }
+}
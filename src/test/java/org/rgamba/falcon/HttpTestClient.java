@@ -0,0 +1,166 @@
+package org.rgamba.falcon;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+
+/**
+ * Minimal raw socket client used to test the transports.
+ */
+class HttpTestClient implements AutoCloseable {
+  private final Socket _socket;
+  private final InputStream _input;
+  private String _trailers = "";
+  private byte[] _body = new byte[0];
+
+  HttpTestClient(int port) throws IOException {
+    _socket = new Socket("localhost", port);
+    _socket.setSoTimeout(5000);
+    _input = new BufferedInputStream(_socket.getInputStream());
+  }
+
+  static HttpServer startServer(HttpServer server) throws InterruptedException {
+    Thread thread = new Thread(server::listen);
+    thread.setDaemon(true);
+    thread.start();
+    while (server.getLocalPort() <= 0) {
+      Thread.sleep(10);
+    }
+    return server;
+  }
+
+  void send(String raw) throws IOException {
+    _socket.getOutputStream().write(raw.getBytes("UTF-8"));
+    _socket.getOutputStream().flush();
+  }
+
+  /**
+   * Read a single response framed by its Content-Length header or chunked,
+   * in which case the body is returned decoded.
+   */
+  String readResponse() throws IOException {
+    String head = readHead();
+    if (head.toLowerCase().contains("transfer-encoding: chunked")) {
+      return head + readChunkedBody();
+    }
+    int contentLength = 0;
+    for (String line : head.toString().split(HttpConstants.CRLF)) {
+      if (line.toLowerCase().startsWith("content-length:")) {
+        contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+      }
+    }
+    byte[] body = new byte[contentLength];
+    int offset = 0;
+    while (offset < contentLength) {
+      int read = _input.read(body, offset, contentLength - offset);
+      if (read == -1) {
+        throw new IOException("connection closed");
+      }
+      offset += read;
+    }
+    _body = body;
+    return head + new String(body, "UTF-8");
+  }
+
+  /**
+   * @return The trailers of the last chunked response, one per line
+   */
+  String getTrailers() {
+    return _trailers;
+  }
+
+  /**
+   * @return The body of the last response as is, for binary ones
+   */
+  byte[] getBody() {
+    return _body;
+  }
+
+  /**
+   * Read only the head of a response, for those without a body.
+   */
+  String readHead() throws IOException {
+    StringBuilder head = new StringBuilder();
+    while (!head.toString().endsWith(HttpConstants.CRLF + HttpConstants.CRLF)) {
+      head.append((char) readByte());
+    }
+    return head.toString();
+  }
+
+  private String readChunkedBody() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int size;
+    while ((size = Integer.parseInt(readLine(), 16)) > 0) {
+      for (int i = 0; i < size; i++) {
+        body.write(readByte());
+      }
+      if (!readLine().isEmpty()) {
+        throw new IOException("missing CRLF after chunk");
+      }
+    }
+    StringBuilder trailers = new StringBuilder();
+    String line;
+    while (!(line = readLine()).isEmpty()) {
+      trailers.append(line).append(HttpConstants.CRLF);
+    }
+    _trailers = trailers.toString();
+    _body = body.toByteArray();
+    return new String(_body, "UTF-8");
+  }
+
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (line.length() < 2 || line.lastIndexOf(HttpConstants.CRLF) != line.length() - 2) {
+      line.append((char) readByte());
+    }
+    return line.substring(0, line.length() - 2);
+  }
+
+  private int readByte() throws IOException {
+    int b = _input.read();
+    if (b == -1) {
+      throw new IOException("connection closed");
+    }
+    return b;
+  }
+
+  String readAll() throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = _input.read(buffer)) != -1) {
+      result.write(buffer, 0, read);
+    }
+    return new String(result.toByteArray(), "UTF-8");
+  }
+
+  /**
+   * Read raw bytes until they end with the given text.
+   */
+  String readAll(String until) throws IOException {
+    StringBuilder result = new StringBuilder();
+    while (result.length() < until.length() || !result.toString().endsWith(until)) {
+      result.append((char) readByte());
+    }
+    return result.toString();
+  }
+
+  InputStream getInputStream() {
+    return _input;
+  }
+
+  /**
+   * @return true if the server closed the connection
+   */
+  boolean isClosedByServer() throws IOException {
+    return _input.read() == -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    _socket.close();
+  }
+}
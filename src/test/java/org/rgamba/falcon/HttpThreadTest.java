@@ -0,0 +1,133 @@
+package org.rgamba.falcon;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class HttpThreadTest {
+  private final String CRLF = HttpConstants.CRLF;
+  private HttpServer server;
+
+  @BeforeClass
+  public void startServer() throws Exception {
+    server = new HttpServer(0, new MiddlewareSet(), req -> {
+      /* Never reads the request body */
+      return new Response.Builder().setBody("Hello " + req.getPath()).build();
+    });
+    server.setConfig(new ServerConfig.Builder().setMaxRequestsPerConnection(3).setKeepAliveTimeout(200).build());
+    HttpTestClient.startServer(server);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void testKeepAliveDrainsUnreadBody() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("POST /first HTTP/1.1" + CRLF + "Content-Length: 9" + CRLF + CRLF + "ignore me");
+      String first = client.readResponse();
+      assertFalse(first.contains("Connection: close"));
+      assertTrue(first.endsWith("Hello /first/"));
+      client.send("GET /second HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith("Hello /second/"));
+    }
+  }
+
+  @Test
+  public void testConnectionClose() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET / HTTP/1.1" + CRLF + "Connection: close" + CRLF + CRLF);
+      assertTrue(client.readResponse().contains("Connection: close" + CRLF));
+      assertTrue(client.isClosedByServer());
+    }
+  }
+
+  @Test
+  public void testMaxRequestsPerConnection() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      for (int i = 0; i < 3; i++) {
+        client.send("GET / HTTP/1.1" + CRLF + CRLF);
+        String response = client.readResponse();
+        assertEquals(response.contains("Connection: close"), i == 2);
+      }
+      assertTrue(client.isClosedByServer());
+    }
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET / HTTP/1.1" + CRLF + CRLF);
+      client.readResponse();
+      Thread.sleep(400);
+      assertTrue(client.isClosedByServer());
+    }
+  }
+
+  @Test
+  public void testPipelinedRequests() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /one HTTP/1.1" + CRLF + CRLF
+          + "POST /two HTTP/1.1" + CRLF + "Content-Length: 3" + CRLF + CRLF + "two"
+          + "GET /three HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith("Hello /one/"));
+      assertTrue(client.readResponse().endsWith("Hello /two/"));
+      String last = client.readResponse();
+      assertTrue(last.contains("Connection: close" + CRLF));
+      assertTrue(last.endsWith("Hello /three/"));
+      assertTrue(client.isClosedByServer());
+    }
+  }
+
+  @Test
+  public void testHeadThenGet() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("HEAD /first HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      String head = client.readHead();
+      assertTrue(head.startsWith("HTTP/1.1 200 OK" + CRLF));
+      /* The length of the body a GET would get */
+      assertTrue(head.contains("Content-Length: 13" + CRLF));
+      client.send("GET /second HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      String response = client.readResponse();
+      assertTrue(response.startsWith("HTTP/1.1 200 OK" + CRLF));
+      assertTrue(response.endsWith(CRLF + CRLF + "Hello /second/"));
+    }
+  }
+
+  @Test
+  public void testPartFilesDeletedOnceAnswered() throws Exception {
+    final List<Path> files = new CopyOnWriteArrayList<>();
+    final MultipartConfig multipart = new MultipartConfig.Builder().setMemoryThreshold(0).build();
+    HttpServer upload = new HttpServer(0, new MiddlewareSet(), req -> {
+      Part part = req.getParts(multipart).get(0);
+      files.add(part.getPath());
+      return new Response.Builder().setBody("Size " + part.getSize()).build();
+    });
+    upload.setConfig(new ServerConfig.Builder().build());
+    HttpTestClient.startServer(upload);
+    String body = "--AaB03x" + CRLF + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"" + CRLF
+        + CRLF + "HELLO" + CRLF + "--AaB03x--" + CRLF;
+    String request = "POST /upload HTTP/1.1" + CRLF + "Content-Type: multipart/form-data; boundary=AaB03x" + CRLF
+        + "Content-Length: " + body.length() + CRLF + CRLF + body;
+    try (HttpTestClient client = new HttpTestClient(upload.getLocalPort())) {
+      client.send(request);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "Size 5"));
+      /* The first request is closed before the second one is read */
+      client.send(request);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "Size 5"));
+      assertEquals(files.size(), 2);
+      assertFalse(Files.exists(files.get(0)));
+    } finally {
+      upload.stop();
+    }
+  }
+}
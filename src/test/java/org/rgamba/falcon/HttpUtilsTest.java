@@ -26,4 +26,26 @@ public class HttpUtilsTest {
   public void testTokens(String token, boolean valid) {
     assertEquals(HttpUtils.isValidToken(token), valid);
   }
+
+  @DataProvider
+  private Object[][] testPreferredCoding() {
+    //@formatter:off
+    return new Object[][]{
+            //
+            {null,                        null},
+            {"gzip, deflate",             "gzip"},
+            {"deflate, gzip",             "gzip"},
+            {"GZIP;q=0.5, deflate;q=0.8", "deflate"},
+            {"gzip;q=0, *",               "deflate"},
+            {"*;q=0",                     null},
+            {"identity, br",              null},
+            {"gzip;q=invalid",            null},
+    };
+    //@formatter:on
+  }
+
+  @Test(dataProvider = "testPreferredCoding")
+  public void testPreferredCoding(String acceptEncoding, String expected) {
+    assertEquals(HttpUtils.preferredCoding(acceptEncoding, "gzip", "deflate"), expected);
+  }
 }
@@ -0,0 +1,44 @@
+package org.rgamba.falcon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class LruCacheTest {
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    LruCache<String, String> cache = new LruCache<>(10, String::length);
+    assertTrue(cache.put("a", "aaaa"));
+    assertTrue(cache.put("b", "bbbb"));
+    assertEquals(cache.get("a"), "aaaa");
+    assertTrue(cache.put("c", "cccc"));
+    assertNull(cache.get("b"));
+    assertEquals(new ArrayList<>(cache.toMap().keySet()), Arrays.asList("a", "c"));
+    assertEquals(cache.weight(), 8);
+  }
+
+  @Test
+  public void testReplaceAndRemove() {
+    LruCache<String, String> cache = new LruCache<>(10, String::length);
+    cache.put("a", "aaaa");
+    cache.put("a", "aa");
+    assertEquals(cache.weight(), 2);
+    assertFalse(cache.remove("a", "other"));
+    assertTrue(cache.remove("a", "aa"));
+    assertNull(cache.remove("a"));
+    assertEquals(cache.size(), 0);
+    assertEquals(cache.weight(), 0);
+  }
+
+  @Test
+  public void testTooHeavy() {
+    LruCache<String, String> cache = new LruCache<>(3, String::length);
+    cache.put("a", "aaa");
+    assertFalse(cache.put("b", "bbbb"));
+    assertFalse(cache.put("a", "aaaa"));
+    assertEquals(cache.size(), 0);
+  }
+}
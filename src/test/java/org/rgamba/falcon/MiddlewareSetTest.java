@@ -1,7 +1,10 @@
 package org.rgamba.falcon;
 
+import org.rgamba.falcon.middleware.AppendSlashMiddleware;
 import org.testng.annotations.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.testng.Assert.*;
 
 public class MiddlewareSetTest {
@@ -49,6 +52,97 @@ public class MiddlewareSetTest {
     assertEquals(finalRequest.getHeaders().get("request-middleware").getValue(), "first");
   }
 
+  @Test
+  public void testMiddlewareIsSingleton() throws Exception {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    middlewareSet.register(CountingMiddleware.class);
+    middlewareSet.processRequest(createRequest());
+    Request finalRequest = middlewareSet.processRequest(createRequest());
+
+    assertEquals(finalRequest.getHeaders().get("count").getValue(), "2");
+  }
+
+  @Test
+  public void testRegisterInstance() throws Exception {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    CountingMiddleware middleware = new CountingMiddleware();
+    middlewareSet.register(middleware);
+    middlewareSet.processRequest(createRequest());
+    middlewareSet.deregister(CountingMiddleware.class);
+    middlewareSet.processRequest(createRequest());
+
+    assertEquals(middleware.count.get(), 1);
+  }
+
+  @Test
+  public void testNoCopies() throws Exception {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    middlewareSet.deregister(AppendSlashMiddleware.class);
+    Request request = createRequest();
+    Response response = createResponse();
+
+    assertSame(middlewareSet.processRequest(request), request);
+    assertSame(middlewareSet.processResponse(request, response), response);
+  }
+
+  @Test
+  public void testDefensiveCopies() throws Exception {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    middlewareSet.deregister(AppendSlashMiddleware.class);
+    middlewareSet.setCopyPolicy(MiddlewareSet.CopyPolicy.DEFENSIVE);
+    Request request = createRequest();
+    Response response = createResponse();
+
+    assertNotSame(middlewareSet.processRequest(request), request);
+    assertNotSame(middlewareSet.processResponse(request, response), response);
+  }
+
+  @Test
+  public void testIntercept() throws Exception {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    middlewareSet.register(FirstMiddleware.class);
+    assertNull(middlewareSet.intercept(createRequest()));
+    middlewareSet.register(InterceptingMiddleware.class);
+    assertEquals(middlewareSet.intercept(createRequest()).getBody(), "intercepted");
+  }
+
+  @Test
+  public void testInterceptedResponseIsSentAsIs() throws Exception {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    middlewareSet.register(InterceptingMiddleware.class);
+    middlewareSet.register(FirstMiddleware.class);
+    RequestDispatcher dispatcher = new RequestDispatcher(req -> {
+      throw new AssertionError("the handler must not run");
+    }, middlewareSet);
+    Response response = dispatcher.dispatch(createRequest());
+    assertEquals(response.getBody(), "intercepted");
+    assertNull(response.getHeader("response-middleware"));
+  }
+
+  @Test
+  public void testForbiddenBodiesAreDropped() {
+    RequestDispatcher dispatcher = new RequestDispatcher(req -> new Response.Builder()
+        .setStatusCode(Integer.parseInt(req.getUri().substring(1))).setBody("body").build(), new MiddlewareSet());
+    Response head = dispatcher.dispatch(new Request.Builder().setType(Request.Type.HEAD).setUri("/200").build());
+    assertNull(head.getBodyWriter());
+    assertNull(head.getBody());
+    assertEquals(head.getHeader("Content-Length").getValue(), "4");
+    Response notModified = dispatcher.dispatch(new Request.Builder().setType(Request.Type.GET).setUri("/304").build());
+    assertNull(notModified.getBody());
+    Response noContent = dispatcher.dispatch(new Request.Builder().setType(Request.Type.GET).setUri("/204").build());
+    assertNull(noContent.getBody());
+    assertNull(noContent.getHeader("Content-Length"));
+    Response ok = dispatcher.dispatch(new Request.Builder().setType(Request.Type.GET).setUri("/200").build());
+    assertEquals(ok.getBody(), "body");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testFrozen() {
+    MiddlewareSet middlewareSet = new MiddlewareSet();
+    middlewareSet.freeze();
+    middlewareSet.register(FirstMiddleware.class);
+  }
+
   private Request createRequest() {
     return new Request.Builder().setType(Request.Type.GET)
             .setUri("/test")
@@ -74,6 +168,22 @@ public class MiddlewareSetTest {
     }
   }
 
+  public static class CountingMiddleware implements Middleware {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Request processRequest(Request request) {
+      return new Request.Builder(request).setHeader("count", String.valueOf(count.incrementAndGet())).build();
+    }
+  }
+
+  public static class InterceptingMiddleware implements Middleware {
+    @Override
+    public Response intercept(Request request) {
+      return new Response.Builder().setBody("intercepted").build();
+    }
+  }
+
   public static class SecondMiddleware implements Middleware {
     @Override
     public Request processRequest(Request request) {
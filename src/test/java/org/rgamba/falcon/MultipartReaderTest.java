@@ -0,0 +1,224 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.HttpError;
+import org.rgamba.falcon.errors.PayloadTooLarge;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class MultipartReaderTest {
+  private static final String BOUNDARY = "----falcon7MA4YWxk";
+
+  @Test
+  public void testLazyParts() throws IOException {
+    String file = repeat("0123456789\r\n-", 5000);
+    Request request = request(body("preamble\r\n",
+        field("title", "Report"),
+        file("upload", "report.csv", "text/csv", file),
+        field("empty", "")), 7);
+    MultipartReader reader = request.getMultipartReader();
+
+    Part title = reader.next();
+    assertEquals(title.getName(), "title");
+    assertFalse(title.isFile());
+    assertEquals(title.getSize(), -1);
+    assertEquals(title.getString(), "Report");
+
+    Part upload = reader.next();
+    assertEquals(upload.getName(), "upload");
+    assertEquals(upload.getFileName(), "report.csv");
+    assertEquals(upload.getContentType().getMediaType(), "text/csv");
+    assertEquals(read(upload.getInputStream()), file);
+
+    assertTrue(reader.hasNext());
+    Part empty = reader.next();
+    assertEquals(empty.getString(), "");
+    assertFalse(reader.hasNext());
+  }
+
+  @Test
+  public void testReadByteByByte() throws IOException {
+    /* Almost delimiters, split across reads of the body */
+    String file = repeat("\r\n--" + BOUNDARY.substring(0, 10) + "x", 2000);
+    Request request = request(body("", file("upload", "a.txt", "text/plain", file), field("after", "done")), 333);
+    MultipartReader reader = request.getMultipartReader();
+    InputStream in = reader.next().getInputStream();
+    StringBuilder read = new StringBuilder();
+    int b;
+    while ((b = in.read()) != -1) {
+      read.append((char) b);
+    }
+    assertEquals(read.toString(), file);
+    assertEquals(reader.next().getString(), "done");
+    assertFalse(reader.hasNext());
+  }
+
+  @Test
+  public void testUnreadPartsAreSkipped() throws IOException {
+    Request request = request(body("", file("first", "a.bin", "application/octet-stream", repeat("a", 100000)),
+        field("second", "2")), 1000);
+    MultipartReader reader = request.getMultipartReader();
+    Part first = reader.next();
+    assertEquals(first.getInputStream().read(), 'a');
+    assertEquals(reader.next().getString(), "2");
+    /* The first part can't be read once the reader moved on */
+    assertEquals(first.getInputStream().read(), -1);
+    assertFalse(reader.hasNext());
+  }
+
+  @Test
+  public void testStoredParts() throws IOException {
+    Path directory = Files.createTempDirectory("falcon-multipart");
+    MultipartConfig config = new MultipartConfig.Builder().setMemoryThreshold(1024).setTempDirectory(directory).build();
+    String large = repeat("large file ", 1000);
+    Request request = request(body("", field("name", "Ricardo"), file("small", "s.txt", "text/plain", "tiny"),
+        file("large", "l.txt", "text/plain", large)), 4096);
+
+    List<Part> parts = request.getParts(config);
+    assertEquals(parts.size(), 3);
+    assertSame(request.getParts(), parts);
+    assertTrue(parts.get(0).isInMemory());
+    assertEquals(request.getPart("small").getString(), "tiny");
+    assertEquals(request.getPart("small").getSize(), 4);
+    Part stored = request.getPart("large");
+    assertFalse(stored.isInMemory());
+    assertEquals(stored.getSize(), large.length());
+    assertTrue(stored.getPath().startsWith(directory));
+    assertEquals(read(stored.getInputStream()), large);
+    assertEquals(read(stored.getInputStream()), large);
+    assertEquals(request.getFormData("name").get(0), "Ricardo");
+    assertEquals(request.getFormData("large").size(), 0);
+    assertNull(request.getPart("missing"));
+
+    Path target = directory.resolve("saved.txt");
+    request.getPart("small").moveTo(target);
+    assertEquals(new String(Files.readAllBytes(target), StandardCharsets.UTF_8), "tiny");
+    request.close();
+    assertFalse(Files.exists(stored.getPath()));
+    Files.delete(target);
+    Files.delete(directory);
+  }
+
+  @Test
+  public void testCharset() throws IOException {
+    byte[] latin = "ma\u00f1ana".getBytes(StandardCharsets.ISO_8859_1);
+    String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"when\"\r\n"
+        + "Content-Type: text/plain; charset=ISO-8859-1\r\n\r\n";
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(head.getBytes(StandardCharsets.US_ASCII));
+    body.write(latin);
+    body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    assertEquals(request(body.toByteArray(), 8192).getPart("when").getString(), "ma\u00f1ana");
+
+    Request illegal = request(body("", "Content-Disposition: form-data; name=\"when\"\r\n"
+        + "Content-Type: text/plain; charset=\"a b\"\r\n\r\nma\u00f1ana"), 8192);
+    assertEquals(illegal.getPart("when").getString(), "ma\u00f1ana");
+  }
+
+  @Test
+  public void testLimits() {
+    String body = body("", field("a", repeat("x", 5000)), field("b", "y"));
+    assertFails(PayloadTooLarge.class, () -> request(body, 8192)
+        .getParts(new MultipartConfig.Builder().setMaxPartSize(4999).build()));
+    assertFails(PayloadTooLarge.class, () -> request(body, 8192)
+        .getParts(new MultipartConfig.Builder().setMaxTotalSize(5000).build()));
+    assertFails(PayloadTooLarge.class, () -> request(body, 8192)
+        .getParts(new MultipartConfig.Builder().setMaxParts(1).build()));
+    assertEquals(request(body, 8192).getParts(new MultipartConfig.Builder().setMaxPartSize(5000).build()).size(), 2);
+    HttpError error = assertFails(PayloadTooLarge.class, () -> request(body, 8192)
+        .getParts(new MultipartConfig.Builder().setMaxParts(1).build()));
+    assertEquals(error.getStatusCode(), 413);
+  }
+
+  @Test
+  public void testMalformed() {
+    String[] bodies = {
+        "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nnever closed",
+        "--" + BOUNDARY + "\r\nno colon\r\n\r\nvalue\r\n--" + BOUNDARY + "--",
+        "no boundary at all",
+        "--" + BOUNDARY + "garbage\r\n\r\nvalue\r\n--" + BOUNDARY + "--",
+    };
+    for (String body : bodies) {
+      assertFails(BadRequest.class, () -> request(body, 8192).getParts());
+    }
+    Request notMultipart = new Request.Builder().setType(Request.Type.POST).setUri("/")
+        .setHeader("Content-Type", "application/json").setInputStream(new ByteArrayInputStream(new byte[0])).build();
+    assertFails(BadRequest.class, notMultipart::getMultipartReader);
+  }
+
+  private static <T extends RuntimeException> T assertFails(Class<T> expected, Runnable runnable) {
+    try {
+      runnable.run();
+    } catch (RuntimeException e) {
+      assertTrue(expected.isInstance(e), "unexpected " + e);
+      return expected.cast(e);
+    }
+    throw new AssertionError("expected " + expected.getSimpleName());
+  }
+
+  private static Request request(String body, int maxRead) {
+    return request(body.getBytes(StandardCharsets.UTF_8), maxRead);
+  }
+
+  /**
+   * @param maxRead Max bytes returned by each read, to split boundaries across reads
+   */
+  private static Request request(byte[] body, int maxRead) {
+    InputStream in = new FilterInputStream(new ByteArrayInputStream(body)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, maxRead));
+      }
+    };
+    return new Request.Builder().setType(Request.Type.POST).setUri("/upload")
+        .setHeader("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+        .setContentLength((long) body.length).setInputStream(in).build();
+  }
+
+  private static String body(String preamble, String... parts) {
+    StringBuilder body = new StringBuilder(preamble);
+    for (String part : parts) {
+      body.append("--").append(BOUNDARY).append("\r\n").append(part).append("\r\n");
+    }
+    return body.append("--").append(BOUNDARY).append("--\r\nepilogue").toString();
+  }
+
+  private static String field(String name, String value) {
+    return "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value;
+  }
+
+  private static String file(String name, String fileName, String type, String content) {
+    return "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n"
+        + "Content-Type: " + type + "\r\n\r\n" + content;
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
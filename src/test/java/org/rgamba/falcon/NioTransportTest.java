@@ -0,0 +1,189 @@
+package org.rgamba.falcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class NioTransportTest {
+  private final String CRLF = HttpConstants.CRLF;
+  private HttpServer server;
+
+  @BeforeClass
+  public void startServer() throws Exception {
+    server = new HttpServer(0, new MiddlewareSet(), req -> {
+      String body = req.getType() == Request.Type.POST ? req.readAllBody() : "Hello " + req.getPath();
+      return new Response.Builder().setBody(body).build();
+    });
+    server.setConfig(new ServerConfig.Builder().setTransport(ServerConfig.Transport.NIO)
+        .setEventLoopThreads(2)
+        .setMaxRequestsPerConnection(3)
+        .build());
+    HttpTestClient.startServer(server);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /hello HTTP/1.1" + CRLF + "Host: localhost" + CRLF + "Connection: close" + CRLF + CRLF);
+      String response = client.readAll();
+      assertTrue(response.startsWith("HTTP/1.1 200 OK" + CRLF));
+      assertTrue(response.endsWith(CRLF + CRLF + "Hello /hello/"));
+    }
+  }
+
+  @Test
+  public void testPostBodyInSeveralPackets() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("POST /echo HTTP/1.1" + CRLF + "Host: localhost" + CRLF);
+      Thread.sleep(20);
+      client.send("Content-Length: 11" + CRLF + CRLF + "hello");
+      Thread.sleep(20);
+      client.send(" world");
+      String response = client.readResponse();
+      assertTrue(response.startsWith("HTTP/1.1 200 OK" + CRLF));
+      assertTrue(response.endsWith(CRLF + CRLF + "hello world"));
+    }
+  }
+
+  @Test
+  public void testChunkedBodyInSeveralPackets() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("POST /echo HTTP/1.1" + CRLF + "Transfer-");
+      Thread.sleep(20);
+      client.send("Encoding: chunked" + CRLF + CRLF + "6" + CRLF + "hel");
+      Thread.sleep(20);
+      client.send("lo " + CRLF + "5" + CRLF + "world" + CRLF);
+      Thread.sleep(20);
+      client.send("0" + CRLF + CRLF + "GET /next HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "hello world"));
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "Hello /next/"));
+    }
+  }
+
+  @Test
+  public void testKeepAlive() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /first HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith("Hello /first/"));
+      client.send("POST /echo HTTP/1.1" + CRLF + "Content-Length: 4" + CRLF + CRLF + "body");
+      assertTrue(client.readResponse().endsWith("body"));
+      /* Max requests per connection reached */
+      client.send("GET /third HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      String response = client.readResponse();
+      assertTrue(response.contains("Connection: close" + CRLF));
+      assertTrue(response.endsWith("Hello /third/"));
+      assertTrue(client.isClosedByServer());
+    }
+  }
+
+  @Test
+  public void testMalformedRequest() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("INVALID / HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readAll().startsWith("HTTP/1.1 400 BAD REQUEST" + CRLF));
+    }
+  }
+
+  @Test
+  public void testPipelinedRequests() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /one HTTP/1.1" + CRLF + CRLF
+          + "POST /two HTTP/1.1" + CRLF + "Content-Length: 3" + CRLF + CRLF + "two"
+          + "GET /three HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith("Hello /one/"));
+      assertTrue(client.readResponse().endsWith("two"));
+      String last = client.readResponse();
+      assertTrue(last.contains("Connection: close" + CRLF));
+      assertTrue(last.endsWith("Hello /three/"));
+      assertTrue(client.isClosedByServer());
+    }
+  }
+
+  @Test
+  public void testHeadThenGet() throws Exception {
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("HEAD /first HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      String head = client.readHead();
+      assertTrue(head.startsWith("HTTP/1.1 200 OK" + CRLF));
+      /* The length of the body a GET would get */
+      assertTrue(head.contains("Content-Length: 13" + CRLF));
+      client.send("GET /second HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      String response = client.readResponse();
+      assertTrue(response.startsWith("HTTP/1.1 200 OK" + CRLF));
+      assertTrue(response.endsWith(CRLF + CRLF + "Hello /second/"));
+    }
+  }
+
+  @Test
+  public void testClientNotReadingTimesOut() throws Exception {
+    final int bodySize = 32 * 1024 * 1024;
+    HttpServer slow = new HttpServer(0, new MiddlewareSet(),
+        req -> new Response.Builder().setBody(new byte[bodySize]).build());
+    slow.setConfig(new ServerConfig.Builder().setTransport(ServerConfig.Transport.NIO)
+        .setEventLoopThreads(1)
+        .setSocketTimeout(200)
+        .build());
+    HttpTestClient.startServer(slow);
+    try (HttpTestClient client = new HttpTestClient(slow.getLocalPort())) {
+      client.send("GET /large HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF);
+      /* Longer than the socket timeout plus the interval idle connections are checked at */
+      Thread.sleep(2500);
+      long received = 0;
+      try {
+        InputStream in = client.getInputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          received += read;
+        }
+      } catch (IOException e) {
+        /* Reset by the server */
+      }
+      assertTrue(received < bodySize, "the server kept the stalled connection");
+    } finally {
+      slow.stop();
+    }
+  }
+
+  @Test
+  public void testPartFilesDeletedOnceAnswered() throws Exception {
+    final List<Path> files = new CopyOnWriteArrayList<>();
+    final MultipartConfig multipart = new MultipartConfig.Builder().setMemoryThreshold(0).build();
+    HttpServer upload = new HttpServer(0, new MiddlewareSet(), req -> {
+      Part part = req.getParts(multipart).get(0);
+      files.add(part.getPath());
+      return new Response.Builder().setBody("Size " + part.getSize()).build();
+    });
+    upload.setConfig(new ServerConfig.Builder().setTransport(ServerConfig.Transport.NIO).build());
+    HttpTestClient.startServer(upload);
+    String body = "--AaB03x" + CRLF + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"" + CRLF
+        + CRLF + "HELLO" + CRLF + "--AaB03x--" + CRLF;
+    String request = "POST /upload HTTP/1.1" + CRLF + "Content-Type: multipart/form-data; boundary=AaB03x" + CRLF
+        + "Content-Length: " + body.length() + CRLF + CRLF + body;
+    try (HttpTestClient client = new HttpTestClient(upload.getLocalPort())) {
+      client.send(request);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "Size 5"));
+      /* The first request is closed before the second one is read */
+      client.send(request);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "Size 5"));
+      assertEquals(files.size(), 2);
+      assertFalse(Files.exists(files.get(0)));
+    } finally {
+      upload.stop();
+    }
+  }
+}
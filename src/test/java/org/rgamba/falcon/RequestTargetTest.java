@@ -0,0 +1,93 @@
+package org.rgamba.falcon;
+
+import java.net.URI;
+import org.rgamba.falcon.errors.BadRequest;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class RequestTargetTest {
+  @DataProvider
+  private Object[][] validTargets() {
+    return new Object[][]{
+        // target, path, query, authority
+        {"/", "/", "", null},
+        {"/search?query=hello+world#stuff", "/search", "query=hello+world", null},
+        {"/users/42?", "/users/42", "", null},
+        {"/a/b;v=1/c:d@e?x=/y?z", "/a/b;v=1/c:d@e", "x=/y?z", null},
+        {"/files/%7euser/a%2fb%20c", "/files/~user/a%2Fb%20c", "", null},
+        {"/q?tags=a|b&json={}", "/q", "tags=a|b&json={}", null},
+        {"http://mysite.com:80/search?query=hello+world", "/search", "query=hello+world", "mysite.com:80"},
+        {"HTTPS://[::1]:8443", "/", "", "[::1]:8443"},
+        {"http://mysite.com?page=2", "/", "page=2", "mysite.com"},
+        {"*", "*", "", null},
+    };
+  }
+
+  @Test(dataProvider = "validTargets")
+  public void testParse(String raw, String path, String query, String authority) {
+    RequestTarget target = RequestTarget.parse(raw);
+    assertEquals(target.getPath(), path);
+    assertEquals(target.getQuery(), query);
+    assertEquals(target.getAuthority(), authority);
+  }
+
+  @DataProvider
+  private Object[][] invalidTargets() {
+    return new Object[][]{
+        {""},
+        {"invalid:asd!/search?query=hello+world"},
+        {"search"},
+        {"ftp://mysite.com/file"},
+        {"http://"},
+        {"http:///path"},
+        {"http://my site.com/"},
+        {"/bad%2"},
+        {"/bad%zz"},
+        {"/with space"},
+        {"/quote\""},
+        {"/caf\u00e9"},
+        {"/back\\slash"},
+        {"/q?a=\u0001"},
+    };
+  }
+
+  @Test(dataProvider = "invalidTargets", expectedExceptions = BadRequest.class)
+  public void testInvalid(String raw) {
+    RequestTarget.parse(raw);
+  }
+
+  @Test
+  public void testToUri() {
+    assertEquals(RequestTarget.parse("/search?q=1#top").toUri("mysite.com"), URI.create("http://mysite.com/search?q=1"));
+    assertEquals(RequestTarget.parse("/search").toUri(null), URI.create("/search"));
+    assertEquals(RequestTarget.parse("http://other.com/a").toUri("mysite.com"), URI.create("http://other.com/a"));
+    assertEquals(RequestTarget.parse("*").toUri("mysite.com"), URI.create("*"));
+  }
+
+  @Test(expectedExceptions = BadRequest.class)
+  public void testToUriInvalidHost() {
+    RequestTarget.parse("/").toUri("bad host");
+  }
+
+  @Test
+  public void testUrlIsBuiltOnDemand() {
+    Request request = new Request.Builder().setType(Request.Type.GET).setUri("/q?tags=a|b")
+        .setTarget(RequestTarget.parse("/q?tags=a|b"), "mysite.com").build();
+    assertEquals(request.getPath(), "/q");
+    assertEquals(request.getQueryParam("tags").get(0), "a|b");
+    /* Only a handler asking for the URL finds out it is not a valid URI */
+    try {
+      request.getUrl();
+      fail("expected BadRequest");
+    } catch (BadRequest e) {
+      /* Expected */
+    }
+    Request valid = new Request.Builder().setType(Request.Type.GET).setUri("/q")
+        .setTarget(RequestTarget.parse("/q"), "mysite.com").build();
+    assertSame(valid.getUrl(), valid.getUrl());
+    assertSame(valid.copy().getUrl(), valid.getUrl());
+  }
+}
@@ -1,9 +1,15 @@
 package org.rgamba.falcon;
 
+import org.rgamba.falcon.errors.BadRequest;
+import org.rgamba.falcon.errors.PayloadTooLarge;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.testng.Assert.*;
@@ -40,6 +46,86 @@ public class RequestTest {
     assertEquals(req.getQueryParam("lastname").size(), 1);
   }
 
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void testQueryParamsAreUnmodifiable() {
+    Request req = createRequestBuilder().setQueryParam("name", "ricardo").build();
+    req.getQueryParam("name").add("rodrigo");
+  }
+
+  @Test
+  public void testCopiesShareStorage() {
+    Request req = createRequestBuilder().setQueryParam("name", "ricardo").build();
+    Request copy = req.copy();
+
+    assertSame(copy.getHeader("Server"), req.getHeader("Server"));
+    assertSame(copy.getQueryParams(), req.getQueryParams());
+  }
+
+  @Test
+  public void testQueryStringIsDecodedOnce() {
+    Request req = createRequestBuilder().setQueryString("q=hello+world&tag=a&tag=%C3%B1&flag&").build();
+    Request copy = req.copy();
+
+    assertEquals(copy.getQueryParam("q"), Collections.singletonList("hello world"));
+    assertEquals(req.getQueryParam("tag"), Arrays.asList("a", "\u00f1"));
+    assertEquals(req.getQueryParam("flag"), Collections.singletonList(""));
+    assertEquals(req.getQueryParams().size(), 3);
+    assertSame(copy.getQueryParams(), req.getQueryParams());
+    assertTrue(createRequestBuilder().setQueryString("").build().getQueryParams().isEmpty());
+
+    Request derived = new Request.Builder(req).setQueryParam("q", "more").build();
+    assertEquals(derived.getQueryParam("q"), Arrays.asList("hello world", "more"));
+    assertEquals(derived.getQueryParam("tag").size(), 2);
+    assertEquals(req.getQueryParam("q").size(), 1);
+  }
+
+  @Test
+  public void testCookies() {
+    Request req = createRequestBuilder()
+        .setHeader("Cookie", "session=abc123; theme=\"dark\"; session=older; invalid; =nameless").build();
+
+    assertEquals(req.getCookie("session"), "abc123");
+    assertEquals(req.getCookie("theme"), "dark");
+    assertNull(req.getCookie("Session"));
+    assertEquals(req.getCookies().size(), 2);
+    assertSame(req.getCookies(), req.getCookies());
+    assertTrue(createRequestBuilder().build().getCookies().isEmpty());
+  }
+
+  @Test
+  public void testCopiesShareFormData() {
+    String form = "name=Ricardo";
+    Request req = createRequestBuilder().setInputStream(new ByteArrayInputStream(form.getBytes()))
+        .setContentLength((long) form.length())
+        .setHeader("Content-Type", "application/x-www-form-urlencoded").build();
+
+    assertEquals(req.getFormData("name").get(0), "Ricardo");
+    /* The body was read once, by the original */
+    assertEquals(req.copy().getFormData("name").get(0), "Ricardo");
+  }
+
+  @Test
+  public void testBuilderFromRequestDoesNotChangeIt() {
+    Request req = createRequestBuilder().setQueryParam("name", "ricardo").build();
+    Request derived = new Request.Builder(req)
+        .setHeader("Server", "other")
+        .setQueryParam("name", "rodrigo")
+        .build();
+
+    assertEquals(req.getHeader("Server").getValue(), "Test");
+    assertEquals(req.getQueryParam("name").size(), 1);
+    assertEquals(derived.getHeader("server").getValue(), "other");
+    assertEquals(derived.getQueryParam("name").size(), 2);
+  }
+
+  @Test
+  public void testCopiesShareBodyReader() {
+    InputStream is = new ByteArrayInputStream("123456789".getBytes());
+    Request req = createRequestBuilder().setInputStream(is).setContentLength((long) 9).build();
+
+    assertSame(req.copy().getBodyReader(), req.getBodyReader());
+  }
+
   @Test
   public void testReadAllBody() {
     Request.Builder reqBuilder = createRequestBuilder();
@@ -79,6 +165,88 @@ public class RequestTest {
     assertNotEquals(req.readAllBody(), "123456789");
   }
 
+  @Test
+  public void testReadAllBytes() {
+    byte[] body = "caf\u00e9 \u2615".getBytes(StandardCharsets.UTF_8);
+    Request req = createRequestBuilder().setInputStream(new ByteArrayInputStream(body))
+        .setContentLength((long) body.length).build();
+    assertEquals(req.readAllBytes(), body);
+    assertEquals(createRequestBuilder().build().readAllBytes().length, 0);
+  }
+
+  @Test(expectedExceptions = BadRequest.class)
+  public void testReadAllBytesTruncated() {
+    Request req = createRequestBuilder().setInputStream(new ByteArrayInputStream("123456789".getBytes()))
+        .setContentLength((long) 10).build();
+    req.readAllBytes();
+  }
+
+  @Test
+  public void testReadChunkedBodyTruncated() {
+    byte[] body = "5\r\nhello\r\n3\r\nwo".getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < 2; i++) {
+      Request req = createRequestBuilder().setHeader("Transfer-Encoding", "chunked")
+          .setInputStream(new ChunkedInputStream(new ByteArrayInputStream(body), 1024)).build();
+      try {
+        if (i == 0) {
+          req.readAllBytes();
+        } else {
+          req.readBody(ByteBuffer.allocate(16));
+        }
+        fail("expected BadRequest");
+      } catch (BadRequest e) {
+        assertEquals(e.getMessage(), "incomplete chunked request body");
+      }
+    }
+  }
+
+  @Test
+  public void testReadBody() {
+    Request req = createRequestBuilder().setInputStream(new ByteArrayInputStream("123456789".getBytes()))
+        .setContentLength((long) 9).build();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+    buffer.put((byte) '0');
+    assertEquals(req.readBody(buffer), 9);
+    assertEquals(buffer.position(), 10);
+    buffer.flip();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    assertEquals(new String(bytes, StandardCharsets.US_ASCII), "0123456789");
+  }
+
+  @Test
+  public void testReadBodyTooLarge() {
+    Request req = createRequestBuilder().setInputStream(new ByteArrayInputStream("123456789".getBytes()))
+        .setContentLength((long) 9).build();
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    try {
+      req.readBody(buffer);
+      fail("expected PayloadTooLarge");
+    } catch (PayloadTooLarge e) {
+      assertEquals(buffer.position(), 0);
+    }
+  }
+
+  @Test
+  public void testReadBodyAsString() {
+    byte[] body = "se\u00f1or".getBytes(StandardCharsets.ISO_8859_1);
+    Request req = createRequestBuilder().setInputStream(new ByteArrayInputStream(body))
+        .setContentLength((long) body.length).setHeader("Content-Type", "text/plain; charset=ISO-8859-1").build();
+    assertEquals(req.readBodyAsString(), "se\u00f1or");
+
+    body = "se\u00f1or \u2615".getBytes(StandardCharsets.UTF_8);
+    req = createRequestBuilder().setInputStream(new ByteArrayInputStream(body))
+        .setContentLength((long) body.length).build();
+    assertEquals(req.readBodyAsString(), "se\u00f1or \u2615");
+  }
+
+  @Test(expectedExceptions = BadRequest.class)
+  public void testReadBodyAsStringUnsupportedCharset() {
+    createRequestBuilder().setInputStream(new ByteArrayInputStream("x".getBytes()))
+        .setContentLength((long) 1).setHeader("Content-Type", "text/plain; charset=klingon").build()
+        .readBodyAsString();
+  }
+
   //@formatter:off
   private static final String multipartBody = ""
       + "----AaB03x\r\n"
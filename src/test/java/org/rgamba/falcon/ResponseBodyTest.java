@@ -0,0 +1,181 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.rgamba.falcon.middleware.ResponseCacheMiddleware;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class ResponseBodyTest {
+  private static final String CRLF = HttpConstants.CRLF;
+  /* Larger than a transfer chunk */
+  private static final int LARGE_SIZE = BodyTransfer.CHUNK_SIZE * 3 + 123;
+  private Path _file;
+  private String _fileContents;
+
+  @BeforeClass
+  public void createFile() throws Exception {
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < LARGE_SIZE; i++) {
+      contents.append((char) ('a' + i % 26));
+    }
+    _fileContents = contents.toString();
+    _file = Files.createTempFile("falcon", ".txt");
+    Files.write(_file, _fileContents.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @AfterClass
+  public void deleteFile() throws Exception {
+    Files.deleteIfExists(_file);
+  }
+
+  @Test
+  public void testContentLengthInBytes() {
+    Response response = new Response.Builder().setBody("\u00f1and\u00fa").build();
+    assertEquals(response.getHeader("Content-Length").getValue(), "7");
+    assertEquals(response.getBody(), "\u00f1and\u00fa");
+  }
+
+  @Test
+  public void testBinaryBodies() {
+    byte[] bytes = {0, 1, 2, (byte) 0xff};
+    Response response = new Response.Builder().setBody(bytes).build();
+    assertEquals(response.getHeader("Content-Length").getValue(), "4");
+    assertEquals(response.getBodyBytes(), bytes);
+    assertFalse(response.isBodyStreamed());
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    buffer.position(1);
+    response = new Response.Builder().setBody(buffer).build();
+    assertEquals(response.getHeader("Content-Length").getValue(), "3");
+    assertEquals(response.getBodyBytes(), new byte[]{1, 2, (byte) 0xff});
+    /* Serializing does not consume the body */
+    assertEquals(ResponseSerializer.serializeBody(response).remaining(), 3);
+    assertEquals(ResponseSerializer.serializeBody(response).remaining(), 3);
+  }
+
+  @Test
+  public void testStreamedBodies() {
+    Response response = new Response.Builder()
+        .setBody(new ByteArrayInputStream(new byte[10]), 10).build();
+    assertTrue(response.isBodyStreamed());
+    assertNull(response.getBody());
+    assertNull(response.getBodyBytes());
+    assertEquals(response.getHeader("Content-Length").getValue(), "10");
+
+    response = new Response.Builder().setBody(_file).build();
+    assertEquals(response.getHeader("Content-Length").getValue(), String.valueOf(LARGE_SIZE));
+
+    response = new Response.Builder().setHeader("Content-Length", "5")
+        .setBody(new ByteArrayInputStream(new byte[10])).build();
+    assertNull(response.getHeader("Content-Length"));
+    assertEquals(response.getHeader("Transfer-Encoding").getValue(), "chunked");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidLength() {
+    new Response.Builder().setBody(new ByteArrayInputStream(new byte[0]), -2);
+  }
+
+  @DataProvider
+  public Object[][] transports() {
+    return new Object[][]{{ServerConfig.Transport.BLOCKING}, {ServerConfig.Transport.NIO}};
+  }
+
+  @Test(dataProvider = "transports")
+  public void testSendStreamedBodies(ServerConfig.Transport transport) throws Exception {
+    HttpServer server = startServer(transport);
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /file HTTP/1.1" + CRLF + CRLF
+          + "GET /bytes HTTP/1.1" + CRLF + CRLF
+          + "GET /stream HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + _fileContents));
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "bytes"));
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + _fileContents));
+      client.send("GET /channel HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "chan"));
+      client.send("GET /unknown HTTP/1.1" + CRLF + CRLF);
+      String response = client.readResponse();
+      assertTrue(response.contains("Transfer-Encoding: chunked" + CRLF));
+      assertFalse(response.contains("Content-Length"));
+      assertTrue(response.endsWith(CRLF + CRLF + _fileContents));
+      /* The connection is still usable */
+      client.send("GET /bytes HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "bytes"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testShortStreamClosesConnection(ServerConfig.Transport transport) throws Exception {
+    HttpServer server = startServer(transport);
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /short HTTP/1.1" + CRLF + CRLF);
+      String response = client.readAll();
+      assertTrue(response.contains("Content-Length: 100" + CRLF));
+      assertTrue(response.endsWith(CRLF + CRLF + "short"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testCachedResponses(ServerConfig.Transport transport) throws Exception {
+    AtomicInteger handled = new AtomicInteger();
+    MiddlewareSet middleware = new MiddlewareSet();
+    middleware.register(ResponseCacheMiddleware.class);
+    HttpServer server = new HttpServer(0, middleware, req -> new Response.Builder()
+        .setHeader("Cache-Control", "max-age=60").setBody("handled " + handled.incrementAndGet()).build());
+    server.setConfig(new ServerConfig.Builder().setTransport(transport).build());
+    HttpTestClient.startServer(server);
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /cached HTTP/1.1" + CRLF + CRLF + "GET /cached HTTP/1.1" + CRLF + CRLF);
+      String first = client.readResponse();
+      String second = client.readResponse();
+      assertTrue(first.contains("Age: 0" + CRLF));
+      assertTrue(first.endsWith(CRLF + CRLF + "handled 1"));
+      assertTrue(second.endsWith(CRLF + CRLF + "handled 1"));
+      client.send("GET /cached HTTP/1.1" + CRLF + "Connection: close" + CRLF + CRLF);
+      String last = client.readResponse();
+      assertTrue(last.contains("Connection: close" + CRLF));
+      assertTrue(last.endsWith(CRLF + CRLF + "handled 1"));
+      assertEquals(handled.get(), 1);
+    } finally {
+      server.stop();
+    }
+  }
+
+  private HttpServer startServer(ServerConfig.Transport transport) throws Exception {
+    HttpServer server = new HttpServer(0, new MiddlewareSet(), req -> {
+      Response.Builder builder = new Response.Builder();
+      byte[] contents = _fileContents.getBytes(StandardCharsets.US_ASCII);
+      switch (req.getPath()) {
+        case "/file/":
+          return builder.setBody(_file).build();
+        case "/stream/":
+          return builder.setBody(new ByteArrayInputStream(contents), contents.length).build();
+        case "/channel/":
+          return builder.setBody(Channels.newChannel(new ByteArrayInputStream("channel".getBytes())), 4).build();
+        case "/unknown/":
+          return builder.setBody(new ByteArrayInputStream(contents)).build();
+        case "/short/":
+          return builder.setBody(new ByteArrayInputStream("short".getBytes()), 100).build();
+        default:
+          return builder.setBody("bytes".getBytes()).build();
+      }
+    });
+    server.setConfig(new ServerConfig.Builder().setTransport(transport).build());
+    return HttpTestClient.startServer(server);
+  }
+}
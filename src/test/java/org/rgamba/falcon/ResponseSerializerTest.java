@@ -0,0 +1,126 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class ResponseSerializerTest {
+  @Test
+  public void testSameBytesAsWrite() throws Exception {
+    Response response = new Response.Builder().setStatusCode(Response.Status.OK)
+        .setHeader("Content-Type", "text/plain")
+        .setHeader("Date", "Tue, 03 Jul 2018 19:42:19 GMT")
+        .setCookie(new Cookie("testcookie", "123456"))
+        .setBody("Hello world!")
+        .build();
+    assertEquals(serialize(response), write(response));
+  }
+
+  @Test
+  public void testStatusLines() throws Exception {
+    assertEquals(new String(ResponseSerializer.statusLine(404), StandardCharsets.UTF_8),
+        "HTTP/1.1 404 NOT FOUND" + HttpConstants.CRLF);
+    /* Same as write, codes without a reason keep the trailing space */
+    assertEquals(new String(ResponseSerializer.statusLine(201), StandardCharsets.UTF_8),
+        "HTTP/1.1 201 " + HttpConstants.CRLF);
+    Response unknown = new Response.Builder().setStatusCode(799).build();
+    assertEquals(serialize(unknown), write(unknown));
+  }
+
+  @Test
+  public void testNonAsciiHeadersAndBody() throws Exception {
+    Response response = new Response.Builder()
+        .setHeader("X-Name", "caf\u00e9")
+        .setHeader("Date", "Tue, 03 Jul 2018 19:42:19 GMT")
+        .setBody("\u00f1and\u00fa")
+        .build();
+    assertEquals(serialize(response), write(response));
+  }
+
+  @Test
+  public void testHeadLargerThanPooledBuffer() throws Exception {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < ResponseSerializer.HEAD_BUFFER_SIZE; i++) {
+      value.append('a');
+    }
+    Response response = new Response.Builder()
+        .setHeader("X-Large", value.toString())
+        .setHeader("X-After", "b")
+        .setHeader("Date", "Tue, 03 Jul 2018 19:42:19 GMT")
+        .build();
+    assertEquals(serialize(response), write(response));
+  }
+
+  @Test
+  public void testBufferPool() {
+    BufferPool pool = new BufferPool(16, 1);
+    ByteBuffer first = pool.acquire();
+    ByteBuffer second = pool.acquire();
+    first.put((byte) 1);
+    pool.release(first);
+    pool.release(second);
+    pool.release(ByteBuffer.allocate(16));
+    assertEquals(pool.size(), 1);
+    ByteBuffer reused = pool.acquire();
+    assertSame(reused, first);
+    assertEquals(reused.position(), 0);
+    assertEquals(pool.size(), 0);
+  }
+
+  @Test
+  public void testDirectBodyIsNotPooled() {
+    ByteBuffer body = ByteBuffer.allocateDirect(ResponseSerializer.HEAD_BUFFER_SIZE);
+    Response response = new Response.Builder().setBody(body).build();
+    assertTrue(ResponseSerializer.serializeBody(response).isReadOnly());
+    BufferPool pool = new BufferPool(16, 1);
+    pool.release(ByteBuffer.allocateDirect(16).asReadOnlyBuffer());
+    assertEquals(pool.size(), 0);
+  }
+
+  @Test
+  public void testSerializedOnce() {
+    Response response = new Response.Builder().setHeader("Content-Type", "application/json")
+        .setHeader("Age", "7").setBody("{\"id\": 1}").build();
+    Response serialized = response.serialized();
+    assertSame(serialized.serialized(), serialized);
+    assertEquals(serialized.getBody(), response.getBody());
+    String crlf = HttpConstants.CRLF;
+    String expected = serialize(response).replaceAll("(Date|Age): [^\r]*\r\n", "");
+    String sent = serialize(serialized);
+    /* The Date and Age lines are written last */
+    assertTrue(sent.matches("(?s).*" + crlf + "Date: [^\r]* GMT" + crlf + "Age: 0" + crlf + crlf + "\\{.*"), sent);
+    assertEquals(sent.replaceAll("(Date|Age): [^\r]*\r\n", ""), expected);
+    /* Changing it gives a regular response */
+    Response changed = new Response.Builder(serialized).setHeader("Connection", "close").build();
+    assertTrue(serialize(changed).contains("Connection: close" + HttpConstants.CRLF));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testStreamedBodyIsNotSerialized() {
+    new Response.Builder().setBody(sink -> { }).build().serialized();
+  }
+
+  private static String serialize(Response response) {
+    ByteBuffer[] buffers = ResponseSerializer.serialize(response);
+    byte[] bytes = new byte[(int) ResponseSerializer.remaining(buffers)];
+    ByteBuffer out = ByteBuffer.wrap(bytes);
+    for (ByteBuffer buffer : buffers) {
+      out.put(buffer);
+    }
+    ResponseSerializer.release(buffers);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String write(Response response) throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    OutputStreamWriter writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+    response.write(writer);
+    writer.flush();
+    return new String(os.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
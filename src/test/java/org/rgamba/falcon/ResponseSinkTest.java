@@ -0,0 +1,188 @@
+package org.rgamba.falcon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import org.rgamba.falcon.middleware.CompressionMiddleware;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class ResponseSinkTest {
+  private static final String CRLF = HttpConstants.CRLF;
+
+  @Test
+  public void testChunkFraming() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Headers trailers = new Headers();
+    trailers.set("X-Rows", "2");
+    ResponseSink sink = new ResponseSink(Channels.newChannel(out), 4, trailers);
+    sink.write("hello world".getBytes(StandardCharsets.US_ASCII));
+    sink.flush();
+    sink.write('!');
+    sink.setTrailer("X-Checksum", "abc");
+    sink.close();
+    sink.close();
+    assertEquals(new String(out.toByteArray(), StandardCharsets.US_ASCII),
+        "4" + CRLF + "hell" + CRLF + "4" + CRLF + "o wo" + CRLF + "3" + CRLF + "rld" + CRLF
+            + "1" + CRLF + "!" + CRLF
+            + "0" + CRLF + "X-Rows: 2" + CRLF + "X-Checksum: abc" + CRLF + CRLF);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testWriteAfterClose() throws Exception {
+    ResponseSink sink = new ResponseSink(Channels.newChannel(new ByteArrayOutputStream()), 4, null);
+    sink.close();
+    sink.write(1);
+  }
+
+  @Test
+  public void testTrailerHeader() {
+    Response response = new Response.Builder().setBody(sink -> { })
+        .setTrailer("X-Checksum", "abc").setTrailer("X-Rows", "2").build();
+    assertEquals(response.getHeader("Transfer-Encoding").getValue(), "chunked");
+    assertEquals(response.getHeader("Trailer").getValue(), "X-Checksum, X-Rows");
+    response = new Response.Builder().setBody("known length").setTrailer("X-Rows", "2").build();
+    assertNull(response.getHeader("Trailer"));
+  }
+
+  @DataProvider
+  public Object[][] transports() {
+    return new Object[][]{{ServerConfig.Transport.BLOCKING}, {ServerConfig.Transport.NIO}};
+  }
+
+  @Test(dataProvider = "transports")
+  public void testWriterBody(ServerConfig.Transport transport) throws Exception {
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      expected.append("row ").append(i).append('\n');
+    }
+    HttpServer server = startServer(transport, req -> {
+      if (req.getPath().equals("/plain/")) {
+        return new Response.Builder().setBody("plain").build();
+      }
+      return new Response.Builder().setTrailer("X-Rows", "?").setBody(sink -> {
+        for (int i = 0; i < 10000; i++) {
+          sink.write(("row " + i + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        sink.setTrailer("X-Rows", "10000");
+      }).build();
+    });
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET /rows HTTP/1.1" + CRLF + CRLF + "GET /plain HTTP/1.1" + CRLF + CRLF);
+      String response = client.readResponse();
+      assertTrue(response.contains("Trailer: X-Rows" + CRLF));
+      assertTrue(response.endsWith(CRLF + CRLF + expected));
+      assertEquals(client.getTrailers(), "X-Rows: 10000" + CRLF);
+      assertTrue(client.readResponse().endsWith(CRLF + CRLF + "plain"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testFlushSendsEarly(ServerConfig.Transport transport) throws Exception {
+    CountDownLatch received = new CountDownLatch(1);
+    HttpServer server = startServer(transport, req -> new Response.Builder().setBody(sink -> {
+      sink.write("first".getBytes(StandardCharsets.US_ASCII));
+      sink.flush();
+      try {
+        /* Only finishes once the client got the first chunk */
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      sink.write("second".getBytes(StandardCharsets.US_ASCII));
+    }).build());
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET / HTTP/1.1" + CRLF + CRLF);
+      String head = client.readAll("first" + CRLF);
+      assertTrue(head.endsWith("5" + CRLF + "first" + CRLF));
+      received.countDown();
+      assertTrue(client.readAll("0" + CRLF + CRLF).endsWith("6" + CRLF + "second" + CRLF + "0" + CRLF + CRLF));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testFailingWriterClosesConnection(ServerConfig.Transport transport) throws Exception {
+    HttpServer server = startServer(transport, req -> new Response.Builder().setBody(sink -> {
+      sink.write("partial".getBytes(StandardCharsets.US_ASCII));
+      sink.flush();
+      throw new IOException("cursor closed");
+    }).build());
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET / HTTP/1.1" + CRLF + CRLF);
+      String response = client.readAll();
+      assertTrue(response.endsWith("7" + CRLF + "partial" + CRLF));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testCompressedBodies(ServerConfig.Transport transport) throws Exception {
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      expected.append("row ").append(i).append('\n');
+    }
+    byte[] rows = expected.toString().getBytes(StandardCharsets.US_ASCII);
+    MiddlewareSet middleware = new MiddlewareSet();
+    middleware.register(CompressionMiddleware.class);
+    HttpServer server = new HttpServer(0, middleware, req -> {
+      if (req.getPath().equals("/stream/")) {
+        return new Response.Builder().setBody(new ByteArrayInputStream(rows), rows.length).build();
+      }
+      return new Response.Builder().setBody(sink -> {
+        sink.write(rows);
+        sink.setTrailer("X-Rows", "10000");
+      }).build();
+    });
+    server.setConfig(new ServerConfig.Builder().setTransport(transport).setResponseChunkSize(1000).build());
+    HttpTestClient.startServer(server);
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      String acceptEncoding = "Accept-Encoding: gzip" + CRLF;
+      client.send("GET /writer HTTP/1.1" + CRLF + acceptEncoding + CRLF
+          + "GET /stream HTTP/1.1" + CRLF + acceptEncoding + CRLF);
+      String head = client.readResponse();
+      assertTrue(head.contains("Content-Encoding: gzip" + CRLF));
+      assertTrue(head.contains("Transfer-Encoding: chunked" + CRLF));
+      assertEquals(gunzip(client.getBody()), expected.toString());
+      assertEquals(client.getTrailers(), "X-Rows: 10000" + CRLF);
+      head = client.readResponse();
+      assertTrue(head.contains("Content-Encoding: gzip" + CRLF));
+      assertFalse(head.contains("Content-Length"));
+      assertEquals(gunzip(client.getBody()), expected.toString());
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static String gunzip(byte[] compressed) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  private HttpServer startServer(ServerConfig.Transport transport,
+      Function<Request, Response> handler) throws Exception {
+    HttpServer server = new HttpServer(0, new MiddlewareSet(), handler);
+    server.setConfig(new ServerConfig.Builder().setTransport(transport).setResponseChunkSize(1000).build());
+    return HttpTestClient.startServer(server);
+  }
+}
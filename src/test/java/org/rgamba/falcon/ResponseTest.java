@@ -15,14 +15,16 @@ public class ResponseTest {
         .setHeader("Content-Type", "text/plain")
         .setHeader("Date", "Tue, 03 Jul 2018 19:42:19 GMT")
         .setCookie(new Cookie("testcookie", "123456"))
+        .setCookie(new Cookie("othercookie", "abc"))
         .setBody("Hello world!")
         .build();
     String expected = "HTTP/1.1 200 OK" + HttpConstants.CRLF
-        + "Content-Length: 12" + HttpConstants.CRLF
+        + "Server: falcon" + HttpConstants.CRLF
         + "Content-Type: text/plain" + HttpConstants.CRLF
         + "Date: Tue, 03 Jul 2018 19:42:19 GMT" + HttpConstants.CRLF
-        + "Server: falcon" + HttpConstants.CRLF
+        + "Content-Length: 12" + HttpConstants.CRLF
         + "Set-Cookie: testcookie=123456" + HttpConstants.CRLF
+        + "Set-Cookie: othercookie=abc" + HttpConstants.CRLF
         + HttpConstants.CRLF
         + "Hello world!";
 
@@ -34,4 +36,20 @@ public class ResponseTest {
     String realOutput = new String(os.toByteArray(), "UTF-8");
     assertEquals(realOutput, expected);
   }
+
+  @Test
+  public void testStreamedResponseRebuiltWithBody() {
+    Response streamed = new Response.Builder().setTrailer("X-Rows", "?").setBody(sink -> { }).build();
+    assertEquals(streamed.getHeader("Transfer-Encoding").getValue(), "chunked");
+    assertEquals(streamed.getHeader("Trailer").getValue(), "X-Rows");
+
+    Response rebuilt = new Response.Builder(streamed).setBody("hello").build();
+    assertNull(rebuilt.getHeader("Transfer-Encoding"));
+    assertNull(rebuilt.getHeader("Trailer"));
+    assertEquals(rebuilt.getHeader("Content-Length").getValue(), "5");
+
+    Response bodiless = new Response.Builder(streamed).setBody((String) null).build();
+    assertNull(bodiless.getHeader("Transfer-Encoding"));
+    assertNull(bodiless.getHeader("Trailer"));
+  }
 }
@@ -0,0 +1,109 @@
+package org.rgamba.falcon;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+
+public class RouteTreeTest {
+  private RouteTree<String> tree;
+
+  @BeforeClass
+  public void buildTree() {
+    tree = new RouteTree<>();
+    tree.insert("/", "index");
+    tree.insert("/users", "users");
+    tree.insert("/users/new", "new user");
+    tree.insert("/users/{id:[0-9]+}", "user");
+    tree.insert("/users/{name}", "user by name");
+    tree.insert("/users/{id}/posts/{post}", "post");
+    tree.insert("/user-settings/", "settings");
+    tree.insert("/static/*file", "static");
+    tree.insert("/files/*", "files");
+  }
+
+  @DataProvider
+  private Object[][] paths() {
+    //@formatter:off
+    return new Object[][]{
+        {"/", "index", params()},
+        {"/users", "users", params()},
+        {"/users/", "users", params()},
+        {"/users/new", "new user", params()},
+        {"/users/42", "user", params("id", "42")},
+        {"/users/ricardo/", "user by name", params("name", "ricardo")},
+        {"/users/7/posts/hello", "post", params("id", "7", "post", "hello")},
+        {"/user-settings", "settings", params()},
+        {"/static/css/site.css", "static", params("file", "css/site.css")},
+        {"/static/", "static", params("file", "")},
+        {"/files/a/b", "files", params("*", "a/b")},
+    };
+    //@formatter:on
+  }
+
+  @Test(dataProvider = "paths")
+  public void testLookup(String path, String expected, Map<String, String> params) {
+    RouteTree.Match<String> match = tree.lookup(path);
+    assertNotNull(match, path);
+    assertEquals(match.getValue(), expected);
+    assertEquals(match.getParams().toMap(), params);
+  }
+
+  @Test
+  public void testStaticRoutesShareMatch() {
+    assertSame(tree.lookup("/users/new"), tree.lookup("/users/new/"));
+    assertSame(tree.lookup("/users/new").getParams(), PathParams.EMPTY);
+  }
+
+  @Test
+  public void testNotFound() {
+    assertNull(tree.lookup("/user"));
+    assertNull(tree.lookup("/users/7/posts"));
+    assertNull(tree.lookup("/users//"));
+    assertNull(tree.lookup("/static"));
+    assertNull(tree.lookup(""));
+  }
+
+  @Test
+  public void testBacktracking() {
+    RouteTree<String> tree = new RouteTree<>();
+    tree.insert("/a/b/c", "static");
+    tree.insert("/a/{x}/d", "param");
+    assertEquals(tree.lookup("/a/b/c").getValue(), "static");
+    assertEquals(tree.lookup("/a/b/d").getValue(), "param");
+  }
+
+  @Test
+  public void testReplaceRoute() {
+    RouteTree<String> tree = new RouteTree<>();
+    tree.insert("/home", "first");
+    tree.insert("/home/", "second");
+    assertEquals(tree.lookup("/home").getValue(), "second");
+  }
+
+  @DataProvider
+  private Object[][] invalidPatterns() {
+    return new Object[][]{
+        {"home"}, {"/users/{id"}, {"/users/{}"}, {"/users/id}"}, {"/users/x{id}"}, {"/users/{id}x"},
+        {"/files/*/more"}, {"/files*"}, {"/users/{id:[0-9}"}, {"/users/{id}/{id}"},
+    };
+  }
+
+  @Test(dataProvider = "invalidPatterns", expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidPattern(String pattern) {
+    new RouteTree<String>().insert(pattern, "invalid");
+  }
+
+  private static Map<String, String> params(String... pairs) {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < pairs.length; i += 2) {
+      result.put(pairs[i], pairs[i + 1]);
+    }
+    return result;
+  }
+}
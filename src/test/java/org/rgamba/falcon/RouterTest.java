@@ -1,5 +1,8 @@
 package org.rgamba.falcon;
 
+import org.rgamba.falcon.errors.HttpError;
+import org.rgamba.falcon.errors.MethodNotImplemented;
+import org.rgamba.falcon.errors.ServerError;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 
@@ -14,6 +17,7 @@ public class RouterTest {
     router = new Router();
     router.setHandler("/", HomeHandler.class);
     router.setHandler("/login", LoginHandler.class);
+    router.setHandler("/users/{id:[0-9]+}", UserHandler.class);
   }
 
   @Test
@@ -41,6 +45,71 @@ public class RouterTest {
     assertEquals(resp.getStatusCode(), 405);
   }
 
+  @Test
+  public void testPathParams() {
+    Request req = new Request.Builder().setType(Request.Type.GET).setUri("/users/42?x=1").setPath("/users/42/").build();
+    Response resp = router.handle(req);
+    assertEquals(resp.getBody(), "user 42");
+  }
+
+  @Test
+  public void testPathParamConstraint() {
+    Request req = createRequest(Request.Type.GET, "/users/ricardo");
+    Response resp = router.handle(req);
+    assertEquals(resp.getStatusCode(), 404);
+  }
+
+  @Test
+  public void testHandlerInstance() {
+    CountingHandler handler = new CountingHandler();
+    Router router = new Router();
+    router.setHandler("/count", handler);
+    router.handle(createRequest(Request.Type.GET, "/count"));
+    Response resp = router.handle(createRequest(Request.Type.GET, "/count"));
+    assertEquals(resp.getBody(), "2");
+    assertEquals(router.handle(createRequest(Request.Type.PUT, "/count")).getStatusCode(), 405);
+  }
+
+  @Test
+  public void testHandlerFactory() {
+    Router router = new Router();
+    router.setHandler("/count", CountingHandler.class, CountingHandler::new);
+    router.handle(createRequest(Request.Type.GET, "/count"));
+    Response resp = router.handle(createRequest(Request.Type.GET, "/count"));
+    assertEquals(resp.getBody(), "1");
+  }
+
+  @Test
+  public void testInheritedHandlerMethod() {
+    Router router = new Router();
+    router.setHandler("/login", ExtendedLoginHandler.class);
+    assertEquals(router.handle(createRequest(Request.Type.GET, "/login")).getBody(), "this is a get request");
+    assertEquals(router.handle(createRequest(Request.Type.DELETE, "/login")).getBody(), "deleted");
+  }
+
+  @Test
+  public void testHandlerErrors() {
+    Router router = new Router();
+    router.setHandler("/fail", FailingHandler.class);
+    assertEquals(router.handle(createRequest(Request.Type.GET, "/fail")).getStatusCode(), 405);
+    assertEquals(router.handle(createRequest(Request.Type.POST, "/fail")).getStatusCode(), 500);
+  }
+
+  @Test
+  public void testHandlerClassCreatedPerRequest() {
+    Router router = new Router();
+    router.setHandler("/count", CountingHandler.class);
+    router.setHandler("/broken", BrokenConstructorHandler.class);
+    router.handle(createRequest(Request.Type.GET, "/count"));
+    assertEquals(router.handle(createRequest(Request.Type.GET, "/count")).getBody(), "1");
+    assertEquals(router.handle(createRequest(Request.Type.GET, "/broken")).getStatusCode(), 500);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testHandlerWithoutDefaultConstructor() {
+    new Router().setHandler("/", NoDefaultConstructorHandler.class);
+  }
+
   private Request createRequest(Request.Type type, String uri) {
     return new Request.Builder().setType(type).setUri(uri).build();
   }
@@ -59,6 +128,57 @@ public class RouterTest {
     }
   }
 
+  public static class CountingHandler implements RequestHandler {
+    private int count = 0;
+
+    @Override
+    public Response get(Request req) {
+      return new Response.Builder().setBody(String.valueOf(++count)).build();
+    }
+  }
+
+  public static class ExtendedLoginHandler extends LoginHandler {
+    @Override
+    public Response delete(Request req) {
+      return new Response.Builder().setBody("deleted").build();
+    }
+  }
+
+  public static class FailingHandler implements RequestHandler {
+    @Override
+    public Response get(Request req) throws HttpError {
+      throw new MethodNotImplemented();
+    }
+
+    @Override
+    public Response post(Request req) throws HttpError {
+      throw new ServerError();
+    }
+  }
+
+  public static class BrokenConstructorHandler implements RequestHandler {
+    public BrokenConstructorHandler() {
+      throw new IllegalStateException("broken");
+    }
+
+    @Override
+    public Response get(Request request) {
+      return null;
+    }
+  }
+
+  public static class NoDefaultConstructorHandler implements RequestHandler {
+    public NoDefaultConstructorHandler(String name) {
+    }
+  }
+
+  public static class UserHandler implements RequestHandler {
+    @Override
+    public Response get(Request req) {
+      return new Response.Builder().setBody("user " + req.getPathParam("id")).build();
+    }
+  }
+
   public static class HomeHandler implements RequestHandler {
     @Override
     public Response get(Request req) {
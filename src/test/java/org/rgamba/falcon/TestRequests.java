@@ -0,0 +1,24 @@
+package org.rgamba.falcon;
+
+/**
+ * Requests built in memory for the tests of handlers and middleware.
+ */
+public final class TestRequests {
+  private TestRequests() {
+  }
+
+  /**
+   * @param headers Header names and values, alternated
+   */
+  public static Request request(Request.Type type, String uri, String... headers) {
+    Request.Builder builder = new Request.Builder().setType(type).setUri(uri).setPath(uri);
+    for (int i = 0; i < headers.length; i += 2) {
+      builder.setHeader(headers[i], headers[i + 1]);
+    }
+    return builder.build();
+  }
+
+  public static Request get(String uri, String... headers) {
+    return request(Request.Type.GET, uri, headers);
+  }
+}
@@ -0,0 +1,189 @@
+package org.rgamba.falcon;
+
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+
+public class WorkerPoolTest {
+  private final String CRLF = HttpConstants.CRLF;
+
+  @Test
+  public void testRejectsWhenSaturated() throws Exception {
+    WorkerPool pool = new WorkerPool(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    try {
+      assertTrue(pool.submit(() -> {
+        started.countDown();
+        await(release);
+      }));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      assertTrue(pool.submit(() -> await(release)));
+      assertFalse(pool.submit(() -> { }));
+
+      assertEquals(pool.getActiveCount(), 1);
+      assertEquals(pool.getQueueDepth(), 1);
+      assertEquals(pool.getQueueCapacity(), 1);
+      assertEquals(pool.getMaxPoolSize(), 1);
+      assertEquals(pool.getRejectedCount(), 1);
+    } finally {
+      release.countDown();
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testWithoutQueue() throws Exception {
+    WorkerPool pool = new WorkerPool(1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      assertTrue(pool.submit(() -> await(release)));
+      assertFalse(pool.submit(() -> { }));
+      assertEquals(pool.getQueueDepth(), 0);
+      assertEquals(pool.getRejectedCount(), 1);
+    } finally {
+      release.countDown();
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    if (!VirtualThreads.isSupported()) {
+      throw new SkipException("virtual threads require Java 21 or newer");
+    }
+    HttpServer server = new HttpServer(0, new MiddlewareSet(), req -> {
+      return new Response.Builder().setBody(Thread.currentThread().getClass().getSimpleName()).build();
+    });
+    server.setConfig(new ServerConfig.Builder().setVirtualThreads(true).setWorkerThreads(10000).build());
+    HttpTestClient.startServer(server);
+    try (HttpTestClient client = new HttpTestClient(server.getLocalPort())) {
+      client.send("GET / HTTP/1.1" + CRLF + CRLF);
+      assertTrue(client.readResponse().endsWith("VirtualThread"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @DataProvider
+  private Object[][] transports() {
+    return new Object[][]{{ServerConfig.Transport.BLOCKING}, {ServerConfig.Transport.NIO}};
+  }
+
+  @Test(dataProvider = "transports")
+  public void testServiceUnavailable(ServerConfig.Transport transport) throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = startSaturatedServer(transport, ServerConfig.RejectionPolicy.SERVICE_UNAVAILABLE, release);
+    try (HttpTestClient busy = new HttpTestClient(server.getLocalPort());
+         HttpTestClient rejected = new HttpTestClient(server.getLocalPort())) {
+      busy.send("GET / HTTP/1.1" + CRLF + CRLF);
+      waitForActiveWorker(server);
+      rejected.send("GET / HTTP/1.1" + CRLF + CRLF);
+      String response = rejected.readResponse();
+      assertTrue(response.startsWith("HTTP/1.1 503 SERVICE UNAVAILABLE" + CRLF));
+      assertTrue(response.contains("Retry-After: 7" + CRLF));
+      assertTrue(response.contains("Connection: close" + CRLF));
+      assertEquals(server.getWorkerPool().getRejectedCount(), 1);
+
+      release.countDown();
+      assertTrue(busy.readResponse().endsWith("done"));
+    } finally {
+      release.countDown();
+      server.stop();
+    }
+  }
+
+  @Test(dataProvider = "transports")
+  public void testDrop(ServerConfig.Transport transport) throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = startSaturatedServer(transport, ServerConfig.RejectionPolicy.DROP, release);
+    try (HttpTestClient busy = new HttpTestClient(server.getLocalPort());
+         HttpTestClient rejected = new HttpTestClient(server.getLocalPort())) {
+      busy.send("GET / HTTP/1.1" + CRLF + CRLF);
+      waitForActiveWorker(server);
+      rejected.send("GET / HTTP/1.1" + CRLF + CRLF);
+      try {
+        assertEquals(rejected.readAll(), "");
+      } catch (IOException e) {
+        /* Reset by the server, nothing was sent either */
+      }
+      assertEquals(server.getWorkerPool().getRejectedCount(), 1);
+    } finally {
+      release.countDown();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testCallerRunsServesOneRequest() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = new HttpServer(0, new MiddlewareSet(), req -> {
+      if (req.getPath().startsWith("/busy")) {
+        await(release);
+      }
+      return new Response.Builder().setBody("done").build();
+    });
+    server.setConfig(new ServerConfig.Builder()
+        .setWorkerThreads(1)
+        .setWorkerQueueCapacity(0)
+        .setRejectionPolicy(ServerConfig.RejectionPolicy.CALLER_RUNS)
+        .build());
+    HttpTestClient.startServer(server);
+    try (HttpTestClient busy = new HttpTestClient(server.getLocalPort());
+         HttpTestClient rejected = new HttpTestClient(server.getLocalPort())) {
+      busy.send("GET /busy HTTP/1.1" + CRLF + CRLF);
+      waitForActiveWorker(server);
+      rejected.send("GET / HTTP/1.1" + CRLF + CRLF);
+      /* Served by the acceptor, which must not keep the connection */
+      String response = rejected.readResponse();
+      assertTrue(response.contains("Connection: close" + CRLF));
+      assertTrue(response.endsWith("done"));
+      assertTrue(rejected.isClosedByServer());
+      try (HttpTestClient next = new HttpTestClient(server.getLocalPort())) {
+        next.send("GET / HTTP/1.1" + CRLF + CRLF);
+        assertTrue(next.readResponse().endsWith("done"));
+      }
+    } finally {
+      release.countDown();
+      server.stop();
+    }
+  }
+
+  private HttpServer startSaturatedServer(ServerConfig.Transport transport, ServerConfig.RejectionPolicy policy,
+      CountDownLatch release) throws Exception {
+    HttpServer server = new HttpServer(0, new MiddlewareSet(), req -> {
+      await(release);
+      return new Response.Builder().setBody("done").build();
+    });
+    server.setConfig(new ServerConfig.Builder()
+        .setTransport(transport)
+        .setEventLoopThreads(1)
+        .setWorkerThreads(1)
+        .setWorkerQueueCapacity(0)
+        .setRejectionPolicy(policy)
+        .setRetryAfter(7)
+        .build());
+    return HttpTestClient.startServer(server);
+  }
+
+  private void waitForActiveWorker(HttpServer server) throws InterruptedException {
+    while (server.getWorkerPool().getActiveCount() == 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package org.rgamba.falcon.benchmarks;
+
+import org.rgamba.falcon.Middleware;
+import org.rgamba.falcon.MiddlewareSet;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+import org.rgamba.falcon.middleware.AppendSlashMiddleware;
+import org.rgamba.falcon.middleware.LoggerMiddleware;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Measures the bytes allocated per request by the middleware pipeline.
+ *
+ * <p>"per-request instances" replays what the pipeline used to do: a new
+ * instance of every middleware for each stage plus a copy of the request
+ * and the response around every call. It is compared with the frozen chain
+ * using both copy policies.
+ *
+ * <p>Uses {@code com.sun.management.ThreadMXBean}, so it needs a HotSpot based JVM.
+ *
+ * <p>Usage: {@code MiddlewareBenchmark [iterations]}
+ */
+public class MiddlewareBenchmark {
+  private static final List<Class<? extends Middleware>> MIDDLEWARE =
+      Arrays.asList(AppendSlashMiddleware.class, LoggerMiddleware.class);
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    Request request = new Request.Builder()
+        .setType(Request.Type.GET)
+        .setUri("/users")
+        .setPath("/users")
+        .setHeader("Host", "localhost")
+        .setHeader("User-Agent", "benchmark")
+        .setHeader("Accept", "*/*")
+        .build();
+    Response response = new Response.Builder().setBody("Hello").build();
+
+    MiddlewareSet frozen = new MiddlewareSet();
+    MiddlewareSet defensive = new MiddlewareSet();
+    defensive.setCopyPolicy(MiddlewareSet.CopyPolicy.DEFENSIVE);
+    /* Logging would dominate the measurement */
+    Logger.getLogger(LoggerMiddleware.class.getName()).setLevel(Level.WARNING);
+
+    for (int round = 0; round < 2; round++) {
+      /* The first round only warms up */
+      boolean print = round == 1;
+      measure("per-request instances", iterations, print, () -> legacyPipeline(request, response));
+      measure("frozen, defensive copies", iterations, print, () -> pipeline(defensive, request, response));
+      measure("frozen, no copies", iterations, print, () -> pipeline(frozen, request, response));
+    }
+  }
+
+  private static Object pipeline(MiddlewareSet middlewareSet, Request request, Response response)
+      throws Exception {
+    Request processed = middlewareSet.processRequest(request);
+    return middlewareSet.processResponse(processed, response);
+  }
+
+  private static Object legacyPipeline(Request request, Response response) throws Exception {
+    Request currRequest = request.copy();
+    for (Class<? extends Middleware> clazz : MIDDLEWARE) {
+      Middleware middleware = clazz.getConstructor().newInstance();
+      /* Also undo the LoggerMiddleware constructor */
+      Logger.getLogger(LoggerMiddleware.class.getName()).setLevel(Level.WARNING);
+      currRequest = middleware.processRequest(currRequest.copy()).copy();
+    }
+    Response currResp = response.copy();
+    for (Class<? extends Middleware> clazz : MIDDLEWARE) {
+      Middleware middleware = clazz.getConstructor().newInstance();
+      Logger.getLogger(LoggerMiddleware.class.getName()).setLevel(Level.WARNING);
+      currResp = middleware.processResponse(currRequest.copy(), currResp.copy()).copy();
+    }
+    return currResp.copy();
+  }
+
+  private static void measure(String name, int iterations, boolean print, Pipeline pipeline) throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    Object sink = null;
+    long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink = pipeline.run();
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+    if (print && sink != null) {
+      System.out.printf("%-26s %8d bytes/request %8.0f ns/request%n", name, allocated / iterations,
+          (double) elapsed / iterations);
+    }
+  }
+
+  @FunctionalInterface
+  private interface Pipeline {
+    Object run() throws Exception;
+  }
+}
@@ -0,0 +1,186 @@
+package org.rgamba.falcon.benchmarks;
+
+import org.rgamba.falcon.HttpConstants;
+import org.rgamba.falcon.HttpServer;
+import org.rgamba.falcon.MiddlewareSet;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.RequestHandler;
+import org.rgamba.falcon.Response;
+import org.rgamba.falcon.Router;
+import org.rgamba.falcon.ServerConfig;
+import org.rgamba.falcon.handlers.AssetCache;
+import org.rgamba.falcon.handlers.StaticFileHandler;
+import org.rgamba.falcon.middleware.LoggerMiddleware;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Load test of the {@link StaticFileHandler}, with and without an
+ * {@link AssetCache}, against serving the same files the way it had to be
+ * done before, reading each one into a String and sending it as the body
+ * of the response.
+ *
+ * <p>Every client keeps its connection alive and asks for the same file
+ * for the given number of seconds, for each file size and transport.
+ *
+ * <p>Usage: {@code StaticFileBenchmark [seconds] [clients]}
+ */
+public class StaticFileBenchmark {
+  private static final String CRLF = HttpConstants.CRLF;
+  private static final int[] FILE_SIZES = {4 * 1024, 256 * 1024, 4 * 1024 * 1024};
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    Path root = Files.createTempDirectory("falcon-benchmark");
+    for (int size : FILE_SIZES) {
+      byte[] contents = new byte[size];
+      for (int i = 0; i < size; i++) {
+        contents[i] = (byte) ('a' + i % 26);
+      }
+      Files.write(root.resolve(size + ".txt"), contents);
+    }
+    try {
+      for (ServerConfig.Transport transport : ServerConfig.Transport.values()) {
+        for (int size : FILE_SIZES) {
+          /* The first run only warms up */
+          run(root, transport, size, 1, clients, false);
+          run(root, transport, size, seconds, clients, true);
+        }
+      }
+    } finally {
+      for (int size : FILE_SIZES) {
+        Files.delete(root.resolve(size + ".txt"));
+      }
+      Files.delete(root);
+    }
+  }
+
+  private static void run(Path root, ServerConfig.Transport transport, int size, int seconds, int clients,
+      boolean print) throws Exception {
+    Router router = new Router();
+    router.setHandler("/string/*file", new StringFileHandler(root));
+    router.setHandler("/static/*file", new StaticFileHandler.Builder(root).build());
+    AssetCache cache = new AssetCache.Builder().setMaxBytes(64 << 20).setMaxFileSize(8 << 20).build();
+    router.setHandler("/cached/*file", new StaticFileHandler.Builder(root).setAssetCache(cache).build());
+    MiddlewareSet middleware = new MiddlewareSet();
+    middleware.deregister(LoggerMiddleware.class);
+    HttpServer server = new HttpServer(0, middleware, router);
+    server.setConfig(new ServerConfig.Builder()
+        .setTransport(transport)
+        .setMaxRequestsPerConnection(Integer.MAX_VALUE)
+        .build());
+    Thread serverThread = new Thread(server::listen);
+    serverThread.setDaemon(true);
+    serverThread.start();
+    while (server.getLocalPort() <= 0) {
+      Thread.sleep(10);
+    }
+    try {
+      for (String path : new String[]{"/string/", "/static/", "/cached/"}) {
+        long requests = load(server.getLocalPort(), path + size + ".txt", seconds, clients);
+        if (print) {
+          System.out.printf("%-8s %-8s %8d bytes %10.0f req/s %8.1f MB/s%n", transport, path, size,
+              (double) requests / seconds, (double) requests * size / seconds / (1 << 20));
+        }
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static long load(int port, String path, int seconds, int clients) throws Exception {
+    long deadline = System.nanoTime() + seconds * 1000000000L;
+    AtomicLong requests = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    List<Future<?>> pending = new ArrayList<>();
+    byte[] request = ("GET " + path + " HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF)
+        .getBytes(StandardCharsets.US_ASCII);
+    for (int c = 0; c < clients; c++) {
+      pending.add(pool.submit(() -> {
+        try (Socket socket = new Socket("localhost", port)) {
+          socket.setSoTimeout(60000);
+          OutputStream out = socket.getOutputStream();
+          InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+          byte[] buffer = new byte[64 * 1024];
+          while (System.nanoTime() < deadline) {
+            out.write(request);
+            out.flush();
+            readResponse(in, buffer);
+            requests.incrementAndGet();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }));
+    }
+    for (Future<?> future : pending) {
+      future.get();
+    }
+    pool.shutdown();
+    return requests.get();
+  }
+
+  private static void readResponse(InputStream in, byte[] buffer) throws IOException {
+    StringBuilder head = new StringBuilder();
+    while (head.length() < 4 || head.lastIndexOf(CRLF + CRLF) != head.length() - 4) {
+      int b = in.read();
+      if (b == -1) {
+        throw new IOException("connection closed");
+      }
+      head.append((char) b);
+    }
+    long contentLength = 0;
+    for (String line : head.toString().split(CRLF)) {
+      if (line.toLowerCase().startsWith("content-length:")) {
+        contentLength = Long.parseLong(line.substring("content-length:".length()).trim());
+      }
+    }
+    while (contentLength > 0) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, contentLength));
+      if (read == -1) {
+        throw new IOException("connection closed");
+      }
+      contentLength -= read;
+    }
+  }
+
+  /**
+   * Serves files by reading them into a String, as handlers had to.
+   */
+  private static final class StringFileHandler implements RequestHandler {
+    private final Path _root;
+
+    StringFileHandler(Path root) {
+      _root = root;
+    }
+
+    @Override
+    public Response get(Request request) {
+      String file = request.getPathParam("file");
+      file = file.endsWith("/") ? file.substring(0, file.length() - 1) : file;
+      try {
+        String contents = new String(Files.readAllBytes(_root.resolve(file)), StandardCharsets.UTF_8);
+        return new Response.Builder().setHeader("Content-Type", "text/plain; charset=utf-8")
+            .setBody(contents).build();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.rgamba.falcon.benchmarks;
+
+import org.rgamba.falcon.HttpConstants;
+import org.rgamba.falcon.HttpServer;
+import org.rgamba.falcon.MiddlewareSet;
+import org.rgamba.falcon.Response;
+import org.rgamba.falcon.ServerConfig;
+import org.rgamba.falcon.middleware.LoggerMiddleware;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Compares the blocking transport running its workers on platform
+ * threads, sized like the unbounded cached pool the server used to have,
+ * with the same transport running on virtual threads.
+ *
+ * <p>Every connection is opened up front and kept alive, so each one pins
+ * a worker for the whole run. A fixed number of driver threads then
+ * send requests round robin over all the connections.
+ *
+ * <p>Usage: {@code VirtualThreadsBenchmark [connections] [requests per connection] [handler delay ms]}
+ */
+public class VirtualThreadsBenchmark {
+  private static final String CRLF = HttpConstants.CRLF;
+  private static final int DRIVER_THREADS = 64;
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int delay = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    run("platform", connections, requests, delay, false);
+    try {
+      run("virtual", connections, requests, delay, true);
+    } catch (UnsupportedOperationException e) {
+      System.out.println("virtual: " + e.getMessage());
+    }
+  }
+
+  private static void run(String name, int connections, int requests, int delay, boolean virtual)
+      throws Exception {
+    MiddlewareSet middleware = new MiddlewareSet();
+    middleware.deregister(LoggerMiddleware.class);
+    HttpServer server = new HttpServer(0, middleware, req -> {
+      /* Simulates a blocking call to a database or another service */
+      sleep(delay);
+      return new Response.Builder().setBody("Hello").build();
+    });
+    server.setConfig(new ServerConfig.Builder()
+        .setVirtualThreads(virtual)
+        .setWorkerThreads(connections)
+        .setWorkerQueueCapacity(0)
+        .setMaxRequestsPerConnection(requests + 1)
+        .setKeepAliveTimeout(60000)
+        .setSocketTimeout(60000)
+        .build());
+    Thread serverThread = new Thread(server::listen);
+    serverThread.setDaemon(true);
+    serverThread.start();
+    while (server.getLocalPort() <= 0) {
+      Thread.sleep(10);
+    }
+
+    long start = System.nanoTime();
+    List<Socket> sockets = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      Socket socket = new Socket("localhost", server.getLocalPort());
+      socket.setSoTimeout(60000);
+      sockets.add(socket);
+    }
+    long connected = System.nanoTime();
+
+    AtomicInteger errors = new AtomicInteger();
+    ExecutorService drivers = Executors.newFixedThreadPool(DRIVER_THREADS);
+    List<Future<?>> pending = new ArrayList<>();
+    for (int d = 0; d < DRIVER_THREADS; d++) {
+      final int first = d;
+      pending.add(drivers.submit(() -> {
+        for (int r = 0; r < requests; r++) {
+          for (int i = first; i < sockets.size(); i += DRIVER_THREADS) {
+            try {
+              roundTrip(sockets.get(i));
+            } catch (IOException e) {
+              errors.incrementAndGet();
+            }
+          }
+        }
+      }));
+    }
+    for (Future<?> future : pending) {
+      future.get();
+    }
+    long end = System.nanoTime();
+    int liveThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+    drivers.shutdown();
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    server.stop();
+
+    double seconds = (end - connected) / 1e9;
+    System.out.printf("%-8s connections=%d requests=%d errors=%d connect=%dms throughput=%.0f req/s "
+            + "live platform threads=%d%n", name, connections, (long) connections * requests, errors.get(),
+        TimeUnit.NANOSECONDS.toMillis(connected - start), connections * requests / seconds,
+        liveThreads);
+  }
+
+  private static void roundTrip(Socket socket) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(("GET / HTTP/1.1" + CRLF + "Host: localhost" + CRLF + CRLF).getBytes("US-ASCII"));
+    out.flush();
+    readResponse(socket.getInputStream());
+  }
+
+  private static void readResponse(InputStream in) throws IOException {
+    StringBuilder head = new StringBuilder();
+    while (head.length() < 4 || head.lastIndexOf(CRLF + CRLF) != head.length() - 4) {
+      int b = in.read();
+      if (b == -1) {
+        throw new IOException("connection closed");
+      }
+      head.append((char) b);
+    }
+    int contentLength = 0;
+    for (String line : head.toString().split(CRLF)) {
+      if (line.toLowerCase().startsWith("content-length:")) {
+        contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+      }
+    }
+    for (int i = 0; i < contentLength; i++) {
+      if (in.read() == -1) {
+        throw new IOException("connection closed");
+      }
+    }
+  }
+
+  private static void sleep(int millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package org.rgamba.falcon.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.rgamba.falcon.TestRequests.get;
+import static org.testng.Assert.*;
+
+
+public class AssetCacheTest {
+  private Path _root;
+  private String _text;
+  private final AtomicLong _clock = new AtomicLong(1000000);
+
+  @BeforeMethod
+  public void createFiles() throws Exception {
+    _root = Files.createTempDirectory("falcon");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      text.append("body { margin: ").append(i).append("px; }\n");
+    }
+    _text = text.toString();
+    Files.write(_root.resolve("app.css"), _text.getBytes(StandardCharsets.US_ASCII));
+    Files.write(_root.resolve("logo.png"), new byte[300]);
+    Files.write(_root.resolve("large.txt"), new byte[5000]);
+  }
+
+  @AfterMethod
+  public void deleteFiles() throws Exception {
+    for (String name : new String[]{"app.css", "logo.png", "large.txt"}) {
+      Files.deleteIfExists(_root.resolve(name));
+    }
+    Files.delete(_root);
+  }
+
+  @Test
+  public void testServedFromMemory() throws Exception {
+    AssetCache cache = cache(1 << 20).build();
+    StaticFileHandler handler = new StaticFileHandler.Builder(_root).setAssetCache(cache).build();
+    Response response = handler.get(get("/app.css"));
+    assertFalse(response.isBodyStreamed());
+    assertEquals(new String(response.getBodyBytes(), StandardCharsets.US_ASCII), _text);
+    assertEquals(response.getHeader("Vary").getValue(), "Accept-Encoding");
+    assertEquals(cache.size(), 1);
+
+    response = handler.get(get("/app.css", "Range", "bytes=5-10"));
+    assertEquals(response.getStatusCode(), 206);
+    assertEquals(new String(response.getBodyBytes(), StandardCharsets.US_ASCII), _text.substring(5, 11));
+
+    /* Too large for the cache, sent from disk */
+    assertTrue(handler.get(get("/large.txt")).isBodyStreamed());
+    assertEquals(cache.size(), 1);
+  }
+
+  @Test
+  public void testCompressedVariants() throws Exception {
+    StaticFileHandler handler = new StaticFileHandler.Builder(_root).setAssetCache(cache(1 << 20).build()).build();
+    Response identity = handler.get(get("/app.css"));
+    Response gzip = handler.get(get("/app.css", "Accept-Encoding", "deflate;q=0.5, gzip"));
+    assertEquals(gzip.getHeader("Content-Encoding").getValue(), "gzip");
+    assertNotEquals(gzip.getHeader("ETag").getValue(), identity.getHeader("ETag").getValue());
+    assertEquals(decode(new GZIPInputStream(new ByteArrayInputStream(gzip.getBodyBytes()))), _text);
+
+    Response deflate = handler.get(get("/app.css", "Accept-Encoding", "gzip;q=0, *"));
+    assertEquals(deflate.getHeader("Content-Encoding").getValue(), "deflate");
+    assertEquals(decode(new InflaterInputStream(new ByteArrayInputStream(deflate.getBodyBytes()))), _text);
+
+    Response head = handler.head(get("/app.css", "Accept-Encoding", "gzip"));
+    assertEquals(head.getHeader("Content-Length").getValue(), String.valueOf(gzip.getBodyBytes().length));
+    assertEquals(handler.get(get("/app.css", "Accept-Encoding", "gzip",
+        "If-None-Match", gzip.getHeader("ETag").getValue())).getStatusCode(), 304);
+    assertNull(handler.get(get("/app.css", "Accept-Encoding", "identity")).getHeader("Content-Encoding"));
+    /* Images are not compressed */
+    Response png = handler.get(get("/logo.png", "Accept-Encoding", "gzip"));
+    assertNull(png.getHeader("Content-Encoding"));
+    assertNull(png.getHeader("Vary"));
+  }
+
+  @Test
+  public void testEvictsByBytes() throws Exception {
+    AssetCache cache = cache(4800).setCompress(false).build();
+    StaticFileHandler handler = new StaticFileHandler.Builder(_root).setAssetCache(cache).build();
+    handler.get(get("/logo.png"));
+    assertEquals(cache.getBytes(), 300);
+    handler.get(get("/app.css"));
+    assertEquals(cache.size(), 1);
+    assertEquals(cache.getBytes(), _text.length());
+  }
+
+  @Test
+  public void testReloadsChangedFiles() throws Exception {
+    AssetCache cache = cache(1 << 20).setCheckInterval(1000).build();
+    StaticFileHandler handler = new StaticFileHandler.Builder(_root).setAssetCache(cache).build();
+    String etag = handler.get(get("/app.css")).getHeader("ETag").getValue();
+    Files.write(_root.resolve("app.css"), "p {}".getBytes(StandardCharsets.US_ASCII));
+    Files.setLastModifiedTime(_root.resolve("app.css"), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+    /* Not checked yet */
+    assertEquals(handler.get(get("/app.css")).getHeader("ETag").getValue(), etag);
+    _clock.addAndGet(1000);
+    Response response = handler.get(get("/app.css"));
+    assertNotEquals(response.getHeader("ETag").getValue(), etag);
+    assertEquals(response.getBody(), "p {}");
+
+    Files.delete(_root.resolve("app.css"));
+    _clock.addAndGet(1000);
+    assertEquals(handler.get(get("/app.css")).getStatusCode(), 404);
+    assertEquals(cache.size(), 0);
+  }
+
+  @Test
+  public void testPreload() throws Exception {
+    AssetCache cache = cache(1 << 20).setMemoryMapped(true).build();
+    cache.preload(_root);
+    assertEquals(cache.size(), 2);
+    Response response = new StaticFileHandler.Builder(_root).setAssetCache(cache).build().get(get("/logo.png"));
+    assertEquals(response.getBodyBytes(), new byte[300]);
+  }
+
+  private AssetCache.Builder cache(long maxBytes) {
+    return new AssetCache.Builder().setMaxBytes(maxBytes).setMaxFileSize(4800).setClock(_clock::get);
+  }
+
+
+  private static String decode(java.io.InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+}
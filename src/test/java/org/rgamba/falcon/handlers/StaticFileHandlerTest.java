@@ -0,0 +1,188 @@
+package org.rgamba.falcon.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import org.rgamba.falcon.HttpConstants;
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.rgamba.falcon.TestRequests.get;
+import static org.testng.Assert.*;
+
+
+public class StaticFileHandlerTest {
+  private static final String CRLF = HttpConstants.CRLF;
+  private static final String CONTENTS = "0123456789abcdefghijklmnopqrstuvwxyz";
+  private static final long MODIFIED = 784111777000L;
+  private Path _root;
+  private StaticFileHandler _handler;
+
+  @BeforeClass
+  public void createFiles() throws Exception {
+    _root = Files.createTempDirectory("falcon");
+    Files.createDirectory(_root.resolve("docs"));
+    for (String name : new String[]{"app.js", "docs/index.html"}) {
+      Path file = _root.resolve(name);
+      Files.write(file, CONTENTS.getBytes(StandardCharsets.US_ASCII));
+      Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED));
+    }
+    _handler = new StaticFileHandler.Builder(_root).build();
+  }
+
+  @AfterClass
+  public void deleteFiles() throws Exception {
+    Files.delete(_root.resolve("docs/index.html"));
+    Files.delete(_root.resolve("docs"));
+    Files.delete(_root.resolve("app.js"));
+    Files.delete(_root);
+  }
+
+  @Test
+  public void testServeFile() throws Exception {
+    Response response = _handler.get(get("/app.js/"));
+    assertEquals(response.getStatusCode(), 200);
+    assertTrue(response.isBodyStreamed());
+    assertEquals(response.getHeader("Content-Type").getValue(), "application/javascript; charset=utf-8");
+    assertEquals(response.getHeader("Content-Length").getValue(), String.valueOf(CONTENTS.length()));
+    assertEquals(response.getHeader("Last-Modified").getValue(), "Sun, 06 Nov 1994 08:49:37 GMT");
+    assertEquals(response.getHeader("Accept-Ranges").getValue(), "bytes");
+    assertTrue(response.getHeader("ETag").getValue().matches("\"[0-9a-f]+-[0-9a-f]+\""));
+    assertEquals(body(response), CONTENTS);
+
+    assertEquals(body(_handler.get(get("/docs"))), CONTENTS);
+  }
+
+  @Test
+  public void testHead() throws Exception {
+    Response response = _handler.head(get("/app.js"));
+    assertEquals(response.getStatusCode(), 200);
+    assertEquals(response.getHeader("Content-Length").getValue(), String.valueOf(CONTENTS.length()));
+    assertEquals(body(response), "");
+  }
+
+  @Test
+  public void testNotFound() {
+    assertEquals(_handler.get(get("/missing.js")).getStatusCode(), 404);
+    assertEquals(_handler.get(get("/../" + _root.getFileName() + "/app.js")).getStatusCode(), 200);
+    assertEquals(_handler.get(get("/../etc/passwd")).getStatusCode(), 404);
+    assertEquals(_handler.get(get("/%2e%2e/etc/passwd")).getStatusCode(), 404);
+    assertEquals(_handler.get(get("/app%zz.js")).getStatusCode(), 404);
+    assertEquals(new StaticFileHandler.Builder(_root).setIndexFile(null).build().get(get("/docs/"))
+        .getStatusCode(), 404);
+  }
+
+  @Test
+  public void testConditionalRequests() {
+    String etag = _handler.get(get("/app.js")).getHeader("ETag").getValue();
+    Response response = _handler.get(get("/app.js", "If-None-Match", "\"other\", W/" + etag));
+    assertEquals(response.getStatusCode(), 304);
+    assertEquals(response.getHeader("ETag").getValue(), etag);
+    assertNull(response.getHeader("Content-Length"));
+    assertEquals(_handler.get(get("/app.js", "If-None-Match", "\"other\"")).getStatusCode(), 200);
+    assertEquals(_handler.get(get("/app.js", "If-None-Match", "*")).getStatusCode(), 304);
+
+    assertEquals(_handler.get(get("/app.js", "If-Modified-Since", HttpUtils.formatHttpDate(MODIFIED + 500)))
+        .getStatusCode(), 304);
+    assertEquals(_handler.get(get("/app.js", "If-Modified-Since", HttpUtils.formatHttpDate(MODIFIED - 1000)))
+        .getStatusCode(), 200);
+    assertEquals(_handler.get(get("/app.js", "If-Modified-Since", "yesterday")).getStatusCode(), 200);
+    /* If-None-Match wins */
+    assertEquals(_handler.get(get("/app.js", "If-None-Match", "\"other\"",
+        "If-Modified-Since", HttpUtils.formatHttpDate(MODIFIED))).getStatusCode(), 200);
+  }
+
+  @Test
+  public void testWeakETags() {
+    StaticFileHandler handler = new StaticFileHandler.Builder(_root).setWeakETags(true).build();
+    String etag = handler.get(get("/app.js")).getHeader("ETag").getValue();
+    assertTrue(etag.startsWith("W/\""));
+    assertEquals(handler.get(get("/app.js", "If-None-Match", etag.substring(2))).getStatusCode(), 304);
+    /* Weak tags can't be used to resume a download */
+    assertEquals(handler.get(get("/app.js", "Range", "bytes=0-1", "If-Range", etag)).getStatusCode(), 200);
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Response response = _handler.get(get("/app.js", "Range", "bytes=10-15"));
+    assertEquals(response.getStatusCode(), 206);
+    assertEquals(response.getHeader("Content-Range").getValue(), "bytes 10-15/36");
+    assertEquals(response.getHeader("Content-Length").getValue(), "6");
+    assertEquals(body(response), "abcdef");
+
+    assertEquals(body(_handler.get(get("/app.js", "Range", "bytes=-4"))), "wxyz");
+    assertEquals(body(_handler.get(get("/app.js", "Range", "bytes=30-"))), "uvwxyz");
+    assertEquals(body(_handler.get(get("/app.js", "Range", "bytes=30-1000"))), "uvwxyz");
+  }
+
+  @Test
+  public void testIfRange() throws Exception {
+    String etag = _handler.get(get("/app.js")).getHeader("ETag").getValue();
+    assertEquals(_handler.get(get("/app.js", "Range", "bytes=0-1", "If-Range", etag)).getStatusCode(), 206);
+    assertEquals(_handler.get(get("/app.js", "Range", "bytes=0-1", "If-Range", "\"old\"")).getStatusCode(), 200);
+    assertEquals(_handler.get(get("/app.js", "Range", "bytes=0-1",
+        "If-Range", HttpUtils.formatHttpDate(MODIFIED))).getStatusCode(), 206);
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    Response response = _handler.get(get("/app.js", "Range", "bytes=0-2, -3"));
+    assertEquals(response.getStatusCode(), 206);
+    String contentType = response.getHeader("Content-Type").getValue();
+    assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+    String boundary = contentType.substring(contentType.indexOf('=') + 1);
+    String expected = "--" + boundary + CRLF
+        + "Content-Type: application/javascript; charset=utf-8" + CRLF
+        + "Content-Range: bytes 0-2/36" + CRLF + CRLF + "012" + CRLF
+        + "--" + boundary + CRLF
+        + "Content-Type: application/javascript; charset=utf-8" + CRLF
+        + "Content-Range: bytes 33-35/36" + CRLF + CRLF + "xyz" + CRLF
+        + "--" + boundary + "--" + CRLF;
+    assertEquals(response.getHeader("Content-Length").getValue(), String.valueOf(expected.length()));
+    assertEquals(body(response), expected);
+  }
+
+  @Test
+  public void testUnsatisfiableRange() {
+    Response response = _handler.get(get("/app.js", "Range", "bytes=36-40"));
+    assertEquals(response.getStatusCode(), 416);
+    assertEquals(response.getHeader("Content-Range").getValue(), "bytes */36");
+    /* Invalid headers are ignored */
+    assertEquals(_handler.get(get("/app.js", "Range", "bytes=5-1")).getStatusCode(), 200);
+    assertEquals(_handler.get(get("/app.js", "Range", "items=0-1")).getStatusCode(), 200);
+    /* Ranges are ignored for HEAD */
+    assertEquals(_handler.head(get("/app.js", "Range", "bytes=0-1")).getStatusCode(), 200);
+  }
+
+  @Test
+  public void testParseRanges() {
+    List<long[]> ranges = StaticFileHandler.parseRanges("Bytes= 0-0 ,5-,-2, 99-100", 10, 8);
+    assertEquals(ranges.size(), 3);
+    assertEquals(ranges.get(0), new long[]{0, 0});
+    assertEquals(ranges.get(1), new long[]{5, 9});
+    assertEquals(ranges.get(2), new long[]{8, 9});
+    assertNull(StaticFileHandler.parseRanges("bytes=0-1,2-3,4-5", 10, 2));
+    assertNull(StaticFileHandler.parseRanges("bytes=-", 10, 2));
+    assertNull(StaticFileHandler.parseRanges("bytes=+1-2", 10, 2));
+    assertNull(StaticFileHandler.parseRanges("bytes=99999999999999999999-", 10, 2));
+    assertTrue(StaticFileHandler.parseRanges("bytes=-0", 10, 2).isEmpty());
+  }
+
+
+  private static String body(Response response) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+      response.write(writer);
+    }
+    String message = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    return message.substring(message.indexOf(CRLF + CRLF) + 4);
+  }
+}
@@ -0,0 +1,169 @@
+package org.rgamba.falcon.middleware;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+
+public class CompressionMiddlewareTest {
+  private static final String JSON = json(200);
+
+  private final CompressionMiddleware _middleware = new CompressionMiddleware();
+
+  @Test
+  public void testGzip() throws Exception {
+    Response original = new Response.Builder().setHeader("Content-Type", "application/json")
+        .setHeader("ETag", "\"v1\"").setHeader("Accept-Ranges", "bytes").setBody(JSON).build();
+    Response response = _middleware.processResponse(request("gzip, deflate"), original);
+    assertEquals(response.getHeader("Content-Encoding").getValue(), "gzip");
+    assertEquals(response.getHeader("Vary").getValue(), "Accept-Encoding");
+    assertEquals(response.getHeader("ETag").getValue(), "\"v1-gzip\"");
+    assertNull(response.getHeader("Accept-Ranges"));
+    byte[] compressed = response.getBodyBytes();
+    assertTrue(compressed.length < JSON.length() / 4);
+    assertEquals(response.getHeader("Content-Length").getValue(), String.valueOf(compressed.length));
+    assertEquals(gunzip(compressed), JSON);
+  }
+
+  @Test
+  public void testQualityValues() throws Exception {
+    Response response = _middleware.processResponse(request("gzip;q=0.5, deflate"), json());
+    assertEquals(response.getHeader("Content-Encoding").getValue(), "deflate");
+    assertEquals(inflate(response.getBodyBytes()), JSON);
+
+    response = _middleware.processResponse(request("*;q=0.1, gzip;q=0"), json());
+    assertEquals(response.getHeader("Content-Encoding").getValue(), "deflate");
+  }
+
+  @Test
+  public void testNotAccepted() {
+    for (String acceptEncoding : new String[]{null, "identity", "br", "gzip;q=0, deflate;q=0"}) {
+      Response response = _middleware.processResponse(request(acceptEncoding), json());
+      assertNull(response.getHeader("Content-Encoding"));
+      assertEquals(response.getBody(), JSON);
+      /* A client accepting gzip would get another body */
+      assertEquals(response.getHeader("Vary").getValue(), "Accept-Encoding");
+    }
+  }
+
+  @Test
+  public void testVaryKeepsOtherHeaders() {
+    Response original = new Response.Builder().setHeader("Vary", "Cookie").setBody(JSON).build();
+    Response response = _middleware.processResponse(request("gzip"), original);
+    assertEquals(response.getHeader("Vary").getValue(), "Cookie, Accept-Encoding");
+    original = new Response.Builder().setHeader("Vary", "accept-encoding").setBody(JSON).build();
+    response = _middleware.processResponse(request("gzip"), original);
+    assertEquals(response.getHeader("Vary").getValue(), "accept-encoding");
+  }
+
+  @Test
+  public void testSkipped() {
+    Response[] skipped = {
+        new Response.Builder().setBody("{\"small\": true}").build(),
+        new Response.Builder().setHeader("Content-Type", "image/png").setBody(JSON).build(),
+        new Response.Builder().setHeader("Content-Type", "video/mp4; codecs=avc1").setBody(JSON).build(),
+        new Response.Builder().setHeader("Content-Encoding", "br").setBody(JSON).build(),
+        new Response.Builder().setHeader("Cache-Control", "public, no-transform").setBody(JSON).build(),
+        new Response.Builder().setStatusCode(Response.Status.NOT_MODIFIED).build(),
+        new Response.Builder().build(),
+    };
+    for (Response original : skipped) {
+      assertSame(_middleware.processResponse(request("gzip"), original), original);
+    }
+    CompressionMiddleware middleware = new CompressionMiddleware.Builder()
+        .setMinSize(0).addSkippedType("Application/JSON").build();
+    assertNull(middleware.processResponse(request("gzip"), json()).getHeader("Content-Encoding"));
+    Response small = new Response.Builder().setBody(json(20)).build();
+    assertEquals(middleware.processResponse(request("gzip"), small).getHeader("Content-Encoding").getValue(), "gzip");
+  }
+
+  @Test
+  public void testWeakETagIsKept() {
+    Response original = new Response.Builder().setHeader("ETag", "W/\"v1\"").setBody(JSON).build();
+    Response response = _middleware.processResponse(request("gzip"), original);
+    assertEquals(response.getHeader("ETag").getValue(), "W/\"v1\"");
+  }
+
+  @Test
+  public void testDeflatersArePooled() throws Exception {
+    DeflaterPool pool = new DeflaterPool(6, true, 1);
+    for (int i = 0; i < 3; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (CompressingOutputStream compressed = new CompressingOutputStream(out, pool, true)) {
+        compressed.write(JSON.getBytes(StandardCharsets.UTF_8));
+      }
+      assertEquals(gunzip(out.toByteArray()), JSON);
+      assertEquals(pool.size(), 1);
+    }
+  }
+
+  @Test
+  public void testFlushSendsWhatWasWritten() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressingOutputStream compressed = new CompressingOutputStream(out, new DeflaterPool(6, false, 1), false);
+    compressed.write("first".getBytes(StandardCharsets.UTF_8));
+    compressed.flush();
+    Inflater inflater = new Inflater();
+    inflater.setInput(out.toByteArray());
+    byte[] first = new byte[16];
+    assertEquals(new String(first, 0, inflater.inflate(first), StandardCharsets.UTF_8), "first");
+    inflater.end();
+    compressed.write("second".getBytes(StandardCharsets.UTF_8));
+    compressed.close();
+    compressed.close();
+    assertEquals(inflate(out.toByteArray()), "firstsecond");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidLevel() {
+    new CompressionMiddleware.Builder().setLevel(10);
+  }
+
+  private static Response json() {
+    return new Response.Builder().setHeader("Content-Type", "application/json").setBody(JSON).build();
+  }
+
+  private static String json(int rows) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < rows; i++) {
+      json.append(i > 0 ? "," : "").append("{\"id\": ").append(i).append(", \"name\": \"row ").append(i).append("\"}");
+    }
+    return json.append(']').toString();
+  }
+
+  private static Request request(String acceptEncoding) {
+    Request.Builder builder = new Request.Builder().setType(Request.Type.GET).setUri("/").setPath("/");
+    if (acceptEncoding != null) {
+      builder.setHeader("Accept-Encoding", acceptEncoding);
+    }
+    return builder.build();
+  }
+
+  private static String gunzip(byte[] compressed) throws IOException {
+    return read(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+  }
+
+  private static String inflate(byte[] compressed) throws IOException {
+    return read(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,120 @@
+package org.rgamba.falcon.middleware;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+import org.testng.annotations.Test;
+
+import static org.rgamba.falcon.TestRequests.request;
+import static org.testng.Assert.*;
+
+
+public class ConditionalGetMiddlewareTest {
+  private final ConditionalGetMiddleware _middleware = new ConditionalGetMiddleware();
+
+  @Test
+  public void testETagFromBody() {
+    Response first = _middleware.processResponse(request(Request.Type.GET, "/"), body("{\"count\": 1}"));
+    Response again = _middleware.processResponse(request(Request.Type.GET, "/"), body("{\"count\": 1}"));
+    Response changed = _middleware.processResponse(request(Request.Type.GET, "/"), body("{\"count\": 2}"));
+    String etag = first.getHeader("ETag").getValue();
+    assertTrue(etag.matches("\"[0-9a-f]{16}\""), etag);
+    assertEquals(again.getHeader("ETag").getValue(), etag);
+    assertNotEquals(changed.getHeader("ETag").getValue(), etag);
+    assertEquals(first.getBody(), "{\"count\": 1}");
+  }
+
+  @Test
+  public void testIfNoneMatch() {
+    String etag = _middleware.processResponse(request(Request.Type.GET, "/"), body("polled"))
+        .getHeader("ETag").getValue();
+    for (String ifNoneMatch : new String[]{etag, "\"other\", W/" + etag, "*"}) {
+      Response response = _middleware.processResponse(
+          request(Request.Type.GET, "/", "If-None-Match", ifNoneMatch), new Response.Builder()
+              .setHeader("Cache-Control", "max-age=5").setHeader("Set-Cookie", "id=1").setBody("polled").build());
+      assertEquals(response.getStatusCode(), 304);
+      assertNull(response.getBody());
+      assertNull(response.getHeader("Content-Length"));
+      assertNull(response.getHeader("Set-Cookie"));
+      assertEquals(response.getHeader("ETag").getValue(), etag);
+      assertEquals(response.getHeader("Cache-Control").getValue(), "max-age=5");
+    }
+    Response response = _middleware.processResponse(
+        request(Request.Type.HEAD, "/", "If-None-Match", "\"other\""), body("polled"));
+    assertEquals(response.getStatusCode(), 200);
+  }
+
+  @Test
+  public void testIfModifiedSince() {
+    Response lastModified = new Response.Builder().setHeader("ETag", "\"v1\"")
+        .setHeader("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT").setBody("page").build();
+    assertEquals(_middleware.processResponse(request(Request.Type.GET, "/",
+        "If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT"), lastModified).getStatusCode(), 304);
+    assertEquals(_middleware.processResponse(request(Request.Type.GET, "/",
+        "If-Modified-Since", "Sun, 06 Nov 1994 08:49:36 GMT"), lastModified).getStatusCode(), 200);
+    assertEquals(_middleware.processResponse(request(Request.Type.GET, "/",
+        "If-Modified-Since", "yesterday"), lastModified).getStatusCode(), 200);
+    /* If-None-Match takes precedence */
+    assertEquals(_middleware.processResponse(request(Request.Type.GET, "/", "If-None-Match", "\"v0\"",
+        "If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT"), lastModified).getStatusCode(), 200);
+  }
+
+  @Test
+  public void testSkipped() {
+    Response[] skipped = {
+        new Response.Builder().setStatusCode(404).setBody("not found").build(),
+        new Response.Builder().setBody(sink -> { }).build(),
+        new Response.Builder().build(),
+    };
+    for (Response original : skipped) {
+      assertSame(_middleware.processResponse(request(Request.Type.GET, "/", "If-None-Match", "*"), original), original);
+    }
+    Response original = body("created");
+    assertSame(_middleware.processResponse(request(Request.Type.POST, "/", "If-None-Match", "*"), original), original);
+    Response tagged = new Response.Builder().setHeader("ETag", "W/\"v2\"").setBody("tagged").build();
+    assertSame(_middleware.processResponse(request(Request.Type.GET, "/"), tagged), tagged);
+  }
+
+  @Test
+  public void testVersionToken() {
+    String etag = ConditionalGetMiddleware.etag("v42");
+    assertEquals(etag, "\"v42\"");
+    assertNull(ConditionalGetMiddleware.notModified(request(Request.Type.GET, "/"), etag));
+    assertNull(ConditionalGetMiddleware.notModified(request(Request.Type.GET, "/", "If-None-Match", "\"v41\""), etag));
+    Response notModified = ConditionalGetMiddleware.notModified(
+        request(Request.Type.GET, "/", "If-None-Match", "\"v41\", \"v42\""), etag);
+    assertEquals(notModified.getStatusCode(), 304);
+    assertEquals(notModified.getHeader("ETag").getValue(), etag);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidVersion() {
+    ConditionalGetMiddleware.etag("say \"hi\"");
+  }
+
+  @Test
+  public void testHash() {
+    Set<Long> hashes = new HashSet<>();
+    byte[] bytes = new byte[64];
+    for (int length = 0; length <= bytes.length; length++) {
+      assertTrue(hashes.add(ConditionalGetMiddleware.hash(ByteBuffer.wrap(bytes, 0, length))));
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = 1;
+      assertTrue(hashes.add(ConditionalGetMiddleware.hash(ByteBuffer.wrap(bytes))));
+      bytes[i] = 0;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap("xxhello".getBytes(StandardCharsets.US_ASCII));
+    buffer.position(2);
+    assertEquals(ConditionalGetMiddleware.hash(buffer),
+        ConditionalGetMiddleware.hash(ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII))));
+    assertEquals(buffer.position(), 2);
+  }
+
+  private static Response body(String body) {
+    return new Response.Builder().setBody(body).build();
+  }
+}
@@ -0,0 +1,161 @@
+package org.rgamba.falcon.middleware;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.rgamba.falcon.HttpUtils;
+import org.rgamba.falcon.MiddlewareSet;
+import org.rgamba.falcon.Request;
+import org.rgamba.falcon.Response;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.rgamba.falcon.TestRequests.request;
+import static org.testng.Assert.*;
+
+
+public class ResponseCacheMiddlewareTest {
+  private final AtomicLong _now = new AtomicLong(1000000);
+  private ResponseCacheMiddleware _cache;
+
+  @BeforeMethod
+  public void setUp() {
+    _cache = new ResponseCacheMiddleware.Builder().setClock(_now::get).build();
+  }
+
+  @Test
+  public void testHitUntilExpired() {
+    Request request = request(Request.Type.GET, "/users?page=2");
+    assertNull(_cache.intercept(request));
+    Response stored = _cache.processResponse(request, response("public, max-age=60"));
+    assertEquals(_cache.size(), 1);
+    assertSame(_cache.intercept(request), stored);
+    assertNull(_cache.intercept(request(Request.Type.GET, "/users?page=3")));
+    assertNull(_cache.intercept(request(Request.Type.HEAD, "/users?page=2")));
+    _now.addAndGet(59999);
+    assertSame(_cache.intercept(request), stored);
+    _now.addAndGet(1);
+    assertNull(_cache.intercept(request));
+  }
+
+  @Test
+  public void testSharedMaxAge() {
+    Request request = request(Request.Type.GET, "/");
+    _cache.processResponse(request, response("max-age=600, s-maxage=\"1\""));
+    _now.addAndGet(1000);
+    assertNull(_cache.intercept(request));
+  }
+
+  @Test
+  public void testKeyedOnHost() {
+    _cache.processResponse(request(Request.Type.GET, "/", "Host", "a.example.com"), response("max-age=60"));
+    assertNotNull(_cache.intercept(request(Request.Type.GET, "/", "Host", "A.example.com")));
+    assertNull(_cache.intercept(request(Request.Type.GET, "/", "Host", "b.example.com")));
+  }
+
+  @Test
+  public void testVary() {
+    Response gzip = new Response.Builder().setHeader("Cache-Control", "max-age=60")
+        .setHeader("Vary", "Accept-Encoding").setHeader("Content-Encoding", "gzip").setBody("gzipped").build();
+    Response identity = new Response.Builder().setHeader("Cache-Control", "max-age=60")
+        .setHeader("Vary", "accept-encoding").setBody("plain").build();
+    Request gzipRequest = request(Request.Type.GET, "/", "Accept-Encoding", "gzip");
+    Request plainRequest = request(Request.Type.GET, "/");
+    _cache.processResponse(gzipRequest, gzip);
+    assertNull(_cache.intercept(plainRequest));
+    _cache.processResponse(plainRequest, identity);
+    assertEquals(_cache.size(), 2);
+    assertEquals(_cache.intercept(gzipRequest).getBody(), "gzipped");
+    assertEquals(_cache.intercept(plainRequest).getBody(), "plain");
+    assertNull(_cache.intercept(request(Request.Type.GET, "/", "Accept-Encoding", "deflate")));
+  }
+
+  @Test
+  public void testNotStored() {
+    Request request = request(Request.Type.GET, "/");
+    Response[] responses = {
+        response(null),
+        response("max-age=0"),
+        response("private, max-age=60"),
+        response("no-store"),
+        response("no-cache, max-age=60"),
+        new Response.Builder().setHeader("Cache-Control", "max-age=60").setHeader("Vary", "*").setBody("").build(),
+        new Response.Builder().setHeader("Cache-Control", "max-age=60").setHeader("Set-Cookie", "id=1")
+            .setBody("").build(),
+        new Response.Builder().setHeader("Cache-Control", "max-age=60").setStatusCode(500).setBody("").build(),
+        new Response.Builder().setHeader("Cache-Control", "max-age=60").setBody(sink -> { }).build(),
+    };
+    for (Response response : responses) {
+      assertSame(_cache.processResponse(request, response), response);
+    }
+    Response cacheable = response("max-age=60");
+    assertSame(_cache.processResponse(request(Request.Type.POST, "/"), cacheable), cacheable);
+    assertSame(_cache.processResponse(request(Request.Type.GET, "/", "Authorization", "Basic eDp5"), cacheable),
+        cacheable);
+    assertSame(_cache.processResponse(request(Request.Type.GET, "/", "Cache-Control", "no-store"), cacheable),
+        cacheable);
+    assertEquals(_cache.size(), 0);
+  }
+
+  @Test
+  public void testNoCacheRequestGetsFreshResponse() {
+    Request request = request(Request.Type.GET, "/");
+    _cache.processResponse(request, response("max-age=60"));
+    Request noCache = request(Request.Type.GET, "/", "Cache-Control", "no-cache");
+    assertNull(_cache.intercept(noCache));
+    Response fresh = _cache.processResponse(noCache, new Response.Builder()
+        .setHeader("Cache-Control", "max-age=60").setBody("fresh").build());
+    assertSame(_cache.intercept(request), fresh);
+  }
+
+  @Test
+  public void testConditionalRequestOnHit() throws Exception {
+    MiddlewareSet middleware = new MiddlewareSet();
+    middleware.register(ConditionalGetMiddleware.class);
+    middleware.register(_cache);
+    Request request = request(Request.Type.GET, "/");
+    Response stored = middleware.processResponse(request, new Response.Builder()
+        .setHeader("Cache-Control", "max-age=60").setHeader("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT")
+        .setBody("cached body").build());
+    String etag = stored.getHeader("ETag").getValue();
+    assertSame(middleware.intercept(request), stored);
+
+    _now.addAndGet(5000);
+    Response notModified = middleware.intercept(request(Request.Type.GET, "/", "If-None-Match", "W/" + etag));
+    assertEquals(notModified.getStatusCode(), 304);
+    /* Dated like a full hit */
+    assertEquals(notModified.getHeader("Date").getValue(), HttpUtils.formatHttpDate(_now.get()));
+    assertEquals(notModified.getHeader("Age").getValue(), "5");
+    assertEquals(notModified.getHeader("ETag").getValue(), etag);
+    assertNull(notModified.getBody());
+    assertEquals(middleware.intercept(request(Request.Type.GET, "/", "If-Modified-Since",
+        "Sun, 06 Nov 1994 08:49:37 GMT")).getStatusCode(), 304);
+    assertSame(middleware.intercept(request(Request.Type.GET, "/", "If-None-Match", "\"other\"")), stored);
+    assertSame(middleware.intercept(request(Request.Type.GET, "/", "If-Modified-Since",
+        "Sat, 05 Nov 1994 08:49:37 GMT")), stored);
+  }
+
+  @Test
+  public void testEvictsByBytes() {
+    ResponseCacheMiddleware cache = new ResponseCacheMiddleware.Builder().setMaxBytes(16 * 4096).build();
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      body.append('x');
+    }
+    for (int i = 0; i < 1000; i++) {
+      cache.processResponse(request(Request.Type.GET, "/" + i), new Response.Builder()
+          .setHeader("Cache-Control", "max-age=60").setBody(body.toString()).build());
+    }
+    assertTrue(cache.getBytes() <= 16 * 4096);
+    assertTrue(cache.size() > 16 && cache.size() < 1000);
+    cache.clear();
+    assertEquals(cache.size(), 0);
+    assertEquals(cache.getBytes(), 0);
+  }
+
+  private static Response response(String cacheControl) {
+    Response.Builder builder = new Response.Builder().setBody("cached body");
+    if (cacheControl != null) {
+      builder.setHeader("Cache-Control", cacheControl);
+    }
+    return builder.build();
+  }
+}